@@ -0,0 +1,48 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Picks the largest upload that is expected to get its response within a time budget,
+ * given the measured link and the payload sizes seen so far for each profile.
+ */
+public class AdaptiveSelector {
+
+    private final LinkEstimator mLink;
+    private final ProfileMetrics mMetrics;
+    private final long mBudgetNanos;
+
+    public AdaptiveSelector(LinkEstimator link, ProfileMetrics metrics, long budgetNanos) {
+        mLink = link;
+        mMetrics = metrics;
+        mBudgetNanos = budgetNanos;
+    }
+
+    /**
+     * Rough JPEG size of a 4:3 picture with the given long edge, used for profiles
+     * that were not measured yet.
+     */
+    public static long estimatePayloadBytes(int longEdge, int quality) {
+        long pixels = (long) longEdge * longEdge * 3 / 4;
+        //about 0.05 bytes per pixel at low quality up to 0.35 near 100
+        return (long) (pixels * (0.05 + 0.003 * quality));
+    }
+
+    /**
+     * @param profileKeys   candidate profiles, smallest payload first
+     * @param fallbackBytes expected payload size of each candidate until it has been measured
+     * @return index of the candidate to use, 0 if none fits the budget
+     */
+    public int select(String[] profileKeys, long[] fallbackBytes) {
+        for (int i = profileKeys.length - 1; i > 0; i--) {
+            ProfileMetrics.Stats stats = mMetrics.get(profileKeys[i]);
+            long bytes = stats != null && stats.getCount() > 0 ? stats.getAverageBytes() : fallbackBytes[i];
+            if (mLink.estimateNanos(bytes) <= mBudgetNanos) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    public long getBudgetNanos() {
+        return mBudgetNanos;
+    }
+}
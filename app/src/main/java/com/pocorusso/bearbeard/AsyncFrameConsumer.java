@@ -0,0 +1,58 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Hands preview frames over to a {@link ProcessingStage} so the camera callback
+ * thread only pays for a queue insert. Frames are released back to the
+ * {@link FramePipeline} once processed or dropped.
+ */
+public class AsyncFrameConsumer implements FramePipeline.FrameConsumer {
+
+    private final ProcessingStage<PreviewFrame> mStage;
+
+    /**
+     * @param name        stage name used for threads and stats
+     * @param workerCount number of worker threads
+     * @param capacity    number of frames that may wait in the queue. Queued frames
+     *                    hold pipeline buffers, keep this below the pipeline's buffer count.
+     * @param dropPolicy  what to do when the queue is full
+     * @param processor   frame work; must not release the frame itself
+     */
+    public AsyncFrameConsumer(String name, int workerCount, int capacity,
+                              ProcessingStage.DropPolicy dropPolicy,
+                              final ProcessingStage.Processor<PreviewFrame> processor) {
+        mStage = new ProcessingStage<PreviewFrame>(name, workerCount, capacity, dropPolicy,
+                new ProcessingStage.Processor<PreviewFrame>() {
+                    @Override
+                    public void process(PreviewFrame frame) throws Exception {
+                        try {
+                            processor.process(frame);
+                        } finally {
+                            frame.release();
+                        }
+                    }
+
+                    @Override
+                    public void onDropped(PreviewFrame frame) {
+                        try {
+                            processor.onDropped(frame);
+                        } finally {
+                            frame.release();
+                        }
+                    }
+                });
+        mStage.start();
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        mStage.submit(frame);
+    }
+
+    public void shutdown() {
+        mStage.shutdown();
+    }
+
+    public StageStats getStats() {
+        return mStage.getStats();
+    }
+}
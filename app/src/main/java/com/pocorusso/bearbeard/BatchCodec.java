@@ -0,0 +1,77 @@
+package com.pocorusso.bearbeard;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Length-prefixed framing of batch uploads.
+ *
+ * A request is a big-endian int item count followed by one frame per item. A frame
+ * is a big-endian int length and that many bytes. The response has one frame per
+ * item, in request order, where a length of -1 means the server failed that item.
+ */
+public class BatchCodec {
+
+    public static final String CONTENT_TYPE = "application/x-bearbeard-batch";
+    static final int FAILED = -1;
+    //far above any processed picture, but a corrupt length can't take the heap with it
+    static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+
+    private BatchCodec() {
+    }
+
+    public static InputStream header(int value) {
+        return new ByteArrayInputStream(intBytes(value));
+    }
+
+    public static void writeFrame(OutputStream out, byte[] data) throws IOException {
+        out.write(intBytes(data.length));
+        out.write(data);
+    }
+
+    public static void writeFailedFrame(OutputStream out) throws IOException {
+        out.write(intBytes(FAILED));
+    }
+
+    /**
+     * @return the frame's bytes, or null if the server failed this item
+     * @throws EOFException if the stream ends before the frame does
+     * @throws IOException  if the frame is longer than {@link #MAX_FRAME_LENGTH}
+     */
+    public static byte[] readFrame(InputStream in) throws IOException {
+        int length = readInt(in);
+        if (length == FAILED) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Malformed frame length " + length);
+        }
+        byte[] data = new byte[length];
+        readFully(in, data);
+        return data;
+    }
+
+    public static int readInt(InputStream in) throws IOException {
+        byte[] bytes = new byte[4];
+        readFully(in, bytes);
+        return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static void readFully(InputStream in, byte[] data) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int read = in.read(data, offset, data.length - offset);
+            if (read == -1) {
+                throw new EOFException("Batch response ended early");
+            }
+            offset += read;
+        }
+    }
+}
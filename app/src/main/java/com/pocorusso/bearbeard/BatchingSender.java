@@ -0,0 +1,267 @@
+package com.pocorusso.bearbeard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packs upload jobs into one request per batch, framed by {@link BatchCodec}.
+ *
+ * Jobs are held until maxBatchSize of them are waiting or the first one has waited
+ * lingerMs, then sent together. Each job's callback is called as soon as its frame
+ * of the streamed response has been read, without waiting for the rest of the batch.
+ */
+public class BatchingSender implements UploadQueue.Sender {
+
+    public interface FrameSource {
+        /**
+         * @return size of the job's frame. Called on a sender thread.
+         */
+        long getLength(UploadJob job) throws IOException;
+
+        /**
+         * Open the job's frame data, exactly getLength bytes. Called on a sender thread.
+         */
+        InputStream open(UploadJob job) throws IOException;
+    }
+
+    private static class Item {
+        final UploadJob mJob;
+        final UploadQueue.SendCallback mCallback;
+        boolean mDelivered;
+
+        Item(UploadJob job, UploadQueue.SendCallback callback) {
+            mJob = job;
+            mCallback = callback;
+        }
+    }
+
+    private volatile URL mUrl;
+    private volatile Transport mTransport;
+    private final FrameSource mFrameSource;
+    private final int mTimeoutMs;
+    private final ScheduledExecutorService mLingerScheduler;
+    private final ExecutorService mExecutor;
+    //guarded by this
+    private List<Item> mWaiting = new ArrayList<Item>();
+    private ScheduledFuture<?> mLingerFuture;
+    private int mMaxBatchSize;
+    private long mLingerMs;
+
+    private final AtomicLong mBatches = new AtomicLong();
+    private final AtomicLong mItems = new AtomicLong();
+
+    /**
+     * @param threads batches sent at once
+     */
+    public BatchingSender(URL url, Transport transport, FrameSource frameSource, int maxBatchSize,
+                          long lingerMs, int timeoutMs, int threads) {
+        mUrl = url;
+        mTransport = transport;
+        mFrameSource = frameSource;
+        mTimeoutMs = timeoutMs;
+        setBatchOptions(maxBatchSize, lingerMs);
+        mLingerScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "BatchingSender-linger");
+            }
+        });
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "BatchingSender-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * @param maxBatchSize jobs sent in one request at most
+     * @param lingerMs     how long the first job of a batch waits for others
+     */
+    public synchronized void setBatchOptions(int maxBatchSize, long lingerMs) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        mMaxBatchSize = maxBatchSize;
+        mLingerMs = lingerMs;
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * Post batches sent from now on to another endpoint.
+     */
+    public void setEndpoint(URL url, Transport transport) {
+        Transport previous;
+        synchronized (this) {
+            previous = mTransport;
+            mTransport = transport;
+            mUrl = url;
+        }
+        if (previous != transport) {
+            previous.shutdown();
+        }
+    }
+
+    @Override
+    public synchronized void send(UploadJob job, UploadQueue.SendCallback callback) {
+        mWaiting.add(new Item(job, callback));
+        if (mWaiting.size() >= mMaxBatchSize) {
+            flushLocked();
+        } else if (mLingerFuture == null) {
+            try {
+                mLingerFuture = mLingerScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, mLingerMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flushLocked();
+            }
+        }
+    }
+
+    /**
+     * Send whatever is waiting now.
+     */
+    public synchronized void flush() {
+        flushLocked();
+    }
+
+    private void flushLocked() {
+        if (mLingerFuture != null) {
+            mLingerFuture.cancel(false);
+            mLingerFuture = null;
+        }
+        if (mWaiting.isEmpty()) {
+            return;
+        }
+        final List<Item> batch = mWaiting;
+        mWaiting = new ArrayList<Item>();
+        final URL url = mUrl;
+        final Transport transport = mTransport;
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendBatch(url, transport, batch);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(batch, e, true);
+        }
+    }
+
+    private void sendBatch(URL url, Transport transport, final List<Item> batch) {
+        mBatches.incrementAndGet();
+        mItems.addAndGet(batch.size());
+        Transport.Body body = new Transport.Body() {
+            @Override
+            public String getContentType() {
+                return BatchCodec.CONTENT_TYPE;
+            }
+
+            @Override
+            public String getAccept() {
+                return BatchCodec.CONTENT_TYPE;
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                Vector<InputStream> parts = new Vector<InputStream>();
+                parts.add(BatchCodec.header(batch.size()));
+                try {
+                    for (Item item : batch) {
+                        long length = mFrameSource.getLength(item.mJob);
+                        if (length > Integer.MAX_VALUE) {
+                            throw new IOException("Too large for a batch: " + item.mJob);
+                        }
+                        parts.add(BatchCodec.header((int) length));
+                        parts.add(mFrameSource.open(item.mJob));
+                    }
+                } catch (IOException e) {
+                    for (InputStream part : parts) {
+                        part.close();
+                    }
+                    throw e;
+                }
+                return new SequenceInputStream(parts.elements());
+            }
+        };
+
+        long traceStart = Tracer.getInstance().begin();
+        try {
+            transport.post(url, body, mTimeoutMs, new Transport.ResponseHandler() {
+                @Override
+                public void onResponse(int statusCode, String contentType, InputStream in) throws IOException {
+                    if (statusCode < 200 || statusCode >= 300) {
+                        throw new StreamingSender.HttpStatusException(statusCode);
+                    }
+                    for (Item item : batch) {
+                        byte[] frame = BatchCodec.readFrame(in);
+                        item.mDelivered = true;
+                        if (frame != null) {
+                            item.mCallback.onSuccess(frame);
+                        } else {
+                            item.mCallback.onFailure(new IOException("Server failed " + item.mJob), false);
+                        }
+                    }
+                }
+            });
+            Tracer.getInstance().end(Tracer.Stage.NETWORK, traceStart);
+        } catch (IOException e) {
+            fail(batch, e, RequestPolicy.isRetryable(e));
+        } catch (RuntimeException e) {
+            //a bug rather than the network, sending again would fail the same way
+            fail(batch, e, false);
+        }
+    }
+
+    private static void fail(List<Item> batch, Exception e, boolean retryable) {
+        for (Item item : batch) {
+            if (!item.mDelivered) {
+                item.mDelivered = true;
+                item.mCallback.onFailure(e, retryable);
+            }
+        }
+    }
+
+    public long getBatchCount() {
+        return mBatches.get();
+    }
+
+    public double getAverageBatchSize() {
+        long batches = mBatches.get();
+        return batches == 0 ? 0 : (double) mItems.get() / batches;
+    }
+
+    public TransferStats getStats() {
+        return mTransport.getStats();
+    }
+
+    public void shutdown() {
+        flush();
+        mLingerScheduler.shutdown();
+        mExecutor.shutdown();
+        mTransport.shutdown();
+    }
+}
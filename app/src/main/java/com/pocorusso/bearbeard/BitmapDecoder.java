@@ -0,0 +1,227 @@
+package com.pocorusso.bearbeard;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes images down-sampled to the size they are shown at, reusing bitmap
+ * memory from a {@link BitmapPool} instead of allocating a new Bitmap per decode.
+ *
+ * Bitmaps handed out are mutable. Give them back with {@link #recycle(Bitmap)}
+ * once they are no longer displayed.
+ *
+ * JPEGs are turned upright by their EXIF orientation after down-sampling, so only
+ * the small bitmap is rotated, drawn into another pooled bitmap.
+ */
+public class BitmapDecoder {
+
+    private static String TAG = "BitmapDecoder";
+    //share of the heap the pool may hold on to
+    private static final int POOL_HEAP_FRACTION = 16;
+    private static BitmapDecoder mInstance;
+
+    private final BitmapPool mPool;
+
+    public static synchronized BitmapDecoder getInstance() {
+        if (mInstance == null) {
+            mInstance = new BitmapDecoder(new BitmapPool(Runtime.getRuntime().maxMemory() / POOL_HEAP_FRACTION));
+        }
+        return mInstance;
+    }
+
+    public BitmapDecoder(BitmapPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Decode a file to at least the requested size, keeping its aspect ratio.
+     *
+     * @return the bitmap, or null if the file could not be decoded
+     */
+    public Bitmap decodeFile(String path, int destWidth, int destHeight) {
+        return decodeFile(path, destWidth, destHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    public Bitmap decodeFile(String path, int destWidth, int destHeight, Bitmap.Config config) {
+        return decode(path, null, destWidth, destHeight, 0, config);
+    }
+
+    /**
+     * Decode a file so that its longer side is at least longEdge.
+     *
+     * @param config null to pick RGB_565 for JPEGs, which have no alpha, and ARGB_8888 otherwise
+     */
+    public Bitmap decodeFileToLongEdge(String path, int longEdge, Bitmap.Config config) {
+        return decode(path, null, 0, 0, longEdge, config);
+    }
+
+    /**
+     * Decode an encoded image held in memory, such as a server response, to at least
+     * the requested size.
+     *
+     * @return the bitmap, or null if the data could not be decoded
+     */
+    public Bitmap decodeByteArray(byte[] data, int destWidth, int destHeight, Bitmap.Config config) {
+        return decode(null, data, destWidth, destHeight, 0, config);
+    }
+
+    /**
+     * Decode an encoded image held in memory so that its longer side is at least longEdge.
+     *
+     * @param config null to pick RGB_565 for JPEGs, which have no alpha, and ARGB_8888 otherwise
+     */
+    public Bitmap decodeByteArrayToLongEdge(byte[] data, int longEdge, Bitmap.Config config) {
+        return decode(null, data, 0, 0, longEdge, config);
+    }
+
+    private Bitmap decode(String path, byte[] data, int destWidth, int destHeight, int longEdge,
+                          Bitmap.Config config) {
+        //Read in the dimensions of the image, this only parses the header
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeSource(path, data, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.e(TAG, "Failed to read bounds of " + (path != null ? path : data.length + " bytes"));
+            return null;
+        }
+
+        boolean isJpeg = "image/jpeg".equals(options.outMimeType);
+        int orientation = isJpeg ? readOrientation(path, data) : JpegOrientation.NORMAL;
+        if (JpegOrientation.rotationOf(orientation) % 180 != 0) {
+            //the requested size is for the upright image
+            int swap = destWidth;
+            destWidth = destHeight;
+            destHeight = swap;
+        }
+        int inSampleSize = longEdge > 0
+                ? BitmapSampling.calculateInSampleSizeForLongEdge(options.outWidth, options.outHeight, longEdge)
+                : BitmapSampling.calculateInSampleSize(options.outWidth, options.outHeight, destWidth, destHeight);
+        if (config == null) {
+            config = isJpeg ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        }
+        int width = BitmapSampling.sampledDimension(options.outWidth, inSampleSize);
+        int height = BitmapSampling.sampledDimension(options.outHeight, inSampleSize);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = inSampleSize;
+        options.inPreferredConfig = config;
+        options.inMutable = true;
+        //before KitKat inBitmap only works without sampling
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || inSampleSize == 1) {
+            options.inBitmap = mPool.get(width, height, config);
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = decodeSource(path, data, options);
+        } catch (IllegalArgumentException e) {
+            //the pooled bitmap could not be reused for this image
+            Log.d(TAG, "inBitmap rejected, decoding into a new bitmap");
+            mPool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decodeSource(path, data, options);
+        }
+        if (bitmap == null && options.inBitmap != null) {
+            //undecodable data, the pooled bitmap was never handed out
+            mPool.put(options.inBitmap);
+        }
+        return orient(bitmap, orientation);
+    }
+
+    private static int readOrientation(String path, byte[] data) {
+        if (data != null) {
+            return JpegOrientation.getExifOrientation(data);
+        }
+        try {
+            return JpegOrientation.readExifOrientation(new File(path));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the orientation of " + path, e);
+            return JpegOrientation.NORMAL;
+        }
+    }
+
+    private Bitmap orient(Bitmap bitmap, int orientation) {
+        if (bitmap == null || orientation == JpegOrientation.NORMAL) {
+            return bitmap;
+        }
+        int rotation = JpegOrientation.rotationOf(orientation);
+        int width = rotation % 180 == 0 ? bitmap.getWidth() : bitmap.getHeight();
+        int height = rotation % 180 == 0 ? bitmap.getHeight() : bitmap.getWidth();
+        Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap oriented = takeTarget(width, height, config);
+        if (bitmap.hasAlpha()) {
+            oriented.eraseColor(Color.TRANSPARENT);
+        }
+        oriented.setHasAlpha(bitmap.hasAlpha());
+
+        Matrix matrix = new Matrix();
+        matrix.setRotate(rotation);
+        if (JpegOrientation.isMirrored(orientation)) {
+            matrix.postScale(-1, 1);
+        }
+        //move the turned image back to the origin
+        RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        new Canvas(oriented).drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        mPool.put(bitmap);
+        return oriented;
+    }
+
+    /**
+     * @return a mutable bitmap of exactly the given size to draw into, from the pool
+     * if one fits. Give it back with {@link #recycle(Bitmap)}.
+     */
+    Bitmap takeTarget(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = mPool.get(width, height, config);
+        if (bitmap != null && (bitmap.getWidth() != width || bitmap.getHeight() != height
+                || bitmap.getConfig() != config)) {
+            //since KitKat the pool hands out any bitmap large enough
+            bitmap = reconfigure(bitmap, width, height, config);
+        }
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            try {
+                bitmap.reconfigure(width, height, config);
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                //fall through and give it back
+            }
+        }
+        mPool.put(bitmap);
+        return null;
+    }
+
+    private static Bitmap decodeSource(String path, byte[] data, BitmapFactory.Options options) {
+        if (path != null) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * Return a bitmap that is no longer used so its memory can be decoded into again.
+     */
+    public void recycle(Bitmap bitmap) {
+        mPool.put(bitmap);
+    }
+
+    public BitmapPool getPool() {
+        return mPool;
+    }
+}
@@ -0,0 +1,165 @@
+package com.pocorusso.bearbeard;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * In-memory LRU cache of decoded bitmaps, sized in bytes against the
+ * device's memory class.
+ *
+ * Bitmaps in the cache are shared and must not be recycled or handed back to the
+ * {@link BitmapPool}; use {@link #contains(Bitmap)} to check. Evicted bitmaps are
+ * simply left for the garbage collector since they may still be on screen.
+ */
+public class BitmapMemoryCache implements ComponentCallbacks2 {
+
+    private static String TAG = "BitmapMemoryCache";
+    //share of the app's memory class the cache may use
+    private static final int MEMORY_CLASS_FRACTION = 8;
+    private static BitmapMemoryCache mInstance;
+
+    private final LruCache<String, Bitmap> mCache;
+    private final Set<Bitmap> mCachedBitmaps =
+            Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+    /**
+     * Singleton
+     *
+     * @param context any context, the application context is kept
+     */
+    public static synchronized BitmapMemoryCache getInstance(Context context) {
+        if (mInstance == null) {
+            Context appContext = context.getApplicationContext();
+            ActivityManager am = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+            int maxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+            mInstance = new BitmapMemoryCache(maxBytes);
+            appContext.registerComponentCallbacks(mInstance);
+        }
+        return mInstance;
+    }
+
+    private BitmapMemoryCache(int maxBytes) {
+        Log.d(TAG, "cache size " + maxBytes / 1024 + "KB");
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                synchronized (mCachedBitmaps) {
+                    if (oldValue != newValue) {
+                        mCachedBitmaps.remove(oldValue);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Key for a file decoded at a given size. The modification time is part of
+     * the key so a rewritten file is decoded again.
+     */
+    public static String fileKey(File file, int width, int height) {
+        return file.getPath() + "@" + file.lastModified() + "#" + width + "x" + height;
+    }
+
+    /**
+     * Key for a network result decoded at a given size.
+     */
+    public static String requestKey(String requestKey, int width, int height) {
+        return "req:" + requestKey + "#" + width + "x" + height;
+    }
+
+    public Bitmap get(String key) {
+        return mCache.get(key);
+    }
+
+    public void put(String key, Bitmap bitmap) {
+        if (key == null || bitmap == null) {
+            return;
+        }
+        synchronized (mCachedBitmaps) {
+            mCachedBitmaps.add(bitmap);
+        }
+        mCache.put(key, bitmap);
+    }
+
+    /**
+     * @return true if the bitmap is held by the cache and so must not be reused
+     */
+    public boolean contains(Bitmap bitmap) {
+        synchronized (mCachedBitmaps) {
+            return mCachedBitmaps.contains(bitmap);
+        }
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    public int getSizeBytes() {
+        return mCache.size();
+    }
+
+    public int getMaxSizeBytes() {
+        return mCache.maxSize();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        Log.d(TAG, "onTrimMemory level=" + level + " " + this);
+        if (level >= TRIM_MEMORY_MODERATE) {
+            //we are well down the background LRU list, give everything back
+            mCache.evictAll();
+            BitmapDecoder.getInstance().getPool().clear();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCache.trimToSize(mCache.maxSize() / 4);
+            BitmapDecoder.getInstance().getPool().clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+            BitmapDecoder.getInstance().getPool().trimToSize(BitmapDecoder.getInstance().getPool().getMaxBytes() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        //nothing to do
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + getSizeBytes() / 1024 + "/" + getMaxSizeBytes() / 1024 + "KB"
+                + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount();
+    }
+}
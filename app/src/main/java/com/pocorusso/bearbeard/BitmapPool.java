@@ -0,0 +1,180 @@
+package com.pocorusso.bearbeard;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mutable bitmaps kept for reuse through {@link android.graphics.BitmapFactory.Options#inBitmap}.
+ *
+ * Bitmaps are bucketed by allocation size rounded up to a power of two. The total
+ * size is bounded in bytes; when a new bitmap does not fit, the oldest ones are
+ * dropped for the garbage collector.
+ */
+public class BitmapPool {
+
+    private static String TAG = "BitmapPool";
+
+    private final long mMaxBytes;
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<Integer, ArrayDeque<Bitmap>>();
+    //every pooled bitmap, oldest first
+    private final ArrayDeque<Bitmap> mInsertionOrder = new ArrayDeque<Bitmap>();
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Take a bitmap that can be decoded into at the given size.
+     *
+     * @return a bitmap to pass as inBitmap, or null if none fits
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int needed = width * height * bytesPerPixel(config);
+        Bitmap bitmap;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            //any bitmap at least as large will do, but don't waste a much larger one
+            bitmap = take(needed, bucketFor(needed) * 2, width, height, config, false);
+        } else {
+            //before KitKat the dimensions have to match exactly
+            bitmap = take(needed, bucketFor(needed), width, height, config, true);
+        }
+
+        if (bitmap == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Offer a bitmap that is no longer displayed or referenced anywhere.
+     * Immutable or recycled bitmaps are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = allocationSize(bitmap);
+        if (size > mMaxBytes || mInsertionOrder.contains(bitmap)) {
+            return;
+        }
+        while (mBytes + size > mMaxBytes) {
+            evictOldest();
+        }
+
+        int bucket = bucketFor(size);
+        ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<Bitmap>();
+            mBuckets.put(bucket, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        mInsertionOrder.addLast(bitmap);
+        mBytes += size;
+    }
+
+    public synchronized void clear() {
+        mBuckets.clear();
+        mInsertionOrder.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Drop bitmaps until the pool holds no more than the given number of bytes.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        while (mBytes > maxBytes && !mInsertionOrder.isEmpty()) {
+            evictOldest();
+        }
+    }
+
+    public synchronized long getSizeBytes() {
+        return mBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    private Bitmap take(int minBytes, int maxBucket, int width, int height,
+                        Bitmap.Config config, boolean exactSize) {
+        for (Map.Entry<Integer, ArrayDeque<Bitmap>> entry
+                : mBuckets.subMap(bucketFor(minBytes), true, maxBucket, true).entrySet()) {
+            Iterator<Bitmap> it = entry.getValue().iterator();
+            while (it.hasNext()) {
+                Bitmap bitmap = it.next();
+                boolean fits = exactSize
+                        ? bitmap.getWidth() == width && bitmap.getHeight() == height
+                            && bitmap.getConfig() == config
+                        : allocationSize(bitmap) >= minBytes;
+                if (fits) {
+                    it.remove();
+                    if (entry.getValue().isEmpty()) {
+                        mBuckets.remove(entry.getKey());
+                    }
+                    mInsertionOrder.remove(bitmap);
+                    mBytes -= allocationSize(bitmap);
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void evictOldest() {
+        Bitmap bitmap = mInsertionOrder.pollFirst();
+        if (bitmap == null) {
+            return;
+        }
+        int size = allocationSize(bitmap);
+        int bucket = bucketFor(size);
+        ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps != null) {
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty()) {
+                mBuckets.remove(bucket);
+            }
+        }
+        mBytes -= size;
+        Log.d(TAG, "evicted " + bitmap.getWidth() + "x" + bitmap.getHeight());
+    }
+
+    private static int allocationSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static int bucketFor(int bytes) {
+        int bucket = Integer.highestOneBit(Math.max(bytes, 1));
+        return bucket == bytes ? bucket : bucket << 1;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,59 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Sample size math for down-sampled bitmap decoding. Kept free of Android
+ * classes so it can be tested on the host JVM.
+ */
+public class BitmapSampling {
+
+    private BitmapSampling() {
+    }
+
+    /**
+     * Largest power of two sample size that still keeps both decoded dimensions
+     * at or above the requested size. The decoder rounds other values down to a
+     * power of two anyway, so this is the size it will actually use.
+     *
+     * @return a power of two, at least 1
+     */
+    public static int calculateInSampleSize(int srcWidth, int srcHeight, int destWidth, int destHeight) {
+        int inSampleSize = 1;
+        if (srcWidth <= 0 || srcHeight <= 0 || destWidth <= 0 || destHeight <= 0) {
+            return inSampleSize;
+        }
+
+        while (srcWidth / (inSampleSize * 2) >= destWidth
+                && srcHeight / (inSampleSize * 2) >= destHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Like {@link #calculateInSampleSize(int, int, int, int)} but only keeping the
+     * longer side at or above the given length.
+     */
+    public static int calculateInSampleSizeForLongEdge(int srcWidth, int srcHeight, int longEdge) {
+        if (srcWidth >= srcHeight) {
+            return calculateInSampleSize(srcWidth, srcHeight, longEdge, 1);
+        }
+        return calculateInSampleSize(srcWidth, srcHeight, 1, longEdge);
+    }
+
+    /**
+     * Scale one dimension of an image so that its longer side becomes longEdge.
+     *
+     * @return the scaled size, rounded to the nearest pixel and at least 1
+     */
+    public static int scaleToLongEdge(int size, int srcWidth, int srcHeight, int longEdge) {
+        int srcLongEdge = Math.max(srcWidth, srcHeight);
+        return Math.max(1, (int) (((long) size * longEdge + srcLongEdge / 2) / srcLongEdge));
+    }
+
+    /**
+     * Size of one dimension after decoding with the given sample size.
+     */
+    public static int sampledDimension(int size, int inSampleSize) {
+        return (size + inSampleSize - 1) / inSampleSize;
+    }
+}
@@ -0,0 +1,111 @@
+package com.pocorusso.bearbeard;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing of a single burst. All times are {@link System#nanoTime()} values.
+ */
+public class BurstStats {
+
+    private final int mShotCount;
+    private final long mStartNanos;
+    private final long[] mShutterNanos;
+    private final long[] mSavedNanos;
+    private int mSaved;
+    private int mFailed;
+    private long mFinishNanos;
+
+    public BurstStats(int shotCount, long startNanos) {
+        mShotCount = shotCount;
+        mStartNanos = startNanos;
+        mShutterNanos = new long[shotCount];
+        mSavedNanos = new long[shotCount];
+    }
+
+    synchronized void onShutter(int shot, long nanos) {
+        mShutterNanos[shot] = nanos;
+    }
+
+    synchronized void onSaved(int shot, long nanos) {
+        mSavedNanos[shot] = nanos;
+        mSaved++;
+        mFinishNanos = Math.max(mFinishNanos, nanos);
+    }
+
+    synchronized void onFailed(int shot, long nanos) {
+        mFailed++;
+        mFinishNanos = Math.max(mFinishNanos, nanos);
+    }
+
+    /**
+     * @return true once every shot has either been saved or failed
+     */
+    public synchronized boolean isComplete() {
+        return mSaved + mFailed == mShotCount;
+    }
+
+    public int getShotCount() {
+        return mShotCount;
+    }
+
+    public synchronized int getSavedCount() {
+        return mSaved;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * @return time from the shutter firing to the file being on disk,
+     * or -1 if the shot was not saved
+     */
+    public synchronized long getShutterToFileNanos(int shot) {
+        if (mSavedNanos[shot] == 0 || mShutterNanos[shot] == 0) {
+            return -1;
+        }
+        return mSavedNanos[shot] - mShutterNanos[shot];
+    }
+
+    public synchronized long getAverageShutterToFileNanos() {
+        long total = 0;
+        int count = 0;
+        for (int i = 0; i < mShotCount; i++) {
+            long latency = getShutterToFileNanos(i);
+            if (latency >= 0) {
+                total += latency;
+                count++;
+            }
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    public synchronized long getMaxShutterToFileNanos() {
+        long max = 0;
+        for (int i = 0; i < mShotCount; i++) {
+            max = Math.max(max, getShutterToFileNanos(i));
+        }
+        return max;
+    }
+
+    /**
+     * @return saved shots per second from the start of the burst to the last file
+     */
+    public synchronized double getShotsPerSecond() {
+        long elapsed = mFinishNanos - mStartNanos;
+        if (mSaved == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return mSaved * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "shots=" + mSaved + "/" + mShotCount
+                + ", failed=" + mFailed
+                + ", shots/s=" + String.format(Locale.US, "%.2f", getShotsPerSecond())
+                + ", shutterToFileMs=" + getAverageShutterToFileNanos() / 1000000
+                + "/" + getMaxShutterToFileNanos() / 1000000;
+    }
+}
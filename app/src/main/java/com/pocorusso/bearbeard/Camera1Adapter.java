@@ -0,0 +1,758 @@
+package com.pocorusso.bearbeard;
+
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.SurfaceHolder;
+import android.view.WindowManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link CameraAdapter} on the android.hardware.Camera API, for devices without a
+ * usable Camera2 implementation.
+ */
+public class Camera1Adapter implements CameraAdapter {
+
+    private static String TAG = "Camera1Adapter";
+    private final Context mContext;
+    private Camera mCamera;
+    private int mCameraId;
+    private FrameSize mPreviewSize;
+    private boolean mIsPreviewRunning;
+    private final FramePipeline mFramePipeline = new FramePipeline();
+
+    private static final long DEFAULT_RELEASE_GRACE_MS = 3000;
+    private long mReleaseGraceMs = DEFAULT_RELEASE_GRACE_MS;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private boolean mIsReleasePending;
+    //negotiated parameters and preview size, kept across opens of the same camera
+    private final SparseArray<Camera.Parameters> mParametersCache = new SparseArray<Camera.Parameters>();
+    private final SparseArray<FrameSize> mPreviewSizeCache = new SparseArray<FrameSize>();
+    private final PreviewSizeResolver mSizeResolver = new PreviewSizeResolver();
+    private boolean mIsParametersApplied;
+    private final OpenStats mOpenStats = new OpenStats();
+    private long mOpenStartNanos;
+    private boolean mIsWarmOpen;
+    private boolean mIsAwaitingFirstFrame;
+    //the picture being taken, failed if the camera goes away before it arrives
+    private PictureCallback mPendingPicture;
+    private Handler mCallbackHandler = mMainHandler;
+
+    //parameter changes that arrive within this window are applied with one setParameters
+    private static final long PARAMETER_BATCH_DELAY_MS = 50;
+    private FrameSize mAppliedPreviewSize;
+    private String mAppliedFocusMode;
+    private int mAppliedDisplayOrientation = -1;
+    private FrameSize mPendingPreviewSize;
+    private String mPendingFocusMode;
+    private boolean mIsApplyScheduled;
+    private int mPreviewRestartCount;
+    private int mSkippedReconfigurationCount;
+    private SurfaceTexture mPreviewTexture;
+
+    private final Runnable mApplyParametersRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingParameters();
+        }
+    };
+
+    private final Runnable mReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "grace period expired");
+            releaseCamera();
+        }
+    };
+
+
+    Camera1Adapter(Context context) {
+        mContext = context;
+        mCamera = null;
+        mIsPreviewRunning = false;
+    }
+
+    @Override
+    public boolean isValid() {
+        return mCamera != null;
+    }
+
+    @Override
+    public synchronized void openCamera(int cameraId) {
+        mOpenStartNanos = System.nanoTime();
+        mIsAwaitingFirstFrame = true;
+        Looper looper = Looper.myLooper();
+        mCallbackHandler = looper != null ? new Handler(looper) : mMainHandler;
+
+        if (mCamera != null && mIsReleasePending && cameraId == mCameraId) {
+            //still within the grace period, reuse the open camera
+            Log.d(TAG, "openCamera reusing warm camera " + cameraId);
+            cancelPendingRelease();
+            mIsWarmOpen = true;
+            return;
+        }
+
+        mIsWarmOpen = false;
+        mCameraId = cameraId;
+        long traceStart = Tracer.getInstance().begin();
+        mCamera = safeCameraOpen(cameraId);
+        Tracer.getInstance().end(Tracer.Stage.CAMERA_OPEN, traceStart);
+        resetAppliedState();
+        mPreviewSize = mPreviewSizeCache.get(cameraId);
+        if (mCamera != null && !mSizeResolver.hasSupportedSizes(cameraId)) {
+            //the supported sizes of a camera never change, fetch them once
+            mSizeResolver.setSupportedSizes(cameraId,
+                    toFrameSizes(mCamera.getParameters().getSupportedPreviewSizes()));
+        }
+        Log.d(TAG, "exit openCamera mCamera is null:" + (mCamera == null));
+    }
+
+    /**
+     * Release the camera right away.
+     */
+    @Override
+    public synchronized void releaseCamera() {
+        cancelPendingRelease();
+        if (mCamera != null) {
+            Log.d(TAG, "release camera");
+            this.stopPreview();
+            mFramePipeline.detach();
+            if (mPreviewSize != null) {
+                mPreviewSizeCache.put(mCameraId, mPreviewSize);
+            }
+            mCamera.release();
+            mCamera = null;
+            resetAppliedState();
+            if (mPendingPicture != null) {
+                postFailure(mCallbackHandler, mPendingPicture, new IllegalStateException("Camera released"));
+                mPendingPicture = null;
+            }
+        }
+    }
+
+    /**
+     * Stop the preview now but keep the camera open for the grace period, so
+     * that opening the same camera again shortly after is almost free.
+     */
+    @Override
+    public synchronized void releaseCameraDeferred() {
+        if (mCamera == null) {
+            return;
+        }
+        if (mReleaseGraceMs <= 0) {
+            releaseCamera();
+            return;
+        }
+        Log.d(TAG, "releaseCameraDeferred in " + mReleaseGraceMs + "ms");
+        this.stopPreview();
+        mIsReleasePending = true;
+        mMainHandler.removeCallbacks(mReleaseRunnable);
+        mMainHandler.postDelayed(mReleaseRunnable, mReleaseGraceMs);
+    }
+
+    /**
+     * @param graceMs how long {@link #releaseCameraDeferred()} keeps the camera open,
+     *                0 to release right away
+     */
+    @Override
+    public synchronized void setReleaseGracePeriod(long graceMs) {
+        mReleaseGraceMs = graceMs;
+    }
+
+    /**
+     * @return open-to-first-frame times for cold and warm opens
+     */
+    @Override
+    public OpenStats getOpenStats() {
+        return mOpenStats;
+    }
+
+    private void resetAppliedState() {
+        mIsParametersApplied = false;
+        mAppliedPreviewSize = null;
+        mAppliedFocusMode = null;
+        mAppliedDisplayOrientation = -1;
+        mPreviewTexture = null;
+        mPendingPreviewSize = null;
+        mPendingFocusMode = null;
+        if (mIsApplyScheduled) {
+            mMainHandler.removeCallbacks(mApplyParametersRunnable);
+            mIsApplyScheduled = false;
+        }
+    }
+
+    private void cancelPendingRelease() {
+        if (mIsReleasePending) {
+            mMainHandler.removeCallbacks(mReleaseRunnable);
+            mIsReleasePending = false;
+        }
+    }
+
+    @Override
+    public void takePicture(final PictureCallback callback) {
+        Camera camera = null;
+        String failure = null;
+        synchronized (this) {
+            if (mCamera == null) {
+                failure = "Camera not open";
+            } else if (mPendingPicture != null) {
+                failure = "Picture already being taken";
+            } else {
+                mPendingPicture = callback;
+                camera = mCamera;
+            }
+        }
+        if (failure != null) {
+            callback.onPictureFailed(new IllegalStateException(failure));
+            return;
+        }
+        try {
+            camera.takePicture(new Camera.ShutterCallback() {
+                @Override
+                public void onShutter() {
+                    callback.onShutter();
+                }
+            }, null, new Camera.PictureCallback() {
+                @Override
+                public void onPictureTaken(byte[] bytes, Camera camera) {
+                    synchronized (Camera1Adapter.this) {
+                        if (mPendingPicture != callback) {
+                            //already failed when the camera was released
+                            return;
+                        }
+                        mPendingPicture = null;
+                    }
+                    callback.onPictureTaken(bytes);
+                }
+            });
+        } catch (RuntimeException e) {
+            //thrown when the preview is not running or a picture is already being taken
+            Log.e(TAG, "takePicture failed", e);
+            synchronized (this) {
+                if (mPendingPicture != callback) {
+                    return;
+                }
+                mPendingPicture = null;
+            }
+            callback.onPictureFailed(e);
+        }
+    }
+
+    private static void postFailure(Handler handler, final PictureCallback callback, final Exception e) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPictureFailed(e);
+            }
+        });
+    }
+
+    /**
+     * The camera stops the preview once a picture is taken. Start it again so
+     * another picture can be taken without reopening the camera.
+     */
+    @Override
+    public void restartPreview() {
+        if (mCamera != null) {
+            mIsPreviewRunning = false;
+            this.startPreview();
+        }
+    }
+
+    /**
+     * The calling thread should already stop and release the camera
+     * before they set the camera
+     */
+    @Override
+    public synchronized void setSurfaceHolder(SurfaceHolder holder) {
+        Log.d(TAG, "setSurfaceHolder");
+
+        if (mCamera != null) {
+            prepareDisplay();
+            this.setDisplayHolder(holder);
+
+            Log.d(TAG, "setSurfaceHolder calling startPreview");
+            this.startPreview();
+        }
+    }
+
+    /**
+     * Show the preview on a texture instead of a SurfaceHolder, see {@link #setSurfaceHolder}.
+     */
+    @Override
+    public synchronized void setSurfaceTexture(SurfaceTexture texture) {
+        Log.d(TAG, "setSurfaceTexture");
+
+        if (mCamera != null) {
+            if (mIsPreviewRunning && texture == mPreviewTexture) {
+                //the texture and the camera both became ready, only one starts the preview
+                return;
+            }
+            this.stopPreview();
+            prepareDisplay();
+            try {
+                mCamera.setPreviewTexture(texture);
+                mPreviewTexture = texture;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to setPreviewTexture.", e);
+                return;
+            }
+
+            Log.d(TAG, "setSurfaceTexture calling startPreview");
+            this.startPreview();
+        }
+    }
+
+    /**
+     * Stop the preview and let go of its display, so the camera can be moved to
+     * another surface while it stays open.
+     */
+    @Override
+    public synchronized void detachDisplay() {
+        if (mCamera != null) {
+            this.stopPreview();
+            mPreviewTexture = null;
+            try {
+                mCamera.setPreviewDisplay(null);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to detach the preview display.", e);
+            }
+        }
+    }
+
+    private void prepareDisplay() {
+        setCameraDisplayOrientation();
+        if (!mIsParametersApplied) {
+            applyParameters();
+        }
+        //the preview is not running yet, so pending changes are free to apply now
+        flushPendingParameters();
+    }
+
+    /**
+     * Apply the parameters negotiated the last time this camera was opened,
+     * or negotiate them and remember the result.
+     */
+    private void applyParameters() {
+        Camera.Parameters cached = mParametersCache.get(mCameraId);
+        if (cached != null) {
+            try {
+                setParameters(cached);
+                onParametersApplied(cached);
+                Log.d(TAG, "applied cached parameters");
+                return;
+            } catch (RuntimeException e) {
+                Log.d(TAG, "cached parameters rejected, negotiating again");
+                mParametersCache.remove(mCameraId);
+            }
+        }
+
+        Camera.Parameters params = mCamera.getParameters();
+        List<String> focusModes = params.getSupportedFocusModes();
+        if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+            // set the focus mode
+            params.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+        }
+
+        // set Camera parameters
+        setParameters(params);
+        mParametersCache.put(mCameraId, params);
+        onParametersApplied(params);
+    }
+
+    private void setParameters(Camera.Parameters params) {
+        long traceStart = Tracer.getInstance().begin();
+        mCamera.setParameters(params);
+        Tracer.getInstance().end(Tracer.Stage.SET_PARAMETERS, traceStart);
+    }
+
+    private void onParametersApplied(Camera.Parameters params) {
+        mIsParametersApplied = true;
+        Camera.Size size = params.getPreviewSize();
+        mAppliedPreviewSize = size == null ? null : new FrameSize(size.width, size.height);
+        mAppliedFocusMode = params.getFocusMode();
+    }
+
+    /**
+     * Ask for a focus mode. Applied together with any other pending change.
+     */
+    @Override
+    public synchronized void requestFocusMode(String focusMode) {
+        mPendingFocusMode = focusMode;
+        scheduleApplyParameters();
+    }
+
+    private void scheduleApplyParameters() {
+        if (!mIsApplyScheduled) {
+            mIsApplyScheduled = true;
+            mMainHandler.postDelayed(mApplyParametersRunnable, PARAMETER_BATCH_DELAY_MS);
+        }
+    }
+
+    private boolean hasPendingChanges() {
+        return (mPendingPreviewSize != null && !mPendingPreviewSize.equals(mAppliedPreviewSize))
+                || (mPendingFocusMode != null && !mPendingFocusMode.equals(mAppliedFocusMode));
+    }
+
+    /**
+     * Apply all pending parameter changes with a single setParameters call.
+     * The preview is only restarted if its size actually changes.
+     */
+    private synchronized void flushPendingParameters() {
+        if (mIsApplyScheduled) {
+            mMainHandler.removeCallbacks(mApplyParametersRunnable);
+            mIsApplyScheduled = false;
+        }
+        if (mCamera == null || (mPendingPreviewSize == null && mPendingFocusMode == null)) {
+            return;
+        }
+        if (!hasPendingChanges()) {
+            Log.d(TAG, "flushPendingParameters nothing changed");
+            mSkippedReconfigurationCount++;
+            mPendingPreviewSize = null;
+            mPendingFocusMode = null;
+            return;
+        }
+
+        FrameSize size = mPendingPreviewSize != null && !mPendingPreviewSize.equals(mAppliedPreviewSize)
+                ? mPendingPreviewSize : null;
+        String focusMode = mPendingFocusMode != null && !mPendingFocusMode.equals(mAppliedFocusMode)
+                ? mPendingFocusMode : null;
+        mPendingPreviewSize = null;
+        mPendingFocusMode = null;
+
+        boolean restart = size != null && mIsPreviewRunning;
+        if (restart) {
+            // stop preview before changing its size
+            this.stopPreview();
+        }
+
+        Camera.Parameters parameters = mCamera.getParameters();
+        if (size != null) {
+            Log.d(TAG, "flushPendingParameters preview size w=" + size.width + " ,h=" + size.height);
+            parameters.setPreviewSize(size.width, size.height);
+        }
+        if (focusMode != null) {
+            Log.d(TAG, "flushPendingParameters focus mode " + focusMode);
+            parameters.setFocusMode(focusMode);
+        }
+        setParameters(parameters);
+        mParametersCache.put(mCameraId, parameters);
+        if (size != null) {
+            mAppliedPreviewSize = size;
+            mPreviewSizeCache.put(mCameraId, size);
+        }
+        if (focusMode != null) {
+            mAppliedFocusMode = focusMode;
+        }
+
+        if (restart) {
+            Log.d(TAG, "flushPendingParameters startPreview");
+            mPreviewRestartCount++;
+            this.startPreview();
+        }
+    }
+
+    /**
+     * @return number of times the preview was stopped and started again to change its size
+     */
+    @Override
+    public synchronized int getPreviewRestartCount() {
+        return mPreviewRestartCount;
+    }
+
+    /**
+     * @return number of reconfigurations skipped because nothing had changed
+     */
+    @Override
+    public synchronized int getSkippedReconfigurationCount() {
+        return mSkippedReconfigurationCount;
+    }
+
+    private void setDisplayHolder(SurfaceHolder holder) {
+        Log.d(TAG, "setDisplayHolder called");
+        mPreviewTexture = null;
+        try {
+            mCamera.setPreviewDisplay(holder);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to setPreviewDisplay.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Register a consumer for preview frames. Frames are only captured
+     * while at least one consumer is registered.
+     */
+    @Override
+    public void addFrameConsumer(FramePipeline.FrameConsumer consumer) {
+        mFramePipeline.addConsumer(consumer);
+        if (mIsPreviewRunning && !mFramePipeline.isAttached()) {
+            attachFramePipeline();
+        }
+    }
+
+    @Override
+    public void removeFrameConsumer(FramePipeline.FrameConsumer consumer) {
+        mFramePipeline.removeConsumer(consumer);
+        if (!mFramePipeline.hasConsumers()) {
+            mFramePipeline.detach();
+        }
+    }
+
+    @Override
+    public FramePipeline getFramePipeline() {
+        return mFramePipeline;
+    }
+
+    private void attachFramePipeline() {
+        if (mCamera == null || !mFramePipeline.hasConsumers()) {
+            return;
+        }
+        Camera.Parameters params = mCamera.getParameters();
+        int width;
+        int height;
+        if (mAppliedPreviewSize != null) {
+            width = mAppliedPreviewSize.width;
+            height = mAppliedPreviewSize.height;
+        } else {
+            Camera.Size size = params.getPreviewSize();
+            width = size.width;
+            height = size.height;
+        }
+        Log.d(TAG, "attachFramePipeline w=" + width + ", h=" + height);
+        mFramePipeline.attach(new PreviewCallbackSource(mCamera), width, height,
+                ImageFormat.getBitsPerPixel(params.getPreviewFormat()));
+    }
+
+    @Override
+    public FrameSize getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    /**
+     * Make the camera use the current preview size. Does nothing if that size
+     * is already applied; otherwise the change is batched with any other
+     * pending parameter change.
+     *
+     * @return true if the preview size is going to change
+     */
+    @Override
+    public synchronized boolean adjustCameraPreviewSize() {
+        if (mPreviewSize != null && mCamera!=null) {
+            if (mPreviewSize.equals(mAppliedPreviewSize)) {
+                Log.d(TAG, "adjustCameraPreviewSize already applied");
+                mPendingPreviewSize = null;
+                mSkippedReconfigurationCount++;
+                return false;
+            }
+            Log.d(TAG, "adjustCameraPreviewSize: w=" + mPreviewSize.width + " ,h=" + mPreviewSize.height);
+            mPendingPreviewSize = mPreviewSize;
+            scheduleApplyParameters();
+            return true;
+        } else {
+            Log.d(TAG, "adjustCameraPreviewSize mPreviewSize is null");
+            return false;
+        }
+    }
+
+    /**
+     * Recalculate the optimal preview size base on given width and height
+     *
+     * @param width
+     * @param height
+     */
+    @Override
+    public void adjustPreviewSize(int width, int height) {
+        if (mCamera != null) {
+
+            Log.d(TAG, "adjustPreviewSize measuredSize w=" + width + ", h=" + height);
+            boolean portrait = mContext.getResources().getConfiguration().orientation
+                    == Configuration.ORIENTATION_PORTRAIT;
+            FrameSize newSize = mSizeResolver.resolve(mCameraId, width, height, portrait);
+            if (newSize != null && !newSize.equals(mPreviewSize)) {
+                Log.d(TAG, "newSize w=" + newSize.width + ", h=" + newSize.height);
+                mPreviewSize = newSize;
+            }
+        }
+    }
+
+    /**
+     * @return hit and miss counts of the preview size cache
+     */
+    @Override
+    public PreviewSizeResolver getSizeResolver() {
+        return mSizeResolver;
+    }
+
+    private static List<FrameSize> toFrameSizes(List<Camera.Size> sizes) {
+        List<FrameSize> frameSizes = new ArrayList<FrameSize>();
+        if (sizes != null) {
+            for (Camera.Size size : sizes) {
+                frameSizes.add(new FrameSize(size.width, size.height));
+            }
+        }
+        return frameSizes;
+    }
+
+    private void stopPreview() {
+        if (mCamera != null && mIsPreviewRunning) {
+            try {
+                mCamera.stopPreview();
+                Log.d(TAG, "stopped preview");
+                mIsPreviewRunning = false;
+                mFramePipeline.detach();
+            } catch (Exception e) {
+                Log.d(TAG, "Tried to stop a non-existant preview. Ignoring");
+            }
+        }
+    }
+
+    private void startPreview() {
+        if (mCamera != null && !mIsPreviewRunning) {
+            Log.d(TAG, "startPreview");
+            attachFramePipeline();
+            if (mIsAwaitingFirstFrame) {
+                watchForFirstFrame();
+            }
+            long traceStart = Tracer.getInstance().begin();
+            mCamera.startPreview();
+            Tracer.getInstance().end(Tracer.Stage.START_PREVIEW, traceStart);
+            mIsPreviewRunning = true;
+        }
+    }
+
+    /**
+     * Record the open-to-first-frame time once the first preview frame arrives.
+     */
+    private void watchForFirstFrame() {
+        mIsAwaitingFirstFrame = false;
+        final long openStartNanos = mOpenStartNanos;
+        final boolean warm = mIsWarmOpen;
+        if (mFramePipeline.isAttached()) {
+            //a one shot callback would replace the pipeline's buffer callback
+            mFramePipeline.addConsumer(new FramePipeline.FrameConsumer() {
+                @Override
+                public void onFrame(PreviewFrame frame) {
+                    mFramePipeline.removeConsumer(this);
+                    recordFirstFrame(warm, openStartNanos, frame.getTimestampNanos());
+                    frame.release();
+                }
+            });
+        } else {
+            mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
+                @Override
+                public void onPreviewFrame(byte[] bytes, Camera camera) {
+                    recordFirstFrame(warm, openStartNanos, System.nanoTime());
+                }
+            });
+        }
+    }
+
+    private void recordFirstFrame(boolean warm, long openStartNanos, long firstFrameNanos) {
+        long nanos = firstFrameNanos - openStartNanos;
+        mOpenStats.record(warm, nanos);
+        Tracer.getInstance().record(Tracer.Stage.FIRST_FRAME, openStartNanos, nanos);
+        Log.d(TAG, "open to first frame " + nanos / 1000000 + "ms" + (warm ? " (warm)" : " (cold)")
+                + ", " + mOpenStats);
+    }
+
+    /**
+     * Compensate for the camera angle and set it to mirror image because
+     * that's what people expect.
+     *
+     */
+    @Override
+    public int getPictureOrientation() {
+        android.hardware.Camera.CameraInfo info = new android.hardware.Camera.CameraInfo();
+        android.hardware.Camera.getCameraInfo(mCameraId, info);
+        int rotation = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE))
+                .getDefaultDisplay().getRotation();
+        return CameraOrientation.pictureOrientation(info.orientation,
+                CameraOrientation.rotationToDegrees(rotation),
+                info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+    }
+
+    @Override
+    public boolean isFrontFacing() {
+        android.hardware.Camera.CameraInfo info = new android.hardware.Camera.CameraInfo();
+        android.hardware.Camera.getCameraInfo(mCameraId, info);
+        return info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+    }
+
+    private void setCameraDisplayOrientation() {
+        if(mCamera == null) {
+            Log.d(TAG,"Cannot set orientation. mCamera is null.");
+            return;
+        }
+
+        android.hardware.Camera.CameraInfo info =
+                new android.hardware.Camera.CameraInfo();
+        android.hardware.Camera.getCameraInfo(mCameraId, info);
+        //the adapter may hold the application context, which is not an Activity
+        int rotation = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE))
+                .getDefaultDisplay().getRotation();
+        int result = CameraOrientation.displayOrientation(info.orientation,
+                CameraOrientation.rotationToDegrees(rotation),
+                info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+        if (result != mAppliedDisplayOrientation) {
+            mCamera.setDisplayOrientation(result);
+            mAppliedDisplayOrientation = result;
+        }
+    }
+
+    private Camera safeCameraOpen(int cameraId) {
+        Log.d(TAG, "safeCameraOpen");
+        Camera camera = null;
+        try {
+            releaseCamera(); //close current camera
+            camera = Camera.open(cameraId);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to open Camera");
+            e.printStackTrace();
+        }
+        return camera;
+    }
+
+    /**
+     * Feeds the frame pipeline from the preview callback, with the pipeline's own buffers.
+     */
+    private class PreviewCallbackSource implements FramePipeline.FrameSource, Camera.PreviewCallback {
+        private final Camera mSourceCamera;
+
+        PreviewCallbackSource(Camera camera) {
+            mSourceCamera = camera;
+            mSourceCamera.setPreviewCallbackWithBuffer(this);
+        }
+
+        @Override
+        public void addBuffer(byte[] buffer) {
+            mSourceCamera.addCallbackBuffer(buffer);
+        }
+
+        @Override
+        public void stop() {
+            try {
+                mSourceCamera.setPreviewCallbackWithBuffer(null);
+            } catch (RuntimeException e) {
+                //camera has already been released
+                Log.d(TAG, "Failed to clear preview callback. Ignoring");
+            }
+        }
+
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            mFramePipeline.onFrame(data);
+        }
+    }
+}
@@ -0,0 +1,809 @@
+package com.pocorusso.bearbeard;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Size;
+import android.util.SparseArray;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.WindowManager;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CameraAdapter} on the android.hardware.camera2 API.
+ *
+ * Stills and preview frames come from ImageReaders with a small, fixed maxImages, so
+ * the number of images alive at once, and with it the memory and the time a capture
+ * can wait for a free image, is known up front. Preview frames are converted to NV21
+ * into the {@link FramePipeline}'s own buffers, so consumers see the same frames as
+ * with {@link Camera1Adapter}. Unlike Camera1 the preview keeps running while a
+ * picture is taken.
+ *
+ * Camera callbacks run on a thread of their own; picture callbacks are posted to the
+ * thread that opened the camera.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Adapter implements CameraAdapter {
+
+    private static String TAG = "Camera2Adapter";
+    private static final long DEFAULT_RELEASE_GRACE_MS = 3000;
+    private static final long OPEN_TIMEOUT_MS = 2500;
+    //stills in flight at once, a burst waits for one to be delivered before taking the next
+    private static final int MAX_JPEG_IMAGES = 2;
+    //one image being copied into the pipeline while the next is filled
+    private static final int MAX_YUV_IMAGES = 2;
+    private static final int NV21_BITS_PER_PIXEL = 12;
+
+    private final Context mContext;
+    private final CameraManager mManager;
+    //device state callbacks get a thread of their own, so an open never waits on session callbacks
+    private final Handler mStateHandler;
+    private final Handler mCameraHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Handler mCallbackHandler;
+    private final FramePipeline mFramePipeline = new FramePipeline();
+    private final SparseArray<FrameSize> mPreviewSizeCache = new SparseArray<FrameSize>();
+    private final PreviewSizeResolver mSizeResolver = new PreviewSizeResolver();
+    private final OpenStats mOpenStats = new OpenStats();
+    //pictures asked for and not delivered yet, in capture order; guarded by itself
+    private final ArrayDeque<PictureCallback> mPendingPictures = new ArrayDeque<PictureCallback>();
+
+    private CameraDevice mCamera;
+    private int mCameraId;
+    //read on the UI thread for the picture orientation
+    private volatile CameraCharacteristics mCharacteristics;
+    private CameraCaptureSession mSession;
+    //bumped whenever a session is closed, so a late onConfigured can tell it is stale
+    private int mSessionGeneration;
+    private SurfaceHolder mPreviewHolder;
+    private SurfaceTexture mPreviewTexture;
+    private Surface mTextureSurface;
+    private ImageReader mJpegReader;
+    private ImageReader mYuvReader;
+    private FrameSize mPreviewSize;
+    private FrameSize mAppliedPreviewSize;
+    private int mAfMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+    private long mReleaseGraceMs = DEFAULT_RELEASE_GRACE_MS;
+    private boolean mIsReleasePending;
+    private int mPreviewRestartCount;
+    private int mSkippedReconfigurationCount;
+    private long mOpenStartNanos;
+    private boolean mIsWarmOpen;
+    private volatile boolean mIsAwaitingFirstFrame;
+
+    private final Runnable mReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "grace period expired");
+            releaseCamera();
+        }
+    };
+
+    Camera2Adapter(Context context) {
+        mContext = context;
+        mManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        HandlerThread stateThread = new HandlerThread(TAG + "-state");
+        stateThread.start();
+        mStateHandler = new Handler(stateThread.getLooper());
+        HandlerThread cameraThread = new HandlerThread(TAG);
+        cameraThread.start();
+        mCameraHandler = new Handler(cameraThread.getLooper());
+    }
+
+    /**
+     * @return true if the first camera has more than the legacy Camera2 support,
+     * which is Camera1 underneath and gains nothing
+     */
+    public static boolean isSupported(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String[] ids = manager.getCameraIdList();
+            if (ids.length == 0) {
+                return false;
+            }
+            Integer level = manager.getCameraCharacteristics(ids[0])
+                    .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null && level != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to read camera characteristics", e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean isValid() {
+        return mCamera != null;
+    }
+
+    @Override
+    public synchronized void openCamera(int cameraId) {
+        mOpenStartNanos = System.nanoTime();
+        mIsAwaitingFirstFrame = true;
+        Looper looper = Looper.myLooper();
+        mCallbackHandler = looper != null ? new Handler(looper) : mMainHandler;
+
+        if (mCamera != null && mIsReleasePending && cameraId == mCameraId) {
+            //still within the grace period, reuse the open camera
+            Log.d(TAG, "openCamera reusing warm camera " + cameraId);
+            cancelPendingRelease();
+            mIsWarmOpen = true;
+            return;
+        }
+
+        mIsWarmOpen = false;
+        releaseCamera();
+        mCameraId = cameraId;
+        try {
+            String id = toCameraId(cameraId);
+            mCharacteristics = mManager.getCameraCharacteristics(id);
+            long traceStart = Tracer.getInstance().begin();
+            mCamera = openDevice(id);
+            Tracer.getInstance().end(Tracer.Stage.CAMERA_OPEN, traceStart);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to open camera " + cameraId, e);
+        } catch (SecurityException e) {
+            Log.e(TAG, "No permission to open camera " + cameraId, e);
+        }
+        if (mCamera == null) {
+            return;
+        }
+
+        StreamConfigurationMap map = mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (!mSizeResolver.hasSupportedSizes(cameraId)) {
+            //the supported sizes of a camera never change, fetch them once
+            mSizeResolver.setSupportedSizes(cameraId, toFrameSizes(map.getOutputSizes(SurfaceTexture.class)));
+        }
+        mPreviewSize = mPreviewSizeCache.get(cameraId);
+        FrameSize jpegSize = largest(toFrameSizes(map.getOutputSizes(ImageFormat.JPEG)));
+        mJpegReader = ImageReader.newInstance(jpegSize.width, jpegSize.height, ImageFormat.JPEG, MAX_JPEG_IMAGES);
+        mJpegReader.setOnImageAvailableListener(new JpegListener(), mCameraHandler);
+        Log.d(TAG, "opened camera " + cameraId + ", jpeg " + jpegSize);
+    }
+
+    private String toCameraId(int cameraId) throws CameraAccessException {
+        String[] ids = mManager.getCameraIdList();
+        for (String id : ids) {
+            if (id.equals(String.valueOf(cameraId))) {
+                return id;
+            }
+        }
+        if (cameraId < 0 || cameraId >= ids.length) {
+            throw new CameraAccessException(CameraAccessException.CAMERA_ERROR, "No camera " + cameraId);
+        }
+        return ids[cameraId];
+    }
+
+    /**
+     * Open the device and wait for it.
+     *
+     * @return the device, or null if it failed to open in time
+     */
+    private CameraDevice openDevice(String id) throws CameraAccessException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final CameraDevice[] opened = new CameraDevice[1];
+        final boolean[] abandoned = new boolean[1];
+        mManager.openCamera(id, new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(CameraDevice camera) {
+                synchronized (opened) {
+                    if (abandoned[0]) {
+                        camera.close();
+                        return;
+                    }
+                    opened[0] = camera;
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice camera) {
+                Log.d(TAG, "camera disconnected");
+                camera.close();
+                done.countDown();
+                onCameraLost(camera);
+            }
+
+            @Override
+            public void onError(CameraDevice camera, int error) {
+                Log.e(TAG, "camera error " + error);
+                camera.close();
+                done.countDown();
+                onCameraLost(camera);
+            }
+        }, mStateHandler);
+
+        try {
+            if (!done.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Timed out opening camera " + id);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (opened) {
+            abandoned[0] = opened[0] == null;
+            return opened[0];
+        }
+    }
+
+    private void onCameraLost(final CameraDevice camera) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Camera2Adapter.this) {
+                    if (mCamera == camera) {
+                        releaseCamera();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized void releaseCamera() {
+        cancelPendingRelease();
+        if (mCamera != null) {
+            Log.d(TAG, "release camera");
+            closeSession();
+            if (mPreviewSize != null) {
+                mPreviewSizeCache.put(mCameraId, mPreviewSize);
+            }
+            mCamera.close();
+            mCamera = null;
+            closeOnCameraThread(mJpegReader);
+            mJpegReader = null;
+            mAppliedPreviewSize = null;
+            failPendingPictures(new IllegalStateException("Camera released"));
+        }
+    }
+
+    @Override
+    public synchronized void releaseCameraDeferred() {
+        if (mCamera == null) {
+            return;
+        }
+        if (mReleaseGraceMs <= 0) {
+            releaseCamera();
+            return;
+        }
+        Log.d(TAG, "releaseCameraDeferred in " + mReleaseGraceMs + "ms");
+        closeSession();
+        mIsReleasePending = true;
+        mMainHandler.removeCallbacks(mReleaseRunnable);
+        mMainHandler.postDelayed(mReleaseRunnable, mReleaseGraceMs);
+    }
+
+    private void cancelPendingRelease() {
+        if (mIsReleasePending) {
+            mMainHandler.removeCallbacks(mReleaseRunnable);
+            mIsReleasePending = false;
+        }
+    }
+
+    @Override
+    public synchronized void setReleaseGracePeriod(long graceMs) {
+        mReleaseGraceMs = graceMs;
+    }
+
+    @Override
+    public OpenStats getOpenStats() {
+        return mOpenStats;
+    }
+
+    @Override
+    public synchronized void takePicture(final PictureCallback callback) {
+        if (mSession == null) {
+            callback.onPictureFailed(new IllegalStateException("Preview is not running"));
+            return;
+        }
+        synchronized (mPendingPictures) {
+            if (mPendingPictures.size() >= MAX_JPEG_IMAGES) {
+                callback.onPictureFailed(new IllegalStateException("Too many pictures in flight"));
+                return;
+            }
+            mPendingPictures.addLast(callback);
+        }
+        final Handler handler = mCallbackHandler;
+        try {
+            CaptureRequest.Builder builder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(mJpegReader.getSurface());
+            builder.set(CaptureRequest.CONTROL_AF_MODE, mAfMode);
+            //pictures are oriented when saved, like the Camera1 ones and zero-shutter-lag frames
+            builder.set(CaptureRequest.JPEG_ORIENTATION, 0);
+            mSession.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                                             long timestamp, long frameNumber) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onShutter();
+                        }
+                    });
+                }
+
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                                            CaptureFailure failure) {
+                    Log.e(TAG, "capture failed, reason " + failure.getReason());
+                    synchronized (mPendingPictures) {
+                        mPendingPictures.remove(callback);
+                    }
+                    postFailure(handler, callback, new IllegalStateException("Capture failed"));
+                }
+            }, mCameraHandler);
+        } catch (CameraAccessException e) {
+            synchronized (mPendingPictures) {
+                mPendingPictures.remove(callback);
+            }
+            callback.onPictureFailed(e);
+        }
+    }
+
+    private void failPendingPictures(Exception e) {
+        synchronized (mPendingPictures) {
+            while (!mPendingPictures.isEmpty()) {
+                postFailure(mCallbackHandler, mPendingPictures.pollFirst(), e);
+            }
+        }
+    }
+
+    private static void postFailure(Handler handler, final PictureCallback callback, final Exception e) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPictureFailed(e);
+            }
+        });
+    }
+
+    @Override
+    public int getPictureOrientation() {
+        CameraCharacteristics characteristics = mCharacteristics;
+        if (characteristics == null) {
+            return 0;
+        }
+        int rotation = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE))
+                .getDefaultDisplay().getRotation();
+        Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        return CameraOrientation.pictureOrientation(sensorOrientation != null ? sensorOrientation : 0,
+                CameraOrientation.rotationToDegrees(rotation), isFrontFacing());
+    }
+
+    @Override
+    public boolean isFrontFacing() {
+        CameraCharacteristics characteristics = mCharacteristics;
+        if (characteristics == null) {
+            return false;
+        }
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        return facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT;
+    }
+
+    /**
+     * The preview keeps running while pictures are taken, only start it if it is not.
+     */
+    @Override
+    public synchronized void restartPreview() {
+        if (mSession == null) {
+            startSession();
+        }
+    }
+
+    @Override
+    public synchronized void setSurfaceHolder(SurfaceHolder holder) {
+        Log.d(TAG, "setSurfaceHolder");
+        detachDisplay();
+        mPreviewHolder = holder;
+        if (mPreviewSize != null) {
+            //camera2 only streams into surfaces of a supported size
+            holder.setFixedSize(mPreviewSize.width, mPreviewSize.height);
+        }
+        startSession();
+    }
+
+    @Override
+    public synchronized void setSurfaceTexture(SurfaceTexture texture) {
+        Log.d(TAG, "setSurfaceTexture");
+        if (texture == mPreviewTexture && mSession != null) {
+            //the texture and the camera both became ready, only one starts the preview
+            return;
+        }
+        detachDisplay();
+        mPreviewTexture = texture;
+        mTextureSurface = new Surface(texture);
+        startSession();
+    }
+
+    @Override
+    public synchronized void detachDisplay() {
+        closeSession();
+        mPreviewHolder = null;
+        mPreviewTexture = null;
+        if (mTextureSurface != null) {
+            mTextureSurface.release();
+            mTextureSurface = null;
+        }
+    }
+
+    /**
+     * @return the surface to show the preview on, or null if there is none ready
+     */
+    private Surface getPreviewSurface() {
+        if (mTextureSurface != null) {
+            return mTextureSurface;
+        }
+        if (mPreviewHolder != null && mPreviewHolder.getSurface() != null
+                && mPreviewHolder.getSurface().isValid()) {
+            return mPreviewHolder.getSurface();
+        }
+        return null;
+    }
+
+    /**
+     * Configure a session for the preview, stills and, while there are frame
+     * consumers, preview frames. Replaces the running session.
+     */
+    private void startSession() {
+        Surface previewSurface = getPreviewSurface();
+        if (mCamera == null || previewSurface == null) {
+            return;
+        }
+        closeSession();
+
+        FrameSize size = mPreviewSize;
+        if (size == null) {
+            size = largest(mSizeResolver.getSupportedSizes(mCameraId));
+        }
+        if (mPreviewTexture != null) {
+            mPreviewTexture.setDefaultBufferSize(size.width, size.height);
+        }
+        mAppliedPreviewSize = size;
+
+        List<Surface> surfaces = new ArrayList<Surface>();
+        surfaces.add(previewSurface);
+        surfaces.add(mJpegReader.getSurface());
+        if (mFramePipeline.hasConsumers()) {
+            mYuvReader = ImageReader.newInstance(size.width, size.height, ImageFormat.YUV_420_888, MAX_YUV_IMAGES);
+            ImageReaderSource source = new ImageReaderSource(size.width, size.height);
+            mYuvReader.setOnImageAvailableListener(source, mCameraHandler);
+            mFramePipeline.attach(source, size.width, size.height, NV21_BITS_PER_PIXEL);
+            surfaces.add(mYuvReader.getSurface());
+        }
+
+        final int generation = mSessionGeneration;
+        //configuring the session is what starting the preview costs on camera2
+        final long traceStart = Tracer.getInstance().begin();
+        Log.d(TAG, "startSession " + size + (mYuvReader != null ? " with frames" : ""));
+        try {
+            mCamera.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession session) {
+                    synchronized (Camera2Adapter.this) {
+                        if (generation != mSessionGeneration || mCamera == null) {
+                            session.close();
+                            return;
+                        }
+                        mSession = session;
+                        startRepeating();
+                        Tracer.getInstance().end(Tracer.Stage.START_PREVIEW, traceStart);
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession session) {
+                    Log.e(TAG, "Failed to configure the capture session");
+                }
+            }, mCameraHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to create the capture session", e);
+        }
+    }
+
+    private void startRepeating() {
+        if (mSession == null) {
+            return;
+        }
+        try {
+            CaptureRequest.Builder builder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(getPreviewSurface());
+            if (mYuvReader != null) {
+                builder.addTarget(mYuvReader.getSurface());
+            }
+            builder.set(CaptureRequest.CONTROL_AF_MODE, mAfMode);
+            final long openStartNanos = mOpenStartNanos;
+            final boolean warm = mIsWarmOpen;
+            mSession.setRepeatingRequest(builder.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                               TotalCaptureResult result) {
+                    if (mIsAwaitingFirstFrame) {
+                        mIsAwaitingFirstFrame = false;
+                        long nanos = System.nanoTime() - openStartNanos;
+                        mOpenStats.record(warm, nanos);
+                        Tracer.getInstance().record(Tracer.Stage.FIRST_FRAME, openStartNanos, nanos);
+                        Log.d(TAG, "open to first frame " + nanos / 1000000 + "ms"
+                                + (warm ? " (warm)" : " (cold)") + ", " + mOpenStats);
+                    }
+                }
+            }, mCameraHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to start the preview", e);
+        }
+    }
+
+    private void closeSession() {
+        mSessionGeneration++;
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+        mFramePipeline.detach();
+        closeOnCameraThread(mYuvReader);
+        mYuvReader = null;
+    }
+
+    /**
+     * Close a reader on the thread its listener runs on, so no image is being read when it goes.
+     */
+    private void closeOnCameraThread(final ImageReader reader) {
+        if (reader == null) {
+            return;
+        }
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reader.close();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void requestFocusMode(String focusMode) {
+        int afMode;
+        if (Camera.Parameters.FOCUS_MODE_AUTO.equals(focusMode)) {
+            afMode = CaptureRequest.CONTROL_AF_MODE_AUTO;
+        } else if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(focusMode)) {
+            afMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+        } else if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals(focusMode)) {
+            afMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+        } else if (Camera.Parameters.FOCUS_MODE_MACRO.equals(focusMode)) {
+            afMode = CaptureRequest.CONTROL_AF_MODE_MACRO;
+        } else if (Camera.Parameters.FOCUS_MODE_EDOF.equals(focusMode)) {
+            afMode = CaptureRequest.CONTROL_AF_MODE_EDOF;
+        } else {
+            afMode = CaptureRequest.CONTROL_AF_MODE_OFF;
+        }
+        if (afMode == mAfMode) {
+            mSkippedReconfigurationCount++;
+            return;
+        }
+        mAfMode = afMode;
+        //a new repeating request, no new session
+        startRepeating();
+    }
+
+    @Override
+    public synchronized int getPreviewRestartCount() {
+        return mPreviewRestartCount;
+    }
+
+    @Override
+    public synchronized int getSkippedReconfigurationCount() {
+        return mSkippedReconfigurationCount;
+    }
+
+    @Override
+    public void addFrameConsumer(FramePipeline.FrameConsumer consumer) {
+        mFramePipeline.addConsumer(consumer);
+        synchronized (this) {
+            if (mSession != null && mYuvReader == null) {
+                //frames need their own stream, which takes a new session
+                mPreviewRestartCount++;
+                startSession();
+            }
+        }
+    }
+
+    @Override
+    public void removeFrameConsumer(FramePipeline.FrameConsumer consumer) {
+        mFramePipeline.removeConsumer(consumer);
+        if (!mFramePipeline.hasConsumers()) {
+            //the stream stays configured until the next session, it just has nobody to feed
+            mFramePipeline.detach();
+        }
+    }
+
+    @Override
+    public FramePipeline getFramePipeline() {
+        return mFramePipeline;
+    }
+
+    @Override
+    public synchronized FrameSize getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    /**
+     * Also starts the session if the SurfaceView's surface has only now become valid.
+     */
+    @Override
+    public synchronized boolean adjustCameraPreviewSize() {
+        if (mCamera == null || mPreviewSize == null) {
+            return false;
+        }
+        if (mPreviewSize.equals(mAppliedPreviewSize)) {
+            Log.d(TAG, "adjustCameraPreviewSize already applied");
+            mSkippedReconfigurationCount++;
+            if (mSession == null) {
+                startSession();
+            }
+            return false;
+        }
+        Log.d(TAG, "adjustCameraPreviewSize " + mPreviewSize);
+        if (mPreviewHolder != null) {
+            mPreviewHolder.setFixedSize(mPreviewSize.width, mPreviewSize.height);
+        }
+        if (mSession != null) {
+            mPreviewRestartCount++;
+        }
+        startSession();
+        return true;
+    }
+
+    @Override
+    public synchronized void adjustPreviewSize(int width, int height) {
+        if (mCamera != null) {
+            boolean portrait = mContext.getResources().getConfiguration().orientation
+                    == Configuration.ORIENTATION_PORTRAIT;
+            FrameSize newSize = mSizeResolver.resolve(mCameraId, width, height, portrait);
+            if (newSize != null && !newSize.equals(mPreviewSize)) {
+                Log.d(TAG, "adjustPreviewSize " + newSize);
+                mPreviewSize = newSize;
+            }
+        }
+    }
+
+    @Override
+    public PreviewSizeResolver getSizeResolver() {
+        return mSizeResolver;
+    }
+
+    private static List<FrameSize> toFrameSizes(Size[] sizes) {
+        List<FrameSize> frameSizes = new ArrayList<FrameSize>();
+        if (sizes != null) {
+            for (Size size : sizes) {
+                frameSizes.add(new FrameSize(size.getWidth(), size.getHeight()));
+            }
+        }
+        return frameSizes;
+    }
+
+    private static FrameSize largest(List<FrameSize> sizes) {
+        FrameSize largest = null;
+        for (FrameSize size : sizes) {
+            if (largest == null || (long) size.width * size.height > (long) largest.width * largest.height) {
+                largest = size;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Hands finished stills to the oldest waiting picture callback.
+     */
+    private class JpegListener implements ImageReader.OnImageAvailableListener {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null) {
+                return;
+            }
+            final byte[] jpeg;
+            try {
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                jpeg = new byte[buffer.remaining()];
+                buffer.get(jpeg);
+            } finally {
+                image.close();
+            }
+
+            final PictureCallback callback;
+            synchronized (mPendingPictures) {
+                callback = mPendingPictures.pollFirst();
+            }
+            if (callback == null) {
+                Log.d(TAG, "Picture nobody is waiting for. Ignoring");
+                return;
+            }
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onPictureTaken(jpeg);
+                }
+            });
+        }
+    }
+
+    /**
+     * Copies YUV preview images into the frame pipeline's buffers as NV21. When the
+     * consumers hold every buffer the image is closed unread, so the reader never
+     * runs out of images.
+     */
+    private class ImageReaderSource implements FramePipeline.FrameSource, ImageReader.OnImageAvailableListener {
+        private final int mWidth;
+        private final int mHeight;
+        private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<byte[]>();
+        private boolean mIsStopped;
+
+        ImageReaderSource(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public synchronized void addBuffer(byte[] buffer) {
+            if (!mIsStopped) {
+                mFreeBuffers.addLast(buffer);
+            }
+        }
+
+        @Override
+        public synchronized void stop() {
+            mIsStopped = true;
+            mFreeBuffers.clear();
+        }
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            byte[] buffer;
+            try {
+                synchronized (this) {
+                    buffer = mFreeBuffers.pollFirst();
+                    if (buffer == null) {
+                        return;
+                    }
+                    Image.Plane[] planes = image.getPlanes();
+                    YuvConverter.toNv21(planes[0].getBuffer(), planes[0].getRowStride(),
+                            planes[1].getBuffer(), planes[2].getBuffer(),
+                            planes[1].getRowStride(), planes[1].getPixelStride(), mWidth, mHeight, buffer);
+                }
+            } finally {
+                image.close();
+            }
+            mFramePipeline.onFrame(buffer);
+        }
+    }
+}
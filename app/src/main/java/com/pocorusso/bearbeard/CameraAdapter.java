@@ -1,262 +1,141 @@
 package com.pocorusso.bearbeard;
 
-
-import android.app.Activity;
-import android.content.Context;
-import android.content.res.Configuration;
-import android.hardware.Camera;
-import android.util.Log;
-import android.view.Surface;
+import android.graphics.SurfaceTexture;
 import android.view.SurfaceHolder;
 
-import java.io.IOException;
-import java.util.List;
-
-public class CameraAdapter {
+/**
+ * The camera as the rest of the app sees it. {@link Camera1Adapter} runs on the
+ * android.hardware.Camera API and {@link Camera2Adapter} on android.hardware.camera2.
+ * {@link CameraAdapters} picks one at runtime; tests can substitute a fake.
+ *
+ * Cameras are opened on a background thread, see {@link CameraHandlerThread}.
+ */
+public interface CameraAdapter {
 
-    private static String TAG = "CameraAdapter";
-    private static CameraAdapter mInstance = null;
-    private static Context mContext;
-    private static Camera mCamera;
-    private static int mCameraId;
-    private static Camera.Size mPreviewSize;
-    private static boolean mIsPreviewRunning;
+    interface PictureCallback {
+        /**
+         * The picture has been exposed. Called on the thread that opened the camera.
+         */
+        void onShutter();
 
+        /**
+         * Called on the thread that opened the camera.
+         */
+        void onPictureTaken(byte[] jpeg);
 
-    public static synchronized CameraAdapter getInstance(Context context) {
-        if (mInstance == null) {
-            mInstance = new CameraAdapter(context);
-        }
-        return mInstance;
-    }
-
-    private CameraAdapter(Context context) {
-        mContext = context;
-        mCamera = null;
-        mIsPreviewRunning = false;
+        /**
+         * No picture will come. Called on the thread that asked for it or on the
+         * thread that opened the camera.
+         */
+        void onPictureFailed(Exception e);
     }
 
-    public boolean isValid() {
-        return mCamera != null;
-    }
+    boolean isValid();
 
-    public void openCamera(int cameraId) {
-        mCameraId = cameraId;
-        mCamera = safeCameraOpen(cameraId);
-        Log.d(TAG, "exit openCamera mCamera is null:" + (mCamera == null));
-    }
+    /**
+     * Open the camera, reusing it if it is still open within its release grace period.
+     * Blocks until the camera is open or failed to open.
+     */
+    void openCamera(int cameraId);
 
-    public void releaseCamera() {
-        if (mCamera != null) {
-            Log.d(TAG, "release camera");
-            this.stopPreview();
-            mCamera.release();
-            mCamera = null;
-        }
-    }
+    /**
+     * Release the camera right away.
+     */
+    void releaseCamera();
 
-    public void takePicture(Camera.ShutterCallback shutterCallback,
-                            Camera.PictureCallback rawPictureCallback,
-                            Camera.PictureCallback jpegPictureCallback) {
-        if (mCamera != null) {
-            mCamera.takePicture(shutterCallback, rawPictureCallback, jpegPictureCallback);
-        }
+    /**
+     * Stop the preview now but keep the camera open for the grace period, so
+     * that opening the same camera again shortly after is almost free.
+     */
+    void releaseCameraDeferred();
 
-    }
+    /**
+     * @param graceMs how long {@link #releaseCameraDeferred()} keeps the camera open,
+     *                0 to release right away
+     */
+    void setReleaseGracePeriod(long graceMs);
 
     /**
-     * The calling thread should already stop and release the camera
-     * before they set the camera
+     * @return open-to-first-frame times for cold and warm opens
      */
-    public void setSurfaceHolder(SurfaceHolder holder) {
-        Log.d(TAG, "setSurfaceHolder");
+    OpenStats getOpenStats();
 
-        if (mCamera != null) {
-            setCameraDisplayOrientation();
-            Camera.Parameters params = mCamera.getParameters();
-            List<String> focusModes = params.getSupportedFocusModes();
-            if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                // set the focus mode
-                params.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
-            }
+    void takePicture(PictureCallback callback);
 
-            // set Camera parameters
-            mCamera.setParameters(params);
+    /**
+     * Start the preview again after a picture, if the camera stopped it.
+     */
+    void restartPreview();
 
-            this.setDisplayHolder(holder);
+    /**
+     * Show the preview on a SurfaceView's holder and start it.
+     */
+    void setSurfaceHolder(SurfaceHolder holder);
 
-            Log.d(TAG, "setSurfaceHolder calling startPreview");
-            this.startPreview();
-        }
-    }
+    /**
+     * Show the preview on a TextureView's texture and start it.
+     */
+    void setSurfaceTexture(SurfaceTexture texture);
 
-    private void setDisplayHolder(SurfaceHolder holder) {
-        Log.d(TAG, "setDisplayHolder called");
-        try {
-            mCamera.setPreviewDisplay(holder);
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to setPreviewDisplay.");
-            e.printStackTrace();
-        }
-    }
+    /**
+     * Stop the preview and let go of its display, so the camera can be moved to
+     * another surface while it stays open.
+     */
+    void detachDisplay();
 
-    public Camera.Size getPreviewSize() {
-        return mPreviewSize;
-    }
+    /**
+     * Ask for a focus mode, one of the android.hardware.Camera.Parameters FOCUS_MODE_ values.
+     */
+    void requestFocusMode(String focusMode);
 
-    public void adjustCameraPreviewSize() {
-        if (mPreviewSize != null && mCamera!=null) {
-            Log.d(TAG, "adjustCameraPreviewSize: w=" + mPreviewSize.width + " ,h=" + mPreviewSize.height);
-            // stop preview before making changes
-            this.stopPreview();
+    /**
+     * @return times the preview was restarted to apply a new size
+     */
+    int getPreviewRestartCount();
 
-            Camera.Parameters parameters = mCamera.getParameters();
-            parameters.setPreviewSize(mPreviewSize.width, mPreviewSize.height);
+    /**
+     * @return reconfigurations skipped because nothing changed
+     */
+    int getSkippedReconfigurationCount();
 
-            mCamera.setParameters(parameters);
+    /**
+     * Register a consumer for preview frames. Frames are only captured
+     * while at least one consumer is registered.
+     */
+    void addFrameConsumer(FramePipeline.FrameConsumer consumer);
 
-            // set preview size and make any resize, rotate or
-            // reformatting changes here
-            Log.d(TAG, "adjustCameraPreviewSize startPreview");
-            this.startPreview();
+    void removeFrameConsumer(FramePipeline.FrameConsumer consumer);
 
-        } else {
-            Log.d(TAG, "adjustCameraPreviewSize mPreviewSize is null");
-        }
-    }
+    FramePipeline getFramePipeline();
 
     /**
-     * Recalculate the optimal preview size base on given width and height
-     *
-     * @param width
-     * @param height
+     * @return the preview size chosen for the view, or null before one is
      */
-    public void adjustPreviewSize(int width, int height) {
-        if (mCamera != null) {
-
-            Log.d(TAG, "adjustPreviewSize");
-            List<Camera.Size> supportedPreviewSizes = mCamera.getParameters().getSupportedPreviewSizes();
-            if (supportedPreviewSizes != null) {
-                Log.d(TAG, "measuredSize w=" + width + ", h=" + height);
-                Camera.Size newSize = getOptimalPreviewSize(supportedPreviewSizes, width, height);
-                Log.d(TAG, "newSize w=" + newSize.width + ", h=" + newSize.height);
-                if (newSize != mPreviewSize) {
-                    mPreviewSize = newSize;
-                }
-            }
-        }
-    }
+    FrameSize getPreviewSize();
 
-    private void stopPreview() {
-        if (mCamera != null && mIsPreviewRunning) {
-            try {
-                mCamera.stopPreview();
-                Log.d(TAG, "stopped preview");
-                mIsPreviewRunning = false;
-            } catch (Exception e) {
-                Log.d(TAG, "Tried to stop a non-existant preview. Ignoring");
-            }
-        }
-    }
+    /**
+     * @return clockwise degrees a picture or preview frame taken now has to be turned
+     * to be upright, for the current display rotation. Pictures come unrotated, as
+     * the sensor is mounted.
+     */
+    int getPictureOrientation();
 
-    private void startPreview() {
-        if (mCamera != null && !mIsPreviewRunning) {
-            Log.d(TAG, "startPreview");
-            mCamera.startPreview();
-            mIsPreviewRunning = true;
-        }
-    }
+    boolean isFrontFacing();
 
     /**
-     * Compensate for the camera angle and set it to mirror image because
-     * that's what people expect.
+     * Make the camera use the current preview size.
      *
+     * @return true if the preview size is going to change
      */
-    private void setCameraDisplayOrientation() {
-        if(mCamera == null) {
-            Log.d(TAG,"Cannot set orientation. mCamera is null.");
-            return;
-        }
-
-        android.hardware.Camera.CameraInfo info =
-                new android.hardware.Camera.CameraInfo();
-        android.hardware.Camera.getCameraInfo(mCameraId, info);
-        int rotation = ((Activity) mContext).getWindowManager().getDefaultDisplay()
-                .getRotation();
-        int degrees = 0;
-        switch (rotation) {
-            case Surface.ROTATION_0:
-                degrees = 0;
-                break;
-            case Surface.ROTATION_90:
-                degrees = 90;
-                break;
-            case Surface.ROTATION_180:
-                degrees = 180;
-                break;
-            case Surface.ROTATION_270:
-                degrees = 270;
-                break;
-        }
-
-        int result;
-        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            result = (info.orientation + degrees) % 360;
-            result = (360 - result) % 360;  // compensate the mirror
-        } else {  // back-facing
-            result = (info.orientation - degrees + 360) % 360;
-        }
-        mCamera.setDisplayOrientation(result);
-    }
-
-    private Camera.Size getOptimalPreviewSize(List<Camera.Size> sizes, int w, int h) {
-        Log.d(TAG, "getOptimalPreviewSize");
-        final double ASPECT_TOLERANCE = 0.1;
-
-        if (sizes == null) return null;
-
-        Camera.Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
-
-        //The supported sizes we get from the camera doesn't change w and h when
-        //the phone rotate, therefore we have to adjust our ratio when
-        //the app rotate in order to find the optimal ratio.
-        double targetRatio;
-        if (mContext.getResources().getConfiguration().orientation == Configuration.ORIENTATION_PORTRAIT) {
-            targetRatio = (double) h / w;
-        } else {
-            targetRatio = (double) w / h;
-        }
-
-
-        Log.d(TAG, "TargetRatio=" + targetRatio);
-
-        // Try to find an size match aspect ratio and size
-        for (Camera.Size size : sizes) {
-            double ratio = (double) size.width / size.height;
-            //Log.d(TAG, "Trying ratio=" + ratio + ", w=" + size.width + ", h=" + size.height);
-
-            //find the optimal ratio
-            if (Math.abs(ratio - targetRatio) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(ratio - targetRatio);
-            }
-        }
-
-        return optimalSize;
-    }
+    boolean adjustCameraPreviewSize();
 
+    /**
+     * Recalculate the optimal preview size for a view of the given size.
+     */
+    void adjustPreviewSize(int width, int height);
 
-    private Camera safeCameraOpen(int cameraId) {
-        Log.d(TAG, "safeCameraOpen");
-        Camera camera = null;
-        try {
-            releaseCamera(); //close current camera
-            camera = Camera.open(cameraId);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to open Camera");
-            e.printStackTrace();
-        }
-        return camera;
-    }
+    /**
+     * @return hit and miss counts of the preview size cache
+     */
+    PreviewSizeResolver getSizeResolver();
 }
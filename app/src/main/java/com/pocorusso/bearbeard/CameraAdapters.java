@@ -0,0 +1,79 @@
+package com.pocorusso.bearbeard;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Holds the app's one {@link CameraAdapter} and picks its implementation.
+ */
+public class CameraAdapters {
+
+    private static String TAG = "CameraAdapters";
+
+    public enum Backend {
+        /**
+         * Camera2 where the device supports more than its legacy level, Camera1 otherwise.
+         */
+        AUTO,
+        CAMERA1,
+        CAMERA2
+    }
+
+    private static Backend sBackend = Backend.AUTO;
+    private static CameraAdapter sInstance;
+
+    private CameraAdapters() {
+    }
+
+    public static synchronized CameraAdapter getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            if (useCamera2(appContext)) {
+                sInstance = new Camera2Adapter(appContext);
+            } else {
+                sInstance = new Camera1Adapter(appContext);
+            }
+            Log.i(TAG, "using " + sInstance.getClass().getSimpleName());
+        }
+        return sInstance;
+    }
+
+    private static boolean useCamera2(Context context) {
+        switch (sBackend) {
+            case CAMERA1:
+                return false;
+            case CAMERA2:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+            default:
+                return Camera2Adapter.isSupported(context);
+        }
+    }
+
+    /**
+     * Switch implementations. The current adapter is released; callers that held on
+     * to it must get the new one from {@link #getInstance(Context)}.
+     */
+    public static synchronized void setBackend(Backend backend) {
+        if (backend == sBackend) {
+            return;
+        }
+        sBackend = backend;
+        setInstance(null);
+    }
+
+    public static synchronized Backend getBackend() {
+        return sBackend;
+    }
+
+    /**
+     * Use the given adapter from now on, such as a fake one in tests.
+     * The current adapter is released.
+     */
+    public static synchronized void setInstance(CameraAdapter adapter) {
+        if (sInstance != null && sInstance != adapter) {
+            sInstance.releaseCamera();
+        }
+        sInstance = adapter;
+    }
+}
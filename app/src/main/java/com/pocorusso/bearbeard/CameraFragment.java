@@ -3,7 +3,6 @@ package com.pocorusso.bearbeard;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
@@ -18,6 +17,7 @@ import android.widget.ImageButton;
 import android.widget.ImageView;
 
 import java.io.File;
+import java.io.IOException;
 
 import static android.app.Activity.RESULT_OK;
 
@@ -27,6 +27,13 @@ public class CameraFragment extends Fragment
     private static String TAG = "CameraFragment";
     private static int PICK_GALLERY_IMAGE = 1;
     private static int DEFAULT_CAMERA_ID = 0;
+    private static int BURST_SIZE = 5;
+    //save the sharpest recent preview frame on shutter instead of waiting for a new picture
+    private static boolean USE_ZSL = true;
+    //draw fps, drops and stalls over the preview
+    private static boolean SHOW_FRAME_METRICS = false;
+    //turn saved pictures upright losslessly where possible, not just by their EXIF tag
+    private static boolean LOSSLESS_ROTATION = false;
 
     Preview mPreview;
     ImageButton mBtnTakePicture;
@@ -40,18 +47,22 @@ public class CameraFragment extends Fragment
     CameraAdapter mCameraAdapter;
 
     File mFile;
+    Bitmap mResultBitmap;
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         Log.d(TAG, "onCreate started.");
         super.onCreate(savedInstanceState);
+        Tracer.getInstance().setEnabled(BuildConfig.DEBUG);
         mUploader = Uploader.getInstance(getActivity().getApplicationContext());
-        mCameraAdapter = CameraAdapter.getInstance(getActivity());
+        mCameraAdapter = CameraAdapters.getInstance(getActivity());
 
         Handler responseHandler = new Handler();//creating the response handler on the UI thread
         mCameraHandlerThread = new CameraHandlerThread(TAG, getActivity(), responseHandler, this);
         mCameraHandlerThread.start();
         mCameraHandlerThread.getLooper();
+        mCameraHandlerThread.setZslEnabled(USE_ZSL);
+        mCameraHandlerThread.setLosslessRotation(LOSSLESS_ROTATION);
         Log.d(TAG, "camera handler thread started.");
     }
 
@@ -68,6 +79,10 @@ public class CameraFragment extends Fragment
         Log.d(TAG, "onCreateView started.");
         View v = inflater.inflate(R.layout.fragment_camera, container, false);
         mPreview = (Preview) v.findViewById(R.id.preview_camera);
+        if (SHOW_FRAME_METRICS) {
+            mPreview.setFrameCallbackMetricsEnabled(true);
+            mPreview.setMetricsOverlayEnabled(true);
+        }
         mImageViewResult = (ImageView) v.findViewById(R.id.image_view_result);
 
 
@@ -83,6 +98,29 @@ public class CameraFragment extends Fragment
 
             }
         });
+        mBtnTakePicture.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                //long press shoots a burst without releasing the camera
+                mFile = null;
+                mCameraHandlerThread.takeBurst(BURST_SIZE, new CameraHandlerThread.BurstListener() {
+                    @Override
+                    public void onBurstPictureReady(File file, int shot) {
+                        mFile = file;
+                    }
+
+                    @Override
+                    public void onBurstComplete(BurstStats stats) {
+                        Log.i(TAG, "Burst finished: " + stats);
+                        if (mFile != null) {
+                            setButtonsState(ButtonsState.UPLOAD);
+                        }
+                        releaseCamera();
+                    }
+                });
+                return true;
+            }
+        });
 
         mBtnUpload = (ImageButton) v.findViewById(R.id.btn_upload);
         mBtnUpload.setOnClickListener(new View.OnClickListener() {
@@ -92,12 +130,17 @@ public class CameraFragment extends Fragment
                 if(mFile!=null) {
                    Uploader.getInstance(getActivity().getApplicationContext())
                            .uploadFile(mFile, new Uploader.UploadListener() {
+                               @Override
+                               public void onPreview(Bitmap bitmap) {
+                                   //shown until the full result replaces it in place
+                                   showResult(bitmap);
+                               }
+
                                @Override
                                public void onUploaded(Bitmap bitmap) {
 
                                    if (bitmap!=null) {
-                                       mImageViewResult.setVisibility(View.VISIBLE);
-                                       mImageViewResult.setImageBitmap(bitmap);
+                                       showResult(bitmap);
 
                                        //we have a preview bitmap
                                        //we can release the camera
@@ -152,31 +195,75 @@ public class CameraFragment extends Fragment
             cursor.moveToFirst();
             String imagePath = cursor.getString(cursor.getColumnIndex(filePath[0]));
 
-            //set the image picked into the resulting view
-            mImageViewResult.setImageBitmap(BitmapFactory.decodeFile(imagePath));
-            mImageViewResult.setVisibility(View.VISIBLE);
+            //set the image picked into the resulting view, decoded at the size it is shown
+            ViewGroup.LayoutParams params = mImageViewResult.getLayoutParams();
+            Bitmap bitmap = PictureUtils.getCachedScaledBitmap(getActivity(), imagePath,
+                    params.width, params.height);
+            if (bitmap != null) {
+                showResult(bitmap);
+            }
             cursor.close();
         }
     }
 
     /**
-     * Clean up camera during onPause
+     * Show a bitmap in the result view. The bitmap previously shown is handed
+     * back to the decoder so its memory can be reused, unless the cache still holds it.
+     */
+    private void showResult(Bitmap bitmap) {
+        Bitmap previous = mResultBitmap;
+        mResultBitmap = bitmap;
+        mImageViewResult.setImageBitmap(bitmap);
+        mImageViewResult.setVisibility(bitmap != null ? View.VISIBLE : View.GONE);
+        if (previous != null && previous != bitmap
+                && !BitmapMemoryCache.getInstance(getActivity()).contains(previous)) {
+            BitmapDecoder.getInstance().recycle(previous);
+        }
+    }
+
+    /**
+     * Stop the preview during onPause. The camera itself stays open for a short
+     * grace period so coming straight back does not pay for a full open.
      */
     @Override
     public void onPause() {
         Log.d(TAG, "onPause started.");
         super.onPause();
         releaseCamera();
+        exportTrace();
     }
 
 
+    /**
+     * Write the spans traced so far to the app's files, off the UI thread.
+     * Pull them with adb to open trace.json in chrome://tracing.
+     */
+    private void exportTrace() {
+        final Tracer tracer = Tracer.getInstance();
+        if (!tracer.isEnabled()) {
+            return;
+        }
+        final File dir = getActivity().getFilesDir();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Log.i(TAG, "Trace summary:\n" + tracer.export(dir));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to export the trace", e);
+                }
+            }
+        }, "trace-export").start();
+    }
+
     private void obtainCamera(){
         //open camera on a background thread via an handler
         mCameraHandlerThread.queueOpenCamera(DEFAULT_CAMERA_ID);
     }
 
     private void releaseCamera() {
-        mCameraAdapter.releaseCamera();
+        mCameraHandlerThread.abortBurst();
+        mCameraAdapter.releaseCameraDeferred();
     }
 
     /**
@@ -187,6 +274,7 @@ public class CameraFragment extends Fragment
         Log.d(TAG, "onDestroy started.");
         super.onDestroy();
         mUploader.cancelAll();
+        mCameraAdapter.releaseCamera();
         mCameraHandlerThread.quit();
         Log.i(TAG, "Camera thread quit.");
     }
@@ -205,7 +293,7 @@ public class CameraFragment extends Fragment
     @Override
     public void onCameraOpened() {
         Log.d(TAG, "onCameraOpened started.");
-        mPreview.initCameraSurfaceHolder();
+        mPreview.initCameraSurface();
     }
 
     @Override
@@ -232,7 +320,7 @@ public class CameraFragment extends Fragment
                 mBtnUpload.setClickable(false);
                 mBtnUpload.setVisibility(View.INVISIBLE);
 
-                mImageViewResult.setVisibility(View.GONE);
+                showResult(null);
                 break;
             case UPLOAD:
                 mBtnTakePicture.setClickable(false);
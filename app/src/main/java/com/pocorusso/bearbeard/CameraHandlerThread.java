@@ -1,14 +1,27 @@
 package com.pocorusso.bearbeard;
 
 import android.content.Context;
-import android.hardware.Camera;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CameraHandlerThread extends HandlerThread {
 
@@ -17,9 +30,26 @@ public class CameraHandlerThread extends HandlerThread {
         void onPictureReady(File file);
     }
 
+    /**
+     * Listener for {@link #takeBurst}, always run on the UI thread.
+     */
+    public interface BurstListener {
+        void onBurstPictureReady(File file, int shot);
+        void onBurstComplete(BurstStats stats);
+    }
+
     private static String TAG = "CameraHandlerThread";
     private static final int CAMERA_OPEN = 0;
-    private static final int SAVE_PICTURE = 1;
+    private static final int SAVE_WRITERS = 2;
+    //room for a few bursts; beyond that the disk is far behind and pictures fail
+    //rather than block the camera looper
+    private static final int SAVE_QUEUE_CAPACITY = 16;
+    private static final int ZSL_FRAMES = 4;
+    //frames older than this at the shutter press are not what the user saw
+    private static final long ZSL_MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+    private static final int ZSL_JPEG_QUALITY = 95;
+    //a burst shot not called back by then is failed along with the rest of the burst
+    private static final long BURST_SHOT_TIMEOUT_MS = 5000;
     private Context mContext;
     private Handler mRequestHandler;  //handler for worker thread
     private Handler mResponseHandler; //handler for UI thread
@@ -33,6 +63,17 @@ public class CameraHandlerThread extends HandlerThread {
 
     private LinkedBlockingQueue<Integer> mRequestOpenCameraQueue = new LinkedBlockingQueue<Integer>();
 
+    //saving runs on its own threads so a slow write never delays opening the camera
+    private PictureSaver mPictureSaver;
+    private List<AsyncFrameConsumer> mFrameProcessors = new ArrayList<AsyncFrameConsumer>();
+    private volatile Burst mBurst; //only set and cleared on the UI thread
+    private final ShutterTiming mShutterTiming = new ShutterTiming();
+    private ZslRingBuffer mZslBuffer; //only set and cleared on the UI thread
+    private ExecutorService mZslEncoder;
+    //when the last open was queued, for tracing
+    private volatile long mOpenQueuedNanos;
+    private volatile boolean mIsMirrorFrontPictures;
+
     /**
      * Constructor
      *
@@ -46,7 +87,9 @@ public class CameraHandlerThread extends HandlerThread {
         mContext = context;
         mResponseHandler = responseHandler;
         mCameraListener = cameraListener;
-        mCameraAdapter = CameraAdapter.getInstance(context);
+        mCameraAdapter = CameraAdapters.getInstance(context);
+
+        mPictureSaver = new PictureSaver(name + "-save", SAVE_WRITERS, SAVE_QUEUE_CAPACITY);
     }
 
 
@@ -64,19 +107,12 @@ public class CameraHandlerThread extends HandlerThread {
                     case CAMERA_OPEN:
                         Log.d(TAG, "onLooperPrepared opening camera");
                         int cameraId = msg.arg1;
+                        Tracer.getInstance().end(Tracer.Stage.QUEUE_OPEN_CAMERA, mOpenQueuedNanos);
                         mCameraAdapter.openCamera(cameraId);
                         if (mCameraAdapter.isValid()) {
                             notifyCameraOpened();
                         }
                         break;
-                    case SAVE_PICTURE: {
-                        Log.d(TAG, "onLooperPrepared calling savePictureInPrivateStorage");
-                        File file = PictureUtils.savePictureInPrivateStorage(mContext, (byte[]) msg.obj);
-                        if(file!=null) {
-                            notifiedPictureReady(file);
-                        }
-                        break;
-                    }
                     default:
                         //do nothing
                 }
@@ -89,7 +125,7 @@ public class CameraHandlerThread extends HandlerThread {
             try {
                 Log.d(TAG, "mRequestOpenCameraQueue take");
                 int cameraId = mRequestOpenCameraQueue.take();
-                mRequestHandler.obtainMessage(CAMERA_OPEN, cameraId).sendToTarget();
+                mRequestHandler.obtainMessage(CAMERA_OPEN, cameraId, 0).sendToTarget();
             }catch(InterruptedException e) {
                 Log.d(TAG, "failed to take from mRequestOpenCameraQueue");
             }
@@ -101,9 +137,318 @@ public class CameraHandlerThread extends HandlerThread {
         Log.d(TAG, "Quitting");
 
         mHasQuit = true;
+        synchronized (mFrameProcessors) {
+            for (AsyncFrameConsumer processor : mFrameProcessors) {
+                mCameraAdapter.removeFrameConsumer(processor);
+                processor.shutdown();
+            }
+            mFrameProcessors.clear();
+        }
+        setZslEnabled(false);
+        //the camera and save callbacks of a burst will not run anymore
+        abortBurst();
+        mBurst = null;
+        mPictureSaver.shutdown();
         return super.quit();
     }
 
+    /**
+     * Run per-frame work on its own worker threads, fed from the preview
+     * frame pipeline through a bounded queue so the camera thread never waits on it.
+     *
+     * @param name        stage name for threads and stats
+     * @param workerCount number of worker threads
+     * @param capacity    maximum number of frames waiting to be processed
+     * @param dropPolicy  what to do with new frames when the queue is full
+     * @param processor   the per-frame work, called on a worker thread
+     * @return the consumer, to be passed to {@link #removeFrameProcessor}
+     */
+    public AsyncFrameConsumer addFrameProcessor(String name, int workerCount, int capacity,
+                                                ProcessingStage.DropPolicy dropPolicy,
+                                                ProcessingStage.Processor<PreviewFrame> processor) {
+        AsyncFrameConsumer consumer = new AsyncFrameConsumer(name, workerCount, capacity,
+                dropPolicy, processor);
+        synchronized (mFrameProcessors) {
+            mFrameProcessors.add(consumer);
+        }
+        mCameraAdapter.addFrameConsumer(consumer);
+        return consumer;
+    }
+
+    public void removeFrameProcessor(AsyncFrameConsumer consumer) {
+        mCameraAdapter.removeFrameConsumer(consumer);
+        consumer.shutdown();
+        synchronized (mFrameProcessors) {
+            mFrameProcessors.remove(consumer);
+        }
+    }
+
+    /**
+     * Called from the UI thread. With zero shutter lag on, recent preview frames are kept
+     * and {@link #takePicture()} saves the sharpest of them instead of waiting for the
+     * camera to focus, expose and encode a new picture.
+     */
+    public void setZslEnabled(boolean enabled) {
+        if (enabled == (mZslBuffer != null)) {
+            return;
+        }
+        if (enabled) {
+            mZslEncoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, getName() + "-zsl");
+                }
+            });
+            mZslBuffer = new ZslRingBuffer(ZSL_FRAMES);
+            mCameraAdapter.addFrameConsumer(mZslBuffer);
+        } else {
+            mCameraAdapter.removeFrameConsumer(mZslBuffer);
+            mZslBuffer = null;
+            mZslEncoder.shutdown();
+            mZslEncoder = null;
+        }
+    }
+
+    public boolean isZslEnabled() {
+        return mZslBuffer != null;
+    }
+
+    /**
+     * Save front camera pictures mirrored, the way the preview shows them.
+     */
+    public void setMirrorFrontPictures(boolean mirror) {
+        mIsMirrorFrontPictures = mirror;
+    }
+
+    /**
+     * Turn the pixels of saved pictures upright when that can be done losslessly,
+     * instead of only setting their EXIF orientation. Costs a pass over the
+     * compressed data on the saver thread.
+     */
+    public void setLosslessRotation(boolean lossless) {
+        mPictureSaver.setLosslessRotation(lossless);
+    }
+
+    private boolean isMirrored() {
+        return mIsMirrorFrontPictures && mCameraAdapter.isFrontFacing();
+    }
+
+    /**
+     * @return shutter to saved times for camera and zero-shutter-lag pictures
+     */
+    public ShutterTiming getShutterTiming() {
+        return mShutterTiming;
+    }
+
+    /**
+     * @return throughput and latency of picture saving
+     */
+    public PictureSaver getPictureSaver() {
+        return mPictureSaver;
+    }
+
+    /**
+     * Queue the jpeg to be turned upright and written to private storage off the camera thread.
+     *
+     * @param rotation clockwise degrees, as the adapter gave them when the shutter fired
+     */
+    private void savePicture(byte[] data, int rotation, boolean mirror, PictureSaver.SaveListener listener) {
+        File file;
+        try {
+            file = PictureUtils.getPrivateFileHandle(mContext);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Failed to open private file handle.");
+            e.printStackTrace();
+            listener.onSaveFailed(null, e);
+            return;
+        }
+
+        mPictureSaver.save(file, data, rotation, mirror, listener);
+    }
+
+    /**
+     * Called from the UI thread to take a number of pictures back to back
+     * without releasing the camera. The preview is restarted after every shot
+     * and the pictures are saved while the next one is being taken.
+     *
+     * @param count    number of pictures to take
+     * @param listener notified on the UI thread as pictures are saved
+     */
+    public void takeBurst(int count, BurstListener listener) {
+        if (count <= 0 || !mCameraAdapter.isValid()) {
+            return;
+        }
+        if (mBurst != null) {
+            Log.d(TAG, "Burst already in progress. Ignoring");
+            return;
+        }
+        Log.d(TAG, "takeBurst count=" + count);
+        mBurst = new Burst(count, listener);
+        mBurst.takeNextShot();
+    }
+
+    public boolean isBurstInProgress() {
+        return mBurst != null;
+    }
+
+    /**
+     * Called from the UI thread when the camera is about to go away. The shot being
+     * taken and those not taken yet are failed, pictures already taken are still saved.
+     */
+    public void abortBurst() {
+        Burst burst = mBurst;
+        if (burst != null) {
+            Log.d(TAG, "Aborting burst");
+            burst.abort();
+        }
+    }
+
+    /**
+     * State of the burst in progress. The shutter and jpeg callbacks run on
+     * this thread's looper, the save callbacks on the saver threads.
+     */
+    private class Burst {
+        private final BurstListener mListener;
+        private final BurstStats mStats;
+        private final AtomicBoolean mCompleted = new AtomicBoolean();
+        //guarded by this
+        private int mNextShot;
+        private boolean mIsAborted;
+        private Shot mCurrentShot;
+
+        Burst(int count, BurstListener listener) {
+            mListener = listener;
+            mStats = new BurstStats(count, System.nanoTime());
+        }
+
+        void takeNextShot() {
+            final Shot current;
+            synchronized (this) {
+                if (mIsAborted || mNextShot >= mStats.getShotCount()) {
+                    return;
+                }
+                current = new Shot(mNextShot++);
+                mCurrentShot = current;
+            }
+            final int shot = current.mIndex;
+            final int rotation = mCameraAdapter.getPictureOrientation();
+            final boolean mirror = isMirrored();
+            final long traceStart = Tracer.getInstance().begin();
+            mRequestHandler.postDelayed(current, BURST_SHOT_TIMEOUT_MS);
+            mCameraAdapter.takePicture(new CameraAdapter.PictureCallback() {
+                @Override
+                public void onShutter() {
+                    mStats.onShutter(shot, System.nanoTime());
+                    Tracer.getInstance().end(Tracer.Stage.SHUTTER, traceStart);
+                }
+
+                @Override
+                public void onPictureTaken(byte[] jpeg) {
+                    if (!current.settle()) {
+                        Log.d(TAG, "Burst shot " + shot + " arrived after it was failed. Ignoring");
+                        return;
+                    }
+                    Tracer.getInstance().end(Tracer.Stage.JPEG_CALLBACK, traceStart);
+                    Log.d(TAG, "onPictureTaken - burst shot " + shot);
+                    savePicture(jpeg, rotation, mirror, new PictureSaver.SaveListener() {
+                        @Override
+                        public void onSaved(File file, long latencyNanos) {
+                            mStats.onSaved(shot, System.nanoTime());
+                            notifyBurstPictureReady(Burst.this, file, shot);
+                            checkComplete();
+                        }
+
+                        @Override
+                        public void onSaveFailed(File file, IOException e) {
+                            Log.e(TAG, "Failed to save burst shot " + shot);
+                            mStats.onFailed(shot, System.nanoTime());
+                            checkComplete();
+                        }
+                    });
+                    continueBurst();
+                }
+
+                @Override
+                public void onPictureFailed(Exception e) {
+                    if (!current.settle()) {
+                        return;
+                    }
+                    Log.e(TAG, "Failed to take burst shot " + shot, e);
+                    mStats.onFailed(shot, System.nanoTime());
+                    continueBurst();
+                    checkComplete();
+                }
+            });
+        }
+
+        private void continueBurst() {
+            if (mCameraAdapter.isValid()) {
+                synchronized (this) {
+                    if (mIsAborted || mNextShot >= mStats.getShotCount()) {
+                        return;
+                    }
+                }
+                mCameraAdapter.restartPreview();
+                takeNextShot();
+            } else {
+                //camera went away in the middle of the burst
+                abort();
+            }
+        }
+
+        /**
+         * Fail the shot in flight and the shots not taken yet.
+         */
+        void abort() {
+            Shot current;
+            synchronized (this) {
+                mIsAborted = true;
+                current = mCurrentShot;
+                while (mNextShot < mStats.getShotCount()) {
+                    mStats.onFailed(mNextShot++, System.nanoTime());
+                }
+            }
+            if (current != null && current.settle()) {
+                mStats.onFailed(current.mIndex, System.nanoTime());
+            }
+            checkComplete();
+        }
+
+        void checkComplete() {
+            if (mStats.isComplete() && mCompleted.compareAndSet(false, true)) {
+                Log.d(TAG, "Burst complete: " + mStats);
+                notifyBurstComplete(this);
+            }
+        }
+
+        /**
+         * A shot is settled once, by its picture, its failure, its timeout or an abort.
+         * Posted as its own timeout.
+         */
+        private class Shot implements Runnable {
+            final int mIndex;
+            private final AtomicBoolean mIsSettled = new AtomicBoolean();
+
+            Shot(int index) {
+                mIndex = index;
+            }
+
+            boolean settle() {
+                if (!mIsSettled.compareAndSet(false, true)) {
+                    return false;
+                }
+                mRequestHandler.removeCallbacks(this);
+                return true;
+            }
+
+            @Override
+            public void run() {
+                Log.e(TAG, "Burst shot " + mIndex + " timed out");
+                abort();
+            }
+        }
+    }
+
     /**
      * Called from the UI thread to queue up work to
      * open the camera
@@ -112,6 +457,7 @@ public class CameraHandlerThread extends HandlerThread {
      */
     public void queueOpenCamera(int cameraId) {
         Log.d(TAG, "Queue request to open camera");
+        mOpenQueuedNanos = Tracer.getInstance().begin();
 
         //a bit of complication here. It is possible that
         //we are queuing up the request to open the camera
@@ -122,7 +468,7 @@ public class CameraHandlerThread extends HandlerThread {
         if(mRequestHandler == null) {
             mRequestOpenCameraQueue.add(cameraId);
         } else {
-            mRequestHandler.obtainMessage(CAMERA_OPEN, cameraId).sendToTarget();
+            mRequestHandler.obtainMessage(CAMERA_OPEN, cameraId, 0).sendToTarget();
         }
     }
 
@@ -140,6 +486,29 @@ public class CameraHandlerThread extends HandlerThread {
         });
     }
 
+    private void notifyBurstPictureReady(final Burst burst, final File file, final int shot) {
+        mResponseHandler.post(new Runnable() {
+            public void run() {
+                if (!mHasQuit) {
+                    burst.mListener.onBurstPictureReady(file, shot);
+                }
+            }
+        });
+    }
+
+    private void notifyBurstComplete(final Burst burst) {
+        mResponseHandler.post(new Runnable() {
+            public void run() {
+                if (mBurst == burst) {
+                    mBurst = null;
+                }
+                if (!mHasQuit) {
+                    burst.mListener.onBurstComplete(burst.mStats);
+                }
+            }
+        });
+    }
+
     private void notifiedPictureReady(final File file) {
         mResponseHandler.post(new Runnable() {
             public void run() {
@@ -151,32 +520,103 @@ public class CameraHandlerThread extends HandlerThread {
         });
     }
 
+    /**
+     * Called from the UI thread. With zero shutter lag on and a recent frame kept, the
+     * picture is encoded from that frame, otherwise the camera takes one.
+     */
     public void takePicture() {
-        if (mCameraAdapter.isValid()) {
-            mCameraAdapter.takePicture(
-                    new Camera.ShutterCallback() { //shutter on click listening
-                        @Override
-                        public void onShutter() {
-                            //do nothing
-                        }
-                    }, new Camera.PictureCallback() { //raw picture hanlding
-                        @Override
-                        public void onPictureTaken(byte[] bytes, Camera camera) {
-                           //do nothing
-                        }
-                    }, new Camera.PictureCallback() { //jpeg picture handling
-                        @Override
-                        public void onPictureTaken(byte[] bytes, Camera camera) {
-                            //call back for handling jpeg picture
-                            Log.d(TAG, "onPictureTaken - jpeg");
-                            mRequestHandler.obtainMessage(SAVE_PICTURE, bytes).sendToTarget();
-
-                            //For some reason the camera does not stop the preview after
-                            //take picture after the first time so we have to
-                            //manually stop the preview? Something to look into
-                            mCameraAdapter.releaseCamera();
-                        }
-                    });
+        if (!mCameraAdapter.isValid() || mBurst != null) {
+            return;
+        }
+        final long shutterNanos = System.nanoTime();
+        //preview frames and pictures both come as the sensor is mounted
+        final int rotation = mCameraAdapter.getPictureOrientation();
+        final boolean mirror = isMirrored();
+        if (mZslBuffer != null) {
+            ZslRingBuffer.Capture capture = mZslBuffer.capture(shutterNanos, ZSL_MAX_AGE_NANOS);
+            if (capture != null && encodeZsl(capture, shutterNanos, rotation, mirror)) {
+                return;
+            }
+            Log.d(TAG, "No recent frame for zero shutter lag, taking a picture");
+        }
+
+        final long traceStart = Tracer.getInstance().begin();
+        mCameraAdapter.takePicture(new CameraAdapter.PictureCallback() {
+            @Override
+            public void onShutter() {
+                Tracer.getInstance().end(Tracer.Stage.SHUTTER, traceStart);
+            }
+
+            @Override
+            public void onPictureTaken(byte[] jpeg) {
+                Tracer.getInstance().end(Tracer.Stage.JPEG_CALLBACK, traceStart);
+                //call back for handling jpeg picture
+                Log.d(TAG, "onPictureTaken - jpeg");
+                saveAndNotify(jpeg, false, shutterNanos, rotation, mirror);
+
+                //For some reason the camera does not stop the preview after
+                //take picture after the first time so we have to
+                //manually stop the preview? Something to look into
+                mCameraAdapter.releaseCameraDeferred();
+            }
+
+            @Override
+            public void onPictureFailed(Exception e) {
+                Log.e(TAG, "Failed to take picture", e);
+            }
+        });
+    }
+
+    /**
+     * Encode a kept frame to JPEG on the encoder thread and save it.
+     *
+     * @return false if the encoder is shut down; the capture has been released then
+     */
+    private boolean encodeZsl(final ZslRingBuffer.Capture capture, final long shutterNanos,
+                              final int rotation, final boolean mirror) {
+        try {
+            mZslEncoder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "zsl frame " + (shutterNanos - capture.getTimestampNanos()) / 1000000
+                            + "ms before shutter, sharpness " + capture.getSharpness());
+                    byte[] jpeg;
+                    try {
+                        YuvImage image = new YuvImage(capture.getData(), ImageFormat.NV21,
+                                capture.getWidth(), capture.getHeight(), null);
+                        ByteArrayOutputStream out = new ByteArrayOutputStream(capture.getData().length / 4);
+                        image.compressToJpeg(new Rect(0, 0, capture.getWidth(), capture.getHeight()),
+                                ZSL_JPEG_QUALITY, out);
+                        jpeg = out.toByteArray();
+                        Tracer.getInstance().end(Tracer.Stage.JPEG_CALLBACK, shutterNanos);
+                    } finally {
+                        capture.release();
+                    }
+                    saveAndNotify(jpeg, true, shutterNanos, rotation, mirror);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            capture.release();
+            return false;
         }
     }
-}
\ No newline at end of file
+
+    private void saveAndNotify(byte[] jpeg, final boolean zsl, final long shutterNanos,
+                               int rotation, boolean mirror) {
+        savePicture(jpeg, rotation, mirror, new PictureSaver.SaveListener() {
+            @Override
+            public void onSaved(File file, long latencyNanos) {
+                mShutterTiming.record(zsl, System.nanoTime() - shutterNanos);
+                Log.d(TAG, "Saved " + file + " in " + latencyNanos / 1000000 + "ms, " + mShutterTiming);
+                notifiedPictureReady(file);
+            }
+
+            @Override
+            public void onSaveFailed(File file, IOException e) {
+                Log.e(TAG, "Failed to save " + file);
+                e.printStackTrace();
+            }
+        });
+    }
+}
@@ -0,0 +1,53 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Rotation math between the camera sensor and the display. Kept free of Android
+ * classes so it can be tested and benchmarked on the host JVM.
+ */
+public class CameraOrientation {
+
+    private CameraOrientation() {
+    }
+
+    /**
+     * Degrees for a display rotation constant, Surface.ROTATION_0 to ROTATION_270.
+     */
+    public static int rotationToDegrees(int rotation) {
+        switch (rotation) {
+            case 1:
+                return 90;
+            case 2:
+                return 180;
+            case 3:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Clockwise rotation to show the preview upright. Front camera previews are
+     * mirrored as well, because that's what people expect.
+     *
+     * @param sensorOrientation degrees the sensor is mounted at
+     * @param displayDegrees    current display rotation in degrees
+     */
+    public static int displayOrientation(int sensorOrientation, int displayDegrees, boolean frontFacing) {
+        if (frontFacing) {
+            int result = (sensorOrientation + displayDegrees) % 360;
+            return (360 - result) % 360;  // compensate the mirror
+        }
+        return (sensorOrientation - displayDegrees + 360) % 360;
+    }
+
+    /**
+     * Clockwise rotation of a captured picture to be upright. Pictures are not
+     * mirrored, so unlike {@link #displayOrientation} there is no mirror compensation.
+     */
+    public static int pictureOrientation(int sensorOrientation, int displayDegrees, boolean frontFacing) {
+        if (frontFacing) {
+            return (sensorOrientation + displayDegrees) % 360;
+        }
+        return (sensorOrientation - displayDegrees + 360) % 360;
+    }
+}
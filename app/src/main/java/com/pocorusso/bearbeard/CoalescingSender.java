@@ -0,0 +1,188 @@
+package com.pocorusso.bearbeard;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sits in front of another {@link UploadQueue.Sender} and skips the network for
+ * uploads whose response is already known.
+ *
+ * Each job is reduced to a content key, normally a hash of the payload and the
+ * profile it was encoded with. A key found in the {@link DiskResponseCache} is
+ * answered from disk. A key that is already being sent is not sent again; the job
+ * waits for the response of the one in flight.
+ */
+public class CoalescingSender implements UploadQueue.Sender {
+
+    public interface KeyFunction {
+        /**
+         * Called on a sender thread.
+         *
+         * @return a key that is equal for jobs that get the same response
+         */
+        String keyOf(UploadJob job) throws IOException;
+    }
+
+    private final UploadQueue.Sender mDelegate;
+    private final KeyFunction mKeyFunction;
+    private final DiskResponseCache mCache;
+    private final ExecutorService mExecutor;
+    //content key to the callbacks waiting for it, the first one is the job being sent
+    private final Map<String, List<UploadQueue.SendCallback>> mInFlight =
+            new HashMap<String, List<UploadQueue.SendCallback>>();
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mSent = new AtomicLong();
+
+    /**
+     * @param threads number of jobs keyed at once
+     */
+    public CoalescingSender(UploadQueue.Sender delegate, KeyFunction keyFunction,
+                            DiskResponseCache cache, int threads) {
+        mDelegate = delegate;
+        mKeyFunction = keyFunction;
+        mCache = cache;
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "CoalescingSender-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    @Override
+    public void send(final UploadJob job, final UploadQueue.SendCallback callback) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendNow(job, callback);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onFailure(e, true);
+        }
+    }
+
+    private void sendNow(UploadJob job, UploadQueue.SendCallback callback) {
+        final String key;
+        try {
+            key = mKeyFunction.keyOf(job);
+        } catch (IOException e) {
+            //the picture can't be read, sending it won't work either
+            callback.onFailure(e, false);
+            return;
+        } catch (RuntimeException e) {
+            callback.onFailure(e, false);
+            return;
+        }
+
+        byte[] cached = mCache.get(key);
+        if (cached != null) {
+            mCacheHits.incrementAndGet();
+            callback.onSuccess(cached);
+            return;
+        }
+
+        synchronized (mInFlight) {
+            List<UploadQueue.SendCallback> waiting = mInFlight.get(key);
+            if (waiting != null) {
+                mCoalesced.incrementAndGet();
+                waiting.add(callback);
+                return;
+            }
+            waiting = new ArrayList<UploadQueue.SendCallback>();
+            waiting.add(callback);
+            mInFlight.put(key, waiting);
+        }
+
+        mSent.incrementAndGet();
+        try {
+            sendToDelegate(job, key);
+        } catch (RuntimeException e) {
+            //nobody else will finish the key, the waiters would hang on it for good
+            for (UploadQueue.SendCallback waiting : finish(key)) {
+                waiting.onFailure(e, false);
+            }
+        }
+    }
+
+    private void sendToDelegate(UploadJob job, final String key) {
+        mDelegate.send(job, new UploadQueue.SendCallback() {
+            @Override
+            public void onSuccess(byte[] response) {
+                try {
+                    mCache.put(key, response);
+                } catch (IOException e) {
+                    //still deliver it, it just won't be cached
+                }
+                for (UploadQueue.SendCallback waiting : finish(key)) {
+                    waiting.onSuccess(response);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e, boolean retryable) {
+                for (UploadQueue.SendCallback waiting : finish(key)) {
+                    waiting.onFailure(e, retryable);
+                }
+            }
+        });
+    }
+
+    private List<UploadQueue.SendCallback> finish(String key) {
+        synchronized (mInFlight) {
+            List<UploadQueue.SendCallback> waiting = mInFlight.remove(key);
+            return waiting != null ? waiting : Collections.<UploadQueue.SendCallback>emptyList();
+        }
+    }
+
+    public DiskResponseCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * @return jobs answered from the response cache
+     */
+    public long getCacheHitCount() {
+        return mCacheHits.get();
+    }
+
+    /**
+     * @return jobs that waited for an identical job already in flight
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * @return jobs handed to the delegate
+     */
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + getSentCount()
+                + ", cacheHits=" + getCacheHitCount()
+                + ", coalesced=" + getCoalescedCount()
+                + ", " + mCache;
+    }
+}
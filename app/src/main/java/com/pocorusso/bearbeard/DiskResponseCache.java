@@ -0,0 +1,173 @@
+package com.pocorusso.bearbeard;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Server responses kept on disk, one file per key, evicted least recently used
+ * first once the directory grows past its size limit.
+ *
+ * The index is rebuilt from the files' modification times the first time the cache
+ * is used, so recency survives a restart.
+ */
+public class DiskResponseCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    //file name to size, least recently used first
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long mSize;
+    private boolean mLoaded;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param directory where the responses are stored, used by nothing else
+     * @param maxBytes  total size of the stored responses
+     */
+    public DiskResponseCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param key made of letters, digits, '-' and '_' only
+     * @return the stored response, or null
+     */
+    public synchronized byte[] get(String key) {
+        load();
+        Long size = mEntries.get(key);
+        if (size == null) {
+            mMisses++;
+            return null;
+        }
+
+        File file = new File(mDirectory, key);
+        byte[] data;
+        try {
+            data = readFile(file);
+        } catch (IOException e) {
+            remove(key);
+            mMisses++;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        mHits++;
+        return data;
+    }
+
+    public synchronized void put(String key, byte[] data) throws IOException {
+        load();
+        if (data.length > mMaxBytes) {
+            return;
+        }
+        PictureSaver.writeAtomically(new File(mDirectory, key), data);
+        Long previous = mEntries.put(key, (long) data.length);
+        if (previous != null) {
+            mSize -= previous;
+        }
+        mSize += data.length;
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized void clear() {
+        load();
+        trimToSize(0);
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Long size = mEntries.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        new File(mDirectory, key).delete();
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                //left over from a write that didn't finish
+                file.delete();
+            } else if (file.isFile()) {
+                mEntries.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+        trimToSize(mMaxBytes);
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    public synchronized long getSize() {
+        load();
+        return mSize;
+    }
+
+    public synchronized int getEntryCount() {
+        load();
+        return mEntries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries=" + mEntries.size() + ", bytes=" + mSize + "/" + mMaxBytes
+                + ", hits=" + mHits + ", misses=" + mMisses;
+    }
+}
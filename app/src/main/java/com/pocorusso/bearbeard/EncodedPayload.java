@@ -0,0 +1,56 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * A picture encoded for upload, with the time each encoding step took.
+ */
+public class EncodedPayload {
+
+    private final String mKey;
+    private final byte[] mData;
+    private final String mContentType;
+    private final long mDecodeNanos;
+    private final long mCompressNanos;
+
+    public EncodedPayload(String key, byte[] data, String contentType,
+                          long decodeNanos, long compressNanos) {
+        mKey = key;
+        mData = data;
+        mContentType = contentType;
+        mDecodeNanos = decodeNanos;
+        mCompressNanos = compressNanos;
+    }
+
+    /**
+     * @return identifies the source file and the profile it was encoded with
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    public long getDecodeNanos() {
+        return mDecodeNanos;
+    }
+
+    public long getCompressNanos() {
+        return mCompressNanos;
+    }
+
+    public long getTotalNanos() {
+        return mDecodeNanos + mCompressNanos;
+    }
+
+    @Override
+    public String toString() {
+        return mKey + " bytes=" + mData.length
+                + ", decodeMs=" + mDecodeNanos / 1000000
+                + ", compressMs=" + mCompressNanos / 1000000;
+    }
+}
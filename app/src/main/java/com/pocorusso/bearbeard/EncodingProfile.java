@@ -0,0 +1,142 @@
+package com.pocorusso.bearbeard;
+
+import android.graphics.Bitmap;
+
+/**
+ * How a picture is shrunk and compressed before it is uploaded, and how the
+ * server's response is decoded.
+ */
+public class EncodingProfile {
+
+    private static final String SEPARATOR = "-";
+    private static final String AUTO_CONFIG = "AUTO";
+    private static final int RESULT_LONG_EDGE = 100;
+
+    public static final EncodingProfile DEFAULT =
+            new EncodingProfile(128, Bitmap.CompressFormat.JPEG, 50, RESULT_LONG_EDGE, null);
+
+    /**
+     * Send the captured JPEG as it is, streamed from disk.
+     */
+    public static final EncodingProfile ORIGINAL =
+            new EncodingProfile(0, Bitmap.CompressFormat.JPEG, 100, RESULT_LONG_EDGE, null);
+
+    /**
+     * Profiles the adaptive mode chooses from, smallest payload first.
+     */
+    public static final EncodingProfile[] ADAPTIVE_LADDER = {
+            new EncodingProfile(64, Bitmap.CompressFormat.JPEG, 40, RESULT_LONG_EDGE, null),
+            DEFAULT,
+            new EncodingProfile(512, Bitmap.CompressFormat.JPEG, 70, RESULT_LONG_EDGE, null),
+            new EncodingProfile(1024, Bitmap.CompressFormat.JPEG, 85, RESULT_LONG_EDGE, null),
+    };
+
+    private final int mLongEdge;
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
+    private final int mResponseLongEdge;
+    private final Bitmap.Config mResponseConfig;
+
+    /**
+     * @param longEdge         length of the longer side of the upload, 0 to send the file as is
+     * @param format           compression format of the upload
+     * @param quality          compression quality, 0-100
+     * @param responseLongEdge length of the longer side the response is decoded to at least
+     * @param responseConfig   bitmap config of the decoded response, null for RGB_565 when
+     *                         the response is a JPEG and ARGB_8888 otherwise
+     */
+    public EncodingProfile(int longEdge, Bitmap.CompressFormat format, int quality,
+                           int responseLongEdge, Bitmap.Config responseConfig) {
+        mLongEdge = longEdge;
+        mFormat = format;
+        mQuality = quality;
+        mResponseLongEdge = responseLongEdge;
+        mResponseConfig = responseConfig;
+    }
+
+    public int getLongEdge() {
+        return mLongEdge;
+    }
+
+    public Bitmap.CompressFormat getFormat() {
+        return mFormat;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    public int getResponseLongEdge() {
+        return mResponseLongEdge;
+    }
+
+    /**
+     * @return the config to decode the response with, or null to pick one from its format
+     */
+    public Bitmap.Config getResponseConfig() {
+        return mResponseConfig;
+    }
+
+    /**
+     * @return true if the picture is sent without decoding it
+     */
+    public boolean isOriginal() {
+        return mLongEdge <= 0;
+    }
+
+    public String getContentType() {
+        switch (mFormat) {
+            case PNG:
+                return "image/png";
+            case WEBP:
+                return "image/webp";
+            default:
+                return "image/jpeg";
+        }
+    }
+
+    /**
+     * @return a string that is equal for profiles that produce the same upload bytes
+     */
+    public String getPayloadKey() {
+        return isOriginal() ? "original" : mLongEdge + SEPARATOR + mFormat + SEPARATOR + mQuality;
+    }
+
+    /**
+     * @return a string that is equal for equal profiles, see {@link #fromKey(String)}
+     */
+    public String getKey() {
+        return mLongEdge + SEPARATOR + mFormat + SEPARATOR + mQuality
+                + SEPARATOR + mResponseLongEdge
+                + SEPARATOR + (mResponseConfig == null ? AUTO_CONFIG : mResponseConfig.name());
+    }
+
+    /**
+     * Parse a key made by {@link #getKey()}.
+     *
+     * @return the profile, or null if the key is not valid
+     */
+    public static EncodingProfile fromKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        String[] fields = key.split(SEPARATOR);
+        if (fields.length != 5) {
+            return null;
+        }
+        try {
+            return new EncodingProfile(Integer.parseInt(fields[0]),
+                    Bitmap.CompressFormat.valueOf(fields[1]),
+                    Integer.parseInt(fields[2]),
+                    Integer.parseInt(fields[3]),
+                    AUTO_CONFIG.equals(fields[4]) ? null : Bitmap.Config.valueOf(fields[4]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
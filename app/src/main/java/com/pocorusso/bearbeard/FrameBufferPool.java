@@ -0,0 +1,89 @@
+package com.pocorusso.bearbeard;
+
+import java.util.ArrayDeque;
+
+/**
+ * Fixed set of preview buffers allocated once up front.
+ *
+ * The pool never grows. When every buffer is checked out {@link #acquire()} returns
+ * null and the caller is expected to drop the frame instead of allocating a new one.
+ */
+public class FrameBufferPool {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBufferSize;
+    private final int mCapacity;
+    private final ArrayDeque<PreviewFrame> mFree;
+
+    /**
+     * @param capacity     number of buffers to allocate
+     * @param width        preview width in pixels
+     * @param height       preview height in pixels
+     * @param bitsPerPixel bits per pixel of the preview format, 12 for NV21
+     */
+    public FrameBufferPool(int capacity, int width, int height, int bitsPerPixel) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mWidth = width;
+        mHeight = height;
+        mBufferSize = bufferSizeFor(width, height, bitsPerPixel);
+        mCapacity = capacity;
+        mFree = new ArrayDeque<PreviewFrame>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mFree.add(new PreviewFrame(new byte[mBufferSize], width, height, this));
+        }
+    }
+
+    /**
+     * Size in bytes of a single frame, rounded up to a whole byte.
+     */
+    public static int bufferSizeFor(int width, int height, int bitsPerPixel) {
+        if (width <= 0 || height <= 0 || bitsPerPixel <= 0) {
+            throw new IllegalArgumentException("Invalid frame format " + width + "x" + height
+                    + " @" + bitsPerPixel + "bpp");
+        }
+        return (int) (((long) width * height * bitsPerPixel + 7) / 8);
+    }
+
+    /**
+     * @return a free buffer, or null if all of them are in use
+     */
+    public synchronized PreviewFrame acquire() {
+        return mFree.pollFirst();
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire()}.
+     */
+    public synchronized void release(PreviewFrame frame) {
+        if (frame.getPool() != this) {
+            throw new IllegalArgumentException("Frame does not belong to this pool");
+        }
+        if (mFree.contains(frame)) {
+            throw new IllegalStateException("Frame returned to the pool twice");
+        }
+        mFree.addLast(frame);
+    }
+
+    public synchronized int getFreeCount() {
+        return mFree.size();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return true if buffers from this pool can hold frames of the given format
+     */
+    public boolean matches(int width, int height, int bitsPerPixel) {
+        return mWidth == width && mHeight == height
+                && mBufferSize == bufferSizeFor(width, height, bitsPerPixel);
+    }
+}
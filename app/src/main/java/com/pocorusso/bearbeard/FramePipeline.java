@@ -0,0 +1,222 @@
+package com.pocorusso.bearbeard;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers preview frames to registered consumers without allocating a byte[] per
+ * frame. The camera backend fills buffers the pipeline hands it through a
+ * {@link FrameSource}, such as the Camera1 preview callback buffers or copies of
+ * Camera2 ImageReader images.
+ *
+ * All buffers come from a {@link FrameBufferPool}. A buffer is handed back to the
+ * camera only after every consumer has released its {@link PreviewFrame}. When
+ * consumers hold on to so many frames that the camera would be left without a
+ * buffer, the incoming frame is dropped and counted instead.
+ *
+ * Plain Java, so the pipeline can be driven by a fake camera adapter on the host JVM.
+ */
+public class FramePipeline implements PreviewFrame.Recycler {
+
+    /**
+     * The camera side of the pipeline.
+     */
+    public interface FrameSource {
+        /**
+         * Take an empty buffer, fill it with a later frame and pass it to
+         * {@link FramePipeline#onFrame(byte[])}.
+         */
+        void addBuffer(byte[] buffer);
+
+        /**
+         * Stop filling buffers. Buffers not filled yet are taken back by the pipeline.
+         */
+        void stop();
+    }
+
+    public interface FrameConsumer {
+        /**
+         * Called on the camera callback thread. The consumer owns one reference
+         * to the frame and must release it, see {@link PreviewFrame}.
+         */
+        void onFrame(PreviewFrame frame);
+    }
+
+    private static final int DEFAULT_BUFFER_COUNT = 3;
+    //number of buffers always left with the camera so it never starves
+    private static final int MIN_CAMERA_BUFFERS = 1;
+
+    private final int mBufferCount;
+    //copied on write so dispatching a frame does not allocate
+    private volatile FrameConsumer[] mConsumers = new FrameConsumer[0];
+
+    //buffers currently queued with the camera in the order they will come back
+    private final ArrayDeque<PreviewFrame> mCameraQueue = new ArrayDeque<PreviewFrame>();
+    private FrameBufferPool mPool;
+    private FrameSource mSource;
+
+    private final AtomicLong mFramesReceived = new AtomicLong();
+    private final AtomicLong mFramesDelivered = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+
+    public FramePipeline() {
+        this(DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param bufferCount number of preview buffers to allocate, at least 2
+     */
+    public FramePipeline(int bufferCount) {
+        if (bufferCount <= MIN_CAMERA_BUFFERS) {
+            throw new IllegalArgumentException("bufferCount must be greater than " + MIN_CAMERA_BUFFERS);
+        }
+        mBufferCount = bufferCount;
+    }
+
+    public synchronized void addConsumer(FrameConsumer consumer) {
+        List<FrameConsumer> consumers = new ArrayList<FrameConsumer>(Arrays.asList(mConsumers));
+        if (!consumers.contains(consumer)) {
+            consumers.add(consumer);
+            mConsumers = consumers.toArray(new FrameConsumer[consumers.size()]);
+        }
+    }
+
+    public synchronized void removeConsumer(FrameConsumer consumer) {
+        List<FrameConsumer> consumers = new ArrayList<FrameConsumer>(Arrays.asList(mConsumers));
+        if (consumers.remove(consumer)) {
+            mConsumers = consumers.toArray(new FrameConsumer[consumers.size()]);
+        }
+    }
+
+    public boolean hasConsumers() {
+        return mConsumers.length > 0;
+    }
+
+    public synchronized boolean isAttached() {
+        return mSource != null;
+    }
+
+    /**
+     * Start receiving frames from the camera. The pool is reallocated only when
+     * the preview format changes.
+     *
+     * @param bitsPerPixel bits per pixel of the frames, 12 for NV21
+     */
+    public synchronized void attach(FrameSource source, int width, int height, int bitsPerPixel) {
+        detach();
+
+        if (mPool == null || !mPool.matches(width, height, bitsPerPixel)) {
+            mPool = new FrameBufferPool(mBufferCount, width, height, bitsPerPixel);
+        }
+
+        mSource = source;
+        PreviewFrame frame;
+        while ((frame = mPool.acquire()) != null) {
+            queueToCamera(frame);
+        }
+    }
+
+    /**
+     * Stop receiving frames. Buffers still held by consumers go back to the pool
+     * when they are released.
+     */
+    public synchronized void detach() {
+        if (mSource == null) {
+            return;
+        }
+        mSource.stop();
+        mSource = null;
+        while (!mCameraQueue.isEmpty()) {
+            mPool.release(mCameraQueue.pollFirst());
+        }
+    }
+
+    /**
+     * Called by the {@link FrameSource} with a buffer it has filled, on the camera's thread.
+     */
+    public void onFrame(byte[] data) {
+        long now = System.nanoTime();
+        long sequence = mFramesReceived.incrementAndGet();
+
+        PreviewFrame frame;
+        boolean starved;
+        synchronized (this) {
+            frame = takeFromCameraQueue(data);
+            if (frame == null) {
+                //not ours, or from a source that has been detached
+                return;
+            }
+            starved = mCameraQueue.size() < MIN_CAMERA_BUFFERS;
+        }
+
+        FrameConsumer[] consumers = mConsumers;
+        if (starved || consumers.length == 0) {
+            //consumers are holding every other buffer, give this one straight back
+            if (starved) {
+                mFramesDropped.incrementAndGet();
+            }
+            frame.prepare(this, 1, sequence, now);
+            frame.release();
+            return;
+        }
+
+        //one reference per consumer plus one held while dispatching
+        frame.prepare(this, consumers.length + 1, sequence, now);
+        for (FrameConsumer consumer : consumers) {
+            consumer.onFrame(frame);
+        }
+        mFramesDelivered.incrementAndGet();
+        frame.release();
+    }
+
+    @Override
+    public synchronized void recycle(PreviewFrame frame) {
+        if (frame.getPool() != mPool) {
+            //allocated for an old preview size, let it be collected
+            return;
+        }
+        if (mSource != null) {
+            queueToCamera(frame);
+        } else {
+            mPool.release(frame);
+        }
+    }
+
+    private void queueToCamera(PreviewFrame frame) {
+        mCameraQueue.addLast(frame);
+        mSource.addBuffer(frame.getData());
+    }
+
+    private PreviewFrame takeFromCameraQueue(byte[] data) {
+        PreviewFrame head = mCameraQueue.peekFirst();
+        if (head != null && head.getData() == data) {
+            return mCameraQueue.pollFirst();
+        }
+        //the camera should return buffers in order, but don't rely on it
+        Iterator<PreviewFrame> it = mCameraQueue.iterator();
+        while (it.hasNext()) {
+            PreviewFrame frame = it.next();
+            if (frame.getData() == data) {
+                it.remove();
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    public long getFramesReceived() {
+        return mFramesReceived.get();
+    }
+
+    public long getFramesDelivered() {
+        return mFramesDelivered.get();
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+}
@@ -0,0 +1,34 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Immutable width and height in pixels. Unlike {@link android.hardware.Camera.Size}
+ * it does not need a camera instance, so sizing logic can run on the host JVM.
+ */
+public class FrameSize {
+
+    public final int width;
+    public final int height;
+
+    public FrameSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FrameSize)) return false;
+        FrameSize other = (FrameSize) o;
+        return width == other.width && height == other.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return width * 32713 + height;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height;
+    }
+}
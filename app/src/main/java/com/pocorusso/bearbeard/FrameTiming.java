@@ -0,0 +1,257 @@
+package com.pocorusso.bearbeard;
+
+import java.util.Locale;
+
+/**
+ * Preview frame timing from the capture timestamps frames carry, such as
+ * {@link android.graphics.SurfaceTexture#getTimestamp()}, or from the time preview
+ * callbacks arrive. All times are in nanoseconds.
+ *
+ * The interval between capture timestamps shows the rate the camera really delivers
+ * at. The delay from capture to the frame reaching the app is only recorded when the
+ * timestamp is on the same clock as {@link System#nanoTime()}, which most devices use.
+ *
+ * Intervals also go into an {@link IntervalHistogram} over the whole session, from
+ * which frame drops and stalls are counted. Recording never allocates.
+ * {@link #snapshot()} gives all of it at once, for overlays and performance tests.
+ */
+public class FrameTiming {
+
+    public interface StallListener {
+        /**
+         * Called on the thread that recorded the frame after the stall, without the
+         * timing locked.
+         */
+        void onStall(long intervalNanos);
+    }
+
+    /**
+     * The timing at one moment. Interval percentiles are over the whole session,
+     * unlike {@link #getIntervalPercentileNanos}.
+     */
+    public static class Snapshot {
+        public final long frameCount;
+        public final double framesPerSecond;
+        public final long expectedIntervalNanos;
+        public final long intervalP50Nanos;
+        public final long intervalP95Nanos;
+        public final long intervalP99Nanos;
+        public final long maxIntervalNanos;
+        public final long droppedFrames;
+        public final long stallCount;
+        public final long longestStallNanos;
+        public final long delayP50Nanos;
+
+        Snapshot(long frameCount, double framesPerSecond, long expectedIntervalNanos,
+                 long intervalP50Nanos, long intervalP95Nanos, long intervalP99Nanos,
+                 long maxIntervalNanos, long droppedFrames, long stallCount,
+                 long longestStallNanos, long delayP50Nanos) {
+            this.frameCount = frameCount;
+            this.framesPerSecond = framesPerSecond;
+            this.expectedIntervalNanos = expectedIntervalNanos;
+            this.intervalP50Nanos = intervalP50Nanos;
+            this.intervalP95Nanos = intervalP95Nanos;
+            this.intervalP99Nanos = intervalP99Nanos;
+            this.maxIntervalNanos = maxIntervalNanos;
+            this.droppedFrames = droppedFrames;
+            this.stallCount = stallCount;
+            this.longestStallNanos = longestStallNanos;
+            this.delayP50Nanos = delayP50Nanos;
+        }
+
+        /**
+         * @return spread of the intervals, p99 minus p50
+         */
+        public long getJitterNanos() {
+            return intervalP99Nanos - intervalP50Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "fps=%.1f frames=%d dropped=%d stalls=%d (longest %dms), "
+                            + "intervalMs p50/p95/p99/max=%.1f/%.1f/%.1f/%.1f, delayMs p50=%.1f",
+                    framesPerSecond, frameCount, droppedFrames, stallCount, longestStallNanos / 1000000,
+                    intervalP50Nanos / 1e6, intervalP95Nanos / 1e6, intervalP99Nanos / 1e6,
+                    maxIntervalNanos / 1e6, delayP50Nanos / 1e6);
+        }
+    }
+
+    private static final int PERCENTILE_SAMPLES = 256;
+    //capture to delivery delays beyond this mean the timestamp uses another clock
+    private static final long MAX_PLAUSIBLE_DELAY_NANOS = 1000000000L;
+    //an interval this many times the expected one means frames were dropped
+    private static final double DROP_FACTOR = 1.5;
+    private static final long DEFAULT_STALL_NANOS = 250000000L;
+
+    private final LatencyRecorder mIntervals = new LatencyRecorder(PERCENTILE_SAMPLES);
+    private final LatencyRecorder mDelays = new LatencyRecorder(PERCENTILE_SAMPLES);
+    private final IntervalHistogram mHistogram = new IntervalHistogram();
+    private long mFrameCount;
+    private long mLastTimestampNanos;
+    private long mIntervalCount;
+    private long mTotalIntervalNanos;
+    private long mMaxIntervalNanos;
+    //set by setExpectedFrameRate, or 0 to follow the estimate
+    private long mExpectedIntervalNanos;
+    private long mEstimatedIntervalNanos;
+    private long mDroppedFrames;
+    private long mStallThresholdNanos = DEFAULT_STALL_NANOS;
+    private long mStallCount;
+    private long mLongestStallNanos;
+    private volatile StallListener mStallListener;
+
+    /**
+     * @param timestampNanos capture timestamp of the frame, 0 if the device has none
+     * @param deliveredNanos {@link System#nanoTime()} when the frame reached the app
+     */
+    public void record(long timestampNanos, long deliveredNanos) {
+        long stall = 0;
+        synchronized (this) {
+            mFrameCount++;
+            if (timestampNanos <= 0) {
+                return;
+            }
+            if (mLastTimestampNanos > 0 && timestampNanos > mLastTimestampNanos) {
+                long interval = timestampNanos - mLastTimestampNanos;
+                mIntervalCount++;
+                mTotalIntervalNanos += interval;
+                mMaxIntervalNanos = Math.max(mMaxIntervalNanos, interval);
+                mIntervals.record(interval);
+                mHistogram.record(interval);
+                countDrops(interval);
+                if (interval >= mStallThresholdNanos) {
+                    mStallCount++;
+                    mLongestStallNanos = Math.max(mLongestStallNanos, interval);
+                    stall = interval;
+                }
+            }
+            mLastTimestampNanos = timestampNanos;
+
+            long delay = deliveredNanos - timestampNanos;
+            if (delay >= 0 && delay < MAX_PLAUSIBLE_DELAY_NANOS) {
+                mDelays.record(delay);
+            }
+        }
+        StallListener listener = mStallListener;
+        if (stall > 0 && listener != null) {
+            listener.onStall(stall);
+        }
+    }
+
+    private void countDrops(long interval) {
+        long expected = getExpectedIntervalLocked();
+        if (expected > 0 && interval > expected * DROP_FACTOR) {
+            mDroppedFrames += Math.round((double) interval / expected) - 1;
+            return;
+        }
+        //only regular intervals move the estimate, averaged over about 8 frames
+        mEstimatedIntervalNanos = mEstimatedIntervalNanos == 0
+                ? interval : mEstimatedIntervalNanos + (interval - mEstimatedIntervalNanos) / 8;
+    }
+
+    private long getExpectedIntervalLocked() {
+        return mExpectedIntervalNanos > 0 ? mExpectedIntervalNanos : mEstimatedIntervalNanos;
+    }
+
+    /**
+     * Forget the last timestamp, so the gap across a preview restart is not counted.
+     */
+    public synchronized void restart() {
+        mLastTimestampNanos = 0;
+    }
+
+    /**
+     * Forget everything recorded so far, for example between two test scenarios.
+     */
+    public synchronized void reset() {
+        mFrameCount = 0;
+        mLastTimestampNanos = 0;
+        mIntervalCount = 0;
+        mTotalIntervalNanos = 0;
+        mMaxIntervalNanos = 0;
+        mEstimatedIntervalNanos = 0;
+        mDroppedFrames = 0;
+        mStallCount = 0;
+        mLongestStallNanos = 0;
+        mIntervals.clear();
+        mDelays.clear();
+        mHistogram.reset();
+    }
+
+    /**
+     * @param framesPerSecond the rate the camera was asked for, 0 to estimate it from
+     *                        the intervals seen
+     */
+    public synchronized void setExpectedFrameRate(double framesPerSecond) {
+        mExpectedIntervalNanos = framesPerSecond > 0 ? (long) (1e9 / framesPerSecond) : 0;
+    }
+
+    /**
+     * @param thresholdNanos intervals at least this long count as stalls
+     */
+    public synchronized void setStallThreshold(long thresholdNanos) {
+        mStallThresholdNanos = thresholdNanos;
+    }
+
+    public void setStallListener(StallListener listener) {
+        mStallListener = listener;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public synchronized long getAverageIntervalNanos() {
+        return mIntervalCount == 0 ? 0 : mTotalIntervalNanos / mIntervalCount;
+    }
+
+    public synchronized long getMaxIntervalNanos() {
+        return mMaxIntervalNanos;
+    }
+
+    public synchronized double getFramesPerSecond() {
+        return mTotalIntervalNanos == 0 ? 0 : mIntervalCount * 1e9 / mTotalIntervalNanos;
+    }
+
+    /**
+     * @return frames missing between delivered ones, judged by the expected interval
+     */
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public synchronized long getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * @param percentile 0-100, over recent frames
+     */
+    public long getIntervalPercentileNanos(double percentile) {
+        return mIntervals.getPercentile(percentile);
+    }
+
+    /**
+     * @return capture to delivery delay, 0 if the timestamps are on another clock
+     */
+    public long getDelayPercentileNanos(double percentile) {
+        return mDelays.getPercentile(percentile);
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(mFrameCount, getFramesPerSecond(), getExpectedIntervalLocked(),
+                mHistogram.getValueAtPercentile(50), mHistogram.getValueAtPercentile(95),
+                mHistogram.getValueAtPercentile(99), mMaxIntervalNanos, mDroppedFrames,
+                mStallCount, mLongestStallNanos, mDelays.getPercentile(50));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "frames=" + mFrameCount + " fps=" + Math.round(getFramesPerSecond() * 10) / 10.0
+                + ", intervalMs p50/p95/max=" + getIntervalPercentileNanos(50) / 1000000
+                + "/" + getIntervalPercentileNanos(95) / 1000000 + "/" + mMaxIntervalNanos / 1000000
+                + ", delayMs p50/p95=" + getDelayPercentileNanos(50) / 1000000
+                + "/" + getDelayPercentileNanos(95) / 1000000
+                + ", dropped=" + mDroppedFrames + " stalls=" + mStallCount;
+    }
+}
@@ -0,0 +1,106 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Histogram of positive long values, such as frame intervals in nanoseconds, with
+ * log-linear buckets in the style of HdrHistogram: every power of two is split into
+ * {@value #SUB_BUCKETS} buckets, so any value is kept to within about 1.5% however
+ * large it is. Recording is an array increment, no allocation.
+ *
+ * Not thread safe, callers synchronize.
+ */
+public class IntervalHistogram {
+
+    //values below 2^SUB_BUCKET_BITS get a bucket each, larger ones keep this many significant bits
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    //values from 2^40 ns, about 18 minutes, share the last bucket
+    private static final int MAX_BITS = 40;
+    private static final int MAX_SHIFT = MAX_BITS - SUB_BUCKET_BITS;
+
+    private final long[] mCounts = new long[(MAX_SHIFT + 2) * SUB_BUCKETS];
+    private long mCount;
+    private long mTotal;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        if (shift > MAX_SHIFT) {
+            return (MAX_SHIFT + 2) * SUB_BUCKETS - 1;
+        }
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the largest value that falls in the bucket
+     */
+    static long highestValueAt(int index) {
+        if (index == (MAX_SHIFT + 2) * SUB_BUCKETS - 1) {
+            //the last bucket also takes everything too large for the others
+            return Long.MAX_VALUE;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        if (shift <= 0) {
+            return index;
+        }
+        long lowest = (long) (index - shift * SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long value) {
+        mCounts[indexOf(value)]++;
+        mCount++;
+        mTotal += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mTotal = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public long getMean() {
+        return mCount == 0 ? 0 : mTotal / mCount;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return the nearest-rank percentile to histogram precision, never above the
+     * largest recorded value; 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), mMax);
+            }
+        }
+        return mMax;
+    }
+}
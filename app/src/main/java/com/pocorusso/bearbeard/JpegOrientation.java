@@ -0,0 +1,288 @@
+package com.pocorusso.bearbeard;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Orientation of captured JPEGs. Pictures come from the sensor as it is mounted, so
+ * instead of decoding and rotating them, the rotation is recorded in the EXIF
+ * orientation tag at save time, or applied losslessly by {@link JpegTransform}.
+ *
+ * Only the segment headers are parsed and the tag is patched in place when present,
+ * so writing it costs next to nothing whatever the picture size. Plain Java, so it
+ * can be tested on the host JVM.
+ */
+public class JpegOrientation {
+
+    //EXIF orientation values
+    public static final int NORMAL = 1;
+    public static final int FLIP_HORIZONTAL = 2;
+    public static final int ROTATE_180 = 3;
+    public static final int FLIP_VERTICAL = 4;
+    public static final int TRANSPOSE = 5;
+    public static final int ROTATE_90 = 6;
+    public static final int TRANSVERSE = 7;
+    public static final int ROTATE_270 = 8;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    //APP1 with a big endian TIFF header and a single IFD holding only the orientation
+    private static final byte[] MINIMAL_EXIF = {
+            (byte) 0xFF, (byte) MARKER_APP1, 0, 34,
+            'E', 'x', 'i', 'f', 0, 0,
+            'M', 'M', 0, 42, 0, 0, 0, 8,
+            0, 1,
+            0x01, 0x12, 0, TYPE_SHORT, 0, 0, 0, 1, 0, NORMAL, 0, 0,
+            0, 0, 0, 0
+    };
+    //offset of the orientation value in MINIMAL_EXIF
+    private static final int MINIMAL_EXIF_VALUE = 29;
+
+    private JpegOrientation() {
+    }
+
+    /**
+     * @param rotation clockwise degrees the picture has to be turned to be upright,
+     *                 as {@link CameraOrientation#pictureOrientation} gives
+     * @param mirror   flip the upright picture left to right, like a front camera preview
+     * @return the EXIF orientation value
+     */
+    public static int exifOrientation(int rotation, boolean mirror) {
+        switch (rotation) {
+            case 90:
+                return mirror ? TRANSPOSE : ROTATE_90;
+            case 180:
+                return mirror ? FLIP_VERTICAL : ROTATE_180;
+            case 270:
+                return mirror ? TRANSVERSE : ROTATE_270;
+            case 0:
+                return mirror ? FLIP_HORIZONTAL : NORMAL;
+            default:
+                throw new IllegalArgumentException("rotation must be 0, 90, 180 or 270: " + rotation);
+        }
+    }
+
+    /**
+     * @return clockwise degrees an EXIF orientation rotates by, before mirroring
+     */
+    public static int rotationOf(int exifOrientation) {
+        switch (exifOrientation) {
+            case ROTATE_90:
+            case TRANSPOSE:
+                return 90;
+            case ROTATE_180:
+            case FLIP_VERTICAL:
+                return 180;
+            case ROTATE_270:
+            case TRANSVERSE:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return true if an EXIF orientation flips the picture left to right after rotating it
+     */
+    public static boolean isMirrored(int exifOrientation) {
+        return exifOrientation == FLIP_HORIZONTAL || exifOrientation == FLIP_VERTICAL
+                || exifOrientation == TRANSPOSE || exifOrientation == TRANSVERSE;
+    }
+
+    /**
+     * Make a captured JPEG show upright. With lossless set the pixels are turned by
+     * {@link JpegTransform} when the picture allows it, otherwise only the EXIF
+     * orientation is written.
+     *
+     * @return the JPEG to save, the same array if it could be patched in place
+     */
+    public static byte[] orient(byte[] jpeg, int rotation, boolean mirror, boolean lossless) {
+        int orientation = exifOrientation(rotation, mirror);
+        if (lossless && orientation != NORMAL) {
+            try {
+                byte[] transformed = JpegTransform.transform(jpeg, rotation, mirror);
+                if (transformed != null) {
+                    return setExifOrientation(transformed, NORMAL);
+                }
+            } catch (IOException e) {
+                //not a JPEG we can transform, the EXIF tag still works
+            } catch (RuntimeException e) {
+                //malformed beyond what the parser checks, the EXIF tag still works
+            }
+        }
+        return setExifOrientation(jpeg, orientation);
+    }
+
+    /**
+     * Set the EXIF orientation, in place if the JPEG already has the tag. Otherwise a
+     * minimal EXIF segment is inserted, ahead of any EXIF segment without the tag.
+     * Data that is not a JPEG is returned unchanged.
+     *
+     * @return the JPEG with the orientation set, the same array if patched in place
+     */
+    public static byte[] setExifOrientation(byte[] jpeg, int orientation) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xFF || (jpeg[1] & 0xff) != MARKER_SOI) {
+            return jpeg;
+        }
+        int insertAt = 2;
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xff) == 0xFF) {
+            int marker = jpeg[pos + 1] & 0xff;
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                break;
+            }
+            int end = pos + 2 + readShort(jpeg, pos + 2, true);
+            if (marker == MARKER_APP0 && pos == 2) {
+                //JFIF wants its segment first
+                insertAt = end;
+            } else if (marker == MARKER_APP1 && isExif(jpeg, pos + 4, Math.min(end, jpeg.length))) {
+                int value = findOrientation(jpeg, pos + 10, Math.min(end, jpeg.length));
+                if (value >= 0) {
+                    boolean bigEndian = jpeg[pos + 10] == 'M';
+                    jpeg[value] = (byte) (bigEndian ? 0 : orientation);
+                    jpeg[value + 1] = (byte) (bigEndian ? orientation : 0);
+                    return jpeg;
+                }
+                insertAt = pos;
+                break;
+            }
+            pos = end;
+        }
+        if (orientation == NORMAL) {
+            //what readers assume without the tag
+            return jpeg;
+        }
+        byte[] out = new byte[jpeg.length + MINIMAL_EXIF.length];
+        System.arraycopy(jpeg, 0, out, 0, insertAt);
+        System.arraycopy(MINIMAL_EXIF, 0, out, insertAt, MINIMAL_EXIF.length);
+        out[insertAt + MINIMAL_EXIF_VALUE] = (byte) orientation;
+        System.arraycopy(jpeg, insertAt, out, insertAt + MINIMAL_EXIF.length, jpeg.length - insertAt);
+        return out;
+    }
+
+    /**
+     * @return the EXIF orientation, {@link #NORMAL} if there is none
+     */
+    public static int getExifOrientation(byte[] jpeg) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xFF || (jpeg[1] & 0xff) != MARKER_SOI) {
+            return NORMAL;
+        }
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xff) == 0xFF) {
+            int marker = jpeg[pos + 1] & 0xff;
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                break;
+            }
+            int end = pos + 2 + readShort(jpeg, pos + 2, true);
+            if (marker == MARKER_APP1 && isExif(jpeg, pos + 4, Math.min(end, jpeg.length))) {
+                int value = findOrientation(jpeg, pos + 10, Math.min(end, jpeg.length));
+                if (value >= 0) {
+                    return readShort(jpeg, value, jpeg[pos + 10] == 'M');
+                }
+            }
+            pos = end;
+        }
+        return NORMAL;
+    }
+
+    /**
+     * Read the EXIF orientation of a file, reading no further than the EXIF segment.
+     *
+     * @return the EXIF orientation, {@link #NORMAL} if there is none or the file is not a JPEG
+     */
+    public static int readExifOrientation(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI) {
+                return NORMAL;
+            }
+            while (true) {
+                if (in.readUnsignedByte() != 0xFF) {
+                    return NORMAL;
+                }
+                int marker = in.readUnsignedByte();
+                if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                    return NORMAL;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    //the length counts its own two bytes, this is not a JPEG we can read
+                    return NORMAL;
+                }
+                if (marker != MARKER_APP1) {
+                    in.skipBytes(length);
+                    continue;
+                }
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (isExif(segment, 0, length)) {
+                    int value = findOrientation(segment, 6, length);
+                    if (value >= 0) {
+                        return readShort(segment, value, segment[6] == 'M');
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            return NORMAL;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isExif(byte[] data, int pos, int end) {
+        return end - pos >= 14 && data[pos] == 'E' && data[pos + 1] == 'x' && data[pos + 2] == 'i'
+                && data[pos + 3] == 'f' && data[pos + 4] == 0 && data[pos + 5] == 0;
+    }
+
+    /**
+     * @param tiff start of the TIFF header
+     * @return offset of the orientation value in IFD0, or -1 if it has none
+     */
+    private static int findOrientation(byte[] data, int tiff, int end) {
+        boolean bigEndian;
+        if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            bigEndian = true;
+        } else if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            bigEndian = false;
+        } else {
+            return -1;
+        }
+        long ifd = tiff + readInt(data, tiff + 4, bigEndian);
+        if (ifd < tiff || ifd + 2 > end) {
+            return -1;
+        }
+        int count = readShort(data, (int) ifd, bigEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = (int) ifd + 2 + i * 12;
+            if (entry + 12 > end) {
+                return -1;
+            }
+            if (readShort(data, entry, bigEndian) == TAG_ORIENTATION
+                    && readShort(data, entry + 2, bigEndian) == TYPE_SHORT) {
+                return entry + 8;
+            }
+        }
+        return -1;
+    }
+
+    private static int readShort(byte[] data, int pos, boolean bigEndian) {
+        int a = data[pos] & 0xff;
+        int b = data[pos + 1] & 0xff;
+        return bigEndian ? (a << 8) | b : (b << 8) | a;
+    }
+
+    private static long readInt(byte[] data, int pos, boolean bigEndian) {
+        long high = readShort(data, bigEndian ? pos : pos + 2, bigEndian);
+        long low = readShort(data, bigEndian ? pos + 2 : pos, bigEndian);
+        return (high << 16) | low;
+    }
+}
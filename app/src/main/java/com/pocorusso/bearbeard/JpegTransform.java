@@ -0,0 +1,745 @@
+package com.pocorusso.bearbeard;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Lossless rotation and mirroring of baseline JPEGs, in the DCT domain like jpegtran:
+ * the Huffman coded coefficients are decoded, each 8x8 block is moved to its new
+ * place with its coefficients transposed or negated, and the result is Huffman coded
+ * again. There is no inverse DCT, no color conversion and no quantization, so the
+ * pixels stay exactly as they were and the work is a fraction of a decode and encode.
+ *
+ * Blocks at the right and bottom edges may be partly outside the picture. Such a
+ * picture can only be flipped across those edges by dropping them, so
+ * {@link #transform} gives up instead and the caller writes the EXIF orientation.
+ * Progressive and arithmetic coded JPEGs are not handled either; cameras write
+ * baseline ones.
+ *
+ * The coefficients are held in memory, about three bytes per pixel. Plain Java, so it
+ * can be tested on the host JVM.
+ */
+public class JpegTransform {
+
+    //natural index of each coefficient in zigzag order
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    //the typical tables of JPEG Annex K, which have a code for every symbol
+    private static final int[] DC_LUMA_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMA_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMA_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] AC_CHROMA_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int DHT = 0xC4;
+    private static final int DAC = 0xCC;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DRI = 0xDD;
+    private static final int COM = 0xFE;
+
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int quantTable;
+        int dcTable;
+        int acTable;
+        int blocksX;
+        int blocksY;
+        short[] coefficients;
+        int predictor;
+    }
+
+    private JpegTransform() {
+    }
+
+    /**
+     * Turn a JPEG so it shows upright, see {@link JpegOrientation#exifOrientation}. The
+     * EXIF orientation and other metadata segments are copied unchanged.
+     *
+     * @return the transformed JPEG, or null if this JPEG cannot be transformed losslessly
+     * @throws IOException if the data is not a valid JPEG
+     */
+    public static byte[] transform(byte[] jpeg, int rotation, boolean mirror) throws IOException {
+        //every orientation is a transpose followed by flips
+        boolean transpose = rotation == 90 || rotation == 270;
+        boolean flipH = rotation == 90 || rotation == 180;
+        boolean flipV = rotation == 180 || rotation == 270;
+        if (rotation != 0 && !transpose && !flipH) {
+            throw new IllegalArgumentException("rotation must be 0, 90, 180 or 270: " + rotation);
+        }
+        flipH ^= mirror;
+        return new JpegTransform.Job(jpeg).run(transpose, flipH, flipV);
+    }
+
+    private static class Job {
+        private final byte[] mJpeg;
+        private final ByteWriter mHeaders = new ByteWriter(1024);
+        private final HuffmanDecoder[] mDcTables = new HuffmanDecoder[4];
+        private final HuffmanDecoder[] mAcTables = new HuffmanDecoder[4];
+        private Component[] mComponents;
+        private int mWidth;
+        private int mHeight;
+        private int mMaxH = 1;
+        private int mMaxV = 1;
+        private int mRestartInterval;
+
+        Job(byte[] jpeg) {
+            mJpeg = jpeg;
+        }
+
+        byte[] run(boolean transpose, boolean flipH, boolean flipV) throws IOException {
+            if (mJpeg.length < 4 || (mJpeg[0] & 0xff) != 0xFF || (mJpeg[1] & 0xff) != SOI) {
+                throw new IOException("Not a JPEG");
+            }
+            int pos = 2;
+            while (true) {
+                if (pos + 4 > mJpeg.length || (mJpeg[pos] & 0xff) != 0xFF) {
+                    throw new IOException("Bad marker at " + pos);
+                }
+                int marker = mJpeg[pos + 1] & 0xff;
+                if (marker == 0xFF) {
+                    //fill byte
+                    pos++;
+                    continue;
+                }
+                int length = readShort(pos + 2);
+                int body = pos + 4;
+                int end = pos + 2 + length;
+                if (end > mJpeg.length) {
+                    throw new IOException("Truncated segment " + Integer.toHexString(marker));
+                }
+                if (marker == SOS) {
+                    if (!readScanHeader(body)) {
+                        return null;
+                    }
+                    pos = end;
+                    break;
+                } else if (marker == SOF0 || marker == SOF1) {
+                    readFrameHeader(body);
+                } else if (marker == DHT) {
+                    readHuffmanTables(body, end);
+                } else if (marker == DRI) {
+                    mRestartInterval = readShort(body);
+                } else if ((marker >= 0xC2 && marker <= 0xCF) || marker == DAC) {
+                    //progressive, lossless or arithmetic coding
+                    return null;
+                } else if (marker == DQT || (marker >= 0xE0 && marker <= 0xEF) || marker == COM) {
+                    mHeaders.write(mJpeg, pos, end - pos);
+                }
+                pos = end;
+            }
+            if (mComponents == null) {
+                throw new IOException("No frame header");
+            }
+
+            int dstWidth = transpose ? mHeight : mWidth;
+            int dstHeight = transpose ? mWidth : mHeight;
+            int dstMaxH = transpose ? mMaxV : mMaxH;
+            int dstMaxV = transpose ? mMaxH : mMaxV;
+            //flipping partial blocks at the edge would move them off the picture
+            if ((flipH && dstWidth % (8 * dstMaxH) != 0) || (flipV && dstHeight % (8 * dstMaxV) != 0)) {
+                return null;
+            }
+
+            int scanEnd = decodeScan(pos);
+            if (!isEndOfImage(scanEnd)) {
+                //more scans follow
+                return null;
+            }
+            return encode(transpose, flipH, flipV, dstWidth, dstHeight, dstMaxH, dstMaxV);
+        }
+
+        private void readFrameHeader(int pos) throws IOException {
+            if ((mJpeg[pos] & 0xff) != 8) {
+                throw new IOException("Only 8 bit samples are supported");
+            }
+            mHeight = readShort(pos + 1);
+            mWidth = readShort(pos + 3);
+            int count = mJpeg[pos + 5] & 0xff;
+            if (mWidth == 0 || mHeight == 0 || count == 0 || count > 4) {
+                throw new IOException("Bad frame header");
+            }
+            mComponents = new Component[count];
+            for (int i = 0; i < count; i++) {
+                int c = pos + 6 + i * 3;
+                Component component = new Component();
+                component.id = mJpeg[c] & 0xff;
+                component.h = count == 1 ? 1 : (mJpeg[c + 1] & 0xff) >> 4;
+                component.v = count == 1 ? 1 : mJpeg[c + 1] & 0x0f;
+                component.quantTable = mJpeg[c + 2] & 0xff;
+                if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4) {
+                    throw new IOException("Bad sampling factors");
+                }
+                mMaxH = Math.max(mMaxH, component.h);
+                mMaxV = Math.max(mMaxV, component.v);
+                mComponents[i] = component;
+            }
+            int mcusX = (mWidth + 8 * mMaxH - 1) / (8 * mMaxH);
+            int mcusY = (mHeight + 8 * mMaxV - 1) / (8 * mMaxV);
+            for (Component component : mComponents) {
+                component.blocksX = mcusX * component.h;
+                component.blocksY = mcusY * component.v;
+            }
+        }
+
+        private void readHuffmanTables(int pos, int end) throws IOException {
+            while (pos < end) {
+                if (pos + 17 > end) {
+                    throw new IOException("Bad Huffman table");
+                }
+                int classAndId = mJpeg[pos] & 0xff;
+                int[] bits = new int[16];
+                int total = 0;
+                for (int i = 0; i < 16; i++) {
+                    bits[i] = mJpeg[pos + 1 + i] & 0xff;
+                    total += bits[i];
+                }
+                if (total > 256 || pos + 17 + total > end || (classAndId & 0x0f) > 3) {
+                    throw new IOException("Bad Huffman table");
+                }
+                int[] values = new int[total];
+                for (int i = 0; i < total; i++) {
+                    values[i] = mJpeg[pos + 17 + i] & 0xff;
+                }
+                HuffmanDecoder table = new HuffmanDecoder(bits, values);
+                if ((classAndId >> 4) == 0) {
+                    mDcTables[classAndId & 0x0f] = table;
+                } else {
+                    mAcTables[classAndId & 0x0f] = table;
+                }
+                pos += 17 + total;
+            }
+        }
+
+        /**
+         * @return false if the scan does not hold every component, as in a multi-scan JPEG
+         */
+        private boolean readScanHeader(int pos) throws IOException {
+            if (mComponents == null) {
+                throw new IOException("Scan before frame header");
+            }
+            int count = mJpeg[pos] & 0xff;
+            if (count != mComponents.length) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                int id = mJpeg[pos + 1 + i * 2] & 0xff;
+                int tables = mJpeg[pos + 2 + i * 2] & 0xff;
+                Component component = findComponent(id);
+                component.dcTable = tables >> 4;
+                component.acTable = tables & 0x0f;
+                if (component.dcTable > 3 || component.acTable > 3
+                        || mDcTables[component.dcTable] == null || mAcTables[component.acTable] == null) {
+                    throw new IOException("Missing Huffman table");
+                }
+            }
+            return true;
+        }
+
+        private Component findComponent(int id) throws IOException {
+            for (Component component : mComponents) {
+                if (component.id == id) {
+                    return component;
+                }
+            }
+            throw new IOException("Unknown component " + id);
+        }
+
+        /**
+         * @return the position after the entropy coded data
+         */
+        private int decodeScan(int pos) throws IOException {
+            for (Component component : mComponents) {
+                component.coefficients = new short[component.blocksX * component.blocksY * 64];
+                component.predictor = 0;
+            }
+            BitReader reader = new BitReader(mJpeg, pos);
+            int mcusX = mComponents[0].blocksX / mComponents[0].h;
+            int mcusY = mComponents[0].blocksY / mComponents[0].v;
+            int mcu = 0;
+            for (int my = 0; my < mcusY; my++) {
+                for (int mx = 0; mx < mcusX; mx++) {
+                    if (mRestartInterval > 0 && mcu > 0 && mcu % mRestartInterval == 0) {
+                        reader.restart();
+                        for (Component component : mComponents) {
+                            component.predictor = 0;
+                        }
+                    }
+                    for (Component component : mComponents) {
+                        for (int v = 0; v < component.v; v++) {
+                            for (int h = 0; h < component.h; h++) {
+                                int block = (my * component.v + v) * component.blocksX + mx * component.h + h;
+                                decodeBlock(reader, component, block * 64);
+                            }
+                        }
+                    }
+                    mcu++;
+                }
+            }
+            return reader.getEnd();
+        }
+
+        private void decodeBlock(BitReader reader, Component component, int offset) throws IOException {
+            short[] coefficients = component.coefficients;
+            int size = mDcTables[component.dcTable].decode(reader);
+            component.predictor += reader.receiveExtend(size);
+            coefficients[offset] = (short) component.predictor;
+            HuffmanDecoder ac = mAcTables[component.acTable];
+            for (int k = 1; k < 64; k++) {
+                int symbol = ac.decode(reader);
+                int run = symbol >> 4;
+                size = symbol & 0x0f;
+                if (size == 0) {
+                    if (run != 15) {
+                        //end of block
+                        return;
+                    }
+                    k += 15;
+                    continue;
+                }
+                k += run;
+                if (k > 63) {
+                    throw new IOException("Coefficient run past the end of a block");
+                }
+                coefficients[offset + ZIGZAG[k]] = (short) reader.receiveExtend(size);
+            }
+        }
+
+        private boolean isEndOfImage(int pos) {
+            //skip to the next marker other than a restart
+            while (pos + 1 < mJpeg.length) {
+                if ((mJpeg[pos] & 0xff) == 0xFF) {
+                    int marker = mJpeg[pos + 1] & 0xff;
+                    if (marker == EOI) {
+                        return true;
+                    }
+                    if (marker != 0 && marker != 0xFF && (marker < 0xD0 || marker > 0xD7)) {
+                        return false;
+                    }
+                }
+                pos++;
+            }
+            //a missing EOI is common enough to accept
+            return true;
+        }
+
+        private byte[] encode(boolean transpose, boolean flipH, boolean flipV, int width, int height,
+                              int maxH, int maxV) {
+            //where each coefficient of a new block comes from, and its sign
+            int[] source = new int[64];
+            int[] sign = new int[64];
+            for (int v = 0; v < 8; v++) {
+                for (int u = 0; u < 8; u++) {
+                    source[v * 8 + u] = transpose ? u * 8 + v : v * 8 + u;
+                    boolean negate = (flipH && (u & 1) == 1) ^ (flipV && (v & 1) == 1);
+                    sign[v * 8 + u] = negate ? -1 : 1;
+                }
+            }
+
+            ByteWriter out = new ByteWriter(mJpeg.length + 1024);
+            out.writeByte(0xFF);
+            out.writeByte(SOI);
+            out.write(mHeaders.getBuffer(), 0, mHeaders.size());
+
+            out.writeByte(0xFF);
+            out.writeByte(SOF0);
+            out.writeShort(8 + 3 * mComponents.length);
+            out.writeByte(8);
+            out.writeShort(height);
+            out.writeShort(width);
+            out.writeByte(mComponents.length);
+            for (Component component : mComponents) {
+                int h = transpose ? component.v : component.h;
+                int v = transpose ? component.h : component.v;
+                out.writeByte(component.id);
+                out.writeByte((h << 4) | v);
+                out.writeByte(component.quantTable);
+            }
+
+            out.writeByte(0xFF);
+            out.writeByte(DHT);
+            out.writeShort(2 + 4 * 17 + DC_VALUES.length * 2 + AC_LUMA_VALUES.length + AC_CHROMA_VALUES.length);
+            writeTable(out, 0x00, DC_LUMA_BITS, DC_VALUES);
+            writeTable(out, 0x10, AC_LUMA_BITS, AC_LUMA_VALUES);
+            writeTable(out, 0x01, DC_CHROMA_BITS, DC_VALUES);
+            writeTable(out, 0x11, AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+            out.writeByte(0xFF);
+            out.writeByte(SOS);
+            out.writeShort(6 + 2 * mComponents.length);
+            out.writeByte(mComponents.length);
+            for (int i = 0; i < mComponents.length; i++) {
+                out.writeByte(mComponents[i].id);
+                out.writeByte(i == 0 ? 0x00 : 0x11);
+            }
+            out.writeByte(0);
+            out.writeByte(63);
+            out.writeByte(0);
+
+            HuffmanEncoder dcLuma = new HuffmanEncoder(DC_LUMA_BITS, DC_VALUES);
+            HuffmanEncoder acLuma = new HuffmanEncoder(AC_LUMA_BITS, AC_LUMA_VALUES);
+            HuffmanEncoder dcChroma = new HuffmanEncoder(DC_CHROMA_BITS, DC_VALUES);
+            HuffmanEncoder acChroma = new HuffmanEncoder(AC_CHROMA_BITS, AC_CHROMA_VALUES);
+            BitWriter writer = new BitWriter(out);
+            for (Component component : mComponents) {
+                component.predictor = 0;
+            }
+            int mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+            int mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+            for (int my = 0; my < mcusY; my++) {
+                for (int mx = 0; mx < mcusX; mx++) {
+                    for (int i = 0; i < mComponents.length; i++) {
+                        Component component = mComponents[i];
+                        int h = transpose ? component.v : component.h;
+                        int v = transpose ? component.h : component.v;
+                        int blocksX = transpose ? component.blocksY : component.blocksX;
+                        int blocksY = transpose ? component.blocksX : component.blocksY;
+                        for (int by = 0; by < v; by++) {
+                            for (int bx = 0; bx < h; bx++) {
+                                int x = mx * h + bx;
+                                int y = my * v + by;
+                                if (flipH) {
+                                    x = blocksX - 1 - x;
+                                }
+                                if (flipV) {
+                                    y = blocksY - 1 - y;
+                                }
+                                int block = transpose ? x * component.blocksX + y : y * component.blocksX + x;
+                                encodeBlock(writer, component, block * 64, source, sign,
+                                        i == 0 ? dcLuma : dcChroma, i == 0 ? acLuma : acChroma);
+                            }
+                        }
+                    }
+                }
+            }
+            writer.flush();
+            out.writeByte(0xFF);
+            out.writeByte(EOI);
+            return out.toByteArray();
+        }
+
+        private static void encodeBlock(BitWriter writer, Component component, int offset, int[] source,
+                                        int[] sign, HuffmanEncoder dc, HuffmanEncoder ac) {
+            short[] coefficients = component.coefficients;
+            //the DC coefficient never changes sign
+            int value = coefficients[offset];
+            int diff = value - component.predictor;
+            component.predictor = value;
+            int size = bitLength(diff);
+            dc.write(writer, size);
+            writer.write(diff < 0 ? diff - 1 : diff, size);
+
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int index = ZIGZAG[k];
+                value = coefficients[offset + source[index]] * sign[index];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    //sixteen zeros
+                    ac.write(writer, 0xF0);
+                    run -= 16;
+                }
+                size = bitLength(value);
+                ac.write(writer, (run << 4) | size);
+                writer.write(value < 0 ? value - 1 : value, size);
+                run = 0;
+            }
+            if (run > 0) {
+                //end of block
+                ac.write(writer, 0x00);
+            }
+        }
+
+        private int readShort(int pos) {
+            return ((mJpeg[pos] & 0xff) << 8) | (mJpeg[pos + 1] & 0xff);
+        }
+    }
+
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    private static void writeTable(ByteWriter out, int classAndId, int[] bits, int[] values) {
+        out.writeByte(classAndId);
+        for (int count : bits) {
+            out.writeByte(count);
+        }
+        for (int value : values) {
+            out.writeByte(value);
+        }
+    }
+
+    /**
+     * Reads the entropy coded data, removing stuffed zero bytes. At a marker it feeds
+     * zero bits, as the end of the data is padded.
+     */
+    private static class BitReader {
+        private final byte[] mData;
+        private int mPos;
+        private long mBuffer;
+        private int mCount;
+        private boolean mIsAtMarker;
+
+        BitReader(byte[] data, int pos) {
+            mData = data;
+            mPos = pos;
+        }
+
+        int peek(int bits) {
+            if (mCount < bits) {
+                fill();
+            }
+            return (int) (mBuffer >>> (mCount - bits)) & ((1 << bits) - 1);
+        }
+
+        void skip(int bits) {
+            mCount -= bits;
+        }
+
+        /**
+         * @return the value of the next size bits, as coded in JPEG
+         */
+        int receiveExtend(int size) {
+            if (size == 0) {
+                return 0;
+            }
+            int value = peek(size);
+            skip(size);
+            return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+        }
+
+        private void fill() {
+            while (mCount <= 56) {
+                int b = 0;
+                if (!mIsAtMarker && mPos < mData.length) {
+                    b = mData[mPos] & 0xff;
+                    if (b == 0xFF) {
+                        int next = mPos + 1 < mData.length ? mData[mPos + 1] & 0xff : 0;
+                        if (next == 0) {
+                            mPos += 2;
+                        } else {
+                            mIsAtMarker = true;
+                            b = 0;
+                        }
+                    } else {
+                        mPos++;
+                    }
+                }
+                mBuffer = (mBuffer << 8) | b;
+                mCount += 8;
+            }
+        }
+
+        /**
+         * Drop the padding bits and skip the next restart marker.
+         */
+        void restart() throws IOException {
+            mBuffer = 0;
+            mCount = 0;
+            mIsAtMarker = false;
+            while (mPos + 1 < mData.length) {
+                int marker = mData[mPos + 1] & 0xff;
+                if ((mData[mPos] & 0xff) == 0xFF && marker >= 0xD0 && marker <= 0xD7) {
+                    mPos += 2;
+                    return;
+                }
+                mPos++;
+            }
+            throw new IOException("Missing restart marker");
+        }
+
+        int getEnd() {
+            return mPos;
+        }
+    }
+
+    private static class HuffmanDecoder {
+        private static final int LOOKUP_BITS = 9;
+        //code length in the high and symbol in the low byte, 0 for longer codes
+        private final int[] mLookup = new int[1 << LOOKUP_BITS];
+        private final int[] mMaxCode = new int[18];
+        private final int[] mValueOffset = new int[17];
+        private final int[] mValues;
+
+        HuffmanDecoder(int[] bits, int[] values) throws IOException {
+            mValues = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                int count = bits[length - 1];
+                if (code + count > 1 << length) {
+                    //more codes than this length has room for
+                    throw new IOException("Bad Huffman table");
+                }
+                mValueOffset[length] = k - code;
+                for (int i = 0; i < count; i++, k++, code++) {
+                    if (length <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - length;
+                        Arrays.fill(mLookup, code << shift, (code + 1) << shift, (length << 8) | values[k]);
+                    }
+                }
+                mMaxCode[length] = count > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            //no code is this long, ends the search
+            mMaxCode[17] = Integer.MAX_VALUE;
+        }
+
+        int decode(BitReader reader) throws IOException {
+            int entry = mLookup[reader.peek(LOOKUP_BITS)];
+            if (entry != 0) {
+                reader.skip(entry >> 8);
+                return entry & 0xff;
+            }
+            for (int length = LOOKUP_BITS + 1; length <= 16; length++) {
+                int code = reader.peek(length);
+                if (code <= mMaxCode[length]) {
+                    reader.skip(length);
+                    return mValues[mValueOffset[length] + code];
+                }
+            }
+            throw new IOException("Bad Huffman code");
+        }
+    }
+
+    private static class HuffmanEncoder {
+        private final int[] mCodes = new int[256];
+        private final int[] mSizes = new int[256];
+
+        HuffmanEncoder(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++, k++, code++) {
+                    mCodes[values[k]] = code;
+                    mSizes[values[k]] = length;
+                }
+                code <<= 1;
+            }
+        }
+
+        void write(BitWriter writer, int symbol) {
+            writer.write(mCodes[symbol], mSizes[symbol]);
+        }
+    }
+
+    private static class BitWriter {
+        private final ByteWriter mOut;
+        private long mBuffer;
+        private int mCount;
+
+        BitWriter(ByteWriter out) {
+            mOut = out;
+        }
+
+        void write(int value, int bits) {
+            if (bits == 0) {
+                return;
+            }
+            mBuffer = (mBuffer << bits) | (value & ((1 << bits) - 1));
+            mCount += bits;
+            while (mCount >= 8) {
+                int b = (int) (mBuffer >>> (mCount - 8)) & 0xff;
+                mOut.writeByte(b);
+                if (b == 0xFF) {
+                    //stuffed so it is not read as a marker
+                    mOut.writeByte(0);
+                }
+                mCount -= 8;
+            }
+        }
+
+        /**
+         * Pad the last byte with one bits.
+         */
+        void flush() {
+            if (mCount > 0) {
+                write((1 << (8 - mCount)) - 1, 8 - mCount);
+            }
+        }
+    }
+
+    /**
+     * Unsynchronized growable byte array, unlike ByteArrayOutputStream.
+     */
+    private static class ByteWriter {
+        private byte[] mBuffer;
+        private int mSize;
+
+        ByteWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            if (mSize == mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+            }
+            mBuffer[mSize++] = (byte) b;
+        }
+
+        void writeShort(int value) {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        void write(byte[] data, int offset, int length) {
+            if (mSize + length > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + length));
+            }
+            System.arraycopy(data, offset, mBuffer, mSize, length);
+            mSize += length;
+        }
+
+        byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, mSize);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.pocorusso.bearbeard;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples so percentiles can be read from them.
+ */
+public class LatencyRecorder {
+
+    private final long[] mSamples;
+    private int mNext;
+    private int mCount;
+
+    /**
+     * @param capacity number of recent samples kept
+     */
+    public LatencyRecorder(int capacity) {
+        mSamples = new long[capacity];
+    }
+
+    public synchronized void record(long nanos) {
+        mSamples[mNext] = nanos;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mCount < mSamples.length) {
+            mCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return the nearest-rank percentile of the recent samples, 0 if there are none
+     */
+    public long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (mCount == 0) {
+                return 0;
+            }
+            sorted = Arrays.copyOf(mSamples, mCount);
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+    }
+}
@@ -0,0 +1,66 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Running estimate of upload throughput and server latency, smoothed with an
+ * exponentially weighted moving average so it follows a changing network.
+ */
+public class LinkEstimator {
+
+    //bodies smaller than this are over before the throughput shows
+    static final long MIN_THROUGHPUT_SAMPLE_BYTES = 16 * 1024;
+    private static final double ALPHA = 0.3;
+
+    private final double mInitialBytesPerSecond;
+    private final long mInitialLatencyNanos;
+    private double mBytesPerSecond;
+    private double mLatencyNanos;
+    private boolean mHasThroughput;
+    private boolean mHasLatency;
+
+    /**
+     * @param initialBytesPerSecond throughput assumed until one is measured
+     * @param initialLatencyNanos   server latency assumed until one is measured
+     */
+    public LinkEstimator(long initialBytesPerSecond, long initialLatencyNanos) {
+        mInitialBytesPerSecond = initialBytesPerSecond;
+        mInitialLatencyNanos = initialLatencyNanos;
+    }
+
+    /**
+     * @param bytesSent      request body size
+     * @param sendNanos      time spent writing the request body
+     * @param firstByteNanos time from the last request byte to the response
+     */
+    public synchronized void onTransfer(long bytesSent, long sendNanos, long firstByteNanos) {
+        if (bytesSent >= MIN_THROUGHPUT_SAMPLE_BYTES && sendNanos > 0) {
+            double sample = bytesSent * 1e9 / sendNanos;
+            mBytesPerSecond = mHasThroughput ? mBytesPerSecond + ALPHA * (sample - mBytesPerSecond) : sample;
+            mHasThroughput = true;
+        }
+        if (firstByteNanos >= 0) {
+            mLatencyNanos = mHasLatency ? mLatencyNanos + ALPHA * (firstByteNanos - mLatencyNanos) : firstByteNanos;
+            mHasLatency = true;
+        }
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return (long) (mHasThroughput ? mBytesPerSecond : mInitialBytesPerSecond);
+    }
+
+    public synchronized long getLatencyNanos() {
+        return (long) (mHasLatency ? mLatencyNanos : mInitialLatencyNanos);
+    }
+
+    /**
+     * @return expected time from starting to send a body of the given size to the response
+     */
+    public synchronized long estimateNanos(long bytes) {
+        return getLatencyNanos() + (long) (bytes * 1e9 / Math.max(1, getBytesPerSecond()));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "bytes/s=" + getBytesPerSecond() + (mHasThroughput ? "" : " (assumed)")
+                + ", latencyMs=" + getLatencyNanos() / 1000000 + (mHasLatency ? "" : " (assumed)");
+    }
+}
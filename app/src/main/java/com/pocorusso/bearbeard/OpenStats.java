@@ -0,0 +1,58 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Open-to-first-frame times, split by whether the camera had to be opened
+ * from scratch or an already open camera was reused.
+ */
+public class OpenStats {
+
+    private long mColdCount;
+    private long mColdTotalNanos;
+    private long mWarmCount;
+    private long mWarmTotalNanos;
+    private long mLastNanos;
+    private boolean mLastWasWarm;
+
+    public synchronized void record(boolean warm, long openToFirstFrameNanos) {
+        if (warm) {
+            mWarmCount++;
+            mWarmTotalNanos += openToFirstFrameNanos;
+        } else {
+            mColdCount++;
+            mColdTotalNanos += openToFirstFrameNanos;
+        }
+        mLastNanos = openToFirstFrameNanos;
+        mLastWasWarm = warm;
+    }
+
+    public synchronized long getColdCount() {
+        return mColdCount;
+    }
+
+    public synchronized long getWarmCount() {
+        return mWarmCount;
+    }
+
+    public synchronized long getAverageColdNanos() {
+        return mColdCount == 0 ? 0 : mColdTotalNanos / mColdCount;
+    }
+
+    public synchronized long getAverageWarmNanos() {
+        return mWarmCount == 0 ? 0 : mWarmTotalNanos / mWarmCount;
+    }
+
+    public synchronized long getLastNanos() {
+        return mLastNanos;
+    }
+
+    public synchronized boolean isLastWarm() {
+        return mLastWasWarm;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cold=" + mColdCount + " avgMs=" + getAverageColdNanos() / 1000000
+                + ", warm=" + mWarmCount + " avgMs=" + getAverageWarmNanos() / 1000000
+                + ", lastMs=" + mLastNanos / 1000000 + (mLastWasWarm ? " (warm)" : " (cold)");
+    }
+}
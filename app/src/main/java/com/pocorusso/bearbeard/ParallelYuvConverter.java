@@ -0,0 +1,226 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Runs the {@link YuvConverter} NV21 kernels on several cores, each thread converting
+ * a stripe of output rows. The calling thread takes the first stripe and a fixed set
+ * of worker threads the others.
+ *
+ * The workers wait on a monitor between frames and the job is passed in fields, so a
+ * conversion allocates nothing, unlike submitting tasks to an executor. Conversions
+ * from several threads are serialized. Frames too small to be worth the hand-off are
+ * converted on the calling thread alone.
+ */
+public class ParallelYuvConverter {
+
+    //below this many output pixels waking the workers costs more than it saves
+    private static final int MIN_PARALLEL_PIXELS = 64 * 1024;
+    private static final int MAX_THREADS = 4;
+
+    private static ParallelYuvConverter sConverter;
+
+    private final Thread[] mWorkers;
+    private final int mStripes;
+    private final Object mCallLock = new Object();
+    //the current job, guarded by this
+    private byte[] mNv21;
+    private int mWidth;
+    private int mHeight;
+    private int mSampleSize;
+    private int mRotation;
+    private int[] mArgbOut;
+    private byte[] mLumaOut;
+    private int mOutHeight;
+    private long mGeneration;
+    private int mPending;
+    private RuntimeException mFailure;
+    private boolean mIsShutdown;
+
+    /**
+     * @return a converter with a thread per core, up to {@value #MAX_THREADS}
+     */
+    public static synchronized ParallelYuvConverter getInstance() {
+        if (sConverter == null) {
+            sConverter = new ParallelYuvConverter(
+                    Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        }
+        return sConverter;
+    }
+
+    /**
+     * @param threads threads converting at once, including the caller
+     */
+    public ParallelYuvConverter(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        mStripes = threads;
+        mWorkers = new Thread[threads - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            final int stripe = i + 1;
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(stripe);
+                }
+            }, "yuv-" + stripe);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    public int getThreadCount() {
+        return mStripes;
+    }
+
+    /**
+     * Like {@link YuvConverter#nv21ToArgb(byte[], int, int, int, int, int[])}.
+     */
+    public void nv21ToArgb(byte[] nv21, int width, int height, int sampleSize, int rotation, int[] out) {
+        convert(nv21, width, height, sampleSize, rotation, out, null);
+    }
+
+    /**
+     * Like {@link YuvConverter#nv21ToLuma(byte[], int, int, int, int, byte[])}.
+     */
+    public void nv21ToLuma(byte[] nv21, int width, int height, int sampleSize, int rotation, byte[] out) {
+        convert(nv21, width, height, sampleSize, rotation, null, out);
+    }
+
+    /**
+     * Stop the worker threads. Later conversions run on the calling thread.
+     */
+    public synchronized void shutdown() {
+        mIsShutdown = true;
+        notifyAll();
+    }
+
+    private void convert(byte[] nv21, int width, int height, int sampleSize, int rotation,
+                         int[] argbOut, byte[] lumaOut) {
+        int outWidth = YuvConverter.outputWidth(width, height, sampleSize, rotation);
+        int outHeight = YuvConverter.outputHeight(width, height, sampleSize, rotation);
+        if (mStripes == 1 || outWidth * outHeight < MIN_PARALLEL_PIXELS) {
+            run(nv21, width, height, sampleSize, rotation, argbOut, lumaOut, 0, outHeight);
+            return;
+        }
+
+        synchronized (mCallLock) {
+            synchronized (this) {
+                if (mIsShutdown) {
+                    run(nv21, width, height, sampleSize, rotation, argbOut, lumaOut, 0, outHeight);
+                    return;
+                }
+                mNv21 = nv21;
+                mWidth = width;
+                mHeight = height;
+                mSampleSize = sampleSize;
+                mRotation = rotation;
+                mArgbOut = argbOut;
+                mLumaOut = lumaOut;
+                mOutHeight = outHeight;
+                mFailure = null;
+                mPending = mWorkers.length;
+                mGeneration++;
+                notifyAll();
+            }
+
+            RuntimeException failure = null;
+            try {
+                run(nv21, width, height, sampleSize, rotation, argbOut, lumaOut,
+                        stripeStart(0, outHeight), stripeStart(1, outHeight));
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+
+            synchronized (this) {
+                boolean interrupted = false;
+                while (mPending > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        //the workers still write into the output, so wait for them anyway
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (failure == null) {
+                    failure = mFailure;
+                }
+                //do not keep the caller's frame alive between conversions
+                mNv21 = null;
+                mArgbOut = null;
+                mLumaOut = null;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void work(int stripe) {
+        long seen = 0;
+        while (true) {
+            byte[] nv21;
+            int width;
+            int height;
+            int sampleSize;
+            int rotation;
+            int[] argbOut;
+            byte[] lumaOut;
+            int outHeight;
+            synchronized (this) {
+                while (mGeneration == seen && !mIsShutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mGeneration == seen) {
+                    //shut down with no job pending
+                    return;
+                }
+                seen = mGeneration;
+                nv21 = mNv21;
+                width = mWidth;
+                height = mHeight;
+                sampleSize = mSampleSize;
+                rotation = mRotation;
+                argbOut = mArgbOut;
+                lumaOut = mLumaOut;
+                outHeight = mOutHeight;
+            }
+
+            RuntimeException failure = null;
+            try {
+                run(nv21, width, height, sampleSize, rotation, argbOut, lumaOut,
+                        stripeStart(stripe, outHeight), stripeStart(stripe + 1, outHeight));
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+
+            synchronized (this) {
+                if (failure != null && mFailure == null) {
+                    mFailure = failure;
+                }
+                if (--mPending == 0) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private int stripeStart(int stripe, int outHeight) {
+        return (int) ((long) outHeight * stripe / mStripes);
+    }
+
+    private static void run(byte[] nv21, int width, int height, int sampleSize, int rotation,
+                            int[] argbOut, byte[] lumaOut, int rowStart, int rowEnd) {
+        if (argbOut != null) {
+            YuvConverter.nv21ToArgb(nv21, width, height, sampleSize, rotation, argbOut, rowStart, rowEnd);
+        } else {
+            YuvConverter.nv21ToLuma(nv21, width, height, sampleSize, rotation, lumaOut, rowStart, rowEnd);
+        }
+    }
+}
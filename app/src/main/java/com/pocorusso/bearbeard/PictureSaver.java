@@ -0,0 +1,271 @@
+package com.pocorusso.bearbeard;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes pictures to disk on its own worker threads.
+ *
+ * Each picture is written to a temporary file next to the target through a
+ * {@link FileChannel}, forced to the storage device and then renamed into place,
+ * so a reader never sees a half written JPEG. Several saves can be in flight at once
+ * which lets bursts of pictures be written back to back.
+ *
+ * Pictures saved with a rotation are oriented on the saver thread first, see
+ * {@link JpegOrientation#orient}.
+ */
+public class PictureSaver {
+
+    public interface SaveListener {
+        /**
+         * Called on a saver thread once the file is complete.
+         *
+         * @param latencyNanos time from {@link #save} to the file being in place
+         */
+        void onSaved(File file, long latencyNanos);
+
+        /**
+         * Called on a saver thread, or on the calling thread if the save was rejected.
+         */
+        void onSaveFailed(File file, IOException e);
+    }
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static class SaveRequest {
+        final File mFile;
+        final byte[] mData;
+        final int mRotation;
+        final boolean mMirror;
+        final SaveListener mListener;
+        final long mSubmitNanos;
+
+        SaveRequest(File file, byte[] data, int rotation, boolean mirror, SaveListener listener) {
+            mFile = file;
+            mData = data;
+            mRotation = rotation;
+            mMirror = mirror;
+            mListener = listener;
+            mSubmitNanos = System.nanoTime();
+        }
+    }
+
+    private final ProcessingStage<SaveRequest> mStage;
+    private final AtomicLong mSaved = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mWriteNanos = new AtomicLong();
+    private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+    private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+    private volatile boolean mIsLosslessRotation;
+    private volatile boolean mIsShutdown;
+
+    /**
+     * @param name        used for the worker thread names and the stats
+     * @param maxInFlight number of files written concurrently
+     * @param capacity    number of pictures that may wait for a writer. When full,
+     *                    {@link #save} fails the picture rather than block the caller,
+     *                    which is usually the camera thread.
+     */
+    public PictureSaver(String name, int maxInFlight, int capacity) {
+        mStage = new ProcessingStage<SaveRequest>(name, maxInFlight, capacity,
+                ProcessingStage.DropPolicy.DROP_NEWEST, new ProcessingStage.Processor<SaveRequest>() {
+                    @Override
+                    public void process(SaveRequest request) {
+                        write(request);
+                    }
+
+                    @Override
+                    public void onDropped(SaveRequest request) {
+                        mFailed.incrementAndGet();
+                        if (request.mListener != null) {
+                            request.mListener.onSaveFailed(request.mFile, new IOException(mIsShutdown
+                                    ? "Saver was shut down before the picture was written"
+                                    : "Too many pictures waiting to be written"));
+                        }
+                    }
+                });
+        mStage.start();
+    }
+
+    /**
+     * Queue a picture to be written. The data must not be modified afterwards.
+     *
+     * @return false if the saver has been shut down or too many pictures are waiting,
+     * the listener has been told then
+     */
+    public boolean save(File file, byte[] data, SaveListener listener) {
+        return save(file, data, 0, false, listener);
+    }
+
+    /**
+     * Queue a picture to be turned upright and written. The data must not be
+     * modified afterwards, and may be modified by the saver.
+     *
+     * @param rotation clockwise degrees to turn the picture by
+     * @param mirror   flip the upright picture left to right
+     * @return false if the saver has been shut down or too many pictures are waiting,
+     * the listener has been told then
+     */
+    public boolean save(File file, byte[] data, int rotation, boolean mirror, SaveListener listener) {
+        return mStage.submit(new SaveRequest(file, data, rotation, mirror, listener));
+    }
+
+    /**
+     * @param lossless turn the pixels of pictures saved with a rotation when they
+     *                 allow a lossless transform, instead of only tagging them
+     */
+    public void setLosslessRotation(boolean lossless) {
+        mIsLosslessRotation = lossless;
+    }
+
+    /**
+     * Stop accepting pictures. Those already queued are still written.
+     */
+    public void shutdown() {
+        mIsShutdown = true;
+        mStage.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mStage.awaitTermination(timeout, unit);
+    }
+
+    private void write(SaveRequest request) {
+        long started = System.nanoTime();
+        byte[] data = request.mData;
+        if (request.mRotation != 0 || request.mMirror) {
+            try {
+                data = JpegOrientation.orient(data, request.mRotation, request.mMirror, mIsLosslessRotation);
+            } catch (RuntimeException e) {
+                //a sideways picture beats a lost one, save it as taken
+                data = request.mData;
+            }
+            Tracer.getInstance().record(Tracer.Stage.ORIENT_PICTURE, started, System.nanoTime() - started);
+        }
+        IOException failure = null;
+        try {
+            writeAtomically(request.mFile, data);
+            Tracer.getInstance().record(Tracer.Stage.SAVE_PICTURE, started, System.nanoTime() - started);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            //the listener is told either way
+            failure = new IOException("Failed to write " + request.mFile, e);
+        }
+        if (failure != null) {
+            mFailed.incrementAndGet();
+            if (request.mListener != null) {
+                request.mListener.onSaveFailed(request.mFile, failure);
+            }
+            return;
+        }
+        long finished = System.nanoTime();
+        long latency = finished - request.mSubmitNanos;
+
+        mSaved.incrementAndGet();
+        mBytesWritten.addAndGet(data.length);
+        mWriteNanos.addAndGet(finished - started);
+        mTotalLatencyNanos.addAndGet(latency);
+        long max;
+        while (latency > (max = mMaxLatencyNanos.get())) {
+            if (mMaxLatencyNanos.compareAndSet(max, latency)) {
+                break;
+            }
+        }
+
+        if (request.mListener != null) {
+            request.mListener.onSaved(request.mFile, latency);
+        }
+    }
+
+    /**
+     * Write data to a temporary file, fsync it and rename it over the target.
+     * The temporary file is removed if anything fails.
+     */
+    public static void writeAtomically(File file, byte[] data) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+
+        File tempFile = new File(parent, file.getName() + TEMP_SUFFIX);
+        boolean success = false;
+        FileOutputStream outStream = new FileOutputStream(tempFile);
+        try {
+            FileChannel channel = outStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+            success = true;
+        } finally {
+            try {
+                outStream.close();
+            } catch (IOException e) {
+                success = false;
+            }
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile + " to " + file);
+        }
+    }
+
+    public long getSavedCount() {
+        return mSaved.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /**
+     * @return write throughput, counting only the time spent writing
+     */
+    public long getBytesPerSecond() {
+        long nanos = mWriteNanos.get();
+        return nanos == 0 ? 0 : (long) (mBytesWritten.get() * 1e9 / nanos);
+    }
+
+    /**
+     * @return average time from {@link #save} to the file being in place
+     */
+    public long getAverageLatencyNanos() {
+        long saved = mSaved.get();
+        return saved == 0 ? 0 : mTotalLatencyNanos.get() / saved;
+    }
+
+    public long getMaxLatencyNanos() {
+        return mMaxLatencyNanos.get();
+    }
+
+    /**
+     * @return queue depth and per stage latency of the writer threads
+     */
+    public StageStats getStageStats() {
+        return mStage.getStats();
+    }
+
+    @Override
+    public String toString() {
+        return "saved=" + getSavedCount()
+                + ", failed=" + getFailedCount()
+                + ", bytes/s=" + getBytesPerSecond()
+                + ", latencyMs=" + getAverageLatencyNanos() / 1000000 + "/" + getMaxLatencyNanos() / 1000000;
+    }
+}
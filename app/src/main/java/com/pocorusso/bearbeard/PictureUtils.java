@@ -3,7 +3,6 @@ package com.pocorusso.bearbeard;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
@@ -12,35 +11,38 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.content.ContentValues.TAG;
 
 public class PictureUtils {
-    public static Bitmap getScaledBitmap(String path, int destWidth, int destHeight) {
-        //Read in the dimensions of the image on disk
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(path, options);
-
-        float srcWidth = options.outWidth;
-        float srcHeight = options.outHeight;
-
-        //figure out how much to scale down by
-        int inSampleSize = 1;
-        if (srcHeight > destHeight || srcWidth > destWidth) {
-            if (srcWidth> srcHeight) {
-                inSampleSize =  Math.round(srcHeight/destHeight);
-            } else {
-                inSampleSize = Math.round(srcWidth/destWidth);
-            }
-        }
 
-        options = new BitmapFactory.Options();
-        options.inSampleSize = inSampleSize;
+    private static final AtomicLong sLastFileTimestamp = new AtomicLong();
 
-        return BitmapFactory.decodeFile(path, options);
+    /**
+     * Decode the image down-sampled by a power of two so it is no smaller than
+     * the requested size. The bitmap may reuse pooled memory, hand it back with
+     * {@link BitmapDecoder#recycle(Bitmap)} when done.
+     */
+    public static Bitmap getScaledBitmap(String path, int destWidth, int destHeight) {
+        return BitmapDecoder.getInstance().decodeFile(path, destWidth, destHeight);
+    }
+
+    /**
+     * Like {@link #getScaledBitmap(String, int, int)} but served from the
+     * {@link BitmapMemoryCache} when the same file was already decoded at this size.
+     * The bitmap is owned by the cache and must not be recycled.
+     */
+    public static Bitmap getCachedScaledBitmap(Context context, String path, int destWidth, int destHeight) {
+        BitmapMemoryCache cache = BitmapMemoryCache.getInstance(context);
+        String key = BitmapMemoryCache.fileKey(new File(path), destWidth, destHeight);
+        Bitmap bitmap = cache.get(key);
+        if (bitmap == null) {
+            bitmap = getScaledBitmap(path, destWidth, destHeight);
+            cache.put(key, bitmap);
+        }
+        return bitmap;
     }
 
     public static Bitmap getScaledBitmap(String path, Activity activity) {
@@ -76,27 +78,39 @@ public class PictureUtils {
         return savedFile;
     }
 
+    /**
+     * Write the picture synchronously. Use a {@link PictureSaver} to keep
+     * the write off the calling thread.
+     *
+     * @return the file, or null if it could not be written
+     */
     private static File savePicture(File file, byte[] data) {
-        FileOutputStream outStream = null;
-
-        // Write to SD Card
         try {
-            outStream = new FileOutputStream(file);
-            outStream.write(data);
-            outStream.flush();
-            outStream.close();
-
-            //refreshGallery(outFile);
-            //TODO need to notify UI thread we are done.
-
+            PictureSaver.writeAtomically(file, data);
         } catch (IOException e) {
+            Log.e(TAG, "Failed to save picture to " + file);
             e.printStackTrace();
-        } finally {
+            return null;
         }
 
         return file;
     }
 
+    /**
+     * Pictures from a burst can be taken within the same millisecond,
+     * so never hand out the same timestamp twice.
+     */
+    private static long nextFileTimestamp() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            long last = sLastFileTimestamp.get();
+            long next = Math.max(now, last + 1);
+            if (sLastFileTimestamp.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
     /**
      * @return
      * @throws FileNotFoundException when we get directory handle
@@ -105,7 +119,7 @@ public class PictureUtils {
         File externalFilesDir = Environment.getExternalStoragePublicDirectory(
                 Environment.DIRECTORY_PICTURES);
 
-        String fileName = String.format("BearBeard" + File.separator + "IMG_%d.jpg", System.currentTimeMillis());
+        String fileName = String.format("BearBeard" + File.separator + "IMG_%d.jpg", nextFileTimestamp());
         if (externalFilesDir == null) {
             throw new FileNotFoundException("Failed to get directory handle to DIRECTORY_PICTUERS");
         }
@@ -118,10 +132,10 @@ public class PictureUtils {
      * @return
      * @throws FileNotFoundException when we get directory handle
      */
-    private static File getPrivateFileHandle(Context context) throws FileNotFoundException {
+    protected static File getPrivateFileHandle(Context context) throws FileNotFoundException {
         File externalFilesDir = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES);
 
-        String fileName = String.format(File.separator+"IMG_%d.jpg", System.currentTimeMillis());
+        String fileName = String.format(File.separator+"IMG_%d.jpg", nextFileTimestamp());
         if (externalFilesDir == null) {
             throw new FileNotFoundException("Failed to get directory handle to DIRECTORY_PICTUERS");
         }
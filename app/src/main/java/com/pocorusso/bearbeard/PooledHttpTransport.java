@@ -0,0 +1,481 @@
+package com.pocorusso.bearbeard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HTTP/1.1 {@link Transport} with its own pool of kept alive connections, so it can
+ * tell exactly how often a connection is reused.
+ *
+ * Bodies are sent chunked, responses may be gzip encoded. A connection goes back to
+ * the pool once its response has been read to the end, and is closed after sitting
+ * idle for the keep-alive time. A pooled connection the server has closed is noticed
+ * before it is used, and a request that could not be written to a pooled connection is
+ * sent again on a new one. Nothing is resent once the whole request went out, since
+ * the server may have acted on it. Plain http only; use {@link UrlConnectionTransport}
+ * for https.
+ */
+public class PooledHttpTransport implements Transport {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private static class Connection {
+        final String mAddress;
+        final Socket mSocket;
+        final InputStream mIn;
+        final OutputStream mOut;
+        long mIdleSinceNanos;
+
+        Connection(String address, Socket socket) throws IOException {
+            mAddress = address;
+            mSocket = socket;
+            mIn = new BufferedInputStream(socket.getInputStream());
+            mOut = socket.getOutputStream();
+        }
+
+        void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                //nothing left to do with it
+            }
+        }
+    }
+
+    /**
+     * The request could not be written, so the server cannot have acted on it.
+     */
+    private static class RequestNotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RequestNotSentException(String message, Throwable cause) {
+            super(message);
+            initCause(cause);
+        }
+    }
+
+    private final int mChunkSize;
+    private final int mMaxIdleConnections;
+    private final long mKeepAliveNanos;
+    //most recently used last
+    private final ArrayDeque<Connection> mIdle = new ArrayDeque<Connection>();
+    private final TransferStats mStats = new TransferStats();
+
+    /**
+     * @param chunkSize          size of each HTTP chunk of the request body
+     * @param maxIdleConnections connections kept open between requests
+     * @param keepAliveMs        how long an idle connection is kept
+     */
+    public PooledHttpTransport(int chunkSize, int maxIdleConnections, long keepAliveMs) {
+        mChunkSize = chunkSize;
+        mMaxIdleConnections = maxIdleConnections;
+        mKeepAliveNanos = keepAliveMs * 1000000L;
+    }
+
+    @Override
+    public TransportResponse post(URL url, Body body, int timeoutMs) throws IOException {
+        Collector collector = new Collector();
+        return post(url, body, timeoutMs, collector).withBody(collector.getBody());
+    }
+
+    @Override
+    public TransportResponse post(URL url, Body body, int timeoutMs, ResponseHandler handler)
+            throws IOException {
+        if (!"http".equals(url.getProtocol())) {
+            throw new IOException("Unsupported protocol " + url.getProtocol());
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String address = url.getHost() + ":" + port;
+
+        while (true) {
+            Connection connection = takeIdle(address);
+            if (connection != null && !isOpen(connection)) {
+                //closed by the server while idle, nothing was sent on it
+                connection.close();
+                continue;
+            }
+            boolean reused = connection != null;
+            if (connection == null) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(url.getHost(), port), timeoutMs);
+                    socket.setTcpNoDelay(true);
+                    connection = new Connection(address, socket);
+                } catch (IOException e) {
+                    socket.close();
+                    mStats.onFailure();
+                    throw e;
+                }
+            }
+
+            try {
+                TransportResponse response = exchange(connection, url, body, timeoutMs, handler);
+                mStats.onConnection(reused);
+                return response;
+            } catch (RequestNotSentException e) {
+                connection.close();
+                if (!reused) {
+                    mStats.onFailure();
+                    throw e;
+                }
+                //the server closed the pooled connection while it was written to, try a fresh one
+            } catch (IOException e) {
+                connection.close();
+                mStats.onFailure();
+                throw e;
+            } catch (RuntimeException e) {
+                //from the response handler, the connection is in an unknown state
+                connection.close();
+                mStats.onFailure();
+                throw e;
+            }
+        }
+    }
+
+    private TransportResponse exchange(Connection connection, URL url, Body body, int timeoutMs,
+                                       ResponseHandler handler) throws IOException {
+        connection.mSocket.setSoTimeout(timeoutMs);
+        OutputStream out = new BufferedOutputStream(connection.mOut, mChunkSize + 32);
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+
+        long started;
+        long sent = 0;
+        InputStream in = body.open();
+        try {
+            started = System.nanoTime();
+            try {
+                out.write(("POST " + path + " HTTP/1.1\r\n"
+                        + "Host: " + host + "\r\n"
+                        + "Content-Type: " + body.getContentType() + "\r\n"
+                        + (body.getAccept() != null ? "Accept: " + body.getAccept() + "\r\n" : "")
+                        + "Transfer-Encoding: chunked\r\n"
+                        + "Accept-Encoding: gzip\r\n"
+                        + "Connection: keep-alive\r\n"
+                        + "\r\n").getBytes(ASCII));
+                byte[] buffer = new byte[mChunkSize];
+                int read;
+                while ((read = readFully(in, buffer)) > 0) {
+                    out.write(Integer.toHexString(read).getBytes(ASCII));
+                    out.write(CRLF);
+                    out.write(buffer, 0, read);
+                    out.write(CRLF);
+                    sent += read;
+                }
+                out.write('0');
+                out.write(CRLF);
+                out.write(CRLF);
+                out.flush();
+            } catch (IOException e) {
+                throw new RequestNotSentException("Failed to send request", e);
+            }
+        } finally {
+            in.close();
+        }
+        long bodySent = System.nanoTime();
+
+        InputStream responseIn = connection.mIn;
+        String statusLine;
+        int status;
+        do {
+            //a failure from here on is not retried, the server may have the request
+            statusLine = readLine(responseIn);
+            status = parseStatus(statusLine);
+            if (status >= 100 && status < 200) {
+                //skip interim responses and their headers
+                while (!readLine(responseIn).isEmpty()) {
+                }
+            }
+        } while (status >= 100 && status < 200);
+        long firstByte = System.nanoTime();
+
+        long contentLength = -1;
+        String contentType = null;
+        boolean chunked = false;
+        boolean gzip = false;
+        boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+        String line;
+        while (!(line = readLine(responseIn)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = line.substring(colon + 1).trim().toLowerCase(Locale.US);
+            if (name.equals("content-length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    contentLength = -1;
+                }
+                if (contentLength < 0) {
+                    throw new IOException("Malformed Content-Length: " + value);
+                }
+            } else if (name.equals("content-type")) {
+                contentType = value;
+            } else if (name.equals("transfer-encoding")) {
+                chunked = value.contains("chunked");
+            } else if (name.equals("content-encoding")) {
+                gzip = value.equals("gzip");
+            } else if (name.equals("connection")) {
+                keepAlive = value.contains("keep-alive") || (keepAlive && !value.contains("close"));
+            }
+        }
+
+        InputStream framed;
+        if (status == 204 || status == 304) {
+            framed = new FixedLengthInputStream(responseIn, 0);
+        } else if (chunked) {
+            framed = new ChunkedInputStream(responseIn);
+        } else if (contentLength >= 0) {
+            framed = new FixedLengthInputStream(responseIn, contentLength);
+        } else {
+            //body ends when the server closes the connection
+            framed = responseIn;
+            keepAlive = false;
+        }
+        CountingInputStream counted = new CountingInputStream(gzip ? new GZIPInputStream(framed) : framed);
+        handler.onResponse(status, contentType, counted);
+        counted.drain();
+        //the gzip trailer may leave framing bytes behind
+        drain(framed);
+        long finished = System.nanoTime();
+
+        if (keepAlive) {
+            release(connection);
+        } else {
+            connection.close();
+        }
+
+        mStats.onTransfer(sent, bodySent - started, firstByte - bodySent, counted.getCount(),
+                finished - started);
+        return new TransportResponse(status, null, sent, counted.getCount(),
+                bodySent - started, firstByte - bodySent, finished - started);
+    }
+
+    private synchronized Connection takeIdle(String address) {
+        long now = System.nanoTime();
+        Connection found = null;
+        Iterator<Connection> it = mIdle.descendingIterator();
+        while (it.hasNext()) {
+            Connection connection = it.next();
+            if (now - connection.mIdleSinceNanos > mKeepAliveNanos || connection.mSocket.isClosed()) {
+                it.remove();
+                connection.close();
+            } else if (found == null && connection.mAddress.equals(address)) {
+                it.remove();
+                found = connection;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return false if the server closed the idle connection or sent something unasked
+     */
+    private static boolean isOpen(Connection connection) {
+        Socket socket = connection.mSocket;
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                //either the end of the stream or bytes nobody asked for
+                connection.mIn.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                //nothing to read, still open
+                return true;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private synchronized void release(Connection connection) {
+        connection.mIdleSinceNanos = System.nanoTime();
+        mIdle.addLast(connection);
+        while (mIdle.size() > mMaxIdleConnections) {
+            mIdle.pollFirst().close();
+        }
+    }
+
+    public synchronized int getIdleConnectionCount() {
+        return mIdle.size();
+    }
+
+    @Override
+    public TransferStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        for (Connection connection : mIdle) {
+            connection.close();
+        }
+        mIdle.clear();
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        //HTTP/1.1 200 OK
+        int start = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || start < 0 || statusLine.length() < start + 4) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Connection closed");
+            }
+            if (sb.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("Header line too long");
+            }
+            sb.append((char) c);
+        }
+        int length = sb.length();
+        if (length > 0 && sb.charAt(length - 1) == '\r') {
+            sb.setLength(length - 1);
+        }
+        return sb.toString();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+        }
+    }
+
+    /**
+     * Reads a body of known length, leaving the connection at the next response.
+     */
+    private static class FixedLengthInputStream extends InputStream {
+        private final InputStream mIn;
+        private long mRemaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            mIn = in;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = mIn.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (read == -1) {
+                throw new EOFException("Response body ended early");
+            }
+            mRemaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Reads a chunked body, leaving the connection at the next response.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream mIn;
+        private long mChunkRemaining;
+        private boolean mFirstChunk = true;
+        private boolean mDone;
+
+        ChunkedInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mDone) {
+                return -1;
+            }
+            if (mChunkRemaining == 0) {
+                if (!mFirstChunk) {
+                    //end of the previous chunk's data
+                    readLine(mIn);
+                }
+                mFirstChunk = false;
+                mChunkRemaining = readChunkSize(mIn);
+                if (mChunkRemaining == 0) {
+                    //trailers
+                    while (!readLine(mIn).isEmpty()) {
+                    }
+                    mDone = true;
+                    return -1;
+                }
+            }
+            int read = mIn.read(buffer, offset, (int) Math.min(length, mChunkRemaining));
+            if (read == -1) {
+                throw new EOFException("Response body ended early");
+            }
+            mChunkRemaining -= read;
+            return read;
+        }
+
+        private static long readChunkSize(InputStream in) throws IOException {
+            String sizeLine = readLine(in);
+            int semicolon = sizeLine.indexOf(';');
+            try {
+                return Long.parseLong((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size: " + sizeLine);
+            }
+        }
+    }
+
+    /**
+     * Fill the buffer unless the stream ends, so chunks are full sized.
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read == -1) {
+                break;
+            }
+            offset += read;
+        }
+        return offset;
+    }
+}
@@ -2,21 +2,71 @@ package com.pocorusso.bearbeard;
 
 import android.content.Context;
 import android.content.res.Configuration;
-import android.hardware.Camera.Size;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.SurfaceTexture;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
 
-class Preview extends ViewGroup implements SurfaceHolder.Callback {
+import java.util.Locale;
+
+/**
+ * Shows the camera preview on a {@link SurfaceView}, or on a {@link TextureView} when
+ * the {@link Backend#TEXTURE_VIEW} backend is selected.
+ *
+ * The TextureView backend fits, crops and zooms the preview by its transform instead
+ * of a new layout, can take a snapshot of the frame on screen without
+ * takePicture, and times frame delivery from the SurfaceTexture timestamps.
+ * The SurfaceView backend can time frames from the preview callbacks instead, see
+ * {@link #setFrameCallbackMetricsEnabled(boolean)}.
+ */
+class Preview extends ViewGroup implements SurfaceHolder.Callback, TextureView.SurfaceTextureListener {
+
+    public enum Backend {
+        SURFACE_VIEW,
+        TEXTURE_VIEW
+    }
 
     private static String TAG = "Preview";
+    private static final long OVERLAY_REFRESH_MILLIS = 500;
     SurfaceView mSurfaceView;
     SurfaceHolder mHolder;
+    TextureView mTextureView;
     CameraAdapter mCameraAdapter;
-
+    private Backend mBackend = Backend.SURFACE_VIEW;
+    //the child view was replaced and needs a layout even if our bounds did not change
+    private boolean mIsBackendChanged;
+    private PreviewTransform.ScaleMode mScaleMode = PreviewTransform.ScaleMode.FIT;
+    private float mZoom = 1f;
+    private final Matrix mTransform = new Matrix();
+    private final FrameTiming mFrameTiming = new FrameTiming();
+    private boolean mIsFrameCallbackMetricsEnabled;
+    private boolean mIsFrameConsumerAdded;
+    private boolean mIsMetricsOverlayEnabled;
+    private Paint mOverlayPaint;
+    private Paint mOverlayBackgroundPaint;
+    private final FramePipeline.FrameConsumer mTimingConsumer = new FramePipeline.FrameConsumer() {
+        @Override
+        public void onFrame(PreviewFrame frame) {
+            mFrameTiming.record(frame.getTimestampNanos(), System.nanoTime());
+            frame.release();
+        }
+    };
+    private final Runnable mOverlayRefresh = new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+            postDelayed(this, OVERLAY_REFRESH_MILLIS);
+        }
+    };
 
     public Preview(Context context) {
         super(context);
@@ -34,11 +84,20 @@ class Preview extends ViewGroup implements SurfaceHolder.Callback {
     }
 
     private void init(Context context) {
+        mCameraAdapter = CameraAdapters.getInstance(getContext());
+        addBackendView(context);
+    }
+
+    private void addBackendView(Context context) {
+        if (mBackend == Backend.TEXTURE_VIEW) {
+            mTextureView = new TextureView(context);
+            mTextureView.setSurfaceTextureListener(this);
+            this.addView(mTextureView);
+            return;
+        }
         mSurfaceView = new SurfaceView(context);
         this.addView(mSurfaceView);
 
-        mCameraAdapter = CameraAdapter.getInstance(getContext());
-
         // Install a SurfaceHolder.Callback so we get notified when the
         // underlying surface is created and destroyed.
         mHolder = mSurfaceView.getHolder();
@@ -46,16 +105,234 @@ class Preview extends ViewGroup implements SurfaceHolder.Callback {
         mHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
     }
 
-    public void initCameraSurfaceHolder() {
-        mCameraAdapter.setSurfaceHolder(mHolder);
+    /**
+     * Move the preview to another kind of view. The camera stays open and the
+     * preview starts again once the new view's surface is ready.
+     */
+    public void setBackend(Backend backend) {
+        if (backend == mBackend) {
+            return;
+        }
+        Log.d(TAG, "setBackend " + backend);
+        //unhook the old view first, so losing its surface does not release the camera
+        if (mHolder != null) {
+            mHolder.removeCallback(this);
+        }
+        if (mTextureView != null) {
+            mTextureView.setSurfaceTextureListener(null);
+        }
+        mCameraAdapter.detachDisplay();
+        removeAllViews();
+        mSurfaceView = null;
+        mHolder = null;
+        mTextureView = null;
+
+        mBackend = backend;
+        addBackendView(getContext());
+        mIsBackendChanged = true;
+        mFrameTiming.restart();
+        updateTimingConsumer();
+        if (mCameraAdapter.isValid()) {
+            initCameraSurface();
+        }
+        requestLayout();
+    }
+
+    public Backend getBackend() {
+        return mBackend;
+    }
+
+    /**
+     * Start the preview on the current view. With the TextureView backend this
+     * happens later, once its texture is available.
+     */
+    public void initCameraSurface() {
+        if (mBackend == Backend.TEXTURE_VIEW) {
+            if (mTextureView.isAvailable()) {
+                mCameraAdapter.setSurfaceTexture(mTextureView.getSurfaceTexture());
+            }
+        } else {
+            mCameraAdapter.setSurfaceHolder(mHolder);
+        }
         requestLayout();
     }
 
+    /**
+     * Fit or crop the preview and zoom into its center. Only the TextureView backend
+     * supports this; it takes effect on the next frame, without a layout.
+     *
+     * @param zoom 1 for no zoom
+     */
+    public void setScaling(PreviewTransform.ScaleMode mode, float zoom) {
+        mScaleMode = mode;
+        mZoom = zoom;
+        updateTransform();
+    }
+
+    /**
+     * Copy the frame on screen, much cheaper than taking a picture and without
+     * stopping the preview. Only the TextureView backend supports this. Call on
+     * the UI thread.
+     *
+     * @param maxLongEdge longer side of the snapshot at most
+     * @return the snapshot, or null if there is no frame to copy. Give it back with
+     * {@link BitmapDecoder#recycle(Bitmap)} once it is no longer shown.
+     */
+    public Bitmap snapshot(int maxLongEdge) {
+        FrameSize frame = getDisplayedFrameSize();
+        if (mTextureView == null || !mTextureView.isAvailable() || frame == null) {
+            return null;
+        }
+        int width = frame.width;
+        int height = frame.height;
+        if (Math.max(width, height) > maxLongEdge) {
+            width = BitmapSampling.scaleToLongEdge(frame.width, frame.width, frame.height, maxLongEdge);
+            height = BitmapSampling.scaleToLongEdge(frame.height, frame.width, frame.height, maxLongEdge);
+        }
+
+        long started = System.nanoTime();
+        Bitmap bitmap = mTextureView.getBitmap(
+                BitmapDecoder.getInstance().takeTarget(width, height, Bitmap.Config.ARGB_8888));
+        Log.d(TAG, "snapshot " + width + "x" + height + " in "
+                + (System.nanoTime() - started) / 1000 + "us");
+        return bitmap;
+    }
+
+    /**
+     * @return frame rate, drops and stalls of the preview, from the SurfaceTexture
+     * timestamps or, if enabled, the preview callbacks
+     */
+    public FrameTiming getFrameTiming() {
+        return mFrameTiming;
+    }
+
+    /**
+     * Time frames on the SurfaceView backend by the preview callbacks, which costs a
+     * copy of every frame while enabled. The TextureView backend always times frames
+     * and ignores this.
+     */
+    public void setFrameCallbackMetricsEnabled(boolean enabled) {
+        mIsFrameCallbackMetricsEnabled = enabled;
+        updateTimingConsumer();
+    }
+
+    private void updateTimingConsumer() {
+        boolean add = mIsFrameCallbackMetricsEnabled && mBackend == Backend.SURFACE_VIEW;
+        if (add == mIsFrameConsumerAdded) {
+            return;
+        }
+        if (add) {
+            mFrameTiming.restart();
+            mCameraAdapter.addFrameConsumer(mTimingConsumer);
+        } else {
+            mCameraAdapter.removeFrameConsumer(mTimingConsumer);
+        }
+        mIsFrameConsumerAdded = add;
+    }
+
+    /**
+     * Draw the frame timing over the preview, refreshed twice a second. For debugging.
+     */
+    public void setMetricsOverlayEnabled(boolean enabled) {
+        if (enabled == mIsMetricsOverlayEnabled) {
+            return;
+        }
+        mIsMetricsOverlayEnabled = enabled;
+        removeCallbacks(mOverlayRefresh);
+        if (enabled) {
+            if (mOverlayPaint == null) {
+                mOverlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                mOverlayPaint.setColor(Color.WHITE);
+                mOverlayPaint.setTextSize(12 * getResources().getDisplayMetrics().scaledDensity);
+                mOverlayBackgroundPaint = new Paint();
+                mOverlayBackgroundPaint.setColor(0x80000000);
+            }
+            post(mOverlayRefresh);
+        } else {
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void dispatchDraw(Canvas canvas) {
+        super.dispatchDraw(canvas);
+        if (!mIsMetricsOverlayEnabled) {
+            return;
+        }
+        FrameTiming.Snapshot timing = mFrameTiming.snapshot();
+        float line = mOverlayPaint.getFontSpacing();
+        float x = line / 2;
+        canvas.drawRect(0, 0, getWidth(), line * 3.5f, mOverlayBackgroundPaint);
+        canvas.drawText(String.format(Locale.US, "%.1f fps  %d frames  %d dropped",
+                timing.framesPerSecond, timing.frameCount, timing.droppedFrames), x, line, mOverlayPaint);
+        canvas.drawText(String.format(Locale.US, "interval p50 %.1f  p99 %.1f  max %.1f ms",
+                timing.intervalP50Nanos / 1e6, timing.intervalP99Nanos / 1e6, timing.maxIntervalNanos / 1e6),
+                x, line * 2, mOverlayPaint);
+        canvas.drawText(String.format(Locale.US, "jitter %.1f ms  %d stalls, longest %d ms",
+                timing.getJitterNanos() / 1e6, timing.stallCount, timing.longestStallNanos / 1000000),
+                x, line * 3, mOverlayPaint);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mIsMetricsOverlayEnabled) {
+            post(mOverlayRefresh);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(mOverlayRefresh);
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * @return the preview size as shown, turned to portrait when the screen is, or null if
+     * no camera has been set up yet
+     */
+    private FrameSize getDisplayedFrameSize() {
+        FrameSize previewSize = mCameraAdapter.getPreviewSize();
+        if (previewSize == null) {
+            return null;
+        }
+        if (getContext().getResources().getConfiguration().orientation == Configuration.ORIENTATION_PORTRAIT) {
+            return new FrameSize(previewSize.height, previewSize.width);
+        }
+        return previewSize;
+    }
+
+    private void updateTransform() {
+        if (mTextureView == null) {
+            return;
+        }
+        FrameSize frame = getDisplayedFrameSize();
+        int width = mTextureView.getWidth();
+        int height = mTextureView.getHeight();
+        if (frame == null || width == 0 || height == 0) {
+            return;
+        }
+        PreviewTransform transform = PreviewTransform.compute(width, height, frame.width, frame.height,
+                mScaleMode, mZoom);
+        mTransform.setScale(transform.scaleX, transform.scaleY, width / 2f, height / 2f);
+        mTextureView.setTransform(mTransform);
+        Log.d(TAG, "updateTransform frame=" + frame + ", view=" + width + "x" + height + ", " + transform);
+    }
+
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
 
-        if (changed && getChildCount() > 0) {
+        if (mBackend == Backend.TEXTURE_VIEW && getChildCount() > 0) {
+            //the view always fills us, the transform keeps the aspect ratio of a new preview size
+            mIsBackendChanged = false;
+            getChildAt(0).layout(0, 0, r - l, b - t);
+            updateTransform();
+            return;
+        }
+
+        if ((changed || mIsBackendChanged) && getChildCount() > 0) {
             Log.d(TAG, "onLayout");
+            mIsBackendChanged = false;
             final View child = getChildAt(0);
 
             final int width = r - l;
@@ -64,7 +341,7 @@ class Preview extends ViewGroup implements SurfaceHolder.Callback {
             int previewWidth = width;
             int previewHeight = height;
             double scaledRatio = 1.0;
-            Size previewSize = mCameraAdapter.getPreviewSize();
+            FrameSize previewSize = mCameraAdapter.getPreviewSize();
             int scaledHeight;
             int scaledWidth;
             if (previewSize != null) {
@@ -161,8 +438,11 @@ class Preview extends ViewGroup implements SurfaceHolder.Callback {
 
             // start preview with new settings
             //mCameraAdapter.setDisplayHolder(mHolder);
-            mCameraAdapter.adjustCameraPreviewSize();
-            requestLayout();
+            //only lay out again if the size really changes, otherwise
+            //measure and surfaceChanged keep triggering each other
+            if (mCameraAdapter.adjustCameraPreviewSize()) {
+                requestLayout();
+            }
         }
     }
 
@@ -172,6 +452,40 @@ class Preview extends ViewGroup implements SurfaceHolder.Callback {
     public void surfaceDestroyed(SurfaceHolder surfaceHolder) {
         Log.d(TAG, "surfaceDestroyed called.");
         // Surface will be destroyed when we return, so stop the preview.
-        mCameraAdapter.releaseCamera();
+        mCameraAdapter.releaseCameraDeferred();
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int width, int height) {
+        Log.d(TAG, "onSurfaceTextureAvailable called.");
+        mFrameTiming.restart();
+        if (mCameraAdapter.isValid()) {
+            mCameraAdapter.adjustCameraPreviewSize();
+            mCameraAdapter.setSurfaceTexture(surfaceTexture);
+            updateTransform();
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int width, int height) {
+        Log.d(TAG, "onSurfaceTextureSizeChanged called.");
+        if (mCameraAdapter.isValid()) {
+            mCameraAdapter.adjustCameraPreviewSize();
+        }
+        //no layout needed, the transform alone adapts to the new size
+        updateTransform();
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
+        Log.d(TAG, "onSurfaceTextureDestroyed called.");
+        mCameraAdapter.releaseCameraDeferred();
+        //the TextureView releases the texture
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
+        mFrameTiming.record(surfaceTexture.getTimestamp(), System.nanoTime());
     }
 }
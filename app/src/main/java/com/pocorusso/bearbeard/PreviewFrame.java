@@ -0,0 +1,114 @@
+package com.pocorusso.bearbeard;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single preview frame backed by a buffer owned by a {@link FrameBufferPool}.
+ *
+ * Every consumer that is handed a frame owns one reference to it and must call
+ * {@link #release()} exactly once when it is done with the data, either right away
+ * or later from another thread. A consumer that passes the frame on to more than one
+ * place can {@link #retain()} it first. The buffer goes back to the camera only
+ * after the last reference is released, so the data must not be touched after that.
+ */
+public class PreviewFrame {
+
+    /**
+     * Called once the last reference to a frame has been released.
+     */
+    interface Recycler {
+        void recycle(PreviewFrame frame);
+    }
+
+    private final byte[] mData;
+    private final int mWidth;
+    private final int mHeight;
+    private final FrameBufferPool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger(0);
+
+    private volatile Recycler mRecycler;
+    private volatile long mTimestampNanos;
+    private volatile long mSequence;
+
+    PreviewFrame(byte[] data, int width, int height, FrameBufferPool pool) {
+        mData = data;
+        mWidth = width;
+        mHeight = height;
+        mPool = pool;
+    }
+
+    /**
+     * Hand the frame out with the given number of references.
+     */
+    void prepare(Recycler recycler, int refCount, long sequence, long timestampNanos) {
+        mRecycler = recycler;
+        mSequence = sequence;
+        mTimestampNanos = timestampNanos;
+        mRefCount.set(refCount);
+    }
+
+    /**
+     * Add a reference. Each call must be matched by a call to {@link #release()}.
+     */
+    public void retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            mRefCount.decrementAndGet();
+            throw new IllegalStateException("Frame " + mSequence + " has already been recycled");
+        }
+    }
+
+    /**
+     * Drop a reference. The frame is recycled when the count reaches zero.
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            Recycler recycler = mRecycler;
+            mRecycler = null;
+            if (recycler != null) {
+                recycler.recycle(this);
+            }
+        } else if (count < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("Frame " + mSequence + " released more times than retained");
+        }
+    }
+
+    int getRefCount() {
+        return mRefCount.get();
+    }
+
+    FrameBufferPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * @return the raw frame data, NV21 unless the camera was configured otherwise.
+     * The array is shared and reused, never keep it after {@link #release()}.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the frame was received
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * @return running count of frames received by the pipeline, including dropped ones
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+}
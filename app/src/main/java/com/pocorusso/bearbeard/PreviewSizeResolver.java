@@ -0,0 +1,133 @@
+package com.pocorusso.bearbeard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the preview size that best matches a view, remembering the answer.
+ *
+ * The supported sizes are handed over once per camera, after which resolving the
+ * same view size and orientation again is a map lookup instead of a round trip
+ * through the camera parameters and a scan of the size list.
+ */
+public class PreviewSizeResolver {
+
+    private static final int MAX_DIMENSION = 0xFFFFF;
+
+    private final Map<Integer, List<FrameSize>> mSupportedSizes = new HashMap<Integer, List<FrameSize>>();
+    private final Map<Long, FrameSize> mResolved = new HashMap<Long, FrameSize>();
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Set the preview sizes supported by a camera. Previously resolved sizes
+     * for that camera are forgotten.
+     */
+    public synchronized void setSupportedSizes(int cameraId, List<FrameSize> sizes) {
+        mSupportedSizes.put(cameraId, new ArrayList<FrameSize>(sizes));
+        Iterator<Long> keys = mResolved.keySet().iterator();
+        while (keys.hasNext()) {
+            if (cameraOf(keys.next()) == cameraId) {
+                keys.remove();
+            }
+        }
+    }
+
+    public synchronized boolean hasSupportedSizes(int cameraId) {
+        return mSupportedSizes.containsKey(cameraId);
+    }
+
+    /**
+     * @return the sizes set for the camera, empty if none were
+     */
+    public synchronized List<FrameSize> getSupportedSizes(int cameraId) {
+        List<FrameSize> sizes = mSupportedSizes.get(cameraId);
+        return sizes != null ? new ArrayList<FrameSize>(sizes) : new ArrayList<FrameSize>();
+    }
+
+    /**
+     * @param cameraId camera the sizes were set for
+     * @param width    measured view width
+     * @param height   measured view height
+     * @param portrait true if the device is in portrait orientation
+     * @return the best supported size, or null if the camera's sizes are unknown
+     * or the view has no area
+     */
+    public synchronized FrameSize resolve(int cameraId, int width, int height, boolean portrait) {
+        if (width <= 0 || height <= 0 || width > MAX_DIMENSION || height > MAX_DIMENSION) {
+            return null;
+        }
+        Long key = key(cameraId, width, height, portrait);
+        FrameSize size = mResolved.get(key);
+        if (size != null) {
+            mHits++;
+            return size;
+        }
+
+        mMisses++;
+        List<FrameSize> sizes = mSupportedSizes.get(cameraId);
+        size = getOptimalPreviewSize(sizes, width, height, portrait);
+        if (size != null) {
+            mResolved.put(key, size);
+        }
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    private static long key(int cameraId, int width, int height, boolean portrait) {
+        return ((long) cameraId << 41)
+                | (portrait ? 1L << 40 : 0)
+                | ((long) width << 20)
+                | height;
+    }
+
+    private static int cameraOf(long key) {
+        return (int) (key >> 41);
+    }
+
+    /**
+     * Find the size with the aspect ratio closest to the view's.
+     *
+     * The supported sizes we get from the camera doesn't change w and h when
+     * the phone rotate, therefore we have to adjust our ratio when
+     * the app rotate in order to find the optimal ratio.
+     */
+    public static FrameSize getOptimalPreviewSize(List<FrameSize> sizes, int w, int h, boolean portrait) {
+        if (sizes == null || w <= 0 || h <= 0) return null;
+
+        FrameSize optimalSize = null;
+        double minDiff = Double.MAX_VALUE;
+
+        double targetRatio;
+        if (portrait) {
+            targetRatio = (double) h / w;
+        } else {
+            targetRatio = (double) w / h;
+        }
+
+        // Try to find an size match aspect ratio and size
+        for (int i = 0, n = sizes.size(); i < n; i++) {
+            FrameSize size = sizes.get(i);
+            double ratio = (double) size.width / size.height;
+
+            //find the optimal ratio
+            double diff = Math.abs(ratio - targetRatio);
+            if (diff < minDiff) {
+                optimalSize = size;
+                minDiff = diff;
+            }
+        }
+
+        return optimalSize;
+    }
+}
@@ -0,0 +1,52 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Scale to apply to a {@link android.view.TextureView} so the preview keeps its aspect
+ * ratio. A TextureView stretches every frame over the whole view; the factors here undo
+ * that around the view's center, so the preview can be fitted, cropped or zoomed by
+ * changing the transform alone, without a new layout.
+ *
+ * Plain math without Android types so it can be tested on the host JVM.
+ */
+public class PreviewTransform {
+
+    public enum ScaleMode {
+        /**
+         * Show the whole frame, leaving bars where the aspect ratios differ.
+         */
+        FIT,
+        /**
+         * Fill the whole view, cropping the frame where the aspect ratios differ.
+         */
+        CROP
+    }
+
+    public final float scaleX;
+    public final float scaleY;
+
+    private PreviewTransform(float scaleX, float scaleY) {
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+    }
+
+    /**
+     * @param frameWidth  width of the frame as displayed, after the display orientation
+     * @param frameHeight height of the frame as displayed
+     * @param zoom        1 for no zoom, larger to magnify the center
+     */
+    public static PreviewTransform compute(int viewWidth, int viewHeight, int frameWidth, int frameHeight,
+                                           ScaleMode mode, float zoom) {
+        if (viewWidth <= 0 || viewHeight <= 0 || frameWidth <= 0 || frameHeight <= 0) {
+            return new PreviewTransform(zoom, zoom);
+        }
+        float fitX = (float) viewWidth / frameWidth;
+        float fitY = (float) viewHeight / frameHeight;
+        float scale = (mode == ScaleMode.FIT ? Math.min(fitX, fitY) : Math.max(fitX, fitY)) * zoom;
+        return new PreviewTransform(frameWidth * scale / viewWidth, frameHeight * scale / viewHeight);
+    }
+
+    @Override
+    public String toString() {
+        return "scaleX=" + scaleX + ", scaleY=" + scaleY;
+    }
+}
@@ -0,0 +1,270 @@
+package com.pocorusso.bearbeard;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue drained by a fixed number of worker threads.
+ *
+ * Sits between a producer that must not be stalled, such as the camera callback
+ * thread, and a consumer that may be slow. What happens when the queue is full is
+ * decided by the {@link DropPolicy}. The queue is a pre-allocated ring so
+ * submitting an item does not allocate.
+ */
+public class ProcessingStage<T> {
+
+    public interface Processor<T> {
+        /**
+         * Called on a worker thread for every accepted item.
+         */
+        void process(T item) throws Exception;
+
+        /**
+         * Called for every item that is dropped or still queued at shutdown,
+         * on the thread that caused the drop.
+         */
+        void onDropped(T item);
+    }
+
+    public enum DropPolicy {
+        /** Discard the oldest queued item to make room for the new one */
+        DROP_OLDEST,
+        /** Discard the item being submitted */
+        DROP_NEWEST,
+        /** Block the submitting thread until there is room */
+        BLOCK
+    }
+
+    private final String mName;
+    private final DropPolicy mDropPolicy;
+    private final Processor<T> mProcessor;
+    private final StageStats mStats;
+    private final Thread[] mWorkers;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final Object[] mItems;
+    private final long[] mEnqueueNanos;
+    private int mHead;
+    private int mCount;
+    private boolean mIsShutdown;
+    private boolean mDropQueued;
+
+    /**
+     * @param name        used for the worker thread names and the stats
+     * @param workerCount number of worker threads
+     * @param capacity    maximum number of queued items
+     * @param dropPolicy  what to do when the queue is full
+     * @param processor   does the work
+     */
+    public ProcessingStage(String name, int workerCount, int capacity,
+                           DropPolicy dropPolicy, Processor<T> processor) {
+        if (workerCount <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("workerCount and capacity must be positive");
+        }
+        mName = name;
+        mDropPolicy = dropPolicy;
+        mProcessor = processor;
+        mStats = new StageStats(name);
+        mItems = new Object[capacity];
+        mEnqueueNanos = new long[capacity];
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, name + "-" + i);
+            mWorkers[i].setDaemon(true);
+        }
+    }
+
+    public void start() {
+        for (Thread worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue an item for processing.
+     *
+     * @return false if the item itself was dropped or the stage is shut down
+     */
+    public boolean submit(T item) {
+        T dropped = null;
+        boolean accepted = true;
+        mLock.lock();
+        try {
+            if (mIsShutdown) {
+                accepted = false;
+            } else if (mCount == mItems.length) {
+                switch (mDropPolicy) {
+                    case DROP_OLDEST:
+                        dropped = dequeue();
+                        break;
+                    case DROP_NEWEST:
+                        accepted = false;
+                        break;
+                    case BLOCK:
+                        while (mCount == mItems.length && !mIsShutdown) {
+                            mNotFull.awaitUninterruptibly();
+                        }
+                        accepted = !mIsShutdown;
+                        break;
+                }
+            }
+            if (accepted) {
+                enqueue(item);
+                mStats.onSubmitted(mCount);
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        if (dropped != null) {
+            mStats.onDropped();
+            mProcessor.onDropped(dropped);
+        }
+        if (!accepted) {
+            mStats.onDropped();
+            mProcessor.onDropped(item);
+        }
+        return accepted;
+    }
+
+    /**
+     * Stop accepting items. Workers exit once everything already queued is processed.
+     */
+    public void shutdown() {
+        shutdown(false);
+    }
+
+    /**
+     * Stop accepting items. Workers exit once they finish their current item and
+     * anything still queued is handed to {@link Processor#onDropped}.
+     */
+    public void shutdownNow() {
+        shutdown(true);
+    }
+
+    private void shutdown(boolean dropQueued) {
+        mLock.lock();
+        try {
+            mIsShutdown = true;
+            mDropQueued |= dropQueued;
+            mNotEmpty.signalAll();
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the workers to exit after {@link #shutdown()}.
+     *
+     * @return true if all workers exited in time
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : mWorkers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            worker.join(remaining);
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public StageStats getStats() {
+        return mStats;
+    }
+
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            T item;
+            long enqueued;
+            mLock.lock();
+            try {
+                while (mCount == 0 && !mIsShutdown) {
+                    mNotEmpty.awaitUninterruptibly();
+                }
+                if (mCount == 0 || mDropQueued) {
+                    break; //shut down
+                }
+                enqueued = mEnqueueNanos[mHead];
+                item = dequeue();
+            } finally {
+                mLock.unlock();
+            }
+
+            long started = System.nanoTime();
+            boolean failed = false;
+            try {
+                mProcessor.process(item);
+            } catch (Exception e) {
+                failed = true;
+                e.printStackTrace();
+            }
+            mStats.onProcessed(started - enqueued, System.nanoTime() - started, failed);
+        }
+        drainOnShutdown();
+    }
+
+    private void drainOnShutdown() {
+        while (true) {
+            T item;
+            mLock.lock();
+            try {
+                if (mCount == 0) {
+                    return;
+                }
+                item = dequeue();
+            } finally {
+                mLock.unlock();
+            }
+            mStats.onDropped();
+            mProcessor.onDropped(item);
+        }
+    }
+
+    //must hold mLock
+    private void enqueue(T item) {
+        int tail = (mHead + mCount) % mItems.length;
+        mItems[tail] = item;
+        mEnqueueNanos[tail] = System.nanoTime();
+        mCount++;
+        mNotEmpty.signal();
+    }
+
+    //must hold mLock
+    @SuppressWarnings("unchecked")
+    private T dequeue() {
+        T item = (T) mItems[mHead];
+        mItems[mHead] = null;
+        mHead = (mHead + 1) % mItems.length;
+        mCount--;
+        mStats.onQueueDepth(mCount);
+        mNotFull.signal();
+        return item;
+    }
+}
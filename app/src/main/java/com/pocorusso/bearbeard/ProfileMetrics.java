@@ -0,0 +1,100 @@
+package com.pocorusso.bearbeard;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Payload size, encode time and round trip time of uploads, per encoding profile.
+ */
+public class ProfileMetrics {
+
+    /**
+     * Totals for one profile. All times are in nanoseconds.
+     */
+    public static class Stats {
+        private long mCount;
+        private long mTotalBytes;
+        private long mTotalEncodeNanos;
+        private long mTotalRoundTripNanos;
+        private long mMaxRoundTripNanos;
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getAverageBytes() {
+            return mCount == 0 ? 0 : mTotalBytes / mCount;
+        }
+
+        public synchronized long getAverageEncodeNanos() {
+            return mCount == 0 ? 0 : mTotalEncodeNanos / mCount;
+        }
+
+        public synchronized long getAverageRoundTripNanos() {
+            return mCount == 0 ? 0 : mTotalRoundTripNanos / mCount;
+        }
+
+        public synchronized long getMaxRoundTripNanos() {
+            return mMaxRoundTripNanos;
+        }
+
+        synchronized void record(long bytes, long encodeNanos, long roundTripNanos) {
+            mCount++;
+            mTotalBytes += bytes;
+            mTotalEncodeNanos += encodeNanos;
+            mTotalRoundTripNanos += roundTripNanos;
+            mMaxRoundTripNanos = Math.max(mMaxRoundTripNanos, roundTripNanos);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "n=" + mCount
+                    + " bytes=" + getAverageBytes()
+                    + " encodeMs=" + getAverageEncodeNanos() / 1000000
+                    + " rttMs=" + getAverageRoundTripNanos() / 1000000 + "/" + mMaxRoundTripNanos / 1000000;
+        }
+    }
+
+    private final Map<String, Stats> mStats = new LinkedHashMap<String, Stats>();
+
+    /**
+     * @param profileKey     see {@link EncodingProfile#getKey()}
+     * @param bytes          size of the upload
+     * @param encodeNanos    time spent decoding and compressing the picture, 0 if it was sent as is
+     * @param roundTripNanos time from the first request byte to the last response byte
+     */
+    public void record(String profileKey, long bytes, long encodeNanos, long roundTripNanos) {
+        Stats stats;
+        synchronized (mStats) {
+            stats = mStats.get(profileKey);
+            if (stats == null) {
+                stats = new Stats();
+                mStats.put(profileKey, stats);
+            }
+        }
+        stats.record(bytes, encodeNanos, roundTripNanos);
+    }
+
+    /**
+     * @return the profile's stats, or null if nothing was uploaded with it yet
+     */
+    public Stats get(String profileKey) {
+        synchronized (mStats) {
+            return mStats.get(profileKey);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (mStats) {
+            for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+        }
+        return sb.toString();
+    }
+}
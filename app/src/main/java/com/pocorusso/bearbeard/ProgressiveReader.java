@@ -0,0 +1,72 @@
+package com.pocorusso.bearbeard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Reads an upload response that may come progressively.
+ *
+ * A progressive response has {@link #CONTENT_TYPE} and the framing of
+ * {@link BatchCodec}: a frame count, then complete encoded images of increasing
+ * resolution, such as a server-made thumbnail followed by the full result. Every
+ * frame but the last is handed to the listener as soon as it has been read; the last
+ * one is the response body. Any other response is read whole.
+ */
+public class ProgressiveReader implements Transport.ResponseHandler {
+
+    public interface PreviewListener {
+        /**
+         * Called on the thread reading the response, which waits for it to return.
+         */
+        void onPreview(byte[] preview);
+    }
+
+    public static final String CONTENT_TYPE = "application/x-bearbeard-progressive";
+
+    private final PreviewListener mListener;
+    private byte[] mBody;
+    private int mPreviewCount;
+
+    public ProgressiveReader(PreviewListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void onResponse(int statusCode, String contentType, InputStream body) throws IOException {
+        boolean successful = statusCode >= 200 && statusCode < 300;
+        if (!successful || contentType == null || !contentType.toLowerCase(Locale.US).startsWith(CONTENT_TYPE)) {
+            Transport.Collector collector = new Transport.Collector();
+            collector.onResponse(statusCode, contentType, body);
+            mBody = collector.getBody();
+            return;
+        }
+        int count = BatchCodec.readInt(body);
+        if (count <= 0) {
+            throw new IOException("Progressive response without frames");
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] frame = BatchCodec.readFrame(body);
+            if (frame == null) {
+                throw new IOException("Progressive response with a failed frame");
+            }
+            if (i < count - 1) {
+                mPreviewCount++;
+                mListener.onPreview(frame);
+            } else {
+                mBody = frame;
+            }
+        }
+    }
+
+    /**
+     * @return the full result, or null if no response was read
+     */
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    public int getPreviewCount() {
+        return mPreviewCount;
+    }
+}
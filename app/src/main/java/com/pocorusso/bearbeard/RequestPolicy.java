@@ -0,0 +1,59 @@
+package com.pocorusso.bearbeard;
+
+import java.io.IOException;
+
+/**
+ * Timeout and immediate retries of a single upload request. Retries here are for
+ * blips during one send; retries over minutes are left to the {@link UploadQueue}.
+ */
+public class RequestPolicy {
+
+    public static final RequestPolicy DEFAULT = new RequestPolicy(10000, 1, 250);
+
+    private final int mTimeoutMs;
+    private final int mMaxRetries;
+    private final long mRetryDelayMs;
+
+    /**
+     * @param timeoutMs    connect and read timeout of each attempt
+     * @param maxRetries   attempts after the first one
+     * @param retryDelayMs wait before the first retry, doubled for each further one
+     */
+    public RequestPolicy(int timeoutMs, int maxRetries, long retryDelayMs) {
+        mTimeoutMs = timeoutMs;
+        mMaxRetries = maxRetries;
+        mRetryDelayMs = retryDelayMs;
+    }
+
+    public int getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     */
+    public long getRetryDelayMs(int retry) {
+        return mRetryDelayMs << Math.min(Math.max(retry - 1, 0), 16);
+    }
+
+    /**
+     * @param attempt attempts made so far, 1 after the first one failed
+     */
+    public boolean shouldRetry(int attempt, IOException e) {
+        return attempt <= mMaxRetries && isRetryable(e);
+    }
+
+    /**
+     * @return false for errors that sending again can't fix, such as a 4xx status
+     */
+    public static boolean isRetryable(IOException e) {
+        if (e instanceof StreamingSender.HttpStatusException) {
+            return ((StreamingSender.HttpStatusException) e).getStatusCode() >= 500;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,72 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Time from asking for an upload to the first pixel of its result on screen, and to
+ * the full result. Without a progressive response both are the same.
+ */
+public class ResultTiming {
+
+    private static final int PERCENTILE_SAMPLES = 256;
+
+    private final LatencyRecorder mFirstPixel = new LatencyRecorder(PERCENTILE_SAMPLES);
+    private final LatencyRecorder mFullResult = new LatencyRecorder(PERCENTILE_SAMPLES);
+    private long mCount;
+    private long mProgressiveCount;
+    private long mFirstPixelTotalNanos;
+    private long mFullResultTotalNanos;
+
+    /**
+     * @param firstPixelNanos time to the first preview shown, or to the full result if
+     *                        there was no preview
+     * @param fullResultNanos time to the full result shown
+     */
+    public synchronized void record(long firstPixelNanos, long fullResultNanos, boolean progressive) {
+        mCount++;
+        if (progressive) {
+            mProgressiveCount++;
+        }
+        mFirstPixelTotalNanos += firstPixelNanos;
+        mFullResultTotalNanos += fullResultNanos;
+        mFirstPixel.record(firstPixelNanos);
+        mFullResult.record(fullResultNanos);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return results that were preceded by a preview
+     */
+    public synchronized long getProgressiveCount() {
+        return mProgressiveCount;
+    }
+
+    public synchronized long getAverageFirstPixelNanos() {
+        return mCount == 0 ? 0 : mFirstPixelTotalNanos / mCount;
+    }
+
+    public synchronized long getAverageFullResultNanos() {
+        return mCount == 0 ? 0 : mFullResultTotalNanos / mCount;
+    }
+
+    /**
+     * @param percentile 0-100, over recent results
+     */
+    public long getFirstPixelPercentileNanos(double percentile) {
+        return mFirstPixel.getPercentile(percentile);
+    }
+
+    public long getFullResultPercentileNanos(double percentile) {
+        return mFullResult.getPercentile(percentile);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "results=" + mCount + " progressive=" + mProgressiveCount
+                + ", firstPixelMs avg/p95=" + getAverageFirstPixelNanos() / 1000000
+                + "/" + getFirstPixelPercentileNanos(95) / 1000000
+                + ", fullMs avg/p95=" + getAverageFullResultNanos() / 1000000
+                + "/" + getFullResultPercentileNanos(95) / 1000000;
+    }
+}
@@ -0,0 +1,67 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Time from the shutter press to the picture being saved, kept apart for pictures
+ * taken by the camera and pictures taken from the zero-shutter-lag buffer.
+ */
+public class ShutterTiming {
+
+    private static final int PERCENTILE_SAMPLES = 256;
+
+    private final LatencyRecorder mCaptured = new LatencyRecorder(PERCENTILE_SAMPLES);
+    private final LatencyRecorder mZsl = new LatencyRecorder(PERCENTILE_SAMPLES);
+    private long mCapturedCount;
+    private long mZslCount;
+    private long mCapturedTotalNanos;
+    private long mZslTotalNanos;
+
+    /**
+     * @param zsl true if the picture came from the zero-shutter-lag buffer
+     */
+    public synchronized void record(boolean zsl, long shutterToSavedNanos) {
+        if (zsl) {
+            mZslCount++;
+            mZslTotalNanos += shutterToSavedNanos;
+            mZsl.record(shutterToSavedNanos);
+        } else {
+            mCapturedCount++;
+            mCapturedTotalNanos += shutterToSavedNanos;
+            mCaptured.record(shutterToSavedNanos);
+        }
+    }
+
+    public synchronized long getCapturedCount() {
+        return mCapturedCount;
+    }
+
+    public synchronized long getZslCount() {
+        return mZslCount;
+    }
+
+    public synchronized long getAverageCapturedNanos() {
+        return mCapturedCount == 0 ? 0 : mCapturedTotalNanos / mCapturedCount;
+    }
+
+    public synchronized long getAverageZslNanos() {
+        return mZslCount == 0 ? 0 : mZslTotalNanos / mZslCount;
+    }
+
+    /**
+     * @param percentile 0-100, over recent pictures
+     */
+    public long getCapturedPercentileNanos(double percentile) {
+        return mCaptured.getPercentile(percentile);
+    }
+
+    public long getZslPercentileNanos(double percentile) {
+        return mZsl.getPercentile(percentile);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "captured=" + mCapturedCount + " avg/p95Ms=" + getAverageCapturedNanos() / 1000000
+                + "/" + getCapturedPercentileNanos(95) / 1000000
+                + ", zsl=" + mZslCount + " avg/p95Ms=" + getAverageZslNanos() / 1000000
+                + "/" + getZslPercentileNanos(95) / 1000000;
+    }
+}
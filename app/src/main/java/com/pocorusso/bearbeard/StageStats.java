@@ -0,0 +1,124 @@
+package com.pocorusso.bearbeard;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for a single {@link ProcessingStage}. All times are in nanoseconds.
+ * Updated lock free from the submitting and worker threads.
+ */
+public class StageStats {
+
+    private final String mName;
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mProcessed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mMaxQueueDepth = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+    private final AtomicLong mTotalProcessNanos = new AtomicLong();
+    private final AtomicLong mMaxProcessNanos = new AtomicLong();
+    private volatile int mQueueDepth;
+
+    public StageStats(String name) {
+        mName = name;
+    }
+
+    void onSubmitted(int queueDepth) {
+        mSubmitted.incrementAndGet();
+        onQueueDepth(queueDepth);
+    }
+
+    void onQueueDepth(int queueDepth) {
+        mQueueDepth = queueDepth;
+        updateMax(mMaxQueueDepth, queueDepth);
+    }
+
+    void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    void onProcessed(long waitNanos, long processNanos, boolean failed) {
+        mProcessed.incrementAndGet();
+        if (failed) {
+            mFailed.incrementAndGet();
+        }
+        mTotalWaitNanos.addAndGet(waitNanos);
+        updateMax(mMaxWaitNanos, waitNanos);
+        mTotalProcessNanos.addAndGet(processNanos);
+        updateMax(mMaxProcessNanos, processNanos);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getSubmitted() {
+        return mSubmitted.get();
+    }
+
+    public long getProcessed() {
+        return mProcessed.get();
+    }
+
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    public long getFailed() {
+        return mFailed.get();
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    public long getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * @return average time an item spent in the queue before a worker picked it up
+     */
+    public long getAverageWaitNanos() {
+        long processed = mProcessed.get();
+        return processed == 0 ? 0 : mTotalWaitNanos.get() / processed;
+    }
+
+    public long getMaxWaitNanos() {
+        return mMaxWaitNanos.get();
+    }
+
+    /**
+     * @return average time a worker spent processing an item
+     */
+    public long getAverageProcessNanos() {
+        long processed = mProcessed.get();
+        return processed == 0 ? 0 : mTotalProcessNanos.get() / processed;
+    }
+
+    public long getMaxProcessNanos() {
+        return mMaxProcessNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return mName
+                + " submitted=" + getSubmitted()
+                + ", processed=" + getProcessed()
+                + ", dropped=" + getDropped()
+                + ", failed=" + getFailed()
+                + ", depth=" + getQueueDepth() + "/" + getMaxQueueDepth()
+                + ", waitMs=" + getAverageWaitNanos() / 1000000 + "/" + getMaxWaitNanos() / 1000000
+                + ", processMs=" + getAverageProcessNanos() / 1000000 + "/" + getMaxProcessNanos() / 1000000;
+    }
+}
@@ -0,0 +1,243 @@
+package com.pocorusso.bearbeard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends upload jobs through a {@link Transport}, streaming the body so the memory
+ * used per upload is one buffer no matter how large the picture is.
+ *
+ * Each job is sent with the timeout and immediate retries of its {@link RequestPolicy}.
+ * With a {@link PreviewListener} set, the server is asked for a progressive response,
+ * see {@link ProgressiveReader}.
+ */
+public class StreamingSender implements UploadQueue.Sender {
+
+    public interface BodySource {
+        String getContentType(UploadJob job);
+
+        /**
+         * Open the request body of the job. Called on a sender thread, again for every retry.
+         */
+        InputStream open(UploadJob job) throws IOException;
+
+        /**
+         * @return timeout and retries to send the job with
+         */
+        RequestPolicy getPolicy(UploadJob job);
+    }
+
+    public interface TransferListener {
+        /**
+         * Called on the sender thread after each successful upload. All times are in nanoseconds.
+         *
+         * @param sendNanos      time spent writing the request body
+         * @param firstByteNanos time from the last request byte to the response status line
+         * @param roundTripNanos time from the first request byte to the last response byte
+         */
+        void onTransfer(UploadJob job, long bytesSent, long sendNanos, long firstByteNanos,
+                        long roundTripNanos);
+    }
+
+    public interface PreviewListener {
+        /**
+         * Called on the sender thread for each preview of a progressive response,
+         * before the full result has arrived. The response is read on once this returns.
+         */
+        void onPreview(UploadJob job, byte[] preview);
+    }
+
+    /**
+     * The server answered with something other than 2xx.
+     */
+    public static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStatusCode;
+
+        public HttpStatusException(int statusCode) {
+            super("HTTP " + statusCode);
+            mStatusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private volatile URL mUrl;
+    private volatile Transport mTransport;
+    private final BodySource mBodySource;
+    private final ExecutorService mExecutor;
+    private final AtomicLong mRetries = new AtomicLong();
+    private volatile TransferListener mTransferListener;
+    private volatile PreviewListener mPreviewListener;
+
+    /**
+     * @param url     endpoint the jobs are posted to
+     * @param threads uploads sent at once, match the queue's concurrency
+     */
+    public StreamingSender(URL url, Transport transport, BodySource bodySource, int threads) {
+        mUrl = url;
+        mTransport = transport;
+        mBodySource = bodySource;
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "StreamingSender-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Post jobs sent from now on to another endpoint, such as a local mock server.
+     * The previous transport is shut down once the switch is made.
+     */
+    public void setEndpoint(URL url, Transport transport) {
+        Transport previous;
+        synchronized (this) {
+            previous = mTransport;
+            mTransport = transport;
+            mUrl = url;
+        }
+        if (previous != transport) {
+            previous.shutdown();
+        }
+    }
+
+    public URL getEndpoint() {
+        return mUrl;
+    }
+
+    @Override
+    public void send(final UploadJob job, final UploadQueue.SendCallback callback) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] response;
+                    try {
+                        response = sendNow(job);
+                    } catch (IOException e) {
+                        callback.onFailure(e, RequestPolicy.isRetryable(e));
+                        return;
+                    } catch (RuntimeException e) {
+                        //a bug rather than the network, sending again would fail the same way
+                        callback.onFailure(e, false);
+                        return;
+                    }
+                    callback.onSuccess(response);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onFailure(e, true);
+        }
+    }
+
+    /**
+     * Send the job on the calling thread, retrying as its policy allows.
+     *
+     * @return the response body
+     */
+    public byte[] sendNow(final UploadJob job) throws IOException {
+        RequestPolicy policy = mBodySource.getPolicy(job);
+        final PreviewListener previewListener = mPreviewListener;
+        Transport.Body body = new Transport.Body() {
+            @Override
+            public String getContentType() {
+                return mBodySource.getContentType(job);
+            }
+
+            @Override
+            public String getAccept() {
+                return previewListener != null ? ProgressiveReader.CONTENT_TYPE + ", image/*" : null;
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                return mBodySource.open(job);
+            }
+        };
+        ProgressiveReader.PreviewListener onPreview = new ProgressiveReader.PreviewListener() {
+            @Override
+            public void onPreview(byte[] preview) {
+                if (previewListener != null) {
+                    previewListener.onPreview(job, preview);
+                }
+            }
+        };
+
+        URL url;
+        Transport transport;
+        synchronized (this) {
+            url = mUrl;
+            transport = mTransport;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                ProgressiveReader reader = new ProgressiveReader(onPreview);
+                long traceStart = Tracer.getInstance().begin();
+                TransportResponse response = transport.post(url, body, policy.getTimeoutMs(), reader);
+                Tracer.getInstance().end(Tracer.Stage.NETWORK, traceStart);
+                if (!response.isSuccessful()) {
+                    throw new HttpStatusException(response.getStatusCode());
+                }
+                TransferListener listener = mTransferListener;
+                if (listener != null) {
+                    listener.onTransfer(job, response.getBytesSent(), response.getSendNanos(),
+                            response.getFirstByteNanos(), response.getRoundTripNanos());
+                }
+                return reader.getBody();
+            } catch (IOException e) {
+                if (!policy.shouldRetry(attempt, e)) {
+                    throw e;
+                }
+                mRetries.incrementAndGet();
+                try {
+                    Thread.sleep(policy.getRetryDelayMs(attempt));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public void setTransferListener(TransferListener listener) {
+        mTransferListener = listener;
+    }
+
+    /**
+     * @param listener null to ask for plain responses only
+     */
+    public void setPreviewListener(PreviewListener listener) {
+        mPreviewListener = listener;
+    }
+
+    public TransferStats getStats() {
+        return mTransport.getStats();
+    }
+
+    /**
+     * @return immediate retries made under the jobs' {@link RequestPolicy}
+     */
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+        mTransport.shutdown();
+    }
+}
@@ -0,0 +1,270 @@
+package com.pocorusso.bearbeard;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timing spans of every stage between the shutter button and the result on screen,
+ * kept in a fixed ring buffer of the most recent spans.
+ *
+ * Recording takes one atomic increment to claim a slot and a few ordered writes to
+ * fill it, no lock and no allocation, so spans can be recorded from the camera
+ * callback thread. Each slot carries a sequence number that readers check before and
+ * after reading, so a slot being overwritten is skipped rather than read torn.
+ * When disabled, {@link #begin()} returns 0 and {@link #end} returns after one
+ * volatile read.
+ *
+ * Spans can be exported as Chrome trace JSON (chrome://tracing or Perfetto) or CSV,
+ * and summarized as percentiles per stage.
+ */
+public class Tracer {
+
+    public enum Stage {
+        QUEUE_OPEN_CAMERA,
+        CAMERA_OPEN,
+        SET_PARAMETERS,
+        START_PREVIEW,
+        FIRST_FRAME,
+        SHUTTER,
+        JPEG_CALLBACK,
+        ORIENT_PICTURE,
+        SAVE_PICTURE,
+        UPLOAD_ENCODE,
+        NETWORK,
+        RESPONSE_DECODE
+    }
+
+    public static class Span {
+        public final Stage stage;
+        public final long startNanos;
+        public final long durationNanos;
+        public final long threadId;
+
+        Span(Stage stage, long startNanos, long durationNanos, long threadId) {
+            this.stage = stage;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.threadId = threadId;
+        }
+    }
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    //per slot: sequence, stage, start, duration, thread
+    private static final int FIELDS = 5;
+    private static final Stage[] STAGES = Stage.values();
+
+    private static Tracer sTracer;
+
+    private final int mMask;
+    private final AtomicLongArray mSlots;
+    private final AtomicLong mNext = new AtomicLong();
+    private volatile boolean mIsEnabled;
+
+    public static synchronized Tracer getInstance() {
+        if (sTracer == null) {
+            sTracer = new Tracer(DEFAULT_CAPACITY);
+        }
+        return sTracer;
+    }
+
+    /**
+     * @param capacity spans kept, rounded up to a power of two
+     */
+    public Tracer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mSlots = new AtomicLongArray(size * FIELDS);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mIsEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    /**
+     * @return the start of a span to pass to {@link #end}, or 0 while disabled
+     */
+    public long begin() {
+        return mIsEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a span from startNanos to now. Does nothing if startNanos is 0, so a span
+     * begun while disabled is never recorded.
+     */
+    public void end(Stage stage, long startNanos) {
+        if (startNanos != 0 && mIsEnabled) {
+            record(stage, startNanos, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Record a span measured elsewhere, startNanos being a {@link System#nanoTime()} value.
+     */
+    public void record(Stage stage, long startNanos, long durationNanos) {
+        if (!mIsEnabled) {
+            return;
+        }
+        long sequence = mNext.getAndIncrement() + 1;
+        int base = (int) ((sequence - 1) & mMask) * FIELDS;
+        //negative while being written, readers skip the slot
+        mSlots.set(base, -sequence);
+        mSlots.lazySet(base + 1, stage.ordinal());
+        mSlots.lazySet(base + 2, startNanos);
+        mSlots.lazySet(base + 3, durationNanos);
+        mSlots.lazySet(base + 4, Thread.currentThread().getId());
+        mSlots.lazySet(base, sequence);
+    }
+
+    /**
+     * @return spans recorded since the tracer was created, including those already
+     * overwritten or cleared
+     */
+    public long getRecordedCount() {
+        return mNext.get();
+    }
+
+    /**
+     * Forget all spans. Spans being recorded at the same time may survive.
+     */
+    public void clear() {
+        for (int i = 0; i < mSlots.length(); i += FIELDS) {
+            mSlots.set(i, 0);
+        }
+    }
+
+    /**
+     * @return the spans currently kept, ordered by start time
+     */
+    public List<Span> snapshot() {
+        List<Span> spans = new ArrayList<Span>();
+        for (int base = 0; base < mSlots.length(); base += FIELDS) {
+            long sequence = mSlots.get(base);
+            if (sequence <= 0) {
+                continue;
+            }
+            long stage = mSlots.get(base + 1);
+            long start = mSlots.get(base + 2);
+            long duration = mSlots.get(base + 3);
+            long thread = mSlots.get(base + 4);
+            if (mSlots.get(base) != sequence) {
+                //overwritten while we read it
+                continue;
+            }
+            spans.add(new Span(STAGES[(int) stage], start, duration, thread));
+        }
+        Collections.sort(spans, new Comparator<Span>() {
+            @Override
+            public int compare(Span a, Span b) {
+                return a.startNanos < b.startNanos ? -1 : (a.startNanos == b.startNanos ? 0 : 1);
+            }
+        });
+        return spans;
+    }
+
+    /**
+     * Write the current spans to trace.json and trace.csv in the given directory.
+     *
+     * @return the summary of the spans written
+     */
+    public String export(File dir) throws IOException {
+        List<Span> spans = snapshot();
+        Writer json = new OutputStreamWriter(new FileOutputStream(new File(dir, "trace.json")), "UTF-8");
+        try {
+            writeChromeTrace(spans, json);
+        } finally {
+            json.close();
+        }
+        Writer csv = new OutputStreamWriter(new FileOutputStream(new File(dir, "trace.csv")), "UTF-8");
+        try {
+            writeCsv(spans, csv);
+        } finally {
+            csv.close();
+        }
+        return summarize(spans);
+    }
+
+    /**
+     * Write spans in the Chrome trace event format, as complete ("X") events with
+     * microsecond times relative to the first span.
+     */
+    public static void writeChromeTrace(List<Span> spans, Writer out) throws IOException {
+        long origin = spans.isEmpty() ? 0 : spans.get(0).startNanos;
+        out.write("{\"traceEvents\":[");
+        for (int i = 0; i < spans.size(); i++) {
+            Span span = spans.get(i);
+            if (i > 0) {
+                out.write(",\n");
+            }
+            out.write(String.format(Locale.US,
+                    "{\"name\":\"%s\",\"cat\":\"bearbeard\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":1,\"tid\":%d}",
+                    span.stage.name(), (span.startNanos - origin) / 1000.0, span.durationNanos / 1000.0,
+                    span.threadId));
+        }
+        out.write("],\"displayTimeUnit\":\"ms\"}\n");
+        out.flush();
+    }
+
+    public static void writeCsv(List<Span> spans, Writer out) throws IOException {
+        out.write("stage,start_ns,duration_ns,thread\n");
+        for (Span span : spans) {
+            out.write(span.stage.name() + "," + span.startNanos + "," + span.durationNanos + ","
+                    + span.threadId + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the spans' durations per stage, for percentiles; stages without spans are left out
+     */
+    public static Map<Stage, LatencyRecorder> byStage(List<Span> spans) {
+        Map<Stage, Integer> counts = new EnumMap<Stage, Integer>(Stage.class);
+        for (Span span : spans) {
+            Integer count = counts.get(span.stage);
+            counts.put(span.stage, count == null ? 1 : count + 1);
+        }
+        Map<Stage, LatencyRecorder> recorders = new EnumMap<Stage, LatencyRecorder>(Stage.class);
+        for (Map.Entry<Stage, Integer> entry : counts.entrySet()) {
+            recorders.put(entry.getKey(), new LatencyRecorder(entry.getValue()));
+        }
+        for (Span span : spans) {
+            recorders.get(span.stage).record(span.durationNanos);
+        }
+        return recorders;
+    }
+
+    /**
+     * @return one line per stage with count and p50/p95/p99 in milliseconds
+     */
+    public static String summarize(List<Span> spans) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Stage, LatencyRecorder> entry : byStage(spans).entrySet()) {
+            LatencyRecorder recorder = entry.getValue();
+            builder.append(String.format(Locale.US, "%-18s n=%-5d p50=%.2fms p95=%.2fms p99=%.2fms%n",
+                    entry.getKey().name(), recorder.getCount(), recorder.getPercentile(50) / 1e6,
+                    recorder.getPercentile(95) / 1e6, recorder.getPercentile(99) / 1e6));
+        }
+        return builder.toString();
+    }
+}
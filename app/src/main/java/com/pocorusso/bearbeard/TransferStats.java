@@ -0,0 +1,142 @@
+package com.pocorusso.bearbeard;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput, response latency and connection reuse of uploads. All times are in
+ * nanoseconds. Counters are updated lock free from the sending threads; latency
+ * percentiles come from the most recent {@link #PERCENTILE_SAMPLES} requests.
+ */
+public class TransferStats {
+
+    public static final int PERCENTILE_SAMPLES = 256;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mSendNanos = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mTotalFirstByteNanos = new AtomicLong();
+    private final AtomicLong mMaxFirstByteNanos = new AtomicLong();
+    private final AtomicLong mConnectionsOpened = new AtomicLong();
+    private final AtomicLong mConnectionsReused = new AtomicLong();
+    private final LatencyRecorder mFirstByte = new LatencyRecorder(PERCENTILE_SAMPLES);
+    private final LatencyRecorder mRoundTrip = new LatencyRecorder(PERCENTILE_SAMPLES);
+
+    /**
+     * @param bytesSent      request body size
+     * @param sendNanos      time spent writing the request body
+     * @param firstByteNanos time from the last request byte to the response status line
+     * @param bytesReceived  response body size
+     * @param roundTripNanos time from the first request byte to the last response byte
+     */
+    void onTransfer(long bytesSent, long sendNanos, long firstByteNanos, long bytesReceived,
+                    long roundTripNanos) {
+        mFirstByte.record(firstByteNanos);
+        mRoundTrip.record(roundTripNanos);
+        mRequests.incrementAndGet();
+        mBytesSent.addAndGet(bytesSent);
+        mSendNanos.addAndGet(sendNanos);
+        mBytesReceived.addAndGet(bytesReceived);
+        mTotalFirstByteNanos.addAndGet(firstByteNanos);
+        long max;
+        while (firstByteNanos > (max = mMaxFirstByteNanos.get())) {
+            if (mMaxFirstByteNanos.compareAndSet(max, firstByteNanos)) {
+                break;
+            }
+        }
+    }
+
+    void onFailure() {
+        mFailures.incrementAndGet();
+    }
+
+    /**
+     * Only called by transports that know whether a connection was reused.
+     */
+    void onConnection(boolean reused) {
+        if (reused) {
+            mConnectionsReused.incrementAndGet();
+        } else {
+            mConnectionsOpened.incrementAndGet();
+        }
+    }
+
+    public long getConnectionsOpened() {
+        return mConnectionsOpened.get();
+    }
+
+    public long getConnectionsReused() {
+        return mConnectionsReused.get();
+    }
+
+    /**
+     * @return share of requests sent on a kept alive connection, 0-1
+     */
+    public double getReuseRatio() {
+        long reused = mConnectionsReused.get();
+        long total = reused + mConnectionsOpened.get();
+        return total == 0 ? 0 : (double) reused / total;
+    }
+
+    /**
+     * @param percentile 0-100
+     */
+    public long getTimeToFirstBytePercentileNanos(double percentile) {
+        return mFirstByte.getPercentile(percentile);
+    }
+
+    /**
+     * @param percentile 0-100
+     */
+    public long getRoundTripPercentileNanos(double percentile) {
+        return mRoundTrip.getPercentile(percentile);
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /**
+     * @return upload throughput, counting only the time spent writing request bodies
+     */
+    public long getUploadBytesPerSecond() {
+        long nanos = mSendNanos.get();
+        return nanos == 0 ? 0 : (long) (mBytesSent.get() * 1e9 / nanos);
+    }
+
+    public long getAverageTimeToFirstByteNanos() {
+        long requests = mRequests.get();
+        return requests == 0 ? 0 : mTotalFirstByteNanos.get() / requests;
+    }
+
+    public long getMaxTimeToFirstByteNanos() {
+        return mMaxFirstByteNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + getRequestCount()
+                + ", failures=" + getFailureCount()
+                + ", sent=" + getBytesSent()
+                + ", upload bytes/s=" + getUploadBytesPerSecond()
+                + ", ttfbMs=" + getAverageTimeToFirstByteNanos() / 1000000
+                + "/" + getMaxTimeToFirstByteNanos() / 1000000
+                + ", rttMs p50/p95/p99=" + getRoundTripPercentileNanos(50) / 1000000
+                + "/" + getRoundTripPercentileNanos(95) / 1000000
+                + "/" + getRoundTripPercentileNanos(99) / 1000000
+                + ", reused=" + getConnectionsReused() + "/" + (getConnectionsReused() + getConnectionsOpened());
+    }
+}
@@ -0,0 +1,77 @@
+package com.pocorusso.bearbeard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Carries upload requests to the server.
+ */
+public interface Transport {
+
+    interface Body {
+        String getContentType();
+
+        /**
+         * @return the media types the response may have, or null to leave it to the server
+         */
+        String getAccept();
+
+        /**
+         * Open the body from the start. May be called again if the request is retried.
+         */
+        InputStream open() throws IOException;
+    }
+
+    interface ResponseHandler {
+        /**
+         * Read the response body as it arrives. Whatever is left unread is skipped.
+         * Called on the thread that posted the request.
+         *
+         * @param contentType media type of the response, null if the server sent none
+         */
+        void onResponse(int statusCode, String contentType, InputStream body) throws IOException;
+    }
+
+    /**
+     * Reads the whole response body into memory.
+     */
+    class Collector implements ResponseHandler {
+        private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+
+        @Override
+        public void onResponse(int statusCode, String contentType, InputStream body) throws IOException {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                mBody.write(buffer, 0, read);
+            }
+        }
+
+        public byte[] getBody() {
+            return mBody.toByteArray();
+        }
+    }
+
+    /**
+     * POST the body, streamed, and read the whole response. Statuses other than 2xx
+     * are returned, not thrown.
+     *
+     * @param timeoutMs connect and read timeout of this request
+     */
+    TransportResponse post(URL url, Body body, int timeoutMs) throws IOException;
+
+    /**
+     * POST the body, streamed, and hand the response body to the handler as it arrives.
+     * The returned response has no body.
+     */
+    TransportResponse post(URL url, Body body, int timeoutMs, ResponseHandler handler) throws IOException;
+
+    TransferStats getStats();
+
+    /**
+     * Close idle connections.
+     */
+    void shutdown();
+}
@@ -0,0 +1,82 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * A response read by a {@link Transport}, with the timing of its request. All
+ * times are in nanoseconds.
+ */
+public class TransportResponse {
+
+    private final int mStatusCode;
+    private final byte[] mBody;
+    private final long mBytesSent;
+    private final long mBytesReceived;
+    private final long mSendNanos;
+    private final long mFirstByteNanos;
+    private final long mRoundTripNanos;
+
+    /**
+     * @param body null if it was streamed to a {@link Transport.ResponseHandler}
+     */
+    public TransportResponse(int statusCode, byte[] body, long bytesSent, long bytesReceived,
+                             long sendNanos, long firstByteNanos, long roundTripNanos) {
+        mStatusCode = statusCode;
+        mBody = body;
+        mBytesSent = bytesSent;
+        mBytesReceived = bytesReceived;
+        mSendNanos = sendNanos;
+        mFirstByteNanos = firstByteNanos;
+        mRoundTripNanos = roundTripNanos;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    public boolean isSuccessful() {
+        return mStatusCode >= 200 && mStatusCode < 300;
+    }
+
+    /**
+     * @return the response body, or null if it was streamed to a handler
+     */
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return response body bytes read, after any content decoding
+     */
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    TransportResponse withBody(byte[] body) {
+        return new TransportResponse(mStatusCode, body, mBytesSent, mBytesReceived,
+                mSendNanos, mFirstByteNanos, mRoundTripNanos);
+    }
+
+    /**
+     * @return time spent writing the request body
+     */
+    public long getSendNanos() {
+        return mSendNanos;
+    }
+
+    /**
+     * @return time from the last request byte to the response status line
+     */
+    public long getFirstByteNanos() {
+        return mFirstByteNanos;
+    }
+
+    /**
+     * @return time from the first request byte to the last response byte
+     */
+    public long getRoundTripNanos() {
+        return mRoundTripNanos;
+    }
+}
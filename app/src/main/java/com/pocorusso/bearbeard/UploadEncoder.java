@@ -0,0 +1,193 @@
+package com.pocorusso.bearbeard;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decodes, shrinks and compresses pictures for upload on a background thread.
+ *
+ * Encoded payloads are kept in a small LRU keyed by file, modification time and
+ * {@link EncodingProfile}, so retrying or uploading the same picture again does
+ * not encode it again.
+ */
+public class UploadEncoder {
+
+    public interface EncodeListener {
+        /**
+         * Called on the UI thread.
+         */
+        void onEncoded(EncodedPayload payload);
+
+        /**
+         * Called on the UI thread.
+         */
+        void onEncodeError(Exception e);
+    }
+
+    private static String TAG = "UploadEncoder";
+    private static final int DEFAULT_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private final ExecutorService mExecutor;
+    private final Handler mResponseHandler = new Handler(Looper.getMainLooper());
+    private final int mMaxCacheBytes;
+    private final LinkedHashMap<String, EncodedPayload> mCache =
+            new LinkedHashMap<String, EncodedPayload>(16, 0.75f, true);
+    private int mCacheBytes;
+
+    public UploadEncoder() {
+        this(DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * @param maxCacheBytes total size of encoded payloads kept for reuse
+     */
+    public UploadEncoder(int maxCacheBytes) {
+        mMaxCacheBytes = maxCacheBytes;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    /**
+     * Key of the payload a file encodes to with the given profile.
+     */
+    public static String payloadKey(File file, EncodingProfile profile) {
+        return payloadKey(file, profile.getPayloadKey());
+    }
+
+    public static String payloadKey(File file, String profileKey) {
+        return file.getPath() + "@" + file.lastModified() + "#" + profileKey;
+    }
+
+    /**
+     * Encode a file off the calling thread. The listener, if any, is called on the UI thread.
+     *
+     * @return the pending payload
+     */
+    public Future<EncodedPayload> encode(final File file, final EncodingProfile profile,
+                                         final EncodeListener listener) {
+        return mExecutor.submit(new Callable<EncodedPayload>() {
+            @Override
+            public EncodedPayload call() throws Exception {
+                try {
+                    final EncodedPayload payload = encodeNow(file, profile);
+                    if (listener != null) {
+                        mResponseHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onEncoded(payload);
+                            }
+                        });
+                    }
+                    return payload;
+                } catch (final Exception e) {
+                    if (listener != null) {
+                        mResponseHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onEncodeError(e);
+                            }
+                        });
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Encode on the calling thread, or return the cached payload.
+     */
+    public EncodedPayload encodeNow(File file, EncodingProfile profile) throws IOException {
+        if (profile.isOriginal()) {
+            throw new IllegalArgumentException("Original pictures are sent without encoding");
+        }
+        String key = payloadKey(file, profile);
+        EncodedPayload payload = getCached(key);
+        if (payload != null) {
+            Log.d(TAG, "encode served from cache " + key);
+            return payload;
+        }
+
+        long started = System.nanoTime();
+        BitmapDecoder decoder = BitmapDecoder.getInstance();
+        Bitmap bitmap = decoder.decodeFileToLongEdge(file.getPath(), profile.getLongEdge(),
+                Bitmap.Config.ARGB_8888);
+        if (bitmap == null) {
+            throw new IOException("Failed to decode " + file);
+        }
+        //sampling only gets within a factor of two, scale the rest of the way
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (Math.max(width, height) > profile.getLongEdge()) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    BitmapSampling.scaleToLongEdge(width, width, height, profile.getLongEdge()),
+                    BitmapSampling.scaleToLongEdge(height, width, height, profile.getLongEdge()), true);
+            decoder.recycle(bitmap);
+            bitmap = scaled;
+        }
+        long decoded = System.nanoTime();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        bitmap.compress(profile.getFormat(), profile.getQuality(), baos);
+        decoder.recycle(bitmap);
+        long compressed = System.nanoTime();
+
+        payload = new EncodedPayload(key, baos.toByteArray(), profile.getContentType(),
+                decoded - started, compressed - decoded);
+        Tracer.getInstance().record(Tracer.Stage.UPLOAD_ENCODE, started, compressed - started);
+        Log.d(TAG, "encoded " + payload);
+        putCached(payload);
+        return payload;
+    }
+
+    private synchronized EncodedPayload getCached(String key) {
+        return mCache.get(key);
+    }
+
+    private synchronized void putCached(EncodedPayload payload) {
+        int size = payload.getData().length;
+        if (size > mMaxCacheBytes) {
+            return;
+        }
+        EncodedPayload previous = mCache.put(payload.getKey(), payload);
+        if (previous != null) {
+            mCacheBytes -= previous.getData().length;
+        }
+        mCacheBytes += size;
+
+        Iterator<Map.Entry<String, EncodedPayload>> it = mCache.entrySet().iterator();
+        while (mCacheBytes > mMaxCacheBytes && it.hasNext()) {
+            mCacheBytes -= it.next().getValue().getData().length;
+            it.remove();
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
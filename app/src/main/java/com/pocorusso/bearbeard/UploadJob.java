@@ -0,0 +1,87 @@
+package com.pocorusso.bearbeard;
+
+import java.io.File;
+
+/**
+ * A picture waiting to be uploaded, as tracked by the {@link UploadQueue}.
+ */
+public class UploadJob {
+
+    public enum State {
+        /** waiting to be sent, possibly backing off after a failure */
+        PENDING,
+        /** handed to the sender */
+        IN_FLIGHT,
+        /** the server accepted it */
+        DONE,
+        /** gave up on it */
+        FAILED
+    }
+
+    private final long mId;
+    private final File mFile;
+    private final String mProfileKey;
+    private State mState;
+    private int mAttempts;
+    private volatile Object mTag;
+
+    public UploadJob(long id, File file, String profileKey, State state, int attempts) {
+        mId = id;
+        mFile = file;
+        mProfileKey = profileKey;
+        mState = state;
+        mAttempts = attempts;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return key of the {@link EncodingProfile} to encode the picture with
+     */
+    public String getProfileKey() {
+        return mProfileKey;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    synchronized void setState(State state) {
+        mState = state;
+    }
+
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    synchronized void incrementAttempts() {
+        mAttempts++;
+    }
+
+    /**
+     * @return the object passed to {@link UploadQueue#enqueue}. Not journaled, so null
+     * for jobs replayed after a restart.
+     */
+    public Object getTag() {
+        return mTag;
+    }
+
+    void setTag(Object tag) {
+        mTag = tag;
+    }
+
+    public synchronized boolean isFinished() {
+        return mState == State.DONE || mState == State.FAILED;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UploadJob " + mId + " " + mState + " attempts=" + mAttempts + " " + mFile;
+    }
+}
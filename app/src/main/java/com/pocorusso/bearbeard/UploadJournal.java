@@ -0,0 +1,164 @@
+package com.pocorusso.bearbeard;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only log of upload job states, so pending uploads survive process death.
+ *
+ * Every state change appends one line of tab separated id, state, attempt count,
+ * profile key and file path. On replay the last line for each id wins and
+ * unparseable lines, such as one torn by a crash mid-write, are skipped. The log
+ * is rewritten with only the live jobs once it is mostly dead records.
+ */
+public class UploadJournal {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEPARATOR = "\t";
+    private static final int COMPACT_MIN_RECORDS = 64;
+
+    private final File mFile;
+    private final Map<Long, UploadJob> mJobs = new LinkedHashMap<Long, UploadJob>();
+    private FileOutputStream mOut;
+    private int mRecordCount;
+    private long mNextId = 1;
+
+    public UploadJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Read the journal and open it for appending.
+     *
+     * @return jobs that were not finished, in the order they were first queued
+     */
+    public synchronized List<UploadJob> replay() throws IOException {
+        mJobs.clear();
+        mRecordCount = 0;
+        if (mFile.exists()) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mFile), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    UploadJob job = parse(line);
+                    if (job == null) {
+                        continue;
+                    }
+                    mRecordCount++;
+                    mNextId = Math.max(mNextId, job.getId() + 1);
+                    if (job.isFinished()) {
+                        mJobs.remove(job.getId());
+                    } else {
+                        mJobs.put(job.getId(), job);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        List<UploadJob> pending = new ArrayList<UploadJob>();
+        for (UploadJob job : mJobs.values()) {
+            //whatever was in flight when the process died has to be sent again
+            job.setState(UploadJob.State.PENDING);
+            pending.add(job);
+        }
+        compact();
+        return pending;
+    }
+
+    /**
+     * Create a new pending job. It is not on disk until it is passed to {@link #update}.
+     */
+    public synchronized UploadJob create(File file, String profileKey) {
+        return new UploadJob(mNextId++, file, profileKey, UploadJob.State.PENDING, 0);
+    }
+
+    /**
+     * Record the job's current state and attempt count.
+     */
+    public synchronized void update(UploadJob job) throws IOException {
+        if (job.isFinished()) {
+            mJobs.remove(job.getId());
+        } else {
+            mJobs.put(job.getId(), job);
+        }
+        append(job);
+        if (mRecordCount >= COMPACT_MIN_RECORDS && mRecordCount > mJobs.size() * 4) {
+            compact();
+        }
+    }
+
+    public synchronized int getLiveCount() {
+        return mJobs.size();
+    }
+
+    public synchronized void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+    private void append(UploadJob job) throws IOException {
+        if (mOut == null) {
+            mOut = openForAppend();
+        }
+        mOut.write(format(job).getBytes(UTF_8));
+        mOut.getFD().sync();
+        mRecordCount++;
+    }
+
+    /**
+     * Rewrite the journal with one record per live job.
+     */
+    private void compact() throws IOException {
+        close();
+        StringBuilder sb = new StringBuilder();
+        for (UploadJob job : mJobs.values()) {
+            sb.append(format(job));
+        }
+        PictureSaver.writeAtomically(mFile, sb.toString().getBytes(UTF_8));
+        mRecordCount = mJobs.size();
+    }
+
+    private FileOutputStream openForAppend() throws FileNotFoundException {
+        File parent = mFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        return new FileOutputStream(mFile, true);
+    }
+
+    private static String format(UploadJob job) {
+        return job.getId() + SEPARATOR
+                + job.getState() + SEPARATOR
+                + job.getAttempts() + SEPARATOR
+                + job.getProfileKey() + SEPARATOR
+                + job.getFile().getPath() + "\n";
+    }
+
+    private static UploadJob parse(String line) {
+        String[] fields = line.split(SEPARATOR, 5);
+        if (fields.length != 5 || fields[4].isEmpty()) {
+            return null;
+        }
+        try {
+            return new UploadJob(Long.parseLong(fields[0]), new File(fields[4]), fields[3],
+                    UploadJob.State.valueOf(fields[1]), Integer.parseInt(fields[2]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.pocorusso.bearbeard;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads pictures one job at a time, remembering them in an {@link UploadJournal}
+ * so that nothing queued is lost when the process dies.
+ *
+ * All state changes happen on a single scheduler thread. At most maxConcurrent jobs
+ * are handed to the {@link Sender} at once; a job whose send fails with a retryable
+ * error goes back to pending after an exponential backoff with full jitter, and is
+ * given up after maxAttempts.
+ */
+public class UploadQueue {
+
+    public interface Sender {
+        /**
+         * Send the job. May return before the send is done; the callback must be
+         * called exactly once, on any thread.
+         */
+        void send(UploadJob job, SendCallback callback);
+    }
+
+    public interface SendCallback {
+        void onSuccess(byte[] response);
+
+        /**
+         * @param retryable false if sending the same job again can not succeed
+         */
+        void onFailure(Exception e, boolean retryable);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the scheduler thread.
+         */
+        void onUploadComplete(UploadJob job, byte[] response);
+
+        /**
+         * Called on the scheduler thread once the job has been given up.
+         */
+        void onUploadFailed(UploadJob job, Exception e);
+    }
+
+    private static final long DEFAULT_BASE_BACKOFF_MS = 1000;
+    private static final long DEFAULT_MAX_BACKOFF_MS = 60 * 1000;
+
+    private final UploadJournal mJournal;
+    private final Sender mSender;
+    private final Listener mListener;
+    private final int mMaxConcurrent;
+    private final int mMaxAttempts;
+    private final long mBaseBackoffMs;
+    private final long mMaxBackoffMs;
+    private final Random mRandom;
+    private final ScheduledExecutorService mScheduler;
+
+    //only touched on the scheduler thread
+    private final Deque<UploadJob> mPending = new ArrayDeque<UploadJob>();
+    private int mInFlight;
+
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mReplayed = new AtomicLong();
+
+    public UploadQueue(UploadJournal journal, Sender sender, Listener listener, int maxConcurrent) {
+        this(journal, sender, listener, maxConcurrent, 5,
+                DEFAULT_BASE_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS, new Random());
+    }
+
+    /**
+     * @param maxConcurrent jobs handed to the sender at once
+     * @param maxAttempts   sends of a job before it is given up
+     * @param baseBackoffMs upper bound of the delay before the first retry,
+     *                      doubled for every further attempt
+     * @param maxBackoffMs  cap of the retry delay bound
+     */
+    public UploadQueue(UploadJournal journal, Sender sender, Listener listener, int maxConcurrent,
+                       int maxAttempts, long baseBackoffMs, long maxBackoffMs, Random random) {
+        if (maxConcurrent < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("maxConcurrent and maxAttempts must be positive");
+        }
+        mJournal = journal;
+        mSender = sender;
+        mListener = listener;
+        mMaxConcurrent = maxConcurrent;
+        mMaxAttempts = maxAttempts;
+        mBaseBackoffMs = baseBackoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+        mRandom = random;
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "UploadQueue");
+            }
+        });
+    }
+
+    /**
+     * Replay the journal and start sending whatever was left unfinished.
+     */
+    public void start() {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<UploadJob> jobs;
+                try {
+                    jobs = mJournal.replay();
+                } catch (IOException e) {
+                    //carry on without the old jobs rather than not upload at all
+                    jobs = new ArrayList<UploadJob>();
+                }
+                mReplayed.addAndGet(jobs.size());
+                mPending.addAll(jobs);
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * Journal a new job and queue it, both on the scheduler thread.
+     *
+     * @param profileKey key of the {@link EncodingProfile} the sender should use
+     * @param tag        handed back with the job to the listener, not journaled
+     * @return false if the queue has been shut down
+     */
+    public boolean enqueue(final File file, final String profileKey, final Object tag) {
+        try {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    UploadJob job = mJournal.create(file, profileKey);
+                    job.setTag(tag);
+                    record(job);
+                    mPending.add(job);
+                    dispatch();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop sending. Jobs that are not finished stay in the journal for the next {@link #start}.
+     */
+    public void shutdown() {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mJournal.close();
+                } catch (IOException e) {
+                    //the journal was synced after every record, nothing is lost
+                }
+            }
+        });
+        mScheduler.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mScheduler.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Upper bound of the delay before the given retry; the actual delay is
+     * uniformly distributed below it.
+     */
+    static long backoffBoundMs(int attempts, long baseMs, long maxMs) {
+        int shift = Math.min(Math.max(attempts - 1, 0), 30);
+        long bound = baseMs << shift;
+        return bound < 0 || bound > maxMs ? maxMs : bound;
+    }
+
+    private void dispatch() {
+        while (mInFlight < mMaxConcurrent && !mPending.isEmpty()) {
+            final UploadJob job = mPending.poll();
+            job.setState(UploadJob.State.IN_FLIGHT);
+            job.incrementAttempts();
+            record(job);
+            mInFlight++;
+            try {
+                mSender.send(job, new SendCallback() {
+                    @Override
+                    public void onSuccess(final byte[] response) {
+                        execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                onSent(job, response);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(final Exception e, final boolean retryable) {
+                        execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                onSendFailed(job, e, retryable);
+                            }
+                        });
+                    }
+                });
+            } catch (RuntimeException e) {
+                onSendFailed(job, e, false);
+            }
+        }
+    }
+
+    private void onSent(UploadJob job, byte[] response) {
+        mInFlight--;
+        job.setState(UploadJob.State.DONE);
+        record(job);
+        mCompleted.incrementAndGet();
+        mListener.onUploadComplete(job, response);
+        dispatch();
+    }
+
+    private void onSendFailed(final UploadJob job, Exception e, boolean retryable) {
+        mInFlight--;
+        if (!retryable || job.getAttempts() >= mMaxAttempts) {
+            job.setState(UploadJob.State.FAILED);
+            record(job);
+            mFailed.incrementAndGet();
+            mListener.onUploadFailed(job, e);
+            dispatch();
+            return;
+        }
+
+        job.setState(UploadJob.State.PENDING);
+        record(job);
+        mRetries.incrementAndGet();
+        long bound = backoffBoundMs(job.getAttempts(), mBaseBackoffMs, mMaxBackoffMs);
+        long delay = bound <= 0 ? 0 : (long) (mRandom.nextDouble() * bound);
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                mPending.add(job);
+                dispatch();
+            }
+        }, delay);
+        dispatch();
+    }
+
+    private void record(UploadJob job) {
+        try {
+            mJournal.update(job);
+        } catch (IOException e) {
+            //keep going; at worst the job is sent again after a restart
+        }
+    }
+
+    private void execute(Runnable runnable) {
+        try {
+            mScheduler.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            //shut down; the job is still in the journal
+        }
+    }
+
+    private void schedule(Runnable runnable, long delayMs) {
+        try {
+            mScheduler.schedule(runnable, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //shut down; the job is still in the journal
+        }
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+
+    /**
+     * @return jobs picked up from the journal by {@link #start}
+     */
+    public long getReplayedCount() {
+        return mReplayed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "completed=" + getCompletedCount()
+                + ", failed=" + getFailedCount()
+                + ", retries=" + getRetryCount()
+                + ", replayed=" + getReplayedCount();
+    }
+}
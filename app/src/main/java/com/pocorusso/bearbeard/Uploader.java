@@ -2,30 +2,119 @@ package com.pocorusso.bearbeard;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
-import android.widget.ImageView;
 
-import com.android.volley.AuthFailureError;
-import com.android.volley.RequestQueue;
-import com.android.volley.Response;
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.ImageRequest;
-import com.android.volley.toolbox.Volley;
-
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Sends pictures to the server and hands back the transformed result.
+ *
+ * Uploads go through an {@link UploadQueue} journaled to the app's files directory, so
+ * an upload that is queued or in flight when the process dies is sent again the next
+ * time the uploader is created. Its result then lands in the result cache.
+ *
+ * Request bodies are streamed in chunks by a {@link StreamingSender}, so a full
+ * resolution capture sent with {@link EncodingProfile#ORIGINAL} is never held in memory.
+ * In front of it a {@link CoalescingSender} answers payloads that were sent before from
+ * a disk cache keyed by content hash and profile, and sends identical payloads in
+ * flight at the same time only once.
+ *
+ * Single uploads ask for a progressive response, so a thumbnail the server sends
+ * ahead of the full result reaches {@link UploadListener#onPreview(Bitmap)} while the
+ * rest is still coming. {@link #getResultTiming()} compares the time to that first
+ * pixel with the time to the full result.
+ */
 public class Uploader {
 
     public interface UploadListener {
+        /**
+         * A low resolution result sent ahead by the server, to show until
+         * {@link #onUploaded(Bitmap)} brings the full one. Not every upload has one.
+         */
+        void onPreview(Bitmap bitmap);
         void onUploaded(Bitmap bitmap);
         void onUploadError();
     }
 
+    /**
+     * Results of {@link #uploadBatch}, one call per file, in the order they arrive.
+     */
+    public interface BatchListener {
+        void onUploaded(File file, Bitmap bitmap);
+        void onUploadError(File file);
+    }
+
     private static String TAG = "Uploader";
-    private static String URL = "http://ec2-34-250-78-232.eu-west-1.compute.amazonaws.com/m2w";
+    private static String DEFAULT_ENDPOINT = "http://ec2-34-250-78-232.eu-west-1.compute.amazonaws.com/m2w";
+    private static String DEFAULT_BATCH_ENDPOINT = DEFAULT_ENDPOINT + "/batch";
     private static Uploader mInstance;
-    private RequestQueue mQueue;
+    private static final String JOURNAL_NAME = "upload_journal";
+    private static final String BATCH_JOURNAL_NAME = "upload_batch_journal";
+    private static final String RESPONSE_CACHE_DIR = "upload_responses";
+    private static final long RESPONSE_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_CONCURRENT_UPLOADS = 2;
+    //full resolution pictures get longer to go up
+    private static final RequestPolicy ORIGINAL_POLICY = new RequestPolicy(60000, 1, 250);
+    private static final int MAX_IDLE_CONNECTIONS = MAX_CONCURRENT_UPLOADS;
+    private static final long KEEP_ALIVE_MS = 30000;
+    private static final int DEFAULT_BATCH_SIZE = 8;
+    private static final long DEFAULT_BATCH_LINGER_MS = 200;
+    private static final int BATCH_TIMEOUT_MS = 30000;
+    //lets the next batch fill up while one is in flight
+    private static final int MAX_BATCHED_UPLOADS = DEFAULT_BATCH_SIZE * 2;
+    //adaptive mode picks the largest upload expected back within this time
+    private static final long ADAPTIVE_BUDGET_MS = 1500;
+    private static final long ASSUMED_BYTES_PER_SECOND = 64 * 1024;
+    private static final long ASSUMED_LATENCY_MS = 500;
+    private BitmapMemoryCache mResultCache;
+    private UploadEncoder mEncoder;
+    private StreamingSender mSender;
+    private CoalescingSender mCoalescingSender;
+    private UploadQueue mUploadQueue;
+    private BatchingSender mBatchSender;
+    private UploadQueue mBatchQueue;
+    private final LinkEstimator mLink = new LinkEstimator(ASSUMED_BYTES_PER_SECOND,
+            TimeUnit.MILLISECONDS.toNanos(ASSUMED_LATENCY_MS));
+    private final ProfileMetrics mProfileMetrics = new ProfileMetrics();
+    private final AdaptiveSelector mSelector = new AdaptiveSelector(mLink, mProfileMetrics,
+            TimeUnit.MILLISECONDS.toNanos(ADAPTIVE_BUDGET_MS));
+    private final ResultTiming mResultTiming = new ResultTiming();
+    private final Map<UploadJob, Long> mEncodeNanos = new ConcurrentHashMap<UploadJob, Long>();
+    private volatile boolean mAdaptive;
+    private final Handler mResponseHandler = new Handler(Looper.getMainLooper());
+    private final Set<PendingUpload> mPendingUploads =
+            Collections.synchronizedSet(new HashSet<PendingUpload>());
+
+    /**
+     * The listener waiting for a job, carried as the job's tag.
+     */
+    private static class PendingUpload {
+        final UploadListener mListener;
+        final long mStartedNanos = System.nanoTime();
+        volatile boolean mCancelled;
+        //only touched on the UI thread
+        long mFirstPixelNanos;
+        boolean mDone;
+
+        PendingUpload(UploadListener listener) {
+            mListener = listener;
+        }
+    }
 
     /**
      * Singleton
@@ -41,59 +130,365 @@ public class Uploader {
     }
 
     private Uploader(Context context) {
-        mQueue = Volley.newRequestQueue(context);
+        mResultCache = BitmapMemoryCache.getInstance(context);
+        mEncoder = new UploadEncoder();
+        URL endpoint;
+        URL batchEndpoint;
+        try {
+            endpoint = new URL(DEFAULT_ENDPOINT);
+            batchEndpoint = new URL(DEFAULT_BATCH_ENDPOINT);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+        mSender = new StreamingSender(endpoint, createTransport(endpoint), new PayloadSource(),
+                MAX_CONCURRENT_UPLOADS);
+        mSender.setTransferListener(new StreamingSender.TransferListener() {
+            @Override
+            public void onTransfer(UploadJob job, long bytesSent, long sendNanos, long firstByteNanos,
+                                   long roundTripNanos) {
+                Long encodeNanos = mEncodeNanos.remove(job);
+                mProfileMetrics.record(job.getProfileKey(), bytesSent,
+                        encodeNanos != null ? encodeNanos : 0, roundTripNanos);
+                mLink.onTransfer(bytesSent, sendNanos, firstByteNanos);
+            }
+        });
+        mSender.setPreviewListener(new PreviewDecoder());
+        DiskResponseCache responseCache = new DiskResponseCache(
+                new File(context.getCacheDir(), RESPONSE_CACHE_DIR), RESPONSE_CACHE_BYTES);
+        mCoalescingSender = new CoalescingSender(mSender, new ContentKey(), responseCache,
+                MAX_CONCURRENT_UPLOADS);
+        mUploadQueue = new UploadQueue(new UploadJournal(new File(context.getFilesDir(), JOURNAL_NAME)),
+                mCoalescingSender, new QueueListener(), MAX_CONCURRENT_UPLOADS);
+        mUploadQueue.start();
+
+        mBatchSender = new BatchingSender(batchEndpoint, createTransport(batchEndpoint), new PayloadSource(),
+                DEFAULT_BATCH_SIZE, DEFAULT_BATCH_LINGER_MS, BATCH_TIMEOUT_MS, 1);
+        mBatchQueue = new UploadQueue(new UploadJournal(new File(context.getFilesDir(), BATCH_JOURNAL_NAME)),
+                new CoalescingSender(mBatchSender, new ContentKey(), responseCache, 1),
+                new QueueListener(), MAX_BATCHED_UPLOADS);
+        mBatchQueue.start();
     }
 
+    /**
+     * Stop calling the listeners of pending uploads. The uploads themselves carry on
+     * and their results go to the result cache.
+     */
     public void cancelAll() {
-        mQueue.cancelAll(TAG);
+        synchronized (mPendingUploads) {
+            for (PendingUpload pending : mPendingUploads) {
+                pending.mCancelled = true;
+            }
+            mPendingUploads.clear();
+        }
+    }
+
+    /**
+     * Send uploads from now on to another server, such as a local mock for load tests.
+     */
+    public void setEndpoint(URL endpoint) {
+        mSender.setEndpoint(endpoint, createTransport(endpoint));
+    }
+
+    public void setBatchEndpoint(URL endpoint) {
+        mBatchSender.setEndpoint(endpoint, createTransport(endpoint));
+    }
+
+    /**
+     * @param maxBatchSize pictures sent in one request at most
+     * @param lingerMs     how long the first picture of a batch waits for more
+     */
+    public void setBatchOptions(int maxBatchSize, long lingerMs) {
+        mBatchSender.setBatchOptions(maxBatchSize, lingerMs);
+    }
+
+    public BatchingSender getBatchSender() {
+        return mBatchSender;
+    }
+
+    /**
+     * Our own keep-alive pool for plain http, the platform's for https.
+     */
+    private static Transport createTransport(URL endpoint) {
+        if ("http".equals(endpoint.getProtocol())) {
+            return new PooledHttpTransport(StreamingSender.DEFAULT_CHUNK_SIZE, MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MS);
+        }
+        return new UrlConnectionTransport(StreamingSender.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @return time to the first pixel and to the full result of uploads
+     */
+    public ResultTiming getResultTiming() {
+        return mResultTiming;
+    }
+
+    public UploadQueue getUploadQueue() {
+        return mUploadQueue;
+    }
+
+    /**
+     * @return upload throughput, latency percentiles and connection reuse
+     */
+    public TransferStats getTransferStats() {
+        return mSender.getStats();
+    }
+
+    /**
+     * @return response cache hits and coalesced duplicate uploads
+     */
+    public CoalescingSender getCoalescingSender() {
+        return mCoalescingSender;
+    }
+
+    /**
+     * @return payload size, encode time and round trip time per {@link EncodingProfile#getKey()}
+     */
+    public ProfileMetrics getProfileMetrics() {
+        return mProfileMetrics;
+    }
+
+    /**
+     * @param adaptive true to pick the profile of {@link #uploadFile(File, UploadListener)}
+     *                 from {@link EncodingProfile#ADAPTIVE_LADDER} by the measured link speed
+     *                 and server latency, false to always use {@link EncodingProfile#DEFAULT}
+     */
+    public void setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+    }
+
+    /**
+     * @return the profile the next upload would use
+     */
+    public EncodingProfile selectProfile() {
+        if (!mAdaptive) {
+            return EncodingProfile.DEFAULT;
+        }
+        EncodingProfile[] ladder = EncodingProfile.ADAPTIVE_LADDER;
+        String[] keys = new String[ladder.length];
+        long[] fallbackBytes = new long[ladder.length];
+        for (int i = 0; i < ladder.length; i++) {
+            keys[i] = ladder[i].getKey();
+            fallbackBytes[i] = AdaptiveSelector.estimatePayloadBytes(ladder[i].getLongEdge(),
+                    ladder[i].getQuality());
+        }
+        EncodingProfile profile = ladder[mSelector.select(keys, fallbackBytes)];
+        Log.d(TAG, "selected " + profile + " for " + mLink);
+        return profile;
     }
 
     public void uploadFile(File file, final UploadListener uploadListener) {
+        uploadFile(file, selectProfile(), uploadListener);
+    }
+
+    /**
+     * Queue the file for upload. Called from the UI thread; the listener is also
+     * called on the UI thread.
+     */
+    public void uploadFile(File file, EncodingProfile profile, final UploadListener uploadListener) {
         if (file == null) return;
 
         Log.d(TAG, "uploadFile file: " + file.getPath());
-        //Convert bitmap to byte array
-        Bitmap bitmap = PictureUtils.getScaledBitmap(file.getPath(),50, 50);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 50, baos);
-        final byte[] imageBytes = baos.toByteArray();
-
-        ImageRequest postRequest = new ImageRequest(URL,
-                new Response.Listener<Bitmap>() {
-                    @Override
-                    public void onResponse(Bitmap response) {
-                        // response
-                        Log.d(TAG, "onResponse");
-                        uploadListener.onUploaded(response);
+        //the same file was already transformed, don't send it again
+        Bitmap cached = mResultCache.get(resultKey(file, profile));
+        if (cached != null) {
+            Log.d(TAG, "uploadFile served from cache");
+            uploadListener.onUploaded(cached);
+            return;
+        }
+
+        enqueue(mUploadQueue, file, profile, uploadListener);
+    }
+
+    public void uploadBatch(List<File> files, BatchListener batchListener) {
+        uploadBatch(files, selectProfile(), batchListener);
+    }
+
+    /**
+     * Queue the files to be sent packed into as few requests as the batch options
+     * allow; files queued by other calls within the linger time share the requests.
+     * Called from the UI thread; the listener is also called on the UI thread, for
+     * each file as soon as its result has been read.
+     */
+    public void uploadBatch(List<File> files, EncodingProfile profile, final BatchListener batchListener) {
+        Log.d(TAG, "uploadBatch " + files.size() + " files");
+        for (final File file : files) {
+            UploadListener listener = new UploadListener() {
+                @Override
+                public void onPreview(Bitmap bitmap) {
+                    //batch responses are not progressive
+                }
+
+                @Override
+                public void onUploaded(Bitmap bitmap) {
+                    batchListener.onUploaded(file, bitmap);
+                }
+
+                @Override
+                public void onUploadError() {
+                    batchListener.onUploadError(file);
+                }
+            };
+            Bitmap cached = mResultCache.get(resultKey(file, profile));
+            if (cached != null) {
+                listener.onUploaded(cached);
+            } else {
+                enqueue(mBatchQueue, file, profile, listener);
+            }
+        }
+    }
+
+    private void enqueue(UploadQueue queue, File file, EncodingProfile profile, UploadListener listener) {
+        PendingUpload pending = new PendingUpload(listener);
+        mPendingUploads.add(pending);
+        if (!queue.enqueue(file, profile.getKey(), pending)) {
+            mPendingUploads.remove(pending);
+            listener.onUploadError();
+        }
+    }
+
+    private static String resultKey(File file, EncodingProfile profile) {
+        return BitmapMemoryCache.requestKey(UploadEncoder.payloadKey(file, profile.getKey()),
+                profile.getResponseLongEdge(), profile.getResponseLongEdge());
+    }
+
+    /**
+     * Streams the captured file for {@link EncodingProfile#ORIGINAL}, otherwise
+     * encodes it on the sender thread first.
+     */
+    private class PayloadSource implements StreamingSender.BodySource, BatchingSender.FrameSource {
+        @Override
+        public long getLength(UploadJob job) throws IOException {
+            EncodingProfile profile = profileOf(job);
+            if (profile.isOriginal()) {
+                return job.getFile().length();
+            }
+            return mEncoder.encodeNow(job.getFile(), profile).getData().length;
+        }
+
+        @Override
+        public String getContentType(UploadJob job) {
+            return profileOf(job).getContentType();
+        }
+
+        @Override
+        public RequestPolicy getPolicy(UploadJob job) {
+            return profileOf(job).isOriginal() ? ORIGINAL_POLICY : RequestPolicy.DEFAULT;
+        }
+
+        @Override
+        public InputStream open(UploadJob job) throws IOException {
+            EncodingProfile profile = profileOf(job);
+            Log.d(TAG, "sending " + job + " as " + profile);
+            if (profile.isOriginal()) {
+                return new FileInputStream(job.getFile());
+            }
+            EncodedPayload payload = mEncoder.encodeNow(job.getFile(), profile);
+            mEncodeNanos.put(job, payload.getTotalNanos());
+            return new ByteArrayInputStream(payload.getData());
+        }
+    }
+
+    /**
+     * Hash of the bytes that would be sent, and the profile they were encoded with.
+     */
+    private class ContentKey implements CoalescingSender.KeyFunction {
+        @Override
+        public String keyOf(UploadJob job) throws IOException {
+            EncodingProfile profile = profileOf(job);
+            String hash = profile.isOriginal()
+                    ? ContentHash.sha256(job.getFile())
+                    : ContentHash.sha256(mEncoder.encodeNow(job.getFile(), profile).getData());
+            return hash + "_" + profile.getPayloadKey();
+        }
+    }
+
+    private static EncodingProfile profileOf(UploadJob job) {
+        EncodingProfile profile = EncodingProfile.fromKey(job.getProfileKey());
+        return profile != null ? profile : EncodingProfile.DEFAULT;
+    }
+
+    /**
+     * Decodes previews on the sender thread and shows them on the UI thread.
+     */
+    private class PreviewDecoder implements StreamingSender.PreviewListener {
+        @Override
+        public void onPreview(UploadJob job, byte[] preview) {
+            final PendingUpload pending = (PendingUpload) job.getTag();
+            if (pending == null || pending.mCancelled) {
+                return;
+            }
+            EncodingProfile profile = profileOf(job);
+            final Bitmap bitmap = BitmapDecoder.getInstance().decodeByteArrayToLongEdge(preview,
+                    profile.getResponseLongEdge(), profile.getResponseConfig());
+            if (bitmap == null) {
+                Log.w(TAG, "could not decode preview of " + job);
+                return;
+            }
+            mResponseHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (pending.mCancelled || pending.mDone) {
+                        BitmapDecoder.getInstance().recycle(bitmap);
+                        return;
                     }
-                },
-                100,100, ImageView.ScaleType.CENTER_INSIDE
-                , Bitmap.Config.ARGB_8888
-                , new Response.ErrorListener() {
-                    @Override
-                    public void onErrorResponse(VolleyError error) {
-                        Log.e(TAG, "Error.Response " + error.getMessage());
-                        uploadListener.onUploadError();
+                    if (pending.mFirstPixelNanos == 0) {
+                        pending.mFirstPixelNanos = System.nanoTime() - pending.mStartedNanos;
                     }
+                    pending.mListener.onPreview(bitmap);
                 }
-        ) {
+            });
+        }
+    }
 
-            @Override
-            public int getMethod() {
-                return Method.POST;
+    private class QueueListener implements UploadQueue.Listener {
+        @Override
+        public void onUploadComplete(UploadJob job, byte[] response) {
+            mEncodeNanos.remove(job);
+            Log.d(TAG, "onUploadComplete " + job + ", " + mCoalescingSender + ", " + mSender.getStats()
+                    + ", " + mProfileMetrics);
+            EncodingProfile profile = profileOf(job);
+            long traceStart = Tracer.getInstance().begin();
+            Bitmap bitmap = BitmapDecoder.getInstance().decodeByteArrayToLongEdge(response,
+                    profile.getResponseLongEdge(), profile.getResponseConfig());
+            Tracer.getInstance().end(Tracer.Stage.RESPONSE_DECODE, traceStart);
+            if (bitmap != null) {
+                mResultCache.put(resultKey(job.getFile(), profile), bitmap);
             }
+            deliver((PendingUpload) job.getTag(), bitmap);
+        }
 
-            @Override
-            public byte[] getBody() throws AuthFailureError {
-                return imageBytes;
-            }
+        @Override
+        public void onUploadFailed(UploadJob job, Exception e) {
+            Log.e(TAG, "onUploadFailed " + job + ": " + e.getMessage() + ", " + mSender.getStats());
+            mEncodeNanos.remove(job);
+            deliver((PendingUpload) job.getTag(), null);
+        }
 
-            @Override
-            public String getBodyContentType() {
-                return "image/jpeg";
+        private void deliver(final PendingUpload pending, final Bitmap bitmap) {
+            if (pending == null) {
+                //replayed from the journal, nobody is waiting for it
+                return;
             }
-        };
-        postRequest.setTag(TAG);
-        mQueue.add(postRequest);
+            mResponseHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mPendingUploads.remove(pending);
+                    pending.mDone = true;
+                    if (pending.mCancelled) {
+                        return;
+                    }
+                    if (bitmap != null) {
+                        long fullResultNanos = System.nanoTime() - pending.mStartedNanos;
+                        boolean progressive = pending.mFirstPixelNanos != 0;
+                        mResultTiming.record(progressive ? pending.mFirstPixelNanos : fullResultNanos,
+                                fullResultNanos, progressive);
+                        Log.d(TAG, "result timing " + mResultTiming);
+                        pending.mListener.onUploaded(bitmap);
+                    } else {
+                        pending.mListener.onUploadError();
+                    }
+                }
+            });
+        }
     }
 }
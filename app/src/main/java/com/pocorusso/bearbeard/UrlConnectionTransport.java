@@ -0,0 +1,106 @@
+package com.pocorusso.bearbeard;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * {@link Transport} over the platform's {@link HttpURLConnection}, streaming the body
+ * in chunked mode. Connections are kept alive by the platform's own pool, which does
+ * not say when one is reused, so no reuse is counted. Use it for https endpoints.
+ */
+public class UrlConnectionTransport implements Transport {
+
+    private final int mChunkSize;
+    private final TransferStats mStats = new TransferStats();
+
+    /**
+     * @param chunkSize size of the copy buffer and of each HTTP chunk
+     */
+    public UrlConnectionTransport(int chunkSize) {
+        mChunkSize = chunkSize;
+    }
+
+    @Override
+    public TransportResponse post(URL url, Body body, int timeoutMs) throws IOException {
+        Collector collector = new Collector();
+        return post(url, body, timeoutMs, collector).withBody(collector.getBody());
+    }
+
+    @Override
+    public TransportResponse post(URL url, Body body, int timeoutMs, ResponseHandler handler)
+            throws IOException {
+        byte[] buffer = new byte[mChunkSize];
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(mChunkSize);
+            connection.setConnectTimeout(timeoutMs);
+            connection.setReadTimeout(timeoutMs);
+            connection.setRequestProperty("Content-Type", body.getContentType());
+            if (body.getAccept() != null) {
+                connection.setRequestProperty("Accept", body.getAccept());
+            }
+
+            InputStream in = body.open();
+            long started = System.nanoTime();
+            long sent = 0;
+            try {
+                OutputStream out = connection.getOutputStream();
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                        sent += read;
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            long bodySent = System.nanoTime();
+
+            //blocks until the status line arrives
+            int status = connection.getResponseCode();
+            long firstByte = System.nanoTime();
+
+            //read error bodies too, a connection is only pooled once its response is consumed
+            InputStream responseIn = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (responseIn == null) {
+                responseIn = new ByteArrayInputStream(new byte[0]);
+            }
+            CountingInputStream counted = new CountingInputStream(responseIn);
+            try {
+                handler.onResponse(status, connection.getContentType(), counted);
+                counted.drain();
+            } finally {
+                counted.close();
+            }
+            long finished = System.nanoTime();
+
+            mStats.onTransfer(sent, bodySent - started, firstByte - bodySent, counted.getCount(),
+                    finished - started);
+            return new TransportResponse(status, null, sent, counted.getCount(),
+                    bodySent - started, firstByte - bodySent, finished - started);
+        } catch (IOException e) {
+            mStats.onFailure();
+            //don't hand a connection in an unknown state back to the pool
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public TransferStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
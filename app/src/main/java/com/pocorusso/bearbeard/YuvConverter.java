@@ -0,0 +1,207 @@
+package com.pocorusso.bearbeard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the planes of a YUV_420_888 image, as Camera2 ImageReaders deliver them,
+ * into an NV21 buffer like the ones the Camera1 preview fills, so frame consumers
+ * see the same format from every camera backend.
+ *
+ * Also converts NV21 to ARGB or luma, downscaled by point sampling and rotated
+ * clockwise by the angle {@link CameraOrientation#displayOrientation} gives, in one
+ * pass. The kernels work on a range of output rows into caller-owned arrays and never
+ * allocate; {@link ParallelYuvConverter} splits the rows across cores.
+ *
+ * Plain Java on {@link ByteBuffer}s and arrays, so it can be tested on the host JVM.
+ */
+public class YuvConverter {
+
+    private YuvConverter() {
+    }
+
+    /**
+     * @return width of the output for a frame of the given size
+     */
+    public static int outputWidth(int width, int height, int sampleSize, int rotation) {
+        return checkRotation(rotation) % 180 == 0 ? width / sampleSize : height / sampleSize;
+    }
+
+    /**
+     * @return height of the output for a frame of the given size
+     */
+    public static int outputHeight(int width, int height, int sampleSize, int rotation) {
+        return checkRotation(rotation) % 180 == 0 ? height / sampleSize : width / sampleSize;
+    }
+
+    private static int checkRotation(int rotation) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("rotation must be 0, 90, 180 or 270: " + rotation);
+        }
+        return rotation;
+    }
+
+    /**
+     * Convert an NV21 frame to ARGB with the BT.601 video range coefficients.
+     *
+     * @param sampleSize 1 for full size, n to keep every nth pixel in both directions
+     * @param rotation   clockwise, 0, 90, 180 or 270
+     * @param out        at least {@link #outputWidth} * {@link #outputHeight} pixels
+     */
+    public static void nv21ToArgb(byte[] nv21, int width, int height, int sampleSize, int rotation,
+                                  int[] out) {
+        nv21ToArgb(nv21, width, height, sampleSize, rotation, out, 0,
+                outputHeight(width, height, sampleSize, rotation));
+    }
+
+    /**
+     * Convert only output rows [rowStart, rowEnd), so stripes can run in parallel.
+     */
+    static void nv21ToArgb(byte[] nv21, int width, int height, int sampleSize, int rotation,
+                           int[] out, int rowStart, int rowEnd) {
+        int outWidth = outputWidth(width, height, sampleSize, rotation);
+        int frameSize = width * height;
+        if (rotation == 0 && sampleSize == 1) {
+            //the common case: two pixels share each chroma pair
+            for (int row = rowStart; row < rowEnd; row++) {
+                int yIndex = row * width;
+                int uvIndex = frameSize + (row >> 1) * width;
+                int outIndex = row * width;
+                for (int col = 0; col < width; col += 2) {
+                    int v = (nv21[uvIndex++] & 0xff) - 128;
+                    int u = (nv21[uvIndex++] & 0xff) - 128;
+                    out[outIndex++] = argb(nv21[yIndex++], u, v);
+                    out[outIndex++] = argb(nv21[yIndex++], u, v);
+                }
+            }
+            return;
+        }
+        for (int row = rowStart; row < rowEnd; row++) {
+            long start = sourceStart(width, height, sampleSize, rotation, row);
+            int x = (int) (start >>> 32);
+            int y = (int) start;
+            int dx = stepX(rotation) * sampleSize;
+            int dy = stepY(rotation) * sampleSize;
+            int outIndex = row * outWidth;
+            for (int col = 0; col < outWidth; col++) {
+                int uvIndex = frameSize + (y >> 1) * width + (x & ~1);
+                out[outIndex++] = argb(nv21[y * width + x],
+                        (nv21[uvIndex + 1] & 0xff) - 128, (nv21[uvIndex] & 0xff) - 128);
+                x += dx;
+                y += dy;
+            }
+        }
+    }
+
+    /**
+     * Copy the luma plane of an NV21 frame, a grayscale image, downscaled and rotated
+     * like {@link #nv21ToArgb(byte[], int, int, int, int, int[])}.
+     *
+     * @param out at least {@link #outputWidth} * {@link #outputHeight} bytes
+     */
+    public static void nv21ToLuma(byte[] nv21, int width, int height, int sampleSize, int rotation,
+                                  byte[] out) {
+        nv21ToLuma(nv21, width, height, sampleSize, rotation, out, 0,
+                outputHeight(width, height, sampleSize, rotation));
+    }
+
+    static void nv21ToLuma(byte[] nv21, int width, int height, int sampleSize, int rotation,
+                           byte[] out, int rowStart, int rowEnd) {
+        int outWidth = outputWidth(width, height, sampleSize, rotation);
+        if (rotation == 0 && sampleSize == 1) {
+            System.arraycopy(nv21, rowStart * width, out, rowStart * width, (rowEnd - rowStart) * width);
+            return;
+        }
+        for (int row = rowStart; row < rowEnd; row++) {
+            long start = sourceStart(width, height, sampleSize, rotation, row);
+            //luma is one byte per pixel, so a step is a fixed index increment
+            int index = (int) start * width + (int) (start >>> 32);
+            int step = (stepY(rotation) * width + stepX(rotation)) * sampleSize;
+            int outIndex = row * outWidth;
+            for (int col = 0; col < outWidth; col++) {
+                out[outIndex++] = nv21[index];
+                index += step;
+            }
+        }
+    }
+
+    /**
+     * @return source x in the high and y in the low int of the first pixel of an output row
+     */
+    private static long sourceStart(int width, int height, int sampleSize, int rotation, int row) {
+        int lastX = (width / sampleSize - 1) * sampleSize;
+        int lastY = (height / sampleSize - 1) * sampleSize;
+        int x;
+        int y;
+        switch (rotation) {
+            case 90:
+                //output rows run up the source columns, from the bottom left
+                x = row * sampleSize;
+                y = lastY;
+                break;
+            case 180:
+                x = lastX;
+                y = lastY - row * sampleSize;
+                break;
+            case 270:
+                x = lastX - row * sampleSize;
+                y = 0;
+                break;
+            default:
+                x = 0;
+                y = row * sampleSize;
+                break;
+        }
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private static int stepX(int rotation) {
+        return rotation == 0 ? 1 : (rotation == 180 ? -1 : 0);
+    }
+
+    private static int stepY(int rotation) {
+        return rotation == 90 ? -1 : (rotation == 270 ? 1 : 0);
+    }
+
+    private static int argb(byte luma, int u, int v) {
+        //fixed point BT.601, coefficients scaled by 1024
+        int y = (luma & 0xff) - 16;
+        y = 1192 * (y < 0 ? 0 : y);
+        int r = y + 1634 * v;
+        int g = y - 833 * v - 400 * u;
+        int b = y + 2066 * u;
+        r = r < 0 ? 0 : (r > 262143 ? 262143 : r);
+        g = g < 0 ? 0 : (g > 262143 ? 262143 : g);
+        b = b < 0 ? 0 : (b > 262143 ? 262143 : b);
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
+    /**
+     * @param out at least width * height * 3 / 2 bytes; width and height must be even
+     */
+    public static void toNv21(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                              int uvRowStride, int uvPixelStride, int width, int height, byte[] out) {
+        //luma rows are copied whole, skipping the row padding
+        if (yRowStride == width) {
+            y.position(0);
+            y.get(out, 0, width * height);
+        } else {
+            for (int row = 0; row < height; row++) {
+                y.position(row * yRowStride);
+                y.get(out, row * width, width);
+            }
+        }
+
+        //chroma interleaved as V then U, one pair per 2x2 block
+        int offset = width * height;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        for (int row = 0; row < chromaHeight; row++) {
+            int index = row * uvRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                out[offset++] = v.get(index);
+                out[offset++] = u.get(index);
+                index += uvPixelStride;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.pocorusso.bearbeard;
+
+/**
+ * Keeps copies of the most recent preview frames for zero-shutter-lag capture.
+ *
+ * Frames are copied into a fixed ring of slots and the pipeline buffer is released
+ * straight away, so holding on to recent frames never starves the camera. The slots
+ * are allocated once per preview size, nothing is allocated per frame. Each frame is
+ * scored for sharpness as it is copied, so {@link #capture} only has to compare scores.
+ */
+public class ZslRingBuffer implements FramePipeline.FrameConsumer {
+
+    private static final int DEFAULT_SAMPLE_STEP = 4;
+
+    /**
+     * A frame taken out of the ring. Its slot is not overwritten until {@link #release()}.
+     */
+    public class Capture {
+        private final Slot mSlot;
+
+        Capture(Slot slot) {
+            mSlot = slot;
+        }
+
+        /**
+         * @return NV21 data, valid until {@link #release()}
+         */
+        public byte[] getData() {
+            return mSlot.mData;
+        }
+
+        public int getWidth() {
+            return mSlot.mWidth;
+        }
+
+        public int getHeight() {
+            return mSlot.mHeight;
+        }
+
+        public long getTimestampNanos() {
+            return mSlot.mTimestampNanos;
+        }
+
+        public long getSharpness() {
+            return mSlot.mSharpness;
+        }
+
+        public void release() {
+            synchronized (ZslRingBuffer.this) {
+                mSlot.mIsLocked = false;
+            }
+        }
+    }
+
+    private static class Slot {
+        final byte[] mData;
+        final int mWidth;
+        final int mHeight;
+        long mTimestampNanos;
+        long mSharpness;
+        boolean mIsFilled;
+        //being written, or handed out as a Capture
+        boolean mIsLocked;
+
+        Slot(int width, int height, int size) {
+            mData = new byte[size];
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    private final int mCapacity;
+    private final int mSampleStep;
+    //guarded by this
+    private Slot[] mSlots;
+    private int mNext;
+    private long mFramesCopied;
+    private long mFramesSkipped;
+
+    public ZslRingBuffer(int capacity) {
+        this(capacity, DEFAULT_SAMPLE_STEP);
+    }
+
+    /**
+     * @param capacity   number of recent frames kept
+     * @param sampleStep distance in pixels between the luma samples used to score sharpness
+     */
+    public ZslRingBuffer(int capacity, int sampleStep) {
+        if (capacity < 1 || sampleStep < 1) {
+            throw new IllegalArgumentException("capacity and sampleStep must be positive");
+        }
+        mCapacity = capacity;
+        mSampleStep = sampleStep;
+    }
+
+    /**
+     * Called on the camera callback thread. The copy and the scoring happen outside the
+     * lock so a capture never waits for them.
+     */
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        try {
+            Slot slot;
+            synchronized (this) {
+                slot = nextFreeSlot(frame.getWidth(), frame.getHeight(), frame.getData().length);
+                if (slot == null) {
+                    mFramesSkipped++;
+                    return;
+                }
+                slot.mIsLocked = true;
+                slot.mIsFilled = false;
+            }
+            System.arraycopy(frame.getData(), 0, slot.mData, 0, slot.mData.length);
+            long sharpness = sharpness(slot.mData, slot.mWidth, slot.mHeight, mSampleStep);
+            synchronized (this) {
+                slot.mTimestampNanos = frame.getTimestampNanos();
+                slot.mSharpness = sharpness;
+                slot.mIsFilled = true;
+                slot.mIsLocked = false;
+                mFramesCopied++;
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private Slot nextFreeSlot(int width, int height, int size) {
+        if (mSlots == null || mSlots[0].mWidth != width || mSlots[0].mHeight != height
+                || mSlots[0].mData.length != size) {
+            //slots handed out keep their own arrays, so replacing the ring is safe
+            mSlots = new Slot[mCapacity];
+            for (int i = 0; i < mCapacity; i++) {
+                mSlots[i] = new Slot(width, height, size);
+            }
+            mNext = 0;
+        }
+        for (int i = 0; i < mCapacity; i++) {
+            int index = (mNext + i) % mCapacity;
+            if (!mSlots[index].mIsLocked) {
+                mNext = (index + 1) % mCapacity;
+                return mSlots[index];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take the sharpest frame received since nowNanos - maxAgeNanos, the newest one on
+     * a tie. The caller must release it.
+     *
+     * @param nowNanos a {@link System#nanoTime()} value, usually the shutter press
+     * @return the frame, or null if there is none recent enough
+     */
+    public synchronized Capture capture(long nowNanos, long maxAgeNanos) {
+        if (mSlots == null) {
+            return null;
+        }
+        Slot best = null;
+        for (Slot slot : mSlots) {
+            if (!slot.mIsFilled || slot.mIsLocked || nowNanos - slot.mTimestampNanos > maxAgeNanos) {
+                continue;
+            }
+            if (best == null || slot.mSharpness > best.mSharpness
+                    || (slot.mSharpness == best.mSharpness && slot.mTimestampNanos > best.mTimestampNanos)) {
+                best = slot;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        best.mIsLocked = true;
+        return new Capture(best);
+    }
+
+    /**
+     * Forget the frames kept so far, for example after the camera moved.
+     */
+    public synchronized void clear() {
+        if (mSlots != null) {
+            for (Slot slot : mSlots) {
+                slot.mIsFilled = false;
+            }
+        }
+    }
+
+    public synchronized long getFramesCopied() {
+        return mFramesCopied;
+    }
+
+    /**
+     * @return frames not kept because every slot was handed out
+     */
+    public synchronized long getFramesSkipped() {
+        return mFramesSkipped;
+    }
+
+    /**
+     * Mean squared luma gradient over a grid of samples. Blurred frames have weaker
+     * edges and score lower; the score only compares frames of the same scene.
+     *
+     * @param step distance in pixels between samples
+     */
+    public static long sharpness(byte[] nv21, int width, int height, int step) {
+        long sum = 0;
+        int count = 0;
+        for (int y = 0; y < height - 1; y += step) {
+            int row = y * width;
+            for (int x = 0; x < width - 1; x += step) {
+                int index = row + x;
+                int luma = nv21[index] & 0xFF;
+                int dx = (nv21[index + 1] & 0xFF) - luma;
+                int dy = (nv21[index + width] & 0xFF) - luma;
+                sum += dx * dx + dy * dy;
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+}
@@ -0,0 +1,91 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link AdaptiveSelector}, {@link LinkEstimator} and {@link ProfileMetrics}.
+ */
+public class AdaptiveSelectorTest {
+
+    private static final String[] KEYS = {"small", "medium", "large"};
+    private static final long[] BYTES = {2 * 1024, 16 * 1024, 256 * 1024};
+
+    private static long ms(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void linkEstimator_usesAssumptionsUntilMeasured() throws Exception {
+        LinkEstimator link = new LinkEstimator(100 * 1024, ms(200));
+        assertEquals(ms(200) + ms(1000), link.estimateNanos(100 * 1024));
+
+        //too small to say anything about throughput
+        link.onTransfer(1024, ms(1), ms(50));
+        assertEquals(100 * 1024, link.getBytesPerSecond());
+        assertEquals(ms(50), link.getLatencyNanos());
+
+        link.onTransfer(1024 * 1024, ms(1000), ms(50));
+        assertEquals(1024 * 1024, link.getBytesPerSecond());
+    }
+
+    @Test
+    public void linkEstimator_smoothsSamples() throws Exception {
+        LinkEstimator link = new LinkEstimator(1, 0);
+        link.onTransfer(0, 0, ms(100));
+        link.onTransfer(0, 0, ms(200));
+        assertEquals(ms(130), link.getLatencyNanos());
+    }
+
+    @Test
+    public void select_picksLargestProfileWithinBudget() throws Exception {
+        LinkEstimator link = new LinkEstimator(1024 * 1024, ms(100));
+        AdaptiveSelector selector = new AdaptiveSelector(link, new ProfileMetrics(), ms(500));
+        //256KB at 1MB/s is 250ms plus latency
+        assertEquals(2, selector.select(KEYS, BYTES));
+
+        //on a slow link only the small profile fits
+        link.onTransfer(64 * 1024, ms(2000), ms(100));
+        assertEquals(0, selector.select(KEYS, BYTES));
+    }
+
+    @Test
+    public void select_prefersMeasuredPayloadSize() throws Exception {
+        LinkEstimator link = new LinkEstimator(100 * 1024, ms(100));
+        ProfileMetrics metrics = new ProfileMetrics();
+        AdaptiveSelector selector = new AdaptiveSelector(link, metrics, ms(500));
+        assertEquals(1, selector.select(KEYS, BYTES));
+
+        //the large profile turns out to compress far better than guessed
+        metrics.record("large", 20 * 1024, ms(30), ms(300));
+        assertEquals(2, selector.select(KEYS, BYTES));
+    }
+
+    @Test
+    public void profileMetrics_averagesPerProfile() throws Exception {
+        ProfileMetrics metrics = new ProfileMetrics();
+        assertNull(metrics.get("a"));
+        metrics.record("a", 1000, ms(10), ms(100));
+        metrics.record("a", 3000, ms(30), ms(300));
+        metrics.record("b", 10, 0, ms(5));
+
+        ProfileMetrics.Stats a = metrics.get("a");
+        assertEquals(2, a.getCount());
+        assertEquals(2000, a.getAverageBytes());
+        assertEquals(ms(20), a.getAverageEncodeNanos());
+        assertEquals(ms(200), a.getAverageRoundTripNanos());
+        assertEquals(ms(300), a.getMaxRoundTripNanos());
+        assertEquals(1, metrics.get("b").getCount());
+    }
+
+    @Test
+    public void estimatePayloadBytes_growsWithSizeAndQuality() throws Exception {
+        assertTrue(AdaptiveSelector.estimatePayloadBytes(128, 50)
+                < AdaptiveSelector.estimatePayloadBytes(512, 50));
+        assertTrue(AdaptiveSelector.estimatePayloadBytes(512, 50)
+                < AdaptiveSelector.estimatePayloadBytes(512, 90));
+    }
+}
@@ -0,0 +1,264 @@
+package com.pocorusso.bearbeard;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link BatchingSender} and {@link BatchCodec}, talking to an
+ * in-process HTTP server that speaks the batch framing.
+ */
+public class BatchingSenderTest {
+
+    private HttpServer mServer;
+    private final List<Integer> mBatchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    //the server holds the rest of the response until the first result was delivered
+    private volatile CountDownLatch mHoldAfterFirst;
+    private volatile int mStatus = 200;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/batch", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                int count = BatchCodec.readInt(in);
+                List<byte[]> items = new ArrayList<byte[]>();
+                for (int i = 0; i < count; i++) {
+                    items.add(BatchCodec.readFrame(in));
+                }
+                mBatchSizes.add(count);
+                if (mStatus != 200) {
+                    exchange.sendResponseHeaders(mStatus, -1);
+                    exchange.close();
+                    return;
+                }
+
+                //streamed, chunked response
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                for (int i = 0; i < items.size(); i++) {
+                    byte[] item = items.get(i);
+                    if (item.length > 0 && item[0] == 'x') {
+                        BatchCodec.writeFailedFrame(out);
+                    } else {
+                        byte[] result = new byte[item.length];
+                        for (int j = 0; j < item.length; j++) {
+                            result[j] = item[item.length - 1 - j];
+                        }
+                        BatchCodec.writeFrame(out, result);
+                    }
+                    out.flush();
+                    if (i == 0 && mHoldAfterFirst != null) {
+                        try {
+                            mHoldAfterFirst.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                exchange.close();
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop(0);
+    }
+
+    /**
+     * Frames are the job's profile key, so tests can say what each job sends.
+     */
+    private static final BatchingSender.FrameSource KEY_AS_FRAME = new BatchingSender.FrameSource() {
+        @Override
+        public long getLength(UploadJob job) throws IOException {
+            return job.getProfileKey().getBytes("UTF-8").length;
+        }
+
+        @Override
+        public InputStream open(UploadJob job) throws IOException {
+            return new ByteArrayInputStream(job.getProfileKey().getBytes("UTF-8"));
+        }
+    };
+
+    private BatchingSender sender(int maxBatchSize, long lingerMs) throws Exception {
+        URL url = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/batch");
+        return new BatchingSender(url, new PooledHttpTransport(1024, 1, 30000), KEY_AS_FRAME,
+                maxBatchSize, lingerMs, 5000, 1);
+    }
+
+    private static UploadJob job(long id, String content) {
+        return new UploadJob(id, new File(id + ".jpg"), content, UploadJob.State.IN_FLIGHT, 1);
+    }
+
+    private static class RecordingCallback implements UploadQueue.SendCallback {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile String mResponse;
+        volatile boolean mFailed;
+        volatile boolean mRetryable;
+
+        @Override
+        public void onSuccess(byte[] response) {
+            try {
+                mResponse = new String(response, "UTF-8");
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onFailure(Exception e, boolean retryable) {
+            mFailed = true;
+            mRetryable = retryable;
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mLatch.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void send_packsJobsUpToBatchSize() throws Exception {
+        BatchingSender sender = sender(3, 10000);
+        RecordingCallback[] callbacks = new RecordingCallback[6];
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i] = new RecordingCallback();
+            sender.send(job(i, "item" + i), callbacks[i]);
+        }
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].await();
+            assertEquals(i + "meti", callbacks[i].mResponse);
+        }
+        assertEquals(2, sender.getBatchCount());
+        assertEquals(3.0, sender.getAverageBatchSize(), 1e-9);
+        assertEquals(2, mBatchSizes.size());
+        sender.shutdown();
+    }
+
+    @Test
+    public void send_flushesPartialBatchAfterLinger() throws Exception {
+        BatchingSender sender = sender(10, 20);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        sender.send(job(1, "ab"), first);
+        sender.send(job(2, "cd"), second);
+        first.await();
+        second.await();
+        assertEquals("ba", first.mResponse);
+        assertEquals("dc", second.mResponse);
+        assertEquals(Collections.singletonList(2), mBatchSizes);
+        sender.shutdown();
+    }
+
+    @Test
+    public void send_deliversEachResultAsItIsRead() throws Exception {
+        mHoldAfterFirst = new CountDownLatch(1);
+        BatchingSender sender = sender(2, 10000);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        sender.send(job(1, "ab"), first);
+        sender.send(job(2, "cd"), second);
+
+        //the server is still holding the second result
+        first.await();
+        assertEquals("ba", first.mResponse);
+        assertEquals(1, second.mLatch.getCount());
+
+        mHoldAfterFirst.countDown();
+        second.await();
+        assertEquals("dc", second.mResponse);
+        sender.shutdown();
+    }
+
+    @Test
+    public void send_failsOnlyTheItemsTheServerFailed() throws Exception {
+        BatchingSender sender = sender(2, 10000);
+        RecordingCallback good = new RecordingCallback();
+        RecordingCallback bad = new RecordingCallback();
+        sender.send(job(1, "xbad"), bad);
+        sender.send(job(2, "ok"), good);
+        bad.await();
+        good.await();
+        assertTrue(bad.mFailed);
+        assertFalse(bad.mRetryable);
+        assertEquals("ko", good.mResponse);
+        sender.shutdown();
+    }
+
+    @Test
+    public void send_failsWholeBatchOnServerError() throws Exception {
+        mStatus = 503;
+        BatchingSender sender = sender(2, 10000);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        sender.send(job(1, "ab"), first);
+        sender.send(job(2, "cd"), second);
+        first.await();
+        second.await();
+        assertTrue(first.mFailed && first.mRetryable);
+        assertTrue(second.mFailed && second.mRetryable);
+        sender.shutdown();
+    }
+
+    @Test
+    public void send_failsWholeBatchOnRuntimeFailure() throws Exception {
+        URL url = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/batch");
+        BatchingSender sender = new BatchingSender(url, new PooledHttpTransport(1024, 1, 30000),
+                new BatchingSender.FrameSource() {
+                    @Override
+                    public long getLength(UploadJob job) throws IOException {
+                        throw new IllegalStateException("broken source");
+                    }
+
+                    @Override
+                    public InputStream open(UploadJob job) throws IOException {
+                        throw new IllegalStateException("broken source");
+                    }
+                }, 2, 10000, 5000, 1);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        sender.send(job(1, "ab"), first);
+        sender.send(job(2, "cd"), second);
+        first.await();
+        second.await();
+        assertTrue(first.mFailed && !first.mRetryable);
+        assertTrue(second.mFailed && !second.mRetryable);
+        sender.shutdown();
+    }
+
+    @Test
+    public void readFrame_rejectsOversizedLength() throws Exception {
+        //the length alone, no allocation of that size may be attempted
+        InputStream in = new ByteArrayInputStream(new byte[]{0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+        try {
+            BatchCodec.readFrame(in);
+            fail("expected the frame to be rejected");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link BitmapSampling}.
+ */
+public class BitmapSamplingTest {
+
+    @Test
+    public void inSampleSize_isOneWhenAlreadySmallEnough() throws Exception {
+        assertEquals(1, BitmapSampling.calculateInSampleSize(50, 50, 100, 100));
+        assertEquals(1, BitmapSampling.calculateInSampleSize(100, 100, 100, 100));
+        assertEquals(1, BitmapSampling.calculateInSampleSize(199, 199, 100, 100));
+    }
+
+    @Test
+    public void inSampleSize_isLargestPowerOfTwoKeepingRequestedSize() throws Exception {
+        assertEquals(2, BitmapSampling.calculateInSampleSize(200, 200, 100, 100));
+        assertEquals(16, BitmapSampling.calculateInSampleSize(4032, 3024, 200, 150));
+        assertEquals(32, BitmapSampling.calculateInSampleSize(4032, 3024, 50, 50));
+        //the smaller ratio wins so neither side ends up below the request
+        assertEquals(4, BitmapSampling.calculateInSampleSize(4000, 1000, 200, 200));
+    }
+
+    @Test
+    public void inSampleSize_ignoresInvalidSizes() throws Exception {
+        assertEquals(1, BitmapSampling.calculateInSampleSize(0, 100, 10, 10));
+        assertEquals(1, BitmapSampling.calculateInSampleSize(100, 100, 0, 0));
+    }
+
+    @Test
+    public void sampledDimension_roundsUp() throws Exception {
+        assertEquals(252, BitmapSampling.sampledDimension(4032, 16));
+        assertEquals(3, BitmapSampling.sampledDimension(5, 2));
+    }
+
+    @Test
+    public void inSampleSizeForLongEdge_onlyKeepsLongerSide() throws Exception {
+        assertEquals(16, BitmapSampling.calculateInSampleSizeForLongEdge(4032, 3024, 128));
+        assertEquals(16, BitmapSampling.calculateInSampleSizeForLongEdge(3024, 4032, 128));
+        assertEquals(1, BitmapSampling.calculateInSampleSizeForLongEdge(100, 50, 128));
+    }
+
+    @Test
+    public void scaleToLongEdge_keepsAspectRatio() throws Exception {
+        assertEquals(128, BitmapSampling.scaleToLongEdge(252, 252, 189, 128));
+        assertEquals(96, BitmapSampling.scaleToLongEdge(189, 252, 189, 128));
+        assertEquals(1, BitmapSampling.scaleToLongEdge(1, 4000, 1, 128));
+    }
+}
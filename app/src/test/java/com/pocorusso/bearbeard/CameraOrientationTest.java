@@ -0,0 +1,32 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CameraOrientation}.
+ */
+public class CameraOrientationTest {
+
+    @Test
+    public void displayOrientation_backCamera() throws Exception {
+        assertEquals(90, CameraOrientation.displayOrientation(90, 0, false));
+        assertEquals(0, CameraOrientation.displayOrientation(90, 90, false));
+        assertEquals(180, CameraOrientation.displayOrientation(90, 270, false));
+    }
+
+    @Test
+    public void displayOrientation_mirrorsFrontCamera() throws Exception {
+        assertEquals(90, CameraOrientation.displayOrientation(270, 0, true));
+        assertEquals(0, CameraOrientation.displayOrientation(270, 90, true));
+    }
+
+    @Test
+    public void pictureOrientation_isNotMirrored() throws Exception {
+        assertEquals(90, CameraOrientation.pictureOrientation(90, 0, false));
+        assertEquals(270, CameraOrientation.pictureOrientation(270, 0, true));
+        assertEquals(0, CameraOrientation.pictureOrientation(270, 90, true));
+        assertEquals(270, CameraOrientation.rotationToDegrees(3));
+    }
+}
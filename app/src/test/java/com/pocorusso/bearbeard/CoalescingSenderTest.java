@@ -0,0 +1,198 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CoalescingSender}, {@link DiskResponseCache} and {@link ContentHash}.
+ */
+public class CoalescingSenderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Holds on to every send until the test answers it.
+     */
+    private static class HeldSender implements UploadQueue.Sender {
+        final List<UploadQueue.SendCallback> mCallbacks = new ArrayList<UploadQueue.SendCallback>();
+        final CountDownLatch mFirstSend = new CountDownLatch(1);
+
+        @Override
+        public synchronized void send(UploadJob job, UploadQueue.SendCallback callback) {
+            mCallbacks.add(callback);
+            mFirstSend.countDown();
+        }
+
+        synchronized int getSendCount() {
+            return mCallbacks.size();
+        }
+    }
+
+    private static class RecordingCallback implements UploadQueue.SendCallback {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile byte[] mResponse;
+        volatile boolean mFailed;
+
+        @Override
+        public void onSuccess(byte[] response) {
+            mResponse = response;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onFailure(Exception e, boolean retryable) {
+            mFailed = true;
+            mLatch.countDown();
+        }
+    }
+
+    private static final CoalescingSender.KeyFunction BY_PROFILE_KEY = new CoalescingSender.KeyFunction() {
+        @Override
+        public String keyOf(UploadJob job) throws IOException {
+            return job.getProfileKey();
+        }
+    };
+
+    private static UploadJob job(long id, String contentKey) {
+        return new UploadJob(id, new File("p" + id + ".jpg"), contentKey, UploadJob.State.IN_FLIGHT, 1);
+    }
+
+    private DiskResponseCache cache() {
+        return new DiskResponseCache(new File(mFolder.getRoot(), "responses"), 1024);
+    }
+
+    @Test
+    public void send_coalescesDuplicatesInFlight() throws Exception {
+        HeldSender delegate = new HeldSender();
+        CoalescingSender sender = new CoalescingSender(delegate, BY_PROFILE_KEY, cache(), 1);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        sender.send(job(1, "same"), first);
+        assertTrue(delegate.mFirstSend.await(5, TimeUnit.SECONDS));
+        sender.send(job(2, "same"), second);
+
+        //the second job is keyed on the same single thread, wait for it to be parked
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getCoalescedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, sender.getCoalescedCount());
+        assertEquals(1, delegate.getSendCount());
+
+        delegate.mCallbacks.get(0).onSuccess(new byte[]{1, 2, 3});
+        assertTrue(first.mLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(second.mLatch.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{1, 2, 3}, first.mResponse);
+        assertArrayEquals(new byte[]{1, 2, 3}, second.mResponse);
+        sender.shutdown();
+    }
+
+    @Test
+    public void send_failsAndForgetsKeyWhenDelegateThrows() throws Exception {
+        final boolean[] broken = {true};
+        HeldSender delegate = new HeldSender() {
+            @Override
+            public synchronized void send(UploadJob job, UploadQueue.SendCallback callback) {
+                if (broken[0]) {
+                    throw new IllegalStateException("broken delegate");
+                }
+                super.send(job, callback);
+            }
+        };
+        CoalescingSender sender = new CoalescingSender(delegate, BY_PROFILE_KEY, cache(), 1);
+        RecordingCallback first = new RecordingCallback();
+        sender.send(job(1, "same"), first);
+        assertTrue(first.mLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(first.mFailed);
+
+        //the next job with the same content is sent, not parked on the failed one
+        broken[0] = false;
+        RecordingCallback again = new RecordingCallback();
+        sender.send(job(2, "same"), again);
+        assertTrue(delegate.mFirstSend.await(5, TimeUnit.SECONDS));
+        assertEquals(0, sender.getCoalescedCount());
+        sender.shutdown();
+    }
+
+    @Test
+    public void send_answersRepeatsFromCache() throws Exception {
+        HeldSender delegate = new HeldSender();
+        CoalescingSender sender = new CoalescingSender(delegate, BY_PROFILE_KEY, cache(), 1);
+        RecordingCallback first = new RecordingCallback();
+        sender.send(job(1, "same"), first);
+        assertTrue(delegate.mFirstSend.await(5, TimeUnit.SECONDS));
+        delegate.mCallbacks.get(0).onSuccess(new byte[]{4, 5});
+        assertTrue(first.mLatch.await(5, TimeUnit.SECONDS));
+
+        RecordingCallback again = new RecordingCallback();
+        sender.send(job(2, "same"), again);
+        assertTrue(again.mLatch.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{4, 5}, again.mResponse);
+        assertEquals(1, sender.getCacheHitCount());
+        assertEquals(1, delegate.getSendCount());
+        sender.shutdown();
+    }
+
+    @Test
+    public void send_failsEveryWaitingJobAndCachesNothing() throws Exception {
+        HeldSender delegate = new HeldSender();
+        CoalescingSender sender = new CoalescingSender(delegate, BY_PROFILE_KEY, cache(), 1);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        sender.send(job(1, "same"), first);
+        sender.send(job(2, "same"), second);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getCoalescedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        delegate.mCallbacks.get(0).onFailure(new IOException("down"), true);
+        assertTrue(first.mLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(second.mLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(first.mFailed);
+        assertTrue(second.mFailed);
+        assertEquals(0, sender.getCache().getEntryCount());
+        sender.shutdown();
+    }
+
+    @Test
+    public void diskCache_evictsLeastRecentlyUsed() throws Exception {
+        File dir = new File(mFolder.getRoot(), "responses");
+        DiskResponseCache cache = new DiskResponseCache(dir, 300);
+        cache.put("a", new byte[100]);
+        cache.put("b", new byte[100]);
+        cache.put("c", new byte[100]);
+        assertNotNull(cache.get("a"));
+        cache.put("d", new byte[100]);
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertEquals(300, cache.getSize());
+        assertFalse(new File(dir, "b").exists());
+
+        //a new instance picks up what is on disk
+        DiskResponseCache reopened = new DiskResponseCache(dir, 300);
+        assertEquals(3, reopened.getEntryCount());
+        assertEquals(100, reopened.get("d").length);
+    }
+
+    @Test
+    public void contentHash_isSha256Hex() throws Exception {
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                ContentHash.sha256("abc".getBytes("UTF-8")));
+        File file = mFolder.newFile();
+        PictureSaver.writeAtomically(file, "abc".getBytes("UTF-8"));
+        assertEquals(ContentHash.sha256("abc".getBytes("UTF-8")), ContentHash.sha256(file));
+    }
+}
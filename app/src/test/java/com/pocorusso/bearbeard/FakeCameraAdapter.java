@@ -0,0 +1,282 @@
+package com.pocorusso.bearbeard;
+
+import android.graphics.SurfaceTexture;
+import android.view.SurfaceHolder;
+
+import java.util.ArrayDeque;
+
+/**
+ * {@link CameraAdapter} without a camera. Frames are produced on demand by
+ * {@link #emitFrame()} and pictures are taken synchronously, so the frame pipeline
+ * and everything built on the adapter can be exercised on the host JVM.
+ *
+ * Displays are accepted but never touched; the preview runs once one is set or
+ * {@link #restartPreview()} is called.
+ */
+public class FakeCameraAdapter implements CameraAdapter {
+
+    private static final int NV21_BITS_PER_PIXEL = 12;
+
+    private final FrameSize mFrameSize;
+    private final byte[] mJpeg;
+    private final FramePipeline mFramePipeline = new FramePipeline();
+    private final PreviewSizeResolver mSizeResolver = new PreviewSizeResolver();
+    private final OpenStats mOpenStats = new OpenStats();
+    private final FakeSource mSource = new FakeSource();
+
+    private boolean mIsOpen;
+    private int mCameraId;
+    private boolean mIsReleasePending;
+    private boolean mIsPreviewRunning;
+    private long mReleaseGraceMs;
+    private FrameSize mPreviewSize;
+    private String mFocusMode;
+    private int mSkippedReconfigurationCount;
+    private int mFrameCount;
+    private int mPictureOrientation;
+    private boolean mIsFrontFacing;
+
+    /**
+     * @param jpeg bytes handed to every picture callback
+     */
+    public FakeCameraAdapter(int width, int height, byte[] jpeg) {
+        mFrameSize = new FrameSize(width, height);
+        mJpeg = jpeg;
+    }
+
+    /**
+     * Fill the oldest free buffer and pass it down the pipeline.
+     *
+     * @return false if there was no free buffer, or the preview is not running
+     */
+    public boolean emitFrame() {
+        byte[] buffer = mSource.poll();
+        if (buffer == null) {
+            return false;
+        }
+        int frame;
+        synchronized (this) {
+            frame = mFrameCount++;
+        }
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) (frame + i);
+        }
+        mFramePipeline.onFrame(buffer);
+        return true;
+    }
+
+    public synchronized boolean isPreviewRunning() {
+        return mIsPreviewRunning;
+    }
+
+    public synchronized String getFocusMode() {
+        return mFocusMode;
+    }
+
+    /**
+     * Pretend to be a camera mounted at an angle to the display.
+     */
+    public synchronized void setPictureOrientation(int degrees, boolean frontFacing) {
+        mPictureOrientation = degrees;
+        mIsFrontFacing = frontFacing;
+    }
+
+    @Override
+    public synchronized int getPictureOrientation() {
+        return mPictureOrientation;
+    }
+
+    @Override
+    public synchronized boolean isFrontFacing() {
+        return mIsFrontFacing;
+    }
+
+    @Override
+    public synchronized boolean isValid() {
+        return mIsOpen;
+    }
+
+    @Override
+    public synchronized void openCamera(int cameraId) {
+        long startNanos = System.nanoTime();
+        boolean warm = mIsOpen && mIsReleasePending && cameraId == mCameraId;
+        if (!warm) {
+            releaseCamera();
+            mIsOpen = true;
+            mCameraId = cameraId;
+        }
+        mIsReleasePending = false;
+        mOpenStats.record(warm, System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public synchronized void releaseCamera() {
+        stopPreview();
+        mIsOpen = false;
+        mIsReleasePending = false;
+    }
+
+    /**
+     * The fake has no clock of its own, the grace period only lasts until the next open or release.
+     */
+    @Override
+    public synchronized void releaseCameraDeferred() {
+        if (!mIsOpen) {
+            return;
+        }
+        if (mReleaseGraceMs <= 0) {
+            releaseCamera();
+            return;
+        }
+        stopPreview();
+        mIsReleasePending = true;
+    }
+
+    @Override
+    public synchronized void setReleaseGracePeriod(long graceMs) {
+        mReleaseGraceMs = graceMs;
+    }
+
+    @Override
+    public OpenStats getOpenStats() {
+        return mOpenStats;
+    }
+
+    /**
+     * Calls back before returning.
+     */
+    @Override
+    public void takePicture(PictureCallback callback) {
+        if (!isPreviewRunning()) {
+            callback.onPictureFailed(new IllegalStateException("Preview is not running"));
+            return;
+        }
+        callback.onShutter();
+        callback.onPictureTaken(mJpeg);
+    }
+
+    @Override
+    public synchronized void restartPreview() {
+        if (mIsOpen && !mIsPreviewRunning) {
+            mIsPreviewRunning = true;
+            attachFramePipeline();
+        }
+    }
+
+    @Override
+    public void setSurfaceHolder(SurfaceHolder holder) {
+        restartPreview();
+    }
+
+    @Override
+    public void setSurfaceTexture(SurfaceTexture texture) {
+        restartPreview();
+    }
+
+    @Override
+    public synchronized void detachDisplay() {
+        stopPreview();
+    }
+
+    private void stopPreview() {
+        mIsPreviewRunning = false;
+        mFramePipeline.detach();
+    }
+
+    private void attachFramePipeline() {
+        if (mIsPreviewRunning && mFramePipeline.hasConsumers() && !mFramePipeline.isAttached()) {
+            mSource.start();
+            mFramePipeline.attach(mSource, mFrameSize.width, mFrameSize.height, NV21_BITS_PER_PIXEL);
+        }
+    }
+
+    @Override
+    public synchronized void requestFocusMode(String focusMode) {
+        if (focusMode.equals(mFocusMode)) {
+            mSkippedReconfigurationCount++;
+            return;
+        }
+        mFocusMode = focusMode;
+    }
+
+    @Override
+    public int getPreviewRestartCount() {
+        return 0;
+    }
+
+    @Override
+    public synchronized int getSkippedReconfigurationCount() {
+        return mSkippedReconfigurationCount;
+    }
+
+    @Override
+    public synchronized void addFrameConsumer(FramePipeline.FrameConsumer consumer) {
+        mFramePipeline.addConsumer(consumer);
+        attachFramePipeline();
+    }
+
+    @Override
+    public synchronized void removeFrameConsumer(FramePipeline.FrameConsumer consumer) {
+        mFramePipeline.removeConsumer(consumer);
+        if (!mFramePipeline.hasConsumers()) {
+            mFramePipeline.detach();
+        }
+    }
+
+    @Override
+    public FramePipeline getFramePipeline() {
+        return mFramePipeline;
+    }
+
+    @Override
+    public synchronized FrameSize getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    /**
+     * Frames always come at the size the fake was made with.
+     */
+    @Override
+    public synchronized boolean adjustCameraPreviewSize() {
+        return false;
+    }
+
+    @Override
+    public synchronized void adjustPreviewSize(int width, int height) {
+        mPreviewSize = mFrameSize;
+    }
+
+    @Override
+    public PreviewSizeResolver getSizeResolver() {
+        return mSizeResolver;
+    }
+
+    /**
+     * Keeps the buffers the pipeline hands over until {@link #emitFrame()} fills them.
+     */
+    private static class FakeSource implements FramePipeline.FrameSource {
+        private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<byte[]>();
+        private boolean mIsStopped = true;
+
+        synchronized void start() {
+            mIsStopped = false;
+        }
+
+        synchronized byte[] poll() {
+            return mIsStopped ? null : mFreeBuffers.pollFirst();
+        }
+
+        @Override
+        public synchronized void addBuffer(byte[] buffer) {
+            if (!mIsStopped) {
+                mFreeBuffers.addLast(buffer);
+            }
+        }
+
+        @Override
+        public synchronized void stop() {
+            mIsStopped = true;
+            mFreeBuffers.clear();
+        }
+    }
+}
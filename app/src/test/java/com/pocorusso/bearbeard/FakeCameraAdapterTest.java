@@ -0,0 +1,147 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the {@link FramePipeline} and picture flow, driven by {@link FakeCameraAdapter}.
+ */
+public class FakeCameraAdapterTest {
+
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9};
+
+    private FakeCameraAdapter mCamera;
+    private final List<PreviewFrame> mHeld = new ArrayList<PreviewFrame>();
+    private boolean mIsHolding;
+    private int mFrames;
+
+    private final FramePipeline.FrameConsumer mConsumer = new FramePipeline.FrameConsumer() {
+        @Override
+        public void onFrame(PreviewFrame frame) {
+            mFrames++;
+            assertEquals(4, frame.getWidth());
+            assertEquals(2, frame.getHeight());
+            if (mIsHolding) {
+                mHeld.add(frame);
+            } else {
+                frame.release();
+            }
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mCamera = new FakeCameraAdapter(4, 2, JPEG);
+        mCamera.openCamera(0);
+        mCamera.restartPreview();
+    }
+
+    @Test
+    public void emitFrame_reachesConsumersAndRecyclesBuffers() throws Exception {
+        assertFalse(mCamera.emitFrame());
+
+        mCamera.addFrameConsumer(mConsumer);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mCamera.emitFrame());
+        }
+        assertEquals(10, mFrames);
+        assertEquals(10, mCamera.getFramePipeline().getFramesDelivered());
+        assertEquals(0, mCamera.getFramePipeline().getFramesDropped());
+    }
+
+    @Test
+    public void emitFrame_dropsFramesWhileConsumersHoldTheBuffers() throws Exception {
+        mCamera.addFrameConsumer(mConsumer);
+        mIsHolding = true;
+        assertTrue(mCamera.emitFrame());
+        assertTrue(mCamera.emitFrame());
+        //the last buffer always goes back to the camera
+        assertTrue(mCamera.emitFrame());
+        assertTrue(mCamera.emitFrame());
+        assertEquals(2, mHeld.size());
+        assertEquals(2, mCamera.getFramePipeline().getFramesDropped());
+
+        for (PreviewFrame frame : mHeld) {
+            frame.release();
+        }
+        mIsHolding = false;
+        assertTrue(mCamera.emitFrame());
+        assertEquals(3, mFrames);
+    }
+
+    @Test
+    public void releaseCamera_detachesThePipeline() throws Exception {
+        mCamera.addFrameConsumer(mConsumer);
+        assertTrue(mCamera.getFramePipeline().isAttached());
+
+        mCamera.releaseCamera();
+        assertFalse(mCamera.isValid());
+        assertFalse(mCamera.getFramePipeline().isAttached());
+        assertFalse(mCamera.emitFrame());
+
+        mCamera.removeFrameConsumer(mConsumer);
+        mCamera.openCamera(0);
+        mCamera.restartPreview();
+        assertFalse(mCamera.getFramePipeline().isAttached());
+    }
+
+    @Test
+    public void openCamera_reusesCameraWithinGracePeriod() throws Exception {
+        mCamera.setReleaseGracePeriod(1000);
+        mCamera.releaseCameraDeferred();
+        assertTrue(mCamera.isValid());
+        assertFalse(mCamera.isPreviewRunning());
+
+        mCamera.openCamera(0);
+        assertTrue(mCamera.getOpenStats().isLastWarm());
+
+        mCamera.releaseCameraDeferred();
+        mCamera.openCamera(1);
+        assertFalse(mCamera.getOpenStats().isLastWarm());
+        assertEquals(2, mCamera.getOpenStats().getColdCount());
+        assertEquals(1, mCamera.getOpenStats().getWarmCount());
+    }
+
+    @Test
+    public void takePicture_deliversJpegOrFails() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        CameraAdapter.PictureCallback callback = new CameraAdapter.PictureCallback() {
+            @Override
+            public void onShutter() {
+                events.add("shutter");
+            }
+
+            @Override
+            public void onPictureTaken(byte[] jpeg) {
+                assertArrayEquals(JPEG, jpeg);
+                events.add("jpeg");
+            }
+
+            @Override
+            public void onPictureFailed(Exception e) {
+                events.add("failed");
+            }
+        };
+
+        mCamera.takePicture(callback);
+        mCamera.detachDisplay();
+        mCamera.takePicture(callback);
+        assertEquals(3, events.size());
+        assertEquals("shutter", events.get(0));
+        assertEquals("jpeg", events.get(1));
+        assertEquals("failed", events.get(2));
+    }
+
+    @Test
+    public void requestFocusMode_skipsUnchangedMode() throws Exception {
+        mCamera.requestFocusMode("auto");
+        mCamera.requestFocusMode("auto");
+        assertEquals("auto", mCamera.getFocusMode());
+        assertEquals(1, mCamera.getSkippedReconfigurationCount());
+    }
+}
@@ -0,0 +1,69 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FrameBufferPool} and {@link PreviewFrame} reference counting.
+ */
+public class FrameBufferPoolTest {
+
+    @Test
+    public void bufferSize_isRoundedUpForNv21() throws Exception {
+        assertEquals(640 * 480 * 3 / 2, FrameBufferPool.bufferSizeFor(640, 480, 12));
+        assertEquals(2, FrameBufferPool.bufferSizeFor(1, 1, 12));
+    }
+
+    @Test
+    public void acquire_returnsNullWhenExhausted() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(2, 4, 4, 12);
+        PreviewFrame first = pool.acquire();
+        PreviewFrame second = pool.acquire();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNotSame(first.getData(), second.getData());
+        assertNull(pool.acquire());
+
+        pool.release(first);
+        assertSame(first, pool.acquire());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void release_rejectsForeignFrame() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(1, 4, 4, 12);
+        FrameBufferPool other = new FrameBufferPool(1, 4, 4, 12);
+        pool.release(other.acquire());
+    }
+
+    @Test
+    public void frame_isRecycledAfterLastRelease() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(1, 4, 4, 12);
+        final AtomicInteger recycled = new AtomicInteger();
+        PreviewFrame frame = pool.acquire();
+        frame.prepare(new PreviewFrame.Recycler() {
+            @Override
+            public void recycle(PreviewFrame frame) {
+                recycled.incrementAndGet();
+            }
+        }, 2, 1, 0);
+
+        frame.retain();
+        frame.release();
+        frame.release();
+        assertEquals(0, recycled.get());
+        frame.release();
+        assertEquals(1, recycled.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void frame_rejectsExtraRelease() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(1, 4, 4, 12);
+        PreviewFrame frame = pool.acquire();
+        frame.prepare(null, 1, 1, 0);
+        frame.release();
+        frame.release();
+    }
+}
@@ -0,0 +1,99 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FrameTiming}.
+ */
+public class FrameTimingTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void record_measuresIntervalsBetweenTimestamps() throws Exception {
+        FrameTiming timing = new FrameTiming();
+        long timestamp = 1000 * MS;
+        for (int i = 0; i < 10; i++) {
+            timing.record(timestamp, timestamp + 5 * MS);
+            timestamp += i == 5 ? 100 * MS : 33 * MS;
+        }
+        assertEquals(10, timing.getFrameCount());
+        assertEquals(100 * MS, timing.getMaxIntervalNanos());
+        assertEquals(33 * MS, timing.getIntervalPercentileNanos(50));
+        assertEquals(5 * MS, timing.getDelayPercentileNanos(95));
+        assertEquals(9e9 / (8 * 33 * MS + 100 * MS), timing.getFramesPerSecond(), 1e-6);
+    }
+
+    @Test
+    public void record_ignoresDelaysOnAnotherClock() throws Exception {
+        FrameTiming timing = new FrameTiming();
+        timing.record(10 * MS, 5000 * MS);
+        timing.record(0, 5033 * MS);
+        assertEquals(2, timing.getFrameCount());
+        assertEquals(0, timing.getDelayPercentileNanos(50));
+    }
+
+    @Test
+    public void restart_doesNotCountTheGap() throws Exception {
+        FrameTiming timing = new FrameTiming();
+        timing.record(10 * MS, 10 * MS);
+        timing.restart();
+        timing.record(5000 * MS, 5000 * MS);
+        timing.record(5033 * MS, 5033 * MS);
+        assertEquals(33 * MS, timing.getMaxIntervalNanos());
+    }
+
+    @Test
+    public void record_countsDroppedFramesAndStalls() throws Exception {
+        FrameTiming timing = new FrameTiming();
+        final long[] stalled = new long[1];
+        timing.setStallListener(new FrameTiming.StallListener() {
+            @Override
+            public void onStall(long intervalNanos) {
+                stalled[0] = intervalNanos;
+            }
+        });
+        long timestamp = 1000 * MS;
+        for (int i = 0; i < 20; i++) {
+            timing.record(timestamp, timestamp);
+            //two frames missing after the 5th, a stall after the 15th
+            timestamp += i == 5 ? 99 * MS : (i == 15 ? 330 * MS : 33 * MS);
+        }
+        //the expected interval is estimated from regular frames only
+        assertEquals(2 + 9, timing.getDroppedFrames());
+        assertEquals(1, timing.getStallCount());
+        assertEquals(330 * MS, stalled[0]);
+
+        FrameTiming.Snapshot snapshot = timing.snapshot();
+        assertEquals(20, snapshot.frameCount);
+        assertEquals(33 * MS, snapshot.expectedIntervalNanos);
+        assertEquals(33 * MS, snapshot.intervalP50Nanos, 33 * MS / 64);
+        assertEquals(330 * MS, snapshot.intervalP99Nanos);
+        assertEquals(330 * MS, snapshot.longestStallNanos);
+        assertEquals(snapshot.intervalP99Nanos - snapshot.intervalP50Nanos, snapshot.getJitterNanos());
+    }
+
+    @Test
+    public void setExpectedFrameRate_judgesDropsByTheRequestedRate() throws Exception {
+        FrameTiming timing = new FrameTiming();
+        timing.setExpectedFrameRate(60);
+        timing.setStallThreshold(40 * MS);
+        long timestamp = 1000 * MS;
+        for (int i = 0; i < 10; i++) {
+            timing.record(timestamp, timestamp);
+            timestamp += 33 * MS;
+        }
+        //every 33ms frame at 60fps means one frame missing
+        assertEquals(9, timing.getDroppedFrames());
+        assertEquals(0, timing.getStallCount());
+
+        timing.reset();
+        FrameTiming.Snapshot snapshot = timing.snapshot();
+        assertEquals(0, snapshot.frameCount);
+        assertEquals(0, snapshot.droppedFrames);
+        assertEquals(0, snapshot.intervalP99Nanos);
+        assertEquals(1000000000L / 60, snapshot.expectedIntervalNanos);
+    }
+}
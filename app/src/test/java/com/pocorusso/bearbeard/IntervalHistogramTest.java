@@ -0,0 +1,52 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link IntervalHistogram}.
+ */
+public class IntervalHistogramTest {
+
+    @Test
+    public void indexOf_isContiguousAndKeepsPrecision() throws Exception {
+        int last = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = IntervalHistogram.indexOf(value);
+            assertTrue("gap at " + value, index == last || index == last + 1);
+            long highest = IntervalHistogram.highestValueAt(index);
+            assertTrue(value <= highest);
+            assertTrue("too coarse at " + value, highest - value <= value / 64);
+            last = index;
+        }
+    }
+
+    @Test
+    public void getValueAtPercentile_usesNearestRank() throws Exception {
+        IntervalHistogram histogram = new IntervalHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000000L);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1000000L, histogram.getMin());
+        assertEquals(100000000L, histogram.getMax());
+        assertEquals(50500000L, histogram.getMean());
+        assertEquals(50000000L, histogram.getValueAtPercentile(50), 50000000L / 64);
+        assertEquals(99000000L, histogram.getValueAtPercentile(99), 99000000L / 64);
+        assertEquals(100000000L, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void record_clampsHugeValues() throws Exception {
+        IntervalHistogram histogram = new IntervalHistogram();
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(Long.MAX_VALUE / 2, histogram.getValueAtPercentile(50));
+    }
+}
@@ -0,0 +1,94 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link JpegOrientation}.
+ */
+public class JpegOrientationTest {
+
+    @Test
+    public void exifOrientation_roundTrips() throws Exception {
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            for (int m = 0; m < 2; m++) {
+                int orientation = JpegOrientation.exifOrientation(rotation, m == 1);
+                assertEquals(rotation, JpegOrientation.rotationOf(orientation));
+                assertEquals(m == 1, JpegOrientation.isMirrored(orientation));
+            }
+        }
+        assertEquals(JpegOrientation.ROTATE_90, JpegOrientation.exifOrientation(90, false));
+        assertEquals(JpegOrientation.TRANSPOSE, JpegOrientation.exifOrientation(90, true));
+    }
+
+    @Test
+    public void setExifOrientation_insertsThenPatchesInPlace() throws Exception {
+        byte[] jpeg = JpegTransformTest.encode(16, 16);
+        assertEquals(JpegOrientation.NORMAL, JpegOrientation.getExifOrientation(jpeg));
+        assertSame(jpeg, JpegOrientation.setExifOrientation(jpeg, JpegOrientation.NORMAL));
+
+        byte[] tagged = JpegOrientation.setExifOrientation(jpeg, JpegOrientation.ROTATE_90);
+        assertEquals(jpeg.length + 36, tagged.length);
+        assertEquals(JpegOrientation.ROTATE_90, JpegOrientation.getExifOrientation(tagged));
+        //JFIF stays the first segment
+        assertEquals((byte) 0xE0, tagged[3]);
+        assertNotNull(JpegTransformTest.decode(tagged));
+
+        assertSame(tagged, JpegOrientation.setExifOrientation(tagged, JpegOrientation.TRANSVERSE));
+        assertEquals(JpegOrientation.TRANSVERSE, JpegOrientation.getExifOrientation(tagged));
+
+        File file = File.createTempFile("oriented", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(tagged);
+            out.close();
+            assertEquals(JpegOrientation.TRANSVERSE, JpegOrientation.readExifOrientation(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void setExifOrientation_readsLittleEndianExif() throws Exception {
+        byte[] jpeg = {
+                (byte) 0xFF, (byte) 0xD8,
+                (byte) 0xFF, (byte) 0xE1, 0, 34, 'E', 'x', 'i', 'f', 0, 0,
+                'I', 'I', 42, 0, 8, 0, 0, 0,
+                1, 0,
+                0x12, 0x01, 3, 0, 1, 0, 0, 0, 1, 0, 0, 0,
+                0, 0, 0, 0,
+                (byte) 0xFF, (byte) 0xD9
+        };
+        assertEquals(JpegOrientation.NORMAL, JpegOrientation.getExifOrientation(jpeg));
+        assertSame(jpeg, JpegOrientation.setExifOrientation(jpeg, JpegOrientation.ROTATE_270));
+        assertEquals(JpegOrientation.ROTATE_270, jpeg[30]);
+        assertEquals(JpegOrientation.ROTATE_270, JpegOrientation.getExifOrientation(jpeg));
+    }
+
+    @Test
+    public void readExifOrientation_ignoresBadSegmentLength() throws Exception {
+        File file = File.createTempFile("bad", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1, 0, 1, 0, 0});
+            } finally {
+                out.close();
+            }
+            assertEquals(JpegOrientation.NORMAL, JpegOrientation.readExifOrientation(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void setExifOrientation_leavesOtherDataAlone() throws Exception {
+        byte[] data = {1, 2, 3, 4, 5};
+        assertSame(data, JpegOrientation.setExifOrientation(data, JpegOrientation.ROTATE_90));
+        assertEquals(JpegOrientation.NORMAL, JpegOrientation.getExifOrientation(data));
+    }
+}
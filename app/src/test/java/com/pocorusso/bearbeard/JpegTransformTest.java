@@ -0,0 +1,142 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link JpegTransform}, on JPEGs written by ImageIO.
+ */
+public class JpegTransformTest {
+
+    @Test
+    public void transform_turnsThePictureLikeTheExifOrientation() throws Exception {
+        byte[] jpeg = encode(64, 48);
+        BufferedImage original = decode(jpeg);
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            for (int m = 0; m < 2; m++) {
+                boolean mirror = m == 1;
+                byte[] transformed = JpegTransform.transform(jpeg, rotation, mirror);
+                assertNotNull(transformed);
+                BufferedImage image = decode(transformed);
+                boolean swap = rotation % 180 != 0;
+                assertEquals(swap ? 48 : 64, image.getWidth());
+                assertEquals(swap ? 64 : 48, image.getHeight());
+                for (int y = 0; y < image.getHeight(); y += 3) {
+                    for (int x = 0; x < image.getWidth(); x += 3) {
+                        int[] source = sourcePixel(x, y, image.getWidth(), image.getHeight(), rotation, mirror);
+                        assertSimilar("rotation " + rotation + " mirror " + mirror + " at " + x + "," + y,
+                                original.getRGB(source[0], source[1]), image.getRGB(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void transform_isExactlyReversible() throws Exception {
+        byte[] jpeg = encode(48, 32);
+        byte[] identity = JpegTransform.transform(jpeg, 0, false);
+        byte[] turned = JpegTransform.transform(jpeg, 90, false);
+        assertArrayEquals(identity, JpegTransform.transform(turned, 270, false));
+        byte[] mirrored = JpegTransform.transform(jpeg, 0, true);
+        assertArrayEquals(identity, JpegTransform.transform(mirrored, 0, true));
+    }
+
+    @Test
+    public void transform_givesUpOnPartialEdgeBlocks() throws Exception {
+        //4:2:0 blocks are 16x16, the height is not a multiple
+        byte[] jpeg = encode(64, 40);
+        assertNull(JpegTransform.transform(jpeg, 90, false));
+        assertNull(JpegTransform.transform(jpeg, 180, false));
+        //only the width would be flipped
+        assertNotNull(JpegTransform.transform(jpeg, 270, false));
+        assertNotNull(JpegTransform.transform(jpeg, 0, true));
+    }
+
+    @Test
+    public void orient_fallsBackToExifOrientation() throws Exception {
+        byte[] jpeg = encode(64, 40);
+        byte[] oriented = JpegOrientation.orient(jpeg.clone(), 90, false, true);
+        assertEquals(JpegOrientation.ROTATE_90, JpegOrientation.getExifOrientation(oriented));
+        assertEquals(64, decode(oriented).getWidth());
+
+        oriented = JpegOrientation.orient(encode(64, 48), 90, false, true);
+        assertEquals(JpegOrientation.NORMAL, JpegOrientation.getExifOrientation(oriented));
+        assertEquals(48, decode(oriented).getWidth());
+    }
+
+    @Test
+    public void transform_rejectsOverSubscribedHuffmanTable() throws Exception {
+        byte[] jpeg = encode(64, 48);
+        int dht = 2;
+        while ((jpeg[dht] & 0xff) != 0xFF || (jpeg[dht + 1] & 0xff) != 0xC4) {
+            dht += 2 + ((jpeg[dht + 2] & 0xff) << 8 | (jpeg[dht + 3] & 0xff));
+        }
+        //the standard DC table has five codes of length three, make three of them length one
+        assertEquals(5, jpeg[dht + 7]);
+        jpeg[dht + 5] = 3;
+        jpeg[dht + 7] = 2;
+        try {
+            JpegTransform.transform(jpeg, 90, false);
+            fail("expected the table to be rejected");
+        } catch (IOException e) {
+            //expected
+        }
+        byte[] oriented = JpegOrientation.orient(jpeg, 90, false, true);
+        assertEquals(JpegOrientation.ROTATE_90, JpegOrientation.getExifOrientation(oriented));
+    }
+
+    /**
+     * @return where a pixel of the turned picture was, rotating first and mirroring after
+     */
+    private static int[] sourcePixel(int x, int y, int width, int height, int rotation, boolean mirror) {
+        if (mirror) {
+            x = width - 1 - x;
+        }
+        switch (rotation) {
+            case 90:
+                return new int[]{y, width - 1 - x};
+            case 180:
+                return new int[]{width - 1 - x, height - 1 - y};
+            case 270:
+                return new int[]{height - 1 - y, x};
+            default:
+                return new int[]{x, y};
+        }
+    }
+
+    private static void assertSimilar(String message, int expected, int actual) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            int difference = Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+            //the decoder's chroma upsampling is not symmetric
+            assertTrue(message + " differs by " + difference, difference <= 4);
+        }
+    }
+
+    static byte[] encode(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                //smooth gradients, so the comparison is not thrown off by ringing
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | 128);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    static BufferedImage decode(byte[] jpeg) throws Exception {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull("not decodable", image);
+        return image;
+    }
+}
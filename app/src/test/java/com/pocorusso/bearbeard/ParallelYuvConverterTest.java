@@ -0,0 +1,56 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ParallelYuvConverter}.
+ */
+public class ParallelYuvConverterTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Test
+    public void stripes_matchTheSingleThreadedKernels() throws Exception {
+        ParallelYuvConverter converter = new ParallelYuvConverter(3);
+        byte[] nv21 = YuvConverterTest.randomFrame(WIDTH, HEIGHT, 3);
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            int[] expected = new int[WIDTH * HEIGHT];
+            int[] argb = new int[WIDTH * HEIGHT];
+            YuvConverter.nv21ToArgb(nv21, WIDTH, HEIGHT, 1, rotation, expected);
+            converter.nv21ToArgb(nv21, WIDTH, HEIGHT, 1, rotation, argb);
+            assertArrayEquals("rotation " + rotation, expected, argb);
+
+            byte[] expectedLuma = new byte[WIDTH * HEIGHT];
+            byte[] luma = new byte[WIDTH * HEIGHT];
+            YuvConverter.nv21ToLuma(nv21, WIDTH, HEIGHT, 1, rotation, expectedLuma);
+            converter.nv21ToLuma(nv21, WIDTH, HEIGHT, 1, rotation, luma);
+            assertArrayEquals("rotation " + rotation, expectedLuma, luma);
+        }
+        converter.shutdown();
+    }
+
+    @Test
+    public void shutdown_convertsOnTheCallingThread() throws Exception {
+        ParallelYuvConverter converter = new ParallelYuvConverter(2);
+        converter.shutdown();
+        byte[] nv21 = YuvConverterTest.randomFrame(WIDTH, HEIGHT, 4);
+        byte[] expected = new byte[WIDTH * HEIGHT];
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        YuvConverter.nv21ToLuma(nv21, WIDTH, HEIGHT, 1, 90, expected);
+        converter.nv21ToLuma(nv21, WIDTH, HEIGHT, 1, 90, luma);
+        assertArrayEquals(expected, luma);
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void failures_reachTheCaller() throws Exception {
+        ParallelYuvConverter converter = new ParallelYuvConverter(2);
+        try {
+            converter.nv21ToArgb(new byte[WIDTH * HEIGHT * 3 / 2], WIDTH, HEIGHT, 1, 0, new int[WIDTH]);
+        } finally {
+            converter.shutdown();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PictureSaver}, run against the host file system.
+ */
+public class PictureSaverTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static byte[] picture(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    @Test
+    public void writeAtomically_replacesTargetAndLeavesNoTempFile() throws Exception {
+        File file = new File(mFolder.getRoot(), "IMG_1.jpg");
+        PictureSaver.writeAtomically(file, picture(100, 1));
+        PictureSaver.writeAtomically(file, picture(50, 2));
+
+        assertArrayEquals(picture(50, 2), readFile(file));
+        assertEquals(Arrays.asList("IMG_1.jpg"), Arrays.asList(mFolder.getRoot().list()));
+    }
+
+    @Test
+    public void writeAtomically_createsMissingDirectory() throws Exception {
+        File file = new File(mFolder.getRoot(), "Pictures/IMG_1.jpg");
+        PictureSaver.writeAtomically(file, picture(10, 3));
+        assertArrayEquals(picture(10, 3), readFile(file));
+    }
+
+    @Test
+    public void save_writesConcurrentBurstAndReportsStats() throws Exception {
+        final int count = 8;
+        final CountDownLatch done = new CountDownLatch(count);
+        PictureSaver saver = new PictureSaver("test-save", 3, count);
+        for (int i = 0; i < count; i++) {
+            assertTrue(saver.save(new File(mFolder.getRoot(), "IMG_" + i + ".jpg"), picture(4096, i),
+                    new PictureSaver.SaveListener() {
+                        @Override
+                        public void onSaved(File file, long latencyNanos) {
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onSaveFailed(File file, IOException e) {
+                            fail("save failed: " + e);
+                        }
+                    }));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(picture(4096, i), readFile(new File(mFolder.getRoot(), "IMG_" + i + ".jpg")));
+        }
+        assertEquals(count, saver.getSavedCount());
+        assertEquals(count * 4096L, saver.getBytesWritten());
+        assertTrue(saver.getBytesPerSecond() > 0);
+        assertTrue(saver.getMaxLatencyNanos() >= saver.getAverageLatencyNanos());
+
+        saver.shutdown();
+        assertTrue(saver.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void save_failsRatherThanBlocksWhenQueueIsFull() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        PictureSaver saver = new PictureSaver("test-save", 1, 1);
+        saver.save(new File(mFolder.getRoot(), "IMG_0.jpg"), picture(10, 0), new PictureSaver.SaveListener() {
+            @Override
+            public void onSaved(File file, long latencyNanos) {
+                //hold the only writer
+                writing.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onSaveFailed(File file, IOException e) {
+                fail("save failed: " + e);
+            }
+        });
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        assertTrue(saver.save(new File(mFolder.getRoot(), "IMG_1.jpg"), picture(10, 1), null));
+
+        final IOException[] failure = new IOException[1];
+        assertFalse(saver.save(new File(mFolder.getRoot(), "IMG_2.jpg"), picture(10, 2),
+                new PictureSaver.SaveListener() {
+                    @Override
+                    public void onSaved(File file, long latencyNanos) {
+                        fail("save should not succeed");
+                    }
+
+                    @Override
+                    public void onSaveFailed(File file, IOException e) {
+                        failure[0] = e;
+                    }
+                }));
+        assertNotNull(failure[0]);
+        assertEquals(1, saver.getFailedCount());
+
+        release.countDown();
+        saver.shutdown();
+        assertTrue(saver.awaitTermination(5, TimeUnit.SECONDS));
+        assertArrayEquals(picture(10, 1), readFile(new File(mFolder.getRoot(), "IMG_1.jpg")));
+    }
+
+    @Test
+    public void save_reportsFailure() throws Exception {
+        File blocker = mFolder.newFile("not_a_dir");
+        final CountDownLatch failed = new CountDownLatch(1);
+        PictureSaver saver = new PictureSaver("test-save", 1, 1);
+        saver.save(new File(blocker, "IMG_1.jpg"), picture(10, 0), new PictureSaver.SaveListener() {
+            @Override
+            public void onSaved(File file, long latencyNanos) {
+                fail("save should not succeed");
+            }
+
+            @Override
+            public void onSaveFailed(File file, IOException e) {
+                failed.countDown();
+            }
+        });
+
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, saver.getFailedCount());
+        saver.shutdown();
+    }
+}
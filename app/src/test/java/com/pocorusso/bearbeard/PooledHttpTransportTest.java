@@ -0,0 +1,260 @@
+package com.pocorusso.bearbeard;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PooledHttpTransport}, talking to an in-process HTTP server.
+ */
+public class PooledHttpTransportTest {
+
+    private HttpServer mServer;
+    private int mPort;
+    private volatile boolean mGzip;
+    private final AtomicInteger mSlowRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = startServer(0);
+        mPort = mServer.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop(0);
+    }
+
+    private HttpServer startServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+                byte[] response = body.toByteArray();
+                if (mGzip) {
+                    ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+                    GZIPOutputStream out = new GZIPOutputStream(zipped);
+                    out.write(response);
+                    out.close();
+                    response = zipped.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mSlowRequests.incrementAndGet();
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private URL url() throws Exception {
+        return new URL("http://127.0.0.1:" + mPort + "/echo");
+    }
+
+    private static Transport.Body body(final byte[] data) {
+        return new Transport.Body() {
+            @Override
+            public String getContentType() {
+                return "application/octet-stream";
+            }
+
+            @Override
+            public String getAccept() {
+                return null;
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                return new ByteArrayInputStream(data);
+            }
+        };
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    @Test
+    public void post_reusesKeptAliveConnection() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport(1024, 2, 30000);
+        for (int i = 0; i < 5; i++) {
+            byte[] data = data(3000 + i);
+            TransportResponse response = transport.post(url(), body(data), 5000);
+            assertEquals(200, response.getStatusCode());
+            assertArrayEquals(data, response.getBody());
+            assertEquals(data.length, response.getBytesSent());
+        }
+
+        TransferStats stats = transport.getStats();
+        assertEquals(1, stats.getConnectionsOpened());
+        assertEquals(4, stats.getConnectionsReused());
+        assertEquals(0.8, stats.getReuseRatio(), 1e-9);
+        assertEquals(5, stats.getRequestCount());
+        assertTrue(stats.getRoundTripPercentileNanos(50) > 0);
+        assertTrue(stats.getRoundTripPercentileNanos(99) >= stats.getRoundTripPercentileNanos(50));
+        assertEquals(1, transport.getIdleConnectionCount());
+        transport.shutdown();
+        assertEquals(0, transport.getIdleConnectionCount());
+    }
+
+    @Test
+    public void post_dropsConnectionsIdleLongerThanKeepAlive() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport(1024, 2, 1);
+        transport.post(url(), body(data(10)), 5000);
+        Thread.sleep(20);
+        transport.post(url(), body(data(10)), 5000);
+        assertEquals(2, transport.getStats().getConnectionsOpened());
+        assertEquals(0, transport.getStats().getConnectionsReused());
+        transport.shutdown();
+    }
+
+    @Test
+    public void post_retriesOnFreshConnectionWhenPooledOneWasClosed() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport(1024, 2, 30000);
+        transport.post(url(), body(data(10)), 5000);
+
+        //the server goes away and comes back, closing the kept alive connection
+        mServer.stop(0);
+        mServer = startServer(mPort);
+
+        byte[] data = data(100);
+        TransportResponse response = transport.post(url(), body(data), 5000);
+        assertArrayEquals(data, response.getBody());
+        assertEquals(2, transport.getStats().getConnectionsOpened());
+        transport.shutdown();
+    }
+
+    @Test
+    public void post_doesNotResendWhenResponseTimesOut() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport(1024, 2, 30000);
+        transport.post(url(), body(data(10)), 5000);
+
+        try {
+            transport.post(new URL("http://127.0.0.1:" + mPort + "/slow"), body(data(10)), 100);
+            fail("expected a timeout");
+        } catch (SocketTimeoutException e) {
+            //expected
+        }
+        //a resend would reach the server well within this
+        Thread.sleep(300);
+        assertEquals(1, mSlowRequests.get());
+        assertEquals(1, transport.getStats().getConnectionsOpened());
+        transport.shutdown();
+    }
+
+    @Test
+    public void post_rejectsMalformedContentLength() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    InputStream in = socket.getInputStream();
+                    //wait for the end of the chunked body
+                    int matched = 0;
+                    byte[] end = "0\r\n\r\n".getBytes("US-ASCII");
+                    while (matched < end.length) {
+                        int c = in.read();
+                        if (c == -1) {
+                            break;
+                        }
+                        matched = c == end[matched] ? matched + 1 : (c == end[0] ? 1 : 0);
+                    }
+                    socket.getOutputStream().write(
+                            "HTTP/1.1 200 OK\r\nContent-Length: lots\r\n\r\n".getBytes("US-ASCII"));
+                    socket.getOutputStream().flush();
+                    socket.close();
+                } catch (IOException e) {
+                    //the test fails on its own
+                }
+            }
+        });
+        thread.start();
+
+        PooledHttpTransport transport = new PooledHttpTransport(1024, 2, 30000);
+        try {
+            transport.post(new URL("http://127.0.0.1:" + server.getLocalPort() + "/"), body(data(10)), 5000);
+            fail("expected the response to be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Malformed Content-Length"));
+        } finally {
+            thread.join(5000);
+            server.close();
+        }
+        assertEquals(0, transport.getIdleConnectionCount());
+        transport.shutdown();
+    }
+
+    @Test
+    public void post_decodesGzipResponses() throws Exception {
+        mGzip = true;
+        PooledHttpTransport transport = new PooledHttpTransport(1024, 2, 30000);
+        byte[] data = data(5000);
+        assertArrayEquals(data, transport.post(url(), body(data), 5000).getBody());
+        transport.shutdown();
+    }
+
+    @Test
+    public void latencyRecorder_reportsNearestRankPercentiles() throws Exception {
+        LatencyRecorder recorder = new LatencyRecorder(100);
+        assertEquals(0, recorder.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            recorder.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), recorder.getPercentile(50));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(95), recorder.getPercentile(95));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), recorder.getPercentile(100));
+
+        //only the most recent samples count
+        for (int i = 0; i < 100; i++) {
+            recorder.record(1);
+        }
+        assertEquals(1, recorder.getPercentile(99));
+    }
+}
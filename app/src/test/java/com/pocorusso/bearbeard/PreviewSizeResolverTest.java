@@ -0,0 +1,72 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PreviewSizeResolver}.
+ */
+public class PreviewSizeResolverTest {
+
+    private static final List<FrameSize> SIZES = Arrays.asList(
+            new FrameSize(1920, 1080),
+            new FrameSize(1280, 960),
+            new FrameSize(640, 480),
+            new FrameSize(352, 288));
+
+    @Test
+    public void getOptimalPreviewSize_matchesAspectRatio() throws Exception {
+        assertEquals(new FrameSize(1920, 1080),
+                PreviewSizeResolver.getOptimalPreviewSize(SIZES, 1920, 1080, false));
+        assertEquals(new FrameSize(1280, 960),
+                PreviewSizeResolver.getOptimalPreviewSize(SIZES, 800, 600, false));
+    }
+
+    @Test
+    public void getOptimalPreviewSize_swapsRatioInPortrait() throws Exception {
+        assertEquals(new FrameSize(1920, 1080),
+                PreviewSizeResolver.getOptimalPreviewSize(SIZES, 1080, 1920, true));
+    }
+
+    @Test
+    public void getOptimalPreviewSize_handlesMissingInput() throws Exception {
+        assertNull(PreviewSizeResolver.getOptimalPreviewSize(null, 100, 100, false));
+        assertNull(PreviewSizeResolver.getOptimalPreviewSize(SIZES, 0, 100, false));
+    }
+
+    @Test
+    public void resolve_cachesPerCameraAndOrientation() throws Exception {
+        PreviewSizeResolver resolver = new PreviewSizeResolver();
+        assertNull(resolver.resolve(0, 1080, 1920, true));
+
+        resolver.setSupportedSizes(0, SIZES);
+        resolver.setSupportedSizes(1, Arrays.asList(new FrameSize(640, 480)));
+        assertEquals(new FrameSize(1920, 1080), resolver.resolve(0, 1080, 1920, true));
+        assertEquals(new FrameSize(1920, 1080), resolver.resolve(0, 1080, 1920, true));
+        assertEquals(new FrameSize(640, 480), resolver.resolve(1, 1080, 1920, true));
+        assertEquals(new FrameSize(1280, 960), resolver.resolve(0, 1440, 1080, false));
+
+        assertEquals(1, resolver.getHitCount());
+        assertEquals(4, resolver.getMissCount());
+    }
+
+    @Test
+    public void setSupportedSizes_forgetsOnlyThatCamerasSizes() throws Exception {
+        PreviewSizeResolver resolver = new PreviewSizeResolver();
+        resolver.setSupportedSizes(0, SIZES);
+        resolver.setSupportedSizes(1, SIZES);
+        resolver.resolve(0, 1920, 1080, false);
+        resolver.resolve(1, 1920, 1080, false);
+        assertEquals(2, resolver.getMissCount());
+
+        resolver.setSupportedSizes(1, Arrays.asList(new FrameSize(640, 480)));
+        assertEquals(new FrameSize(1920, 1080), resolver.resolve(0, 1920, 1080, false));
+        assertEquals(1, resolver.getHitCount());
+        assertEquals(new FrameSize(640, 480), resolver.resolve(1, 1920, 1080, false));
+        assertEquals(3, resolver.getMissCount());
+    }
+}
@@ -0,0 +1,54 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PreviewTransform}.
+ */
+public class PreviewTransformTest {
+
+    private static final float DELTA = 1e-4f;
+
+    @Test
+    public void compute_keepsMatchingAspectRatioUnscaled() throws Exception {
+        PreviewTransform transform = PreviewTransform.compute(1080, 1440, 480, 640,
+                PreviewTransform.ScaleMode.FIT, 1f);
+        assertEquals(1f, transform.scaleX, DELTA);
+        assertEquals(1f, transform.scaleY, DELTA);
+    }
+
+    @Test
+    public void compute_fitLeavesBarsOnTheNarrowSide() throws Exception {
+        //a 4:3 portrait frame in a 9:16 view is as wide as the view and shorter
+        PreviewTransform transform = PreviewTransform.compute(1080, 1920, 480, 640,
+                PreviewTransform.ScaleMode.FIT, 1f);
+        assertEquals(1f, transform.scaleX, DELTA);
+        assertEquals(1440f / 1920f, transform.scaleY, DELTA);
+    }
+
+    @Test
+    public void compute_cropOverflowsTheNarrowSide() throws Exception {
+        PreviewTransform transform = PreviewTransform.compute(1080, 1920, 480, 640,
+                PreviewTransform.ScaleMode.CROP, 1f);
+        assertEquals(1920f * 480f / 640f / 1080f, transform.scaleX, DELTA);
+        assertEquals(1f, transform.scaleY, DELTA);
+    }
+
+    @Test
+    public void compute_zoomScalesBothAxes() throws Exception {
+        PreviewTransform transform = PreviewTransform.compute(1080, 1920, 480, 640,
+                PreviewTransform.ScaleMode.FIT, 2f);
+        assertEquals(2f, transform.scaleX, DELTA);
+        assertEquals(2f * 1440f / 1920f, transform.scaleY, DELTA);
+    }
+
+    @Test
+    public void compute_withoutSizesOnlyZooms() throws Exception {
+        PreviewTransform transform = PreviewTransform.compute(0, 0, 480, 640,
+                PreviewTransform.ScaleMode.CROP, 1.5f);
+        assertEquals(1.5f, transform.scaleX, DELTA);
+        assertEquals(1.5f, transform.scaleY, DELTA);
+    }
+}
@@ -0,0 +1,119 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ProcessingStage} drop policies and stats.
+ */
+public class ProcessingStageTest {
+
+    /**
+     * Blocks the single worker on the first item so the queue can be filled.
+     */
+    private static class GatedProcessor implements ProcessingStage.Processor<Integer> {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mGate = new CountDownLatch(1);
+        final List<Integer> mProcessed = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> mDropped = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void process(Integer item) throws Exception {
+            mStarted.countDown();
+            mGate.await();
+            mProcessed.add(item);
+        }
+
+        @Override
+        public void onDropped(Integer item) {
+            mDropped.add(item);
+        }
+    }
+
+    private ProcessingStage<Integer> fillStage(GatedProcessor processor,
+                                               ProcessingStage.DropPolicy policy) throws Exception {
+        ProcessingStage<Integer> stage = new ProcessingStage<Integer>("test", 1, 2, policy, processor);
+        stage.start();
+        stage.submit(0);
+        assertTrue(processor.mStarted.await(5, TimeUnit.SECONDS));
+        stage.submit(1);
+        stage.submit(2);
+        return stage;
+    }
+
+    @Test
+    public void dropOldest_discardsHeadOfQueue() throws Exception {
+        GatedProcessor processor = new GatedProcessor();
+        ProcessingStage<Integer> stage = fillStage(processor, ProcessingStage.DropPolicy.DROP_OLDEST);
+
+        assertTrue(stage.submit(3));
+        assertEquals(Collections.singletonList(1), processor.mDropped);
+
+        processor.mGate.countDown();
+        stage.shutdown();
+        assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 2, 3), processor.mProcessed);
+        assertEquals(1, stage.getStats().getDropped());
+        assertEquals(2, stage.getStats().getMaxQueueDepth());
+    }
+
+    @Test
+    public void dropNewest_rejectsSubmittedItem() throws Exception {
+        GatedProcessor processor = new GatedProcessor();
+        ProcessingStage<Integer> stage = fillStage(processor, ProcessingStage.DropPolicy.DROP_NEWEST);
+
+        assertFalse(stage.submit(3));
+        assertEquals(Collections.singletonList(3), processor.mDropped);
+
+        processor.mGate.countDown();
+        stage.shutdown();
+        assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2), processor.mProcessed);
+    }
+
+    @Test
+    public void block_waitsForRoom() throws Exception {
+        final GatedProcessor processor = new GatedProcessor();
+        final ProcessingStage<Integer> stage = fillStage(processor, ProcessingStage.DropPolicy.BLOCK);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stage.submit(3);
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue("submit should block while the queue is full", producer.isAlive());
+
+        processor.mGate.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+
+        stage.shutdown();
+        assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3), processor.mProcessed);
+        assertTrue(processor.mDropped.isEmpty());
+    }
+
+    @Test
+    public void shutdownNow_dropsQueuedItems() throws Exception {
+        GatedProcessor processor = new GatedProcessor();
+        ProcessingStage<Integer> stage = fillStage(processor, ProcessingStage.DropPolicy.BLOCK);
+
+        stage.shutdownNow();
+        processor.mGate.countDown();
+        assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(0), processor.mProcessed);
+        assertEquals(Arrays.asList(1, 2), processor.mDropped);
+        assertFalse(stage.submit(4));
+    }
+}
@@ -0,0 +1,313 @@
+package com.pocorusso.bearbeard;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link StreamingSender}, sending to an in-process HTTP server.
+ */
+public class StreamingSenderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private volatile int mStatus = 200;
+    private volatile String mTransferEncoding;
+    private volatile String mContentType;
+    private volatile long mReceived;
+    private final AtomicInteger mRequests = new AtomicInteger();
+    //the progressive endpoint holds the full result until the preview was delivered
+    private final CountDownLatch mPreviewSeen = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRequests.incrementAndGet();
+                mTransferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+                mContentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                long received = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    received += read;
+                }
+                mReceived = received;
+                if (mStatus != 200) {
+                    exchange.sendResponseHeaders(mStatus, -1);
+                } else {
+                    byte[] response = Long.toString(received).getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, response.length);
+                    exchange.getResponseBody().write(response);
+                }
+                exchange.close();
+            }
+        });
+        mServer.createContext("/progressive", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() != -1) {
+                }
+                String accept = exchange.getRequestHeaders().getFirst("Accept");
+                if (accept == null || !accept.contains(ProgressiveReader.CONTENT_TYPE)) {
+                    byte[] response = "full".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, response.length);
+                    exchange.getResponseBody().write(response);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", ProgressiveReader.CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                out.write(new byte[]{0, 0, 0, 2});
+                BatchCodec.writeFrame(out, "thumb".getBytes("UTF-8"));
+                out.flush();
+                try {
+                    mPreviewSeen.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                BatchCodec.writeFrame(out, "full".getBytes("UTF-8"));
+                exchange.close();
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop(0);
+    }
+
+    private StreamingSender sender() throws Exception {
+        return sender(new PooledHttpTransport(16 * 1024, 2, 30000), new RequestPolicy(5000, 0, 0));
+    }
+
+    private StreamingSender sender(Transport transport, final RequestPolicy policy) throws Exception {
+        return sender("/upload", transport, policy);
+    }
+
+    private StreamingSender sender(String path, Transport transport, final RequestPolicy policy)
+            throws Exception {
+        URL url = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + path);
+        return new StreamingSender(url, transport, new StreamingSender.BodySource() {
+            @Override
+            public String getContentType(UploadJob job) {
+                return "image/jpeg";
+            }
+
+            @Override
+            public InputStream open(UploadJob job) throws IOException {
+                return new FileInputStream(job.getFile());
+            }
+
+            @Override
+            public RequestPolicy getPolicy(UploadJob job) {
+                return policy;
+            }
+        }, 1);
+    }
+
+    private UploadJob job(int size) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            byte[] block = new byte[4096];
+            for (int written = 0; written < size; written += block.length) {
+                out.write(block, 0, Math.min(block.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return new UploadJob(1, file, "0-JPEG-100-100-AUTO", UploadJob.State.PENDING, 0);
+    }
+
+    @Test
+    public void send_reportsRuntimeFailureAsNotRetryable() throws Exception {
+        URL url = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/upload");
+        StreamingSender sender = new StreamingSender(url, new PooledHttpTransport(16 * 1024, 2, 30000),
+                new StreamingSender.BodySource() {
+                    @Override
+                    public String getContentType(UploadJob job) {
+                        return "image/jpeg";
+                    }
+
+                    @Override
+                    public InputStream open(UploadJob job) throws IOException {
+                        throw new IllegalStateException("broken source");
+                    }
+
+                    @Override
+                    public RequestPolicy getPolicy(UploadJob job) {
+                        return new RequestPolicy(5000, 0, 0);
+                    }
+                }, 1);
+        final CountDownLatch failed = new CountDownLatch(1);
+        final boolean[] retryable = {true};
+        sender.send(job(10), new UploadQueue.SendCallback() {
+            @Override
+            public void onSuccess(byte[] response) {
+                fail("send should not succeed");
+            }
+
+            @Override
+            public void onFailure(Exception e, boolean canRetry) {
+                retryable[0] = canRetry;
+                failed.countDown();
+            }
+        });
+
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        assertFalse(retryable[0]);
+        sender.shutdown();
+    }
+
+    @Test
+    public void sendNow_streamsBodyInChunks() throws Exception {
+        streamsBodyInChunks(sender());
+    }
+
+    @Test
+    public void sendNow_streamsBodyInChunksOverUrlConnection() throws Exception {
+        streamsBodyInChunks(sender(new UrlConnectionTransport(16 * 1024), new RequestPolicy(5000, 0, 0)));
+    }
+
+    private void streamsBodyInChunks(StreamingSender sender) throws Exception {
+        byte[] response = sender.sendNow(job(3 * 1024 * 1024 + 17));
+
+        assertEquals("chunked", mTransferEncoding);
+        assertEquals("image/jpeg", mContentType);
+        assertEquals(3 * 1024 * 1024 + 17, mReceived);
+        assertEquals(Long.toString(mReceived), new String(response, "UTF-8"));
+
+        TransferStats stats = sender.getStats();
+        assertEquals(1, stats.getRequestCount());
+        assertEquals(mReceived, stats.getBytesSent());
+        assertEquals(response.length, stats.getBytesReceived());
+        assertTrue(stats.getUploadBytesPerSecond() > 0);
+        assertTrue(stats.getAverageTimeToFirstByteNanos() > 0);
+        sender.shutdown();
+    }
+
+    @Test
+    public void sendNow_deliversPreviewBeforeFullResult() throws Exception {
+        deliversPreviewBeforeFullResult(sender("/progressive", new PooledHttpTransport(16 * 1024, 2, 30000),
+                new RequestPolicy(5000, 0, 0)));
+    }
+
+    @Test
+    public void sendNow_deliversPreviewBeforeFullResultOverUrlConnection() throws Exception {
+        deliversPreviewBeforeFullResult(sender("/progressive", new UrlConnectionTransport(16 * 1024),
+                new RequestPolicy(5000, 0, 0)));
+    }
+
+    private void deliversPreviewBeforeFullResult(StreamingSender sender) throws Exception {
+        final List<String> previews = new ArrayList<String>();
+        sender.setPreviewListener(new StreamingSender.PreviewListener() {
+            @Override
+            public void onPreview(UploadJob job, byte[] preview) {
+                try {
+                    previews.add(new String(preview, "UTF-8"));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                mPreviewSeen.countDown();
+            }
+        });
+        byte[] response = sender.sendNow(job(10));
+
+        assertEquals(Collections.singletonList("thumb"), previews);
+        assertEquals("full", new String(response, "UTF-8"));
+        sender.shutdown();
+    }
+
+    @Test
+    public void sendNow_asksForPlainResponseWithoutPreviewListener() throws Exception {
+        StreamingSender sender = sender("/progressive", new PooledHttpTransport(16 * 1024, 2, 30000),
+                new RequestPolicy(5000, 0, 0));
+        assertEquals("full", new String(sender.sendNow(job(10)), "UTF-8"));
+        sender.shutdown();
+    }
+
+    @Test
+    public void sendNow_retriesServerErrorsAsThePolicyAllows() throws Exception {
+        mStatus = 503;
+        StreamingSender sender = sender(new PooledHttpTransport(16 * 1024, 2, 30000), new RequestPolicy(5000, 2, 1));
+        try {
+            sender.sendNow(job(10));
+            fail("expected a failure");
+        } catch (StreamingSender.HttpStatusException e) {
+            assertEquals(503, e.getStatusCode());
+        }
+        assertEquals(2, sender.getRetryCount());
+        assertEquals(3, mRequests.get());
+
+        mStatus = 400;
+        try {
+            sender.sendNow(job(10));
+            fail("expected a failure");
+        } catch (StreamingSender.HttpStatusException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+        assertEquals(2, sender.getRetryCount());
+        sender.shutdown();
+    }
+
+    @Test
+    public void send_reportsServerErrorsAsRetryable() throws Exception {
+        mStatus = 503;
+        assertTrue(sendAndGetRetryable(sender()));
+        mStatus = 404;
+        assertFalse(sendAndGetRetryable(sender()));
+    }
+
+    private boolean sendAndGetRetryable(StreamingSender sender) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean retryable = new AtomicBoolean();
+        sender.send(job(10), new UploadQueue.SendCallback() {
+            @Override
+            public void onSuccess(byte[] response) {
+                fail("expected a failure");
+            }
+
+            @Override
+            public void onFailure(Exception e, boolean isRetryable) {
+                retryable.set(isRetryable);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        sender.shutdown();
+        return retryable.get();
+    }
+}
@@ -0,0 +1,105 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link Tracer}.
+ */
+public class TracerTest {
+
+    @Test
+    public void disabled_recordsNothing() throws Exception {
+        Tracer tracer = new Tracer(16);
+        long start = tracer.begin();
+        assertEquals(0, start);
+        tracer.end(Tracer.Stage.CAMERA_OPEN, start);
+        tracer.record(Tracer.Stage.SHUTTER, 1, 1);
+
+        //a span begun while disabled stays unrecorded
+        tracer.setEnabled(true);
+        tracer.end(Tracer.Stage.CAMERA_OPEN, start);
+        assertTrue(tracer.snapshot().isEmpty());
+        assertEquals(0, tracer.getRecordedCount());
+    }
+
+    @Test
+    public void snapshot_keepsMostRecentSpansInStartOrder() throws Exception {
+        Tracer tracer = new Tracer(3);
+        tracer.setEnabled(true);
+        for (int i = 1; i <= 6; i++) {
+            tracer.record(Tracer.Stage.SAVE_PICTURE, 100 - i, i);
+        }
+        //capacity rounds up to 4
+        List<Tracer.Span> spans = tracer.snapshot();
+        assertEquals(4, spans.size());
+        assertEquals(94, spans.get(0).startNanos);
+        assertEquals(6, spans.get(0).durationNanos);
+        assertEquals(97, spans.get(3).startNanos);
+        assertEquals(Thread.currentThread().getId(), spans.get(0).threadId);
+        assertEquals(6, tracer.getRecordedCount());
+
+        tracer.clear();
+        assertTrue(tracer.snapshot().isEmpty());
+    }
+
+    @Test
+    public void record_isSafeFromManyThreads() throws Exception {
+        final Tracer tracer = new Tracer(8192);
+        tracer.setEnabled(true);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int stage = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        //duration mirrors the start, a torn span would not
+                        tracer.record(Tracer.Stage.values()[stage], i, i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<Tracer.Span> spans = tracer.snapshot();
+        assertEquals(4000, spans.size());
+        for (Tracer.Span span : spans) {
+            assertEquals(span.startNanos, span.durationNanos);
+        }
+    }
+
+    @Test
+    public void export_writesChromeTraceCsvAndPercentiles() throws Exception {
+        List<Tracer.Span> spans = Arrays.asList(
+                new Tracer.Span(Tracer.Stage.CAMERA_OPEN, 5000, 2000000, 7),
+                new Tracer.Span(Tracer.Stage.NETWORK, 6000, 1500, 8),
+                new Tracer.Span(Tracer.Stage.NETWORK, 7000, 3000, 8));
+
+        StringWriter json = new StringWriter();
+        Tracer.writeChromeTrace(spans, json);
+        assertTrue(json.toString().startsWith("{\"traceEvents\":["));
+        assertTrue(json.toString().contains(
+                "{\"name\":\"CAMERA_OPEN\",\"cat\":\"bearbeard\",\"ph\":\"X\",\"ts\":0.000,\"dur\":2000.000,\"pid\":1,\"tid\":7}"));
+        assertTrue(json.toString().contains("\"ts\":2.000,\"dur\":3.000"));
+
+        StringWriter csv = new StringWriter();
+        Tracer.writeCsv(spans, csv);
+        assertEquals("stage,start_ns,duration_ns,thread\nCAMERA_OPEN,5000,2000000,7\n"
+                + "NETWORK,6000,1500,8\nNETWORK,7000,3000,8\n", csv.toString());
+
+        Map<Tracer.Stage, LatencyRecorder> byStage = Tracer.byStage(spans);
+        assertEquals(2, byStage.size());
+        assertEquals(1500, byStage.get(Tracer.Stage.NETWORK).getPercentile(50));
+        assertEquals(3000, byStage.get(Tracer.Stage.NETWORK).getPercentile(99));
+        assertTrue(Tracer.summarize(spans).contains("CAMERA_OPEN"));
+    }
+}
@@ -0,0 +1,322 @@
+package com.pocorusso.bearbeard;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link UploadQueue} and {@link UploadJournal}, sending to an
+ * in-process HTTP server.
+ */
+public class UploadQueueTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private final AtomicInteger mFailuresLeft = new AtomicInteger();
+    private volatile int mFailureStatus = 503;
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mConcurrent = new AtomicInteger();
+    private final AtomicInteger mMaxConcurrent = new AtomicInteger();
+    private volatile long mResponseDelayMs;
+    private final ExecutorService mSenderThreads = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mRequests.incrementAndGet();
+                int concurrent = mConcurrent.incrementAndGet();
+                int max;
+                while (concurrent > (max = mMaxConcurrent.get())) {
+                    if (mMaxConcurrent.compareAndSet(max, concurrent)) {
+                        break;
+                    }
+                }
+                try {
+                    byte[] body = readAll(exchange.getRequestBody());
+                    Thread.sleep(mResponseDelayMs);
+                    if (mFailuresLeft.getAndDecrement() > 0) {
+                        exchange.sendResponseHeaders(mFailureStatus, -1);
+                    } else {
+                        //echo the upload back, reversed
+                        byte[] response = new byte[body.length];
+                        for (int i = 0; i < body.length; i++) {
+                            response[i] = body[body.length - 1 - i];
+                        }
+                        exchange.sendResponseHeaders(200, response.length);
+                        exchange.getResponseBody().write(response);
+                    }
+                } catch (InterruptedException e) {
+                    exchange.sendResponseHeaders(500, -1);
+                } finally {
+                    mConcurrent.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop(0);
+        mSenderThreads.shutdownNow();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private File picture(String name, String content) throws IOException {
+        File file = mFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Posts the file as is, the way the app posts its encoded payload.
+     */
+    private UploadQueue.Sender httpSender() {
+        final String url = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/upload";
+        return new UploadQueue.Sender() {
+            @Override
+            public void send(final UploadJob job, final UploadQueue.SendCallback callback) {
+                mSenderThreads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        HttpURLConnection connection = null;
+                        try {
+                            connection = (HttpURLConnection) new URL(url).openConnection();
+                            connection.setRequestMethod("POST");
+                            connection.setDoOutput(true);
+                            OutputStream out = connection.getOutputStream();
+                            out.write(PictureSaverTest.readFile(job.getFile()));
+                            out.close();
+                            int status = connection.getResponseCode();
+                            if (status == 200) {
+                                callback.onSuccess(readAll(connection.getInputStream()));
+                            } else {
+                                callback.onFailure(new IOException("HTTP " + status), status >= 500);
+                            }
+                        } catch (IOException e) {
+                            callback.onFailure(e, true);
+                        } finally {
+                            if (connection != null) {
+                                connection.disconnect();
+                            }
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private static class RecordingListener implements UploadQueue.Listener {
+        final CountDownLatch mLatch;
+        final AtomicInteger mCompleted = new AtomicInteger();
+        final AtomicInteger mFailed = new AtomicInteger();
+        volatile byte[] mLastResponse;
+        volatile UploadJob mLastJob;
+
+        RecordingListener(int expected) {
+            mLatch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onUploadComplete(UploadJob job, byte[] response) {
+            mLastJob = job;
+            mLastResponse = response;
+            mCompleted.incrementAndGet();
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onUploadFailed(UploadJob job, Exception e) {
+            mLastJob = job;
+            mFailed.incrementAndGet();
+            mLatch.countDown();
+        }
+    }
+
+    private UploadQueue queue(File journal, UploadQueue.Sender sender, UploadQueue.Listener listener,
+                              int maxConcurrent) {
+        return new UploadQueue(new UploadJournal(journal), sender, listener, maxConcurrent,
+                4, 5, 20, new Random(42));
+    }
+
+    @Test
+    public void upload_retriesServerErrorsThenCompletes() throws Exception {
+        File journal = new File(mFolder.getRoot(), "journal");
+        mFailuresLeft.set(2);
+        RecordingListener listener = new RecordingListener(1);
+        UploadQueue queue = queue(journal, httpSender(), listener, 1);
+        queue.start();
+        assertTrue(queue.enqueue(picture("a.jpg", "abc"), "128-JPEG-50-100-AUTO", "tag"));
+
+        assertTrue(listener.mLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, listener.mCompleted.get());
+        assertEquals("cba", new String(listener.mLastResponse, "UTF-8"));
+        assertEquals("tag", listener.mLastJob.getTag());
+        assertEquals(3, listener.mLastJob.getAttempts());
+        assertEquals(UploadJob.State.DONE, listener.mLastJob.getState());
+        assertEquals(2, queue.getRetryCount());
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(5, TimeUnit.SECONDS));
+
+        //nothing is left to replay
+        assertTrue(new UploadJournal(journal).replay().isEmpty());
+    }
+
+    @Test
+    public void upload_clientErrorIsNotRetried() throws Exception {
+        mFailuresLeft.set(1);
+        mFailureStatus = 400;
+        RecordingListener listener = new RecordingListener(1);
+        UploadQueue queue = queue(new File(mFolder.getRoot(), "journal"), httpSender(), listener, 1);
+        queue.start();
+        queue.enqueue(picture("a.jpg", "abc"), "128-JPEG-50-100-AUTO", null);
+
+        assertTrue(listener.mLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, listener.mFailed.get());
+        assertEquals(1, listener.mLastJob.getAttempts());
+        assertEquals(UploadJob.State.FAILED, listener.mLastJob.getState());
+        assertEquals(1, mRequests.get());
+        queue.shutdown();
+    }
+
+    @Test
+    public void upload_givesUpAfterMaxAttempts() throws Exception {
+        mFailuresLeft.set(100);
+        RecordingListener listener = new RecordingListener(1);
+        UploadQueue queue = queue(new File(mFolder.getRoot(), "journal"), httpSender(), listener, 1);
+        queue.start();
+        queue.enqueue(picture("a.jpg", "abc"), "128-JPEG-50-100-AUTO", null);
+
+        assertTrue(listener.mLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, listener.mFailed.get());
+        assertEquals(4, mRequests.get());
+        queue.shutdown();
+    }
+
+    @Test
+    public void start_replaysJobsUnfinishedBeforeShutdown() throws Exception {
+        File journal = new File(mFolder.getRoot(), "journal");
+        final CountDownLatch sent = new CountDownLatch(1);
+        //a sender that never answers, as if the process died mid-upload
+        UploadQueue.Sender stuck = new UploadQueue.Sender() {
+            @Override
+            public void send(UploadJob job, UploadQueue.SendCallback callback) {
+                sent.countDown();
+            }
+        };
+        UploadQueue first = queue(journal, stuck, new RecordingListener(0), 1);
+        first.start();
+        first.enqueue(picture("a.jpg", "in flight"), "128-JPEG-50-100-AUTO", null);
+        first.enqueue(picture("b.jpg", "queued"), "128-JPEG-50-100-AUTO", null);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        first.shutdown();
+        assertTrue(first.awaitTermination(5, TimeUnit.SECONDS));
+
+        RecordingListener listener = new RecordingListener(2);
+        UploadQueue second = queue(journal, httpSender(), listener, 1);
+        second.start();
+        assertTrue(listener.mLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, listener.mCompleted.get());
+        assertEquals(2, second.getReplayedCount());
+        second.shutdown();
+    }
+
+    @Test
+    public void dispatch_capsConcurrentSends() throws Exception {
+        mResponseDelayMs = 50;
+        RecordingListener listener = new RecordingListener(6);
+        UploadQueue queue = queue(new File(mFolder.getRoot(), "journal"), httpSender(), listener, 2);
+        queue.start();
+        for (int i = 0; i < 6; i++) {
+            queue.enqueue(picture("p" + i + ".jpg", "picture " + i), "128-JPEG-50-100-AUTO", null);
+        }
+
+        assertTrue(listener.mLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(6, listener.mCompleted.get());
+        assertTrue(mMaxConcurrent.get() <= 2);
+        queue.shutdown();
+    }
+
+    @Test
+    public void journal_skipsTornRecordAndCompacts() throws Exception {
+        File file = new File(mFolder.getRoot(), "journal");
+        UploadJournal journal = new UploadJournal(file);
+        assertTrue(journal.replay().isEmpty());
+        File picture = picture("a.jpg", "abc");
+        for (int i = 0; i < 100; i++) {
+            UploadJob job = journal.create(picture, "128-JPEG-50-100-AUTO");
+            journal.update(job);
+            job.setState(UploadJob.State.DONE);
+            journal.update(job);
+        }
+        UploadJob live = journal.create(picture, "128-JPEG-50-100-AUTO");
+        journal.update(live);
+        journal.close();
+        //compaction keeps the file from growing with finished jobs
+        assertTrue(file.length() < 1024);
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("999\tPEND".getBytes("UTF-8"));
+        out.close();
+
+        List<UploadJob> replayed = new UploadJournal(file).replay();
+        assertEquals(1, replayed.size());
+        assertEquals(live.getId(), replayed.get(0).getId());
+        assertEquals(picture, replayed.get(0).getFile());
+    }
+
+    @Test
+    public void backoffBound_doublesUpToCap() throws Exception {
+        assertEquals(100, UploadQueue.backoffBoundMs(1, 100, 1000));
+        assertEquals(200, UploadQueue.backoffBoundMs(2, 100, 1000));
+        assertEquals(800, UploadQueue.backoffBoundMs(4, 100, 1000));
+        assertEquals(1000, UploadQueue.backoffBoundMs(5, 100, 1000));
+        assertEquals(1000, UploadQueue.backoffBoundMs(100, 100, 1000));
+    }
+}
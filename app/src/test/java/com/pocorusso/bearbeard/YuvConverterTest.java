@@ -0,0 +1,130 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link YuvConverter}.
+ */
+public class YuvConverterTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+    //NV21 of a 4x2 image: luma 0..7, then V,U pairs for the two 2x2 blocks
+    private static final byte[] EXPECTED = {0, 1, 2, 3, 4, 5, 6, 7, 20, 10, 21, 11};
+
+    @Test
+    public void toNv21_copiesPlanarChroma() throws Exception {
+        ByteBuffer y = ByteBuffer.wrap(new byte[]{0, 1, 2, 3, 4, 5, 6, 7});
+        ByteBuffer u = ByteBuffer.wrap(new byte[]{10, 11});
+        ByteBuffer v = ByteBuffer.wrap(new byte[]{20, 21});
+        byte[] out = new byte[12];
+        YuvConverter.toNv21(y, WIDTH, u, v, 2, 1, WIDTH, HEIGHT, out);
+        assertArrayEquals(EXPECTED, out);
+    }
+
+    @Test
+    public void toNv21_skipsRowPaddingAndInterleavedChroma() throws Exception {
+        //rows padded to 6 bytes, chroma planes sharing memory with a pixel stride of 2
+        ByteBuffer y = ByteBuffer.wrap(new byte[]{0, 1, 2, 3, -1, -1, 4, 5, 6, 7, -1, -1});
+        ByteBuffer u = ByteBuffer.wrap(new byte[]{10, 20, 11, 21, -1, -1});
+        ByteBuffer v = ByteBuffer.wrap(new byte[]{20, 11, 21, -1, -1, -1});
+        byte[] out = new byte[12];
+        YuvConverter.toNv21(y, 6, u, v, 6, 2, WIDTH, HEIGHT, out);
+        assertArrayEquals(EXPECTED, out);
+    }
+
+    @Test
+    public void nv21ToLuma_rotatesClockwise() throws Exception {
+        byte[] out = new byte[8];
+        YuvConverter.nv21ToLuma(EXPECTED, WIDTH, HEIGHT, 1, 90, out);
+        assertArrayEquals(new byte[]{4, 0, 5, 1, 6, 2, 7, 3}, out);
+        YuvConverter.nv21ToLuma(EXPECTED, WIDTH, HEIGHT, 1, 180, out);
+        assertArrayEquals(new byte[]{7, 6, 5, 4, 3, 2, 1, 0}, out);
+        YuvConverter.nv21ToLuma(EXPECTED, WIDTH, HEIGHT, 1, 270, out);
+        assertArrayEquals(new byte[]{3, 7, 2, 6, 1, 5, 0, 4}, out);
+        assertEquals(2, YuvConverter.outputWidth(WIDTH, HEIGHT, 1, 270));
+        assertEquals(4, YuvConverter.outputHeight(WIDTH, HEIGHT, 1, 270));
+    }
+
+    @Test
+    public void nv21ToLuma_downscalesBySampling() throws Exception {
+        byte[] nv21 = new byte[4 * 4 * 3 / 2];
+        for (int i = 0; i < 16; i++) {
+            nv21[i] = (byte) i;
+        }
+        byte[] out = new byte[4];
+        YuvConverter.nv21ToLuma(nv21, 4, 4, 2, 0, out);
+        assertArrayEquals(new byte[]{0, 2, 8, 10}, out);
+        YuvConverter.nv21ToLuma(nv21, 4, 4, 2, 90, out);
+        assertArrayEquals(new byte[]{8, 0, 10, 2}, out);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nv21ToLuma_rejectsOtherAngles() throws Exception {
+        YuvConverter.nv21ToLuma(EXPECTED, WIDTH, HEIGHT, 1, 45, new byte[8]);
+    }
+
+    @Test
+    public void nv21ToArgb_matchesBt601() throws Exception {
+        int width = 16;
+        int height = 8;
+        byte[] nv21 = randomFrame(width, height, 1);
+        int[] out = new int[width * height];
+        YuvConverter.nv21ToArgb(nv21, width, height, 1, 0, out);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int uv = width * height + (y / 2) * width + (x / 2) * 2;
+                double luma = 1.164 * Math.max(0, (nv21[y * width + x] & 0xff) - 16);
+                int v = (nv21[uv] & 0xff) - 128;
+                int u = (nv21[uv + 1] & 0xff) - 128;
+                int argb = out[y * width + x];
+                assertEquals(0xff, argb >>> 24);
+                assertChannel(luma + 1.596 * v, (argb >> 16) & 0xff);
+                assertChannel(luma - 0.813 * v - 0.391 * u, (argb >> 8) & 0xff);
+                assertChannel(luma + 2.018 * u, argb & 0xff);
+            }
+        }
+    }
+
+    @Test
+    public void nv21ToArgb_rotatesAndDownscalesLikeTheFullFrame() throws Exception {
+        int width = 12;
+        int height = 8;
+        byte[] nv21 = randomFrame(width, height, 2);
+        int[] full = new int[width * height];
+        YuvConverter.nv21ToArgb(nv21, width, height, 1, 0, full);
+        for (int sample = 1; sample <= 3; sample++) {
+            int sw = width / sample;
+            int sh = height / sample;
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                int outWidth = YuvConverter.outputWidth(width, height, sample, rotation);
+                int outHeight = YuvConverter.outputHeight(width, height, sample, rotation);
+                int[] out = new int[outWidth * outHeight];
+                YuvConverter.nv21ToArgb(nv21, width, height, sample, rotation, out);
+                for (int oy = 0; oy < outHeight; oy++) {
+                    for (int ox = 0; ox < outWidth; ox++) {
+                        int sx = rotation == 0 ? ox : (rotation == 90 ? oy : (rotation == 180 ? sw - 1 - ox : sw - 1 - oy));
+                        int sy = rotation == 0 ? oy : (rotation == 90 ? sh - 1 - ox : (rotation == 180 ? sh - 1 - oy : ox));
+                        assertEquals("sample " + sample + " rotation " + rotation,
+                                full[sy * sample * width + sx * sample], out[oy * outWidth + ox]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertChannel(double expected, int actual) {
+        assertEquals(Math.max(0, Math.min(255, expected)), actual, 2);
+    }
+
+    static byte[] randomFrame(int width, int height, long seed) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        new Random(seed).nextBytes(nv21);
+        return nv21;
+    }
+}
@@ -0,0 +1,90 @@
+package com.pocorusso.bearbeard;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ZslRingBuffer}.
+ */
+public class ZslRingBufferTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 8;
+    private static final long MS = 1000000;
+
+    private final FrameBufferPool mPool = new FrameBufferPool(1, WIDTH, HEIGHT, 12);
+
+    /**
+     * Feed a frame whose luma alternates between 128 - contrast and 128 + contrast.
+     */
+    private void feed(ZslRingBuffer buffer, int contrast, long timestampNanos) {
+        PreviewFrame frame = mPool.acquire();
+        byte[] data = frame.getData();
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            data[i] = (byte) (128 + ((i + i / WIDTH) % 2 == 0 ? contrast : -contrast));
+        }
+        frame.prepare(new PreviewFrame.Recycler() {
+            @Override
+            public void recycle(PreviewFrame frame) {
+                mPool.release(frame);
+            }
+        }, 1, 0, timestampNanos);
+        buffer.onFrame(frame);
+    }
+
+    @Test
+    public void sharpness_isHigherForStrongerEdges() throws Exception {
+        byte[] flat = new byte[WIDTH * HEIGHT * 3 / 2];
+        assertEquals(0, ZslRingBuffer.sharpness(flat, WIDTH, HEIGHT, 1));
+
+        ZslRingBuffer buffer = new ZslRingBuffer(2, 1);
+        feed(buffer, 10, 0);
+        feed(buffer, 50, 0);
+        ZslRingBuffer.Capture capture = buffer.capture(0, 0);
+        assertEquals(2 * 100 * 100, capture.getSharpness());
+    }
+
+    @Test
+    public void capture_picksSharpestRecentFrame() throws Exception {
+        ZslRingBuffer buffer = new ZslRingBuffer(4, 1);
+        assertNull(buffer.capture(0, 100 * MS));
+
+        feed(buffer, 60, 0);
+        feed(buffer, 20, 100 * MS);
+        feed(buffer, 40, 150 * MS);
+        feed(buffer, 40, 200 * MS);
+        //the sharpest frame is too old, of the two next best the newest wins
+        ZslRingBuffer.Capture capture = buffer.capture(250 * MS, 200 * MS);
+        assertEquals(200 * MS, capture.getTimestampNanos());
+        assertEquals(WIDTH, capture.getWidth());
+        assertEquals(HEIGHT, capture.getHeight());
+        assertEquals(4, buffer.getFramesCopied());
+        //the pipeline buffer went straight back
+        assertNotNull(mPool.acquire());
+    }
+
+    @Test
+    public void capture_keepsSlotUntilReleased() throws Exception {
+        ZslRingBuffer buffer = new ZslRingBuffer(2, 1);
+        feed(buffer, 50, 0);
+        ZslRingBuffer.Capture first = buffer.capture(0, 0);
+        byte[] kept = first.getData().clone();
+
+        feed(buffer, 10, 1);
+        feed(buffer, 20, 2);
+        assertArrayEquals(kept, first.getData());
+        assertEquals(0, buffer.getFramesSkipped());
+
+        ZslRingBuffer.Capture second = buffer.capture(2, 10);
+        assertEquals(2, second.getTimestampNanos());
+        feed(buffer, 30, 3);
+        assertEquals(1, buffer.getFramesSkipped());
+        assertNull(buffer.capture(3, 10));
+
+        first.release();
+        second.release();
+        feed(buffer, 30, 4);
+        assertEquals(4, buffer.capture(4, 10).getTimestampNanos());
+    }
+}
@@ -0,0 +1,33 @@
+package com.pocorusso.bearbeard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Sample size math run before every bitmap decode.
+ */
+@State(Scope.Thread)
+public class BitmapSamplingBenchmark {
+
+    private int mSrcWidth = 4032;
+    private int mSrcHeight = 3024;
+    private int mDestWidth = 540;
+    private int mDestHeight = 720;
+    private int mLongEdge = 1024;
+
+    @Benchmark
+    public int calculateInSampleSize() {
+        return BitmapSampling.calculateInSampleSize(mSrcWidth, mSrcHeight, mDestWidth, mDestHeight);
+    }
+
+    @Benchmark
+    public int calculateInSampleSizeForLongEdge() {
+        return BitmapSampling.calculateInSampleSizeForLongEdge(mSrcWidth, mSrcHeight, mLongEdge);
+    }
+
+    @Benchmark
+    public int scaleToLongEdge() {
+        return BitmapSampling.scaleToLongEdge(mSrcHeight, mSrcWidth, mSrcHeight, mLongEdge);
+    }
+}
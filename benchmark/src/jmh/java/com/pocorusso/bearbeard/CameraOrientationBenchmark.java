@@ -0,0 +1,34 @@
+package com.pocorusso.bearbeard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Orientation math for every display rotation of a back and a front camera.
+ */
+@State(Scope.Thread)
+public class CameraOrientationBenchmark {
+
+    private int mBackSensor = 90;
+    private int mFrontSensor = 270;
+
+    @Benchmark
+    public void displayOrientation(Blackhole blackhole) {
+        for (int rotation = 0; rotation < 4; rotation++) {
+            int degrees = CameraOrientation.rotationToDegrees(rotation);
+            blackhole.consume(CameraOrientation.displayOrientation(mBackSensor, degrees, false));
+            blackhole.consume(CameraOrientation.displayOrientation(mFrontSensor, degrees, true));
+        }
+    }
+
+    @Benchmark
+    public void pictureOrientation(Blackhole blackhole) {
+        for (int rotation = 0; rotation < 4; rotation++) {
+            int degrees = CameraOrientation.rotationToDegrees(rotation);
+            blackhole.consume(CameraOrientation.pictureOrientation(mBackSensor, degrees, false));
+            blackhole.consume(CameraOrientation.pictureOrientation(mFrontSensor, degrees, true));
+        }
+    }
+}
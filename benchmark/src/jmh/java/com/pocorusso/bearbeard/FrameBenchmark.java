@@ -0,0 +1,102 @@
+package com.pocorusso.bearbeard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-frame work on preview frames: Camera2 YUV to NV21 conversion, sharpness
+ * scoring and the zero-shutter-lag copy. gc.alloc.rate.norm should stay at 0.
+ */
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+    //row padding as reported by typical Camera2 devices
+    private static final int ROW_PADDING = 64;
+
+    @Param({"640x480", "1920x1080"})
+    public String mSize;
+
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private ByteBuffer mPlanarU;
+    private ByteBuffer mPlanarV;
+    private byte[] mNv21;
+    private byte[] mFrame;
+    private FrameBufferPool mPool;
+    private PreviewFrame.Recycler mRecycler;
+    private ZslRingBuffer mZslBuffer;
+
+    @Setup
+    public void setUp() {
+        String[] size = mSize.split("x");
+        mWidth = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+
+        int yRowStride = mWidth + ROW_PADDING;
+        mY = ByteBuffer.allocateDirect(yRowStride * mHeight);
+        //semi-planar chroma, U and V views of the same interleaved plane
+        ByteBuffer uv = ByteBuffer.allocateDirect(yRowStride * mHeight / 2);
+        mU = uv.duplicate();
+        uv.position(1);
+        mV = uv.slice();
+        mPlanarU = ByteBuffer.allocateDirect(mWidth * mHeight / 4);
+        mPlanarV = ByteBuffer.allocateDirect(mWidth * mHeight / 4);
+        fill(mY);
+        fill(uv);
+        fill(mPlanarU);
+        fill(mPlanarV);
+        mNv21 = new byte[mWidth * mHeight * 3 / 2];
+        mFrame = new byte[mNv21.length];
+        for (int i = 0; i < mFrame.length; i++) {
+            mFrame[i] = (byte) (i * 31);
+        }
+
+        mPool = new FrameBufferPool(1, mWidth, mHeight, 12);
+        mRecycler = new PreviewFrame.Recycler() {
+            @Override
+            public void recycle(PreviewFrame frame) {
+                mPool.release(frame);
+            }
+        };
+        mZslBuffer = new ZslRingBuffer(4);
+    }
+
+    private static void fill(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) (i * 31));
+        }
+    }
+
+    @Benchmark
+    public byte[] toNv21SemiPlanar() {
+        YuvConverter.toNv21(mY, mWidth + ROW_PADDING, mU, mV, mWidth + ROW_PADDING, 2, mWidth, mHeight, mNv21);
+        return mNv21;
+    }
+
+    @Benchmark
+    public byte[] toNv21Planar() {
+        YuvConverter.toNv21(mY, mWidth + ROW_PADDING, mPlanarU, mPlanarV, mWidth / 2, 1, mWidth, mHeight, mNv21);
+        return mNv21;
+    }
+
+    @Benchmark
+    public long sharpness() {
+        return ZslRingBuffer.sharpness(mFrame, mWidth, mHeight, 4);
+    }
+
+    @Benchmark
+    public ZslRingBuffer zslCopy() {
+        PreviewFrame frame = mPool.acquire();
+        frame.prepare(mRecycler, 1, 0, System.nanoTime());
+        mZslBuffer.onFrame(frame);
+        return mZslBuffer;
+    }
+}
@@ -0,0 +1,43 @@
+package com.pocorusso.bearbeard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Preview size selection, as done on every layout of the preview.
+ */
+@State(Scope.Thread)
+public class PreviewSizeBenchmark {
+
+    //preview sizes of a typical back camera
+    private List<FrameSize> mSizes;
+    private PreviewSizeResolver mResolver;
+    private int mViewWidth = 1080;
+    private int mViewHeight = 1794;
+
+    @Setup
+    public void setUp() {
+        mSizes = Arrays.asList(
+                new FrameSize(1920, 1080), new FrameSize(1440, 1080), new FrameSize(1280, 960),
+                new FrameSize(1280, 720), new FrameSize(1056, 864), new FrameSize(960, 720),
+                new FrameSize(800, 480), new FrameSize(720, 480), new FrameSize(640, 480),
+                new FrameSize(352, 288), new FrameSize(320, 240), new FrameSize(176, 144));
+        mResolver = new PreviewSizeResolver();
+        mResolver.setSupportedSizes(0, mSizes);
+    }
+
+    @Benchmark
+    public FrameSize getOptimalPreviewSize() {
+        return PreviewSizeResolver.getOptimalPreviewSize(mSizes, mViewWidth, mViewHeight, true);
+    }
+
+    @Benchmark
+    public FrameSize resolveCached() {
+        return mResolver.resolve(0, mViewWidth, mViewHeight, true);
+    }
+}
@@ -0,0 +1,81 @@
+package com.pocorusso.bearbeard;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * NV21 to ARGB and luma conversion of preview frames, on one thread and striped
+ * across cores. gc.alloc.rate.norm should stay at 0.
+ */
+@State(Scope.Thread)
+public class YuvBenchmark {
+
+    @Param({"640x480", "1920x1080"})
+    public String mSize;
+
+    //0 for the straight copy path, 90 for the usual portrait display orientation
+    @Param({"0", "90"})
+    public int mRotation;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mNv21;
+    private int[] mArgb;
+    private int[] mThumbnail;
+    private byte[] mLuma;
+    private ParallelYuvConverter mConverter;
+
+    @Setup
+    public void setUp() {
+        String[] size = mSize.split("x");
+        mWidth = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+        mNv21 = new byte[mWidth * mHeight * 3 / 2];
+        for (int i = 0; i < mNv21.length; i++) {
+            mNv21[i] = (byte) (i * 31);
+        }
+        mArgb = new int[mWidth * mHeight];
+        mThumbnail = new int[(mWidth / 4) * (mHeight / 4)];
+        mLuma = new byte[mWidth * mHeight];
+        mConverter = new ParallelYuvConverter(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mConverter.shutdown();
+    }
+
+    @Benchmark
+    public int[] argb() {
+        YuvConverter.nv21ToArgb(mNv21, mWidth, mHeight, 1, mRotation, mArgb);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] argbParallel() {
+        mConverter.nv21ToArgb(mNv21, mWidth, mHeight, 1, mRotation, mArgb);
+        return mArgb;
+    }
+
+    @Benchmark
+    public int[] argbQuarterSize() {
+        YuvConverter.nv21ToArgb(mNv21, mWidth, mHeight, 4, mRotation, mThumbnail);
+        return mThumbnail;
+    }
+
+    @Benchmark
+    public byte[] luma() {
+        YuvConverter.nv21ToLuma(mNv21, mWidth, mHeight, 1, mRotation, mLuma);
+        return mLuma;
+    }
+
+    @Benchmark
+    public byte[] lumaParallel() {
+        mConverter.nv21ToLuma(mNv21, mWidth, mHeight, 1, mRotation, mLuma);
+        return mLuma;
+    }
+}